@@ -0,0 +1,58 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import jenkins.benchmark.jmh.BenchmarkFinder;
+
+/**
+ * Runs the benchmarks annotated with <code>@JmhBenchmark</code>, with <code>mvn -Pbenchmark test</code>, and writes
+ * the results to <code>target/jmh-report.json</code>. The GC profiler adds the bytes allocated per operation,
+ * <code>gc.alloc.rate.norm</code>, to the timings.
+ */
+public class StrobeBenchmarkRunner
+{
+	@Test
+	public void runBenchmarks() throws Exception
+	{
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.warmupIterations(3)
+				.warmupTime(TimeValue.seconds(2))
+				.measurementIterations(5)
+				.measurementTime(TimeValue.seconds(2))
+				.timeUnit(TimeUnit.MICROSECONDS)
+				.forks(1)
+				.shouldFailOnError(true)
+				.shouldDoGC(true)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result("target/jmh-report.json"); //$NON-NLS-1$
+
+		new BenchmarkFinder(getClass()).findBenchmarks(options);
+		new Runner(options.build()).run();
+	}
+}
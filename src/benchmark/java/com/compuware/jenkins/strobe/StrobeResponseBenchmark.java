@@ -0,0 +1,158 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.protocol.BasicHttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+/**
+ * Measures reading CES replies: <code>scan</code> runs the <code>StrobeJsonScanner</code> over the decoded reply,
+ * <code>consume</code> runs the <code>StrobeResponseConsumer</code> the non-blocking client uses, decoding the reply as it
+ * arrives in segments.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StrobeResponseBenchmark
+{
+	private static final int SEGMENT_SIZE = 1460;
+
+	@State(Scope.Thread)
+	public static class Reply
+	{
+		/**
+		 * <code>submit</code> is a measurement request reply, <code>status</code> a status reply, <code>messages</code> a
+		 * request reply whose return code and session number follow a long list of messages.
+		 */
+		@Param({ "submit", "status", "messages" })
+		public String kind;
+
+		String text;
+		byte[] bytes;
+		Supplier<StrobeResponseParser<?>> parser;
+
+		@Setup
+		public void setup()
+		{
+			StringBuilder json = new StringBuilder();
+			if ("status".equals(kind)) //$NON-NLS-1$
+			{
+				json.append("{\"system\":\"CW01\",\"@number\":\"1234\",\"jobName\":\"PAYROLL1\",\"reqType\":\"addActive\",") //$NON-NLS-1$
+						.append("\"profileName\":\"PAYROLL.NIGHTLY\",\"samples\":\"10000\",\"duration\":\"10\",") //$NON-NLS-1$
+						.append("\"status\":\"COMPLETED\",\"messages\":[\"Measurement ended\"]}"); //$NON-NLS-1$
+				parser = StrobeSessionPoller.StatusParser::new;
+			}
+			else
+			{
+				int messages = "messages".equals(kind) ? 200 : 1; //$NON-NLS-1$
+				json.append("{\"messages\":["); //$NON-NLS-1$
+				for (int i = 0; i < messages; i++)
+				{
+					json.append(i > 0 ? "," : "").append("\"SM0").append(i).append("I Measurement request for PAYROLL1 queued on CW01\""); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+				}
+				json.append("],\"returnCode\":\"0\",\"@number\":\"1234\"}"); //$NON-NLS-1$
+				parser = MeasurementSubmitResult.Parser::new;
+			}
+			text = json.toString();
+			bytes = text.getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Hands out the reply one TCP segment at a time, standing in for the connection.
+	 */
+	static final class Segments implements ContentDecoder
+	{
+		private final ByteBuffer content;
+
+		Segments(byte[] bytes)
+		{
+			content = ByteBuffer.wrap(bytes);
+		}
+
+		@Override
+		public int read(ByteBuffer dst)
+		{
+			if (content.hasRemaining() == false)
+			{
+				return -1;
+			}
+
+			int n = Math.min(Math.min(content.remaining(), dst.remaining()), SEGMENT_SIZE);
+			ByteBuffer segment = content.duplicate();
+			segment.limit(segment.position() + n);
+			dst.put(segment);
+			content.position(content.position() + n);
+			return n;
+		}
+
+		@Override
+		public boolean isCompleted()
+		{
+			return content.hasRemaining() == false;
+		}
+	}
+
+	@Benchmark
+	public Object scan(Reply reply) throws IOException
+	{
+		StrobeResponseParser<?> parser = reply.parser.get();
+		StrobeJsonScanner scanner = new StrobeJsonScanner(parser, StrobeResponseConsumer.MAX_RESPONSE_SIZE);
+		scanner.feed(CharBuffer.wrap(reply.text));
+		scanner.finish();
+		return parser.getResult(HttpStatus.SC_OK, scanner.getPrefix());
+	}
+
+	@Benchmark
+	public Object consume(Reply reply) throws Exception
+	{
+		StrobeResponseConsumer<?> consumer = new StrobeResponseConsumer<>(reply.parser.get());
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"); //$NON-NLS-1$
+		response.setEntity(new StringEntity("", ContentType.APPLICATION_JSON)); //$NON-NLS-1$
+		consumer.responseReceived(response);
+		Segments segments = new Segments(reply.bytes);
+		while (segments.isCompleted() == false)
+		{
+			consumer.consumeContent(segments, null);
+		}
+		consumer.responseCompleted(new BasicHttpContext());
+		return consumer.getResult();
+	}
+}
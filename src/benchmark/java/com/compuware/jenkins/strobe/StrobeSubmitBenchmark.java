@@ -0,0 +1,84 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+
+/**
+ * Measures submitting a measurement request through the <code>StrobeMeasurementRunner</code> to the stub CES, from the
+ * throttle through the non-blocking client to the parsed reply. With a coalescing window the requests, all identical,
+ * share the submission of the first one.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StrobeSubmitBenchmark
+{
+	public static class Controller extends JmhBenchmarkState
+	{
+		@Param({ "0", "10" })
+		public int coalescingWindow;
+
+		private final StubCes ces = new StubCes();
+
+		StrobeMeasurementBuilder builder;
+		Secret token;
+
+		@Override
+		public void setup() throws Exception
+		{
+			StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+			config.setCoalescingWindow(coalescingWindow);
+			config.setCallbackEnabled(false);
+			config.setMaxSubmissionsPerMinute(0);
+			config.setMaxSubmissionsInFlight(1000);
+			config.save();
+			StrobeHttpClientManager.get().applyConfiguration(config);
+			StrobeSubmissionThrottle.get().applyConfiguration(config);
+
+			ces.before();
+			ces.connect("stub", "stub-token"); //$NON-NLS-1$ //$NON-NLS-2$
+			builder = StrobeRequestBenchmark.typicalRequest(
+					new StrobeMeasurementBuilder("stub", "stub-token", "addActive", "PAYROLL1"), false); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			token = Secret.fromString(StubCes.TOKEN);
+		}
+
+		@Override
+		public void tearDown()
+		{
+			ces.after();
+		}
+	}
+
+	@Benchmark
+	public MeasurementSubmitResult submit(Controller controller) throws Exception
+	{
+		return new StrobeMeasurementRunner(controller.builder).submit(TaskListener.NULL, controller.token).get();
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.Locale;
+
+/**
+ * The state of a Strobe measurement session as reported by CES.
+ */
+public enum MeasurementStatus
+{
+	/** The session is queued, waiting for the job, sampling or creating the profile. */
+	IN_PROGRESS,
+
+	/** The session ended and its profile is available. */
+	COMPLETED,
+
+	/** The session ended without producing a profile. */
+	FAILED,
+
+	/** The session did not end within the time the build was willing to wait. */
+	TIMED_OUT;
+
+	/**
+	 * Maps the status text returned by CES for a measurement session.
+	 * 
+	 * @param status
+	 *            the status text, may be <code>null</code> if CES did not return one
+	 * 
+	 * @return the matching <code>MeasurementStatus</code>; unknown states are treated as still in progress
+	 */
+	public static MeasurementStatus fromCesStatus(String status)
+	{
+		if (status == null)
+		{
+			return IN_PROGRESS;
+		}
+
+		switch (status.trim().toUpperCase(Locale.ENGLISH))
+		{
+			case "COMPLETE":
+			case "COMPLETED":
+			case "ENDED":
+			case "PROFILED":
+				return COMPLETED;
+			case "FAILED":
+			case "ERROR":
+			case "CANCELED":
+			case "CANCELLED":
+			case "DELETED":
+				return FAILED;
+			default:
+				return IN_PROGRESS;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the session will not change state anymore
+	 */
+	public boolean isFinal()
+	{
+		return this != IN_PROGRESS;
+	}
+}
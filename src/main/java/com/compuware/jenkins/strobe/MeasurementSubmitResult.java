@@ -0,0 +1,146 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * The reply of CES to a measurement request.
+ */
+public final class MeasurementSubmitResult implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	// got the <5 criteria from the processResponse function in StrobeService.java
+	private static final int MAX_SUCCESS_RETURN_CODE = 4;
+
+	private final int statusCode;
+	private final int returnCode;
+	private final int sessionNumber;
+	private final List<String> messages;
+	private final String responsePrefix;
+
+	MeasurementSubmitResult(int statusCode, int returnCode, int sessionNumber, List<String> messages, String responsePrefix)
+	{
+		this.statusCode = statusCode;
+		this.returnCode = returnCode;
+		this.sessionNumber = sessionNumber;
+		this.messages = Collections.unmodifiableList(messages);
+		this.responsePrefix = responsePrefix;
+	}
+
+	/**
+	 * @return the HTTP status code of the reply
+	 */
+	public int getStatusCode()
+	{
+		return statusCode;
+	}
+
+	/**
+	 * @return the return code, or -1 if the reply did not contain one
+	 */
+	public int getReturnCode()
+	{
+		return returnCode;
+	}
+
+	/**
+	 * @return the session request number, or -1 if the reply did not contain one
+	 */
+	public int getSessionNumber()
+	{
+		return sessionNumber;
+	}
+
+	/**
+	 * @return the messages CES returned with the reply
+	 */
+	public List<String> getMessages()
+	{
+		return messages;
+	}
+
+	/**
+	 * @return the start of the reply, for error messages
+	 */
+	public String getResponsePrefix()
+	{
+		return responsePrefix;
+	}
+
+	/**
+	 * @return <code>true</code> if the reply contained a return code
+	 */
+	public boolean isValid()
+	{
+		return returnCode >= 0;
+	}
+
+	/**
+	 * @return <code>true</code> if CES accepted the measurement request
+	 */
+	public boolean isAccepted()
+	{
+		return isValid() && returnCode <= MAX_SUCCESS_RETURN_CODE;
+	}
+
+	/**
+	 * Collects the return code, session request number and messages, and stops scanning once the return code and session
+	 * request number have been found.
+	 */
+	static final class Parser implements StrobeResponseParser<MeasurementSubmitResult>
+	{
+		private static final int MAX_MESSAGES = 20;
+
+		private int returnCode = -1;
+		private int sessionNumber = -1;
+		private final List<String> messages = new ArrayList<>();
+
+		@Override
+		public boolean visit(String name, String value)
+		{
+			if ("returnCode".equals(name)) //$NON-NLS-1$
+			{
+				returnCode = NumberUtils.toInt(value, -1);
+			}
+			// the session request number is sometimes quoted and sometimes not, the scanner has removed the quotes
+			else if ("@number".equals(name)) //$NON-NLS-1$
+			{
+				sessionNumber = NumberUtils.toInt(value, -1);
+			}
+			else if ("messages".equals(name) && value != null && messages.size() < MAX_MESSAGES) //$NON-NLS-1$
+			{
+				messages.add(value);
+			}
+
+			return returnCode < 0 || sessionNumber < 0;
+		}
+
+		@Override
+		public MeasurementSubmitResult getResult(int statusCode, String responsePrefix)
+		{
+			return new MeasurementSubmitResult(statusCode, returnCode, sessionNumber, messages, responsePrefix);
+		}
+	}
+}
@@ -0,0 +1,519 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Serializable;
+import java.net.URI;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+import hudson.util.Secret;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Sends requests to CES from a build agent rather than from the controller. This suits agents that can reach CES when
+ * the controller cannot, and moves the network I/O and the parsing of replies to the agents.
+ * <p>
+ * The requests are prepared on the controller, sent to the agent over its remoting channel and executed there with a
+ * blocking client that keeps a connection pool per CES instance in the agent JVM; only the parsed result travels back.
+ * The CES secret token is passed as a <code>Secret</code> over the channel, which agents connect to over TLS, and is
+ * never written to disk or to the build log. No controller thread waits for the agent: the agent hands the result to a
+ * receiver exported by the controller, which tells the callers through the same <code>FutureCallback</code> as a
+ * request sent by the controller's non-blocking client.
+ */
+final class StrobeAgentTransport
+{
+	private static final Logger LOGGER = Logger.getLogger(StrobeAgentTransport.class.getName());
+
+	// a pool that has not been used for this long is closed, such as one left behind by changed timeouts
+	private static final long CLIENT_IDLE_MS = TimeUnit.MINUTES.toMillis(10);
+
+	// the pooled clients of the agent JVM, keyed on the CES instance and the settings they were built with
+	private static final Map<String, PooledClient> CLIENTS = new HashMap<>();
+
+	private StrobeAgentTransport()
+	{
+	}
+
+	/**
+	 * Sends a request through an agent. The call returns at once; the callback is told on the thread that receives the
+	 * result from the agent, or that notices the channel closed.
+	 * 
+	 * @param channel
+	 *            the channel of the agent
+	 * @param request
+	 *            the request
+	 * @param callback
+	 *            told about the outcome of the request
+	 * 
+	 * @param <T>
+	 *            the type of the parsed reply
+	 * 
+	 * @return a <code>Future</code> that abandons the request on the agent when cancelled
+	 */
+	static <T> Future<?> execute(final VirtualChannel channel, final Request<T> request, final FutureCallback<T> callback)
+	{
+		final CompletableFuture<T> outcome = new CompletableFuture<>();
+
+		// a request whose agent goes away never replies
+		final Channel.Listener closed = new Channel.Listener()
+		{
+			@Override
+			public void onClosed(Channel closedChannel, IOException cause)
+			{
+				outcome.completeExceptionally(cause != null ? cause : new IOException(Messages.errorAgentDisconnected()));
+			}
+		};
+		if (channel instanceof Channel)
+		{
+			((Channel) channel).addListener(closed);
+		}
+
+		final Future<Void> call;
+		try
+		{
+			@SuppressWarnings("unchecked")
+			Receiver<T> receiver = channel.export(Receiver.class, new Receiver<T>()
+			{
+				@Override
+				public void completed(T result)
+				{
+					outcome.complete(result);
+				}
+
+				@Override
+				public void failed(IOException e)
+				{
+					outcome.completeExceptionally(e);
+				}
+			});
+			call = channel.callAsync(new Call<>(request, receiver));
+		}
+		catch (IOException | RuntimeException e)
+		{
+			if (channel instanceof Channel)
+			{
+				((Channel) channel).removeListener(closed);
+			}
+			callback.failed(e);
+			return outcome;
+		}
+
+		outcome.whenComplete((result, failure) -> {
+			if (channel instanceof Channel)
+			{
+				((Channel) channel).removeListener(closed);
+			}
+
+			if (failure instanceof CancellationException)
+			{
+				call.cancel(true);
+				callback.cancelled();
+			}
+			else if (failure != null)
+			{
+				callback.failed(failure instanceof Exception ? (Exception) failure : new IOException(failure));
+			}
+			else
+			{
+				callback.completed(result);
+			}
+		});
+		return outcome;
+	}
+
+	/**
+	 * @return the timeouts of the requests, taken from the global configuration on the controller
+	 */
+	static Timeouts timeouts()
+	{
+		RequestConfig requestConfig = StrobeHttpClientManager.get().getRequestConfig();
+		StrobeGlobalConfiguration config = StrobeHttpClientManager.currentConfiguration();
+		return new Timeouts(requestConfig.getConnectTimeout(), requestConfig.getSocketTimeout(),
+				TimeUnit.SECONDS.toMillis(config.getIdleConnectionTimeout()), config.getMaxConnectionsPerRoute(),
+				StrobeResponseConsumer.MAX_RESPONSE_SIZE);
+	}
+
+	// runs on the agent; returns the pooled client for the CES instance of the URL, closing the pools no longer used
+	private static CloseableHttpClient getClient(String url, Timeouts timeouts)
+	{
+		HttpHost host = URIUtils.extractHost(URI.create(url));
+		String key = (host != null ? host.toURI() : url) + '|' + timeouts.connectTimeoutMs + '|' + timeouts.readTimeoutMs + '|'
+				+ timeouts.idleTimeoutMs + '|' + timeouts.maxConnectionsPerRoute;
+		long now = System.currentTimeMillis();
+
+		synchronized (CLIENTS)
+		{
+			Iterator<PooledClient> pooledClients = CLIENTS.values().iterator();
+			while (pooledClients.hasNext())
+			{
+				PooledClient pooledClient = pooledClients.next();
+				if (pooledClient.isUnused(now))
+				{
+					pooledClients.remove();
+					pooledClient.close();
+				}
+			}
+
+			PooledClient pooledClient = CLIENTS.computeIfAbsent(key, k -> new PooledClient(timeouts));
+			pooledClient.lastUsed = now;
+			return pooledClient.client;
+		}
+	}
+
+	private static void authorize(HttpRequestBase request, Secret token)
+	{
+		if (token != null)
+		{
+			request.addHeader("Authorization", token.getPlainText());
+		}
+	}
+
+	/**
+	 * The timeouts, connection limit and reply size cap of the controller's configuration, which is not available on the
+	 * agent.
+	 */
+	static final class Timeouts implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int connectTimeoutMs;
+		private final int readTimeoutMs;
+		private final long idleTimeoutMs;
+		private final int maxConnectionsPerRoute;
+		private final int maxResponseSize;
+
+		Timeouts(int connectTimeoutMs, int readTimeoutMs, long idleTimeoutMs, int maxConnectionsPerRoute, int maxResponseSize)
+		{
+			this.connectTimeoutMs = connectTimeoutMs;
+			this.readTimeoutMs = readTimeoutMs;
+			this.idleTimeoutMs = idleTimeoutMs;
+			this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+			this.maxResponseSize = maxResponseSize;
+		}
+	}
+
+	/**
+	 * A connection pool of the agent JVM. Idle connections are closed by the client's own evictor thread, and the whole
+	 * pool once it has not been used for a while.
+	 */
+	private static final class PooledClient
+	{
+		private final PoolingHttpClientConnectionManager connectionManager;
+		private final CloseableHttpClient client;
+
+		// guarded by CLIENTS
+		private long lastUsed;
+
+		PooledClient(Timeouts timeouts)
+		{
+			connectionManager = new PoolingHttpClientConnectionManager();
+			connectionManager.setDefaultMaxPerRoute(timeouts.maxConnectionsPerRoute);
+			connectionManager.setMaxTotal(timeouts.maxConnectionsPerRoute);
+
+			client = HttpClients.custom()
+					.setConnectionManager(connectionManager)
+					.setDefaultRequestConfig(RequestConfig.custom()
+							.setConnectTimeout(timeouts.connectTimeoutMs)
+							.setConnectionRequestTimeout(timeouts.connectTimeoutMs)
+							.setSocketTimeout(timeouts.readTimeoutMs)
+							.build())
+					.evictExpiredConnections()
+					.evictIdleConnections(timeouts.idleTimeoutMs, TimeUnit.MILLISECONDS)
+					.build();
+		}
+
+		boolean isUnused(long now)
+		{
+			PoolStats stats = connectionManager.getTotalStats();
+			return now - lastUsed > CLIENT_IDLE_MS && stats.getLeased() == 0 && stats.getPending() == 0;
+		}
+
+		void close()
+		{
+			try
+			{
+				client.close();
+			}
+			catch (IOException e)
+			{
+				LOGGER.log(Level.FINE, "Unable to close the CES connection pool", e); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/**
+	 * Receives the outcome of a request on the controller. It is exported to the agent, which calls it once the reply
+	 * is parsed.
+	 *
+	 * @param <T>
+	 *            the type of the parsed reply
+	 */
+	public interface Receiver<T>
+	{
+		void completed(T result);
+
+		void failed(IOException e);
+	}
+
+	/**
+	 * Runs a request on the agent and hands its outcome to the controller's receiver.
+	 *
+	 * @param <T>
+	 *            the type of the parsed reply
+	 */
+	private static final class Call<T> extends MasterToSlaveCallable<Void, IOException>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Request<T> request;
+		private final Receiver<T> receiver;
+
+		Call(Request<T> request, Receiver<T> receiver)
+		{
+			this.request = request;
+			this.receiver = receiver;
+		}
+
+		@Override
+		public Void call()
+		{
+			T result;
+			try
+			{
+				result = request.call();
+			}
+			catch (IOException e)
+			{
+				receiver.failed(e);
+				return null;
+			}
+			catch (RuntimeException e)
+			{
+				receiver.failed(new IOException(e));
+				return null;
+			}
+
+			try
+			{
+				receiver.completed(result);
+			}
+			catch (RuntimeException e)
+			{
+				// the result could not be handed over, such as when it failed to serialize
+				receiver.failed(new IOException(e));
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A request executed on the agent, whose reply is scanned as it is read like on the controller.
+	 *
+	 * @param <T>
+	 *            the type of the parsed reply
+	 */
+	abstract static class Request<T> extends MasterToSlaveCallable<T, IOException>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final String url;
+		private final Secret token;
+		private final Timeouts timeouts;
+
+		Request(String url, Secret token, Timeouts timeouts)
+		{
+			this.url = url;
+			this.token = token;
+			this.timeouts = timeouts;
+		}
+
+		abstract HttpRequestBase createRequest(String url);
+
+		abstract StrobeResponseParser<T> createParser();
+
+		@Override
+		public T call() throws IOException
+		{
+			HttpRequestBase request = createRequest(url);
+			authorize(request, token);
+
+			StrobeResponseParser<T> parser = createParser();
+			StrobeJsonScanner scanner = new StrobeJsonScanner(parser, timeouts.maxResponseSize);
+			try (CloseableHttpResponse response = getClient(url, timeouts).execute(request))
+			{
+				HttpEntity entity = response.getEntity();
+				if (entity != null)
+				{
+					ContentType contentType = ContentType.get(entity);
+					Charset charset = contentType != null && contentType.getCharset() != null ? contentType.getCharset() : StandardCharsets.UTF_8;
+					try (Reader reader = new InputStreamReader(entity.getContent(), charset))
+					{
+						CharBuffer chars = CharBuffer.allocate(2048);
+						while (scanner.isDone() == false && reader.read(chars) != -1)
+						{
+							chars.flip();
+							scanner.feed(chars);
+							chars.clear();
+						}
+					}
+				}
+
+				scanner.finish();
+				return parser.getResult(response.getStatusLine().getStatusCode(), scanner.getPrefix());
+			}
+		}
+	}
+
+	/**
+	 * Submits a measurement request whose payload was serialized on the controller.
+	 */
+	static final class SubmitRequest extends Request<MeasurementSubmitResult>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] payload;
+
+		SubmitRequest(String url, byte[] payload, Secret token, Timeouts timeouts)
+		{
+			super(url, token, timeouts);
+			this.payload = payload;
+		}
+
+		@Override
+		HttpRequestBase createRequest(String url)
+		{
+			HttpPost post = new HttpPost(url);
+			post.setEntity(new ByteArrayEntity(payload, ContentType.APPLICATION_JSON));
+			return post;
+		}
+
+		@Override
+		StrobeResponseParser<MeasurementSubmitResult> createParser()
+		{
+			return new MeasurementSubmitResult.Parser();
+		}
+	}
+
+	/**
+	 * Gets the status of a measurement session.
+	 */
+	static final class StatusRequest extends Request<StrobeSessionPoller.StatusReply>
+	{
+		private static final long serialVersionUID = 1L;
+
+		StatusRequest(String url, Secret token, Timeouts timeouts)
+		{
+			super(url, token, timeouts);
+		}
+
+		@Override
+		HttpRequestBase createRequest(String url)
+		{
+			return new HttpGet(url);
+		}
+
+		@Override
+		StrobeResponseParser<StrobeSessionPoller.StatusReply> createParser()
+		{
+			return new StrobeSessionPoller.StatusParser();
+		}
+	}
+
+	/**
+	 * Downloads a profile into a file of the agent's workspace and summarizes it there.
+	 */
+	static final class ProfileDownload extends MasterToSlaveFileCallable<StrobeProfileSummary>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final String url;
+		private final Secret token;
+		private final Timeouts timeouts;
+		private final int top;
+
+		ProfileDownload(String url, Secret token, Timeouts timeouts, int top)
+		{
+			this.url = url;
+			this.token = token;
+			this.timeouts = timeouts;
+			this.top = top;
+		}
+
+		@Override
+		public StrobeProfileSummary invoke(File file, VirtualChannel channel) throws IOException
+		{
+			HttpGet get = new HttpGet(url);
+			authorize(get, token);
+			try (CloseableHttpResponse response = getClient(url, timeouts).execute(get))
+			{
+				int statusCode = response.getStatusLine().getStatusCode();
+				HttpEntity entity = response.getEntity();
+				if (statusCode != HttpStatus.SC_OK || entity == null)
+				{
+					throw new IOException(Messages.errorProfileStatus(statusCode));
+				}
+
+				Files.createDirectories(file.getParentFile().toPath());
+				try (InputStream content = entity.getContent())
+				{
+					Files.copy(content, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+
+			return StrobeProfileDownloader.summarize(file, top);
+		}
+	}
+}
@@ -0,0 +1,539 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+import com.compuware.jenkins.common.configuration.HostConnection;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import jenkins.tasks.SimpleBuildStep;
+
+/**
+ * Submits measurement requests for many jobs that share one host connection and CES secret token. The credential is
+ * looked up and the shared parameters are validated once, then the requests are submitted in parallel with a limited
+ * number in flight per host connection. The <code>strobeBatchMeasurementAsync</code> Pipeline step submits the same
+ * batch without holding an executor while CES replies.
+ * <p>
+ * Additional host connections fan the same requests out to further systems, such as the test, QA and performance LPARs
+ * a job runs on. Every job is then submitted to every system, each over the connection pool of its own CES, and the
+ * results are gathered into one report.
+ */
+public class StrobeBatchMeasurementBuilder extends Builder implements SimpleBuildStep
+{
+	private static final String EQUAL = "=";
+
+	static final int DEFAULT_MAX_CONCURRENCY = 8;
+
+	/** Fail the build if any measurement request was not accepted. */
+	static final String POLICY_FAIL_ON_ANY = "failOnAny"; //$NON-NLS-1$
+	/** Mark the build unstable if any measurement request was not accepted. */
+	static final String POLICY_UNSTABLE_ON_ANY = "unstableOnAny"; //$NON-NLS-1$
+	/** Fail the build only if no measurement request was accepted, otherwise mark it unstable. */
+	static final String POLICY_FAIL_ON_ALL = "failOnAll"; //$NON-NLS-1$
+
+	private final String connectionId;
+	private final String credentialsId;
+	private final List<StrobeMeasurementJob> jobs;
+	private String additionalConnectionIds;
+	private int maxConcurrency;
+	private String failurePolicy;
+
+	@DataBoundConstructor
+	public StrobeBatchMeasurementBuilder(String connectionId, String credentialsId, List<StrobeMeasurementJob> jobs)
+	{
+		this.connectionId = StringUtils.trimToEmpty(connectionId);
+		this.credentialsId = StringUtils.trimToEmpty(credentialsId);
+		this.jobs = jobs != null ? new ArrayList<>(jobs) : new ArrayList<StrobeMeasurementJob>();
+	}
+
+	public String getConnectionId()
+	{
+		return connectionId;
+	}
+
+	public String getCredentialsId()
+	{
+		return credentialsId;
+	}
+
+	public List<StrobeMeasurementJob> getJobs()
+	{
+		return Collections.unmodifiableList(jobs);
+	}
+
+	/**
+	 * @return the ids of further host connections the jobs are measured on, separated by commas, spaces or new lines
+	 */
+	public String getAdditionalConnectionIds() {
+		return additionalConnectionIds;
+	}
+
+	@DataBoundSetter
+	public void setAdditionalConnectionIds(String additionalConnectionIds) {
+		this.additionalConnectionIds = StringUtils.trimToNull(additionalConnectionIds);
+	}
+
+	/**
+	 * @return the id of the host connection followed by the additional ones, without duplicates
+	 */
+	List<String> getAllConnectionIds()
+	{
+		Set<String> connectionIds = new LinkedHashSet<>();
+		connectionIds.add(connectionId);
+		for (String additional : StringUtils.split(StringUtils.defaultString(additionalConnectionIds), ", \t\r\n")) //$NON-NLS-1$
+		{
+			connectionIds.add(additional);
+		}
+
+		return new ArrayList<>(connectionIds);
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency > 0 ? maxConcurrency : DEFAULT_MAX_CONCURRENCY;
+	}
+
+	@DataBoundSetter
+	public void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	public String getFailurePolicy() {
+		return StringUtils.defaultIfEmpty(failurePolicy, POLICY_FAIL_ON_ANY);
+	}
+
+	@DataBoundSetter
+	public void setFailurePolicy(String failurePolicy) {
+		this.failurePolicy = StringUtils.trimToNull(failurePolicy);
+	}
+
+	@Override
+	public void perform(final Run<?,?> build, final FilePath workspaceFilePath, final Launcher launcher, final TaskListener listener) throws AbortException, InterruptedException
+	{
+		try
+		{
+			List<HostConnection> hostConnections = validateParameters(listener);
+			Secret token = StrobeMeasurementBuilder.getSecretToken(build.getParent(), credentialsId);
+
+			Fanout fanout = submitAll(listener, token);
+			List<StrobeBatchResult> results;
+			try
+			{
+				results = fanout.getResults().get();
+			}
+			catch (InterruptedException e)
+			{
+				fanout.cancel();
+				throw e;
+			}
+			catch (ExecutionException e)
+			{
+				throw new IOException(e.getCause());
+			}
+
+			report(build, listener, hostConnections, results);
+		}
+		catch (InterruptedException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			listener.getLogger().println(e.getMessage());
+			throw new AbortException();
+		}
+	}
+
+	/**
+	 * Validates the parameters shared by all jobs once, and that every job has a name.
+	 * 
+	 * @param listener
+	 *            Build listener
+	 * 
+	 * @return the selected <code>HostConnection</code> followed by the additional ones
+	 */
+	List<HostConnection> validateParameters(final TaskListener listener)
+	{
+		if (getConnectionId().isEmpty())
+		{
+			throw new IllegalArgumentException(Messages.errorMissingParameter(Messages.hostConnection()));
+		}
+
+		if (getCredentialsId().isEmpty())
+		{
+			throw new IllegalArgumentException(Messages.errorMissingParameter(Messages.credentials()));
+		}
+
+		List<HostConnection> hostConnections = new ArrayList<>();
+		for (String id : getAllConnectionIds())
+		{
+			hostConnections.add(validateHostConnection(id, listener));
+		}
+
+		if (jobs.isEmpty())
+		{
+			throw new IllegalArgumentException(Messages.errorMissingParameter(Messages.jobName()));
+		}
+
+		for (StrobeMeasurementJob job : jobs)
+		{
+			if (job.getJobName().isEmpty())
+			{
+				throw new IllegalArgumentException(Messages.errorMissingParameter(Messages.jobName()));
+			}
+		}
+
+		return hostConnections;
+	}
+
+	static HostConnection validateHostConnection(final String connectionId, final TaskListener listener)
+	{
+		HostConnection hostConnection = StrobeResolutionCache.get().getHostConnection(connectionId);
+		String cesUrl = hostConnection != null ? StringUtils.trimToEmpty(hostConnection.getCesUrl()) : StringUtils.EMPTY;
+		if (cesUrl.isEmpty())
+		{
+			throw new IllegalArgumentException(Messages.errorMissingParameter(Messages.errorMissingCesUrl()));
+		}
+		if (!cesUrl.startsWith("http"))
+		{
+			throw new IllegalArgumentException(Messages.errorInvalidCesUrl());
+		}
+		listener.getLogger().println(Messages.cesUrl() + EQUAL + cesUrl);
+
+		String system = StringUtils.trimToEmpty(hostConnection.getDescription());
+		if (system.isEmpty())
+		{
+			throw new IllegalArgumentException(Messages.errorMissingParameter(Messages.errorMissingSystem()));
+		}
+		listener.getLogger().println(Messages.system() + EQUAL + system);
+
+		return hostConnection;
+	}
+
+	/**
+	 * Adds the report of a batch to the build, logs it and applies the failure policy.
+	 * 
+	 * @param build
+	 *            the build that submitted the batch
+	 * @param listener
+	 *            Build listener
+	 * @param hostConnections
+	 *            the host connections returned by {@link #validateParameters(TaskListener)}
+	 * @param results
+	 *            the results of the requests
+	 * 
+	 * @throws AbortException
+	 *             if the failure policy fails the build
+	 */
+	void report(final Run<?,?> build, final TaskListener listener, final List<HostConnection> hostConnections,
+			final List<StrobeBatchResult> results) throws AbortException
+	{
+		List<String> systems = new ArrayList<>();
+		for (HostConnection hostConnection : hostConnections)
+		{
+			systems.add(hostConnection.getDescription());
+		}
+
+		StrobeBatchResultAction action = new StrobeBatchResultAction(StringUtils.join(systems, ", "), results); //$NON-NLS-1$
+		build.addAction(action);
+		logResults(listener, action);
+
+		applyFailurePolicy(build, listener, action.getFailureCount(), results.size());
+	}
+
+	/**
+	 * Submits the requests of every job to every host connection. No thread waits for them: every host connection has
+	 * its own lanes, and each lane submits its next request from the callback of the previous one, so at most
+	 * maxConcurrency requests are in flight per host connection and a slow CES does not hold up the others.
+	 * 
+	 * @param listener
+	 *            Build listener
+	 * @param token
+	 *            the CES secret token
+	 * 
+	 * @return the requests in flight
+	 */
+	Fanout submitAll(final TaskListener listener, final Secret token)
+	{
+		final List<String> connectionIds = getAllConnectionIds();
+		final Fanout fanout = new Fanout(jobs.size() * connectionIds.size());
+		final int lanesPerConnection = Math.min(getMaxConcurrency(), jobs.size());
+		listener.getLogger().println(Messages.batchSubmitting(fanout.results.length, lanesPerConnection * connectionIds.size()));
+
+		List<CompletableFuture<Void>> laneResults = new ArrayList<>();
+		for (int connection = 0; connection < connectionIds.size(); connection++)
+		{
+			// the results stay ordered by job, then by host connection
+			Queue<Integer> remaining = new ConcurrentLinkedQueue<>();
+			for (int job = 0; job < jobs.size(); job++)
+			{
+				remaining.add(job * connectionIds.size() + connection);
+			}
+			fanout.queues.add(remaining);
+
+			for (int lane = 0; lane < lanesPerConnection; lane++)
+			{
+				laneResults.add(submitNext(connectionIds, remaining, fanout, listener, token));
+			}
+		}
+
+		fanout.gather(CompletableFuture.allOf(laneResults.toArray(new CompletableFuture<?>[0])));
+		return fanout;
+	}
+
+	private CompletableFuture<Void> submitNext(final List<String> connectionIds, final Queue<Integer> remaining,
+			final Fanout fanout, final TaskListener listener, final Secret token)
+	{
+		final Integer index = remaining.poll();
+		if (index == null)
+		{
+			return CompletableFuture.completedFuture(null);
+		}
+
+		final StrobeMeasurementJob job = jobs.get(index / connectionIds.size());
+		final StrobeMeasurementBuilder smBuilder = job.toBuilder(connectionIds.get(index % connectionIds.size()), credentialsId);
+		final StrobeMeasurementRunner runner = new StrobeMeasurementRunner(smBuilder);
+		final long start = System.nanoTime();
+
+		CompletableFuture<MeasurementSubmitResult> submission;
+		try
+		{
+			submission = runner.submit(listener, token);
+		}
+		catch (RuntimeException e)
+		{
+			submission = new CompletableFuture<>();
+			submission.completeExceptionally(e);
+		}
+		fanout.inFlight.add(submission);
+
+		return submission.handle((submitResult, failure) -> {
+			long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			String error = failure != null ? StringUtils.defaultString(failure.getMessage(), failure.getClass().getSimpleName()) : null;
+			// a skipped measurement does not count against the failure policy
+			boolean success = submitResult != null ? submitResult.isAccepted() : StrobeMeasurementBuilder.skipMeasurement(failure, listener);
+			fanout.results[index] = new StrobeBatchResult(smBuilder.getSystem(), job.getJobName(), StringUtils.trimToEmpty(job.getProfileName()),
+					runner.getReturnCode(), runner.getSessionNumber(), latency, success, error);
+			return null;
+		}).thenCompose(ignored -> submitNext(connectionIds, remaining, fanout, listener, token));
+	}
+
+	private static void logResults(final TaskListener listener, final StrobeBatchResultAction action)
+	{
+		listener.getLogger().println(String.format("%-8s %-8s %-20s %10s %14s %12s", "System", "Job Name", "Profile Name", "Return Code", "Session Number", "Latency (ms)")); //$NON-NLS-1$
+		for (StrobeBatchResult result : action.getResults())
+		{
+			listener.getLogger().println(String.format("%-8s %-8s %-20s %10d %14d %12d", result.getSystem(), result.getJobName(), result.getProfileName(), //$NON-NLS-1$
+					result.getReturnCode(), result.getSessionNumber(), result.getLatency()));
+			if (result.getError() != null)
+			{
+				listener.getLogger().println("    " + result.getError()); //$NON-NLS-1$
+			}
+		}
+
+		if (action.isMultiSystem())
+		{
+			listener.getLogger().println(String.format("%-8s %8s %8s %16s %16s", "System", "Accepted", "Failed", "Avg Latency (ms)", "Max Latency (ms)")); //$NON-NLS-1$
+			for (StrobeBatchResultAction.SystemSummary summary : action.getSystemSummaries())
+			{
+				listener.getLogger().println(String.format("%-8s %8d %8d %16d %16d", summary.getSystem(), summary.getAccepted(), //$NON-NLS-1$
+						summary.getFailed(), summary.getAverageLatency(), summary.getMaxLatency()));
+			}
+		}
+	}
+
+	private void applyFailurePolicy(final Run<?,?> build, final TaskListener listener, int failures, int total) throws AbortException
+	{
+		if (failures == 0)
+		{
+			listener.getLogger().println(Messages.strobeMeasurementSuccess());
+			return;
+		}
+
+		String summary = Messages.batchFailures(failures, total);
+		String policy = getFailurePolicy();
+		if (POLICY_UNSTABLE_ON_ANY.equals(policy) || (POLICY_FAIL_ON_ALL.equals(policy) && failures < total))
+		{
+			listener.getLogger().println(summary);
+			build.setResult(Result.UNSTABLE);
+		}
+		else
+		{
+			throw new AbortException(summary);
+		}
+	}
+
+	/**
+	 * The requests of a batch in flight.
+	 */
+	static final class Fanout
+	{
+		private final StrobeBatchResult[] results;
+		private final List<Queue<Integer>> queues = new ArrayList<>();
+		private final List<CompletableFuture<?>> inFlight = Collections.synchronizedList(new ArrayList<CompletableFuture<?>>());
+		private final CompletableFuture<List<StrobeBatchResult>> done = new CompletableFuture<>();
+
+		Fanout(int total)
+		{
+			results = new StrobeBatchResult[total];
+		}
+
+		/**
+		 * @return the results of all requests, completed once every request was answered
+		 */
+		CompletableFuture<List<StrobeBatchResult>> getResults()
+		{
+			return done;
+		}
+
+		/**
+		 * Submits no further request and aborts the requests in flight.
+		 */
+		void cancel()
+		{
+			for (Queue<Integer> remaining : queues)
+			{
+				remaining.clear();
+			}
+
+			synchronized (inFlight)
+			{
+				for (CompletableFuture<?> submission : inFlight)
+				{
+					submission.cancel(true);
+				}
+			}
+		}
+
+		private void gather(CompletableFuture<Void> lanes)
+		{
+			lanes.whenComplete((ignored, failure) -> {
+				if (failure != null)
+				{
+					done.completeExceptionally(failure);
+					return;
+				}
+
+				List<StrobeBatchResult> resultList = new ArrayList<>(results.length);
+				Collections.addAll(resultList, results);
+				done.complete(resultList);
+			});
+		}
+	}
+
+	@Symbol("strobeBatchMeasurement")
+	@Extension
+	public static final class DescriptorImpl extends BuildStepDescriptor<Builder>
+	{
+		@SuppressWarnings("rawtypes")
+		@Override
+		public boolean isApplicable(Class<? extends AbstractProject> aClass)
+		{
+			return true;
+		}
+
+		@Override
+		public String getDisplayName()
+		{
+			return Messages.batchDisplayName();
+		}
+
+		// the shared fields are the same as the builder's, so are their help files
+		@Override
+		public String getHelpFile(final String fieldName)
+		{
+			String helpFile = super.getHelpFile(fieldName);
+			return helpFile != null ? helpFile : builderDescriptor().getHelpFile(fieldName);
+		}
+
+		@POST
+		public ListBoxModel doFillConnectionIdItems(@AncestorInPath Jenkins context, @QueryParameter String connectionId,
+				@AncestorInPath Item project)
+		{
+			return builderDescriptor().doFillConnectionIdItems(context, connectionId, project);
+		}
+
+		@POST
+		public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Jenkins context, @QueryParameter String credentialsId,
+				@AncestorInPath Item project)
+		{
+			return StrobeMeasurementBuilder.DescriptorImpl.doFillCredentialsIdItems(context, credentialsId, project);
+		}
+
+		@POST
+		public FormValidation doCheckConnectionId(@QueryParameter final String value)
+		{
+			return builderDescriptor().doCheckConnectionId(value);
+		}
+
+		@POST
+		public FormValidation doCheckCredentialsId(@QueryParameter final String value)
+		{
+			return builderDescriptor().doCheckCredentialsId(value);
+		}
+
+		@POST
+		public FormValidation doCheckMaxConcurrency(@QueryParameter final String value)
+		{
+			if (Util.fixEmptyAndTrim(value) == null)
+			{
+				return FormValidation.ok();
+			}
+
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		private static StrobeMeasurementBuilder.DescriptorImpl builderDescriptor()
+		{
+			return Jenkins.get().getDescriptorByType(StrobeMeasurementBuilder.DescriptorImpl.class);
+		}
+	}
+}
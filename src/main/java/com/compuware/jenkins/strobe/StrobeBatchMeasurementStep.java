@@ -0,0 +1,199 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+
+/**
+ * Pipeline step that submits a batch of measurement requests without holding an executor thread while CES replies. It
+ * accepts the same parameters as {@link StrobeBatchMeasurementBuilder}, whose symbol stays
+ * <code>strobeBatchMeasurement</code>.
+ */
+public class StrobeBatchMeasurementStep extends Step implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private final String connectionId;
+	private final String credentialsId;
+	private final List<StrobeMeasurementJob> jobs;
+	private String additionalConnectionIds;
+	private int maxConcurrency;
+	private String failurePolicy;
+
+	@DataBoundConstructor
+	public StrobeBatchMeasurementStep(String connectionId, String credentialsId, List<StrobeMeasurementJob> jobs)
+	{
+		this.connectionId = StringUtils.trimToEmpty(connectionId);
+		this.credentialsId = StringUtils.trimToEmpty(credentialsId);
+		this.jobs = jobs != null ? new ArrayList<>(jobs) : new ArrayList<StrobeMeasurementJob>();
+	}
+
+	public String getConnectionId()
+	{
+		return connectionId;
+	}
+
+	public String getCredentialsId()
+	{
+		return credentialsId;
+	}
+
+	public List<StrobeMeasurementJob> getJobs()
+	{
+		return Collections.unmodifiableList(jobs);
+	}
+
+	public String getAdditionalConnectionIds() {
+		return additionalConnectionIds;
+	}
+
+	@DataBoundSetter
+	public void setAdditionalConnectionIds(String additionalConnectionIds) {
+		this.additionalConnectionIds = StringUtils.trimToNull(additionalConnectionIds);
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency > 0 ? maxConcurrency : StrobeBatchMeasurementBuilder.DEFAULT_MAX_CONCURRENCY;
+	}
+
+	@DataBoundSetter
+	public void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	public String getFailurePolicy() {
+		return StringUtils.defaultIfEmpty(failurePolicy, StrobeBatchMeasurementBuilder.POLICY_FAIL_ON_ANY);
+	}
+
+	@DataBoundSetter
+	public void setFailurePolicy(String failurePolicy) {
+		this.failurePolicy = StringUtils.trimToNull(failurePolicy);
+	}
+
+	/**
+	 * Creates a builder holding this step's parameters so the step can share the builder's validation, fan-out and report.
+	 *
+	 * @return a <code>StrobeBatchMeasurementBuilder</code> with the same parameters as this step
+	 */
+	StrobeBatchMeasurementBuilder toBuilder()
+	{
+		StrobeBatchMeasurementBuilder builder = new StrobeBatchMeasurementBuilder(connectionId, credentialsId, jobs);
+		builder.setAdditionalConnectionIds(additionalConnectionIds);
+		builder.setMaxConcurrency(maxConcurrency);
+		builder.setFailurePolicy(failurePolicy);
+		return builder;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception
+	{
+		return new StrobeBatchMeasurementStepExecution(this, context);
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends StepDescriptor
+	{
+		@Override
+		public String getFunctionName()
+		{
+			return "strobeBatchMeasurementAsync"; //$NON-NLS-1$
+		}
+
+		@Override
+		public String getDisplayName()
+		{
+			return Messages.batchStepDisplayName();
+		}
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext()
+		{
+			return Collections.unmodifiableSet(new HashSet<Class<?>>(Arrays.<Class<?>> asList(Run.class, TaskListener.class)));
+		}
+
+		// the configuration page is shared with the builder, so are the help files of its fields
+		@Override
+		public String getHelpFile(final String fieldName)
+		{
+			String helpFile = super.getHelpFile(fieldName);
+			return helpFile != null ? helpFile : batchDescriptor().getHelpFile(fieldName);
+		}
+
+		@POST
+		public ListBoxModel doFillConnectionIdItems(@AncestorInPath Jenkins context, @QueryParameter String connectionId,
+				@AncestorInPath Item project)
+		{
+			return batchDescriptor().doFillConnectionIdItems(context, connectionId, project);
+		}
+
+		@POST
+		public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Jenkins context, @QueryParameter String credentialsId,
+				@AncestorInPath Item project)
+		{
+			return batchDescriptor().doFillCredentialsIdItems(context, credentialsId, project);
+		}
+
+		@POST
+		public FormValidation doCheckConnectionId(@QueryParameter final String value)
+		{
+			return batchDescriptor().doCheckConnectionId(value);
+		}
+
+		@POST
+		public FormValidation doCheckCredentialsId(@QueryParameter final String value)
+		{
+			return batchDescriptor().doCheckCredentialsId(value);
+		}
+
+		@POST
+		public FormValidation doCheckMaxConcurrency(@QueryParameter final String value)
+		{
+			return batchDescriptor().doCheckMaxConcurrency(value);
+		}
+
+		private static StrobeBatchMeasurementBuilder.DescriptorImpl batchDescriptor()
+		{
+			return Jenkins.get().getDescriptorByType(StrobeBatchMeasurementBuilder.DescriptorImpl.class);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import com.compuware.jenkins.common.configuration.HostConnection;
+
+import hudson.AbortException;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+
+/**
+ * Runs a {@link StrobeBatchMeasurementStep}. The requests are handed to the shared non-blocking HTTP client, lane by
+ * lane, and the step is completed from the callback of the last reply; no thread waits for the batch.
+ */
+public class StrobeBatchMeasurementStepExecution extends StepExecution
+{
+	private static final long serialVersionUID = 1L;
+
+	private final StrobeBatchMeasurementStep step;
+
+	private transient StrobeBatchMeasurementBuilder.Fanout fanout;
+
+	StrobeBatchMeasurementStepExecution(StrobeBatchMeasurementStep step, StepContext context)
+	{
+		super(context);
+		this.step = step;
+	}
+
+	@Override
+	public boolean start() throws Exception
+	{
+		final Run<?, ?> run = getContext().get(Run.class);
+		final TaskListener listener = getContext().get(TaskListener.class);
+
+		final StrobeBatchMeasurementBuilder builder = step.toBuilder();
+		final List<HostConnection> hostConnections;
+		try
+		{
+			hostConnections = builder.validateParameters(listener);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new AbortException(e.getMessage());
+		}
+		Secret token = StrobeMeasurementBuilder.getSecretToken(run.getParent(), step.getCredentialsId());
+
+		StrobeBatchMeasurementBuilder.Fanout submitted = builder.submitAll(listener, token);
+		fanout = submitted;
+		submitted.getResults().whenComplete((results, failure) -> {
+			if (failure != null)
+			{
+				getContext().onFailure(failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+				return;
+			}
+
+			try
+			{
+				builder.report(run, listener, hostConnections, results);
+				getContext().onSuccess(null);
+			}
+			catch (Exception e)
+			{
+				getContext().onFailure(e);
+			}
+		});
+		return false;
+	}
+
+	/**
+	 * Called after a controller restart. The requests answered before the restart cannot be told from the others, so the
+	 * batch is not submitted again.
+	 */
+	@Override
+	public void onResume()
+	{
+		getContext().onFailure(new AbortException(Messages.batchResumed()));
+	}
+
+	@Override
+	public void stop(Throwable cause) throws Exception
+	{
+		StrobeBatchMeasurementBuilder.Fanout submitted = fanout;
+		if (submitted != null)
+		{
+			submitted.cancel();
+		}
+
+		// completing the results reports the cause through the usual callback
+		if (submitted == null || submitted.getResults().completeExceptionally(cause) == false)
+		{
+			getContext().onFailure(cause);
+		}
+	}
+}
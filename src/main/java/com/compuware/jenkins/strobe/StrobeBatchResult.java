@@ -0,0 +1,108 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+/**
+ * The outcome of one measurement request of a batch.
+ */
+public class StrobeBatchResult
+{
+	private final String system;
+	private final String jobName;
+	private final String profileName;
+	private final int returnCode;
+	private final int sessionNumber;
+	private final long latency;
+	private final boolean success;
+	private final String error;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param system
+	 *            the system (host connection description) the job was measured on
+	 * @param jobName
+	 *            the measured job
+	 * @param profileName
+	 *            the profile name of the measurement
+	 * @param returnCode
+	 *            the return code from CES, or -1 if CES did not return one
+	 * @param sessionNumber
+	 *            the session request number from CES, or -1 if CES did not return one
+	 * @param latency
+	 *            the number of milliseconds the submission took
+	 * @param success
+	 *            whether CES accepted the measurement
+	 * @param error
+	 *            the reason the submission failed, may be <code>null</code>
+	 */
+	public StrobeBatchResult(String system, String jobName, String profileName, int returnCode, int sessionNumber, long latency, boolean success, String error)
+	{
+		this.system = system;
+		this.jobName = jobName;
+		this.profileName = profileName;
+		this.returnCode = returnCode;
+		this.sessionNumber = sessionNumber;
+		this.latency = latency;
+		this.success = success;
+		this.error = error;
+	}
+
+	public String getSystem()
+	{
+		return system;
+	}
+
+	public String getJobName()
+	{
+		return jobName;
+	}
+
+	public String getProfileName()
+	{
+		return profileName;
+	}
+
+	public int getReturnCode()
+	{
+		return returnCode;
+	}
+
+	public int getSessionNumber()
+	{
+		return sessionNumber;
+	}
+
+	/**
+	 * @return the number of milliseconds the submission took
+	 */
+	public long getLatency()
+	{
+		return latency;
+	}
+
+	public boolean isSuccess()
+	{
+		return success;
+	}
+
+	public String getError()
+	{
+		return error;
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+import hudson.model.Action;
+
+/**
+ * Shows the per job results of a batch of measurement requests on the build page. A batch measured on several systems
+ * gets one row per job and system, followed by a summary per system for comparing them.
+ */
+public class StrobeBatchResultAction implements Action
+{
+	private final String system;
+	private final List<StrobeBatchResult> results;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param system
+	 *            the systems the batch was measured on, comma separated
+	 * @param results
+	 *            the result of each measurement request, in submission order
+	 */
+	public StrobeBatchResultAction(String system, List<StrobeBatchResult> results)
+	{
+		this.system = system;
+		this.results = results;
+	}
+
+	public String getSystem()
+	{
+		return system;
+	}
+
+	public List<StrobeBatchResult> getResults()
+	{
+		return Collections.unmodifiableList(results);
+	}
+
+	/**
+	 * @return <code>true</code> if the batch was measured on more than one system
+	 */
+	public boolean isMultiSystem()
+	{
+		return getSystemSummaries().size() > 1;
+	}
+
+	/**
+	 * @return the results added up per system, in the order the systems were first submitted to
+	 */
+	public List<SystemSummary> getSystemSummaries()
+	{
+		Map<String, SystemSummary> summaries = new LinkedHashMap<>();
+		for (StrobeBatchResult result : results)
+		{
+			summaries.computeIfAbsent(StringUtils.defaultString(result.getSystem(), system), SystemSummary::new).add(result);
+		}
+
+		return new ArrayList<>(summaries.values());
+	}
+
+	/**
+	 * @return the number of measurement requests CES did not accept
+	 */
+	public int getFailureCount()
+	{
+		int failures = 0;
+		for (StrobeBatchResult result : results)
+		{
+			if (result.isSuccess() == false)
+			{
+				failures++;
+			}
+		}
+
+		return failures;
+	}
+
+	@Override
+	public String getIconFileName()
+	{
+		return null;
+	}
+
+	@Override
+	public String getDisplayName()
+	{
+		return Messages.batchResultDisplayName();
+	}
+
+	@Override
+	public String getUrlName()
+	{
+		return null;
+	}
+
+	/**
+	 * The results of one system of a batch.
+	 */
+	public static final class SystemSummary
+	{
+		private final String system;
+		private int accepted;
+		private int failed;
+		private long totalLatency;
+		private long maxLatency;
+
+		SystemSummary(String system)
+		{
+			this.system = system;
+		}
+
+		void add(StrobeBatchResult result)
+		{
+			if (result.isSuccess())
+			{
+				accepted++;
+			}
+			else
+			{
+				failed++;
+			}
+			totalLatency += result.getLatency();
+			maxLatency = Math.max(maxLatency, result.getLatency());
+		}
+
+		public String getSystem()
+		{
+			return system;
+		}
+
+		public int getAccepted()
+		{
+			return accepted;
+		}
+
+		public int getFailed()
+		{
+			return failed;
+		}
+
+		/**
+		 * @return the average number of milliseconds a submission to this system took
+		 */
+		public long getAverageLatency()
+		{
+			int count = accepted + failed;
+			return count > 0 ? totalLatency / count : 0;
+		}
+
+		/**
+		 * @return the largest number of milliseconds a submission to this system took
+		 */
+		public long getMaxLatency()
+		{
+			return maxLatency;
+		}
+	}
+}
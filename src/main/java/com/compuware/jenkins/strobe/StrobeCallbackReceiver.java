@@ -0,0 +1,140 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+
+import hudson.Extension;
+import hudson.model.UnprotectedRootAction;
+import hudson.security.csrf.CrumbExclusion;
+
+/**
+ * Receives the callbacks CES sends when a measurement session changes, at
+ * <code>{Jenkins URL}/strobe-callback/{callback id}</code>. CES cannot log in to Jenkins nor send a crumb, so the
+ * endpoint is unprotected; instead each callback has to carry the token issued for it by
+ * {@link StrobeCallbackRegistry}.
+ */
+@Extension
+public class StrobeCallbackReceiver implements UnprotectedRootAction
+{
+	static final String URL_NAME = "strobe-callback"; //$NON-NLS-1$
+
+	// a callback is a small notification, anything larger is not read
+	private static final int MAX_BODY_SIZE = 16 * 1024;
+
+	@Override
+	public String getIconFileName()
+	{
+		return null;
+	}
+
+	@Override
+	public String getDisplayName()
+	{
+		return null;
+	}
+
+	@Override
+	public String getUrlName()
+	{
+		return URL_NAME;
+	}
+
+	/**
+	 * Handles <code>POST /strobe-callback/{callback id}</code>.
+	 * 
+	 * @param req
+	 *            the callback request
+	 * 
+	 * @return the response to CES
+	 */
+	public HttpResponse doDynamic(StaplerRequest req)
+	{
+		if ("POST".equals(req.getMethod()) == false && "PUT".equals(req.getMethod()) == false) //$NON-NLS-1$ //$NON-NLS-2$
+		{
+			return HttpResponses.status(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+		}
+
+		String id = StringUtils.removeStart(req.getRestOfPath(), "/"); //$NON-NLS-1$
+		StrobeCallbackRegistry registry = StrobeCallbackRegistry.get();
+		if (registry.isAuthentic(id, req.getHeader(StrobeCallbackRegistry.TOKEN_HEADER)) == false)
+		{
+			return HttpResponses.status(HttpServletResponse.SC_FORBIDDEN);
+		}
+
+		return registry.deliver(id, readStatus(req)) ? HttpResponses.ok() : HttpResponses.notFound();
+	}
+
+	// the callback body is whatever CES was asked to send, it is only used if it happens to contain the session status
+	private static String readStatus(StaplerRequest req)
+	{
+		StrobeSessionPoller.StatusParser parser = new StrobeSessionPoller.StatusParser();
+		StrobeJsonScanner scanner = new StrobeJsonScanner(parser, MAX_BODY_SIZE);
+		try (Reader reader = new InputStreamReader(req.getInputStream(), StandardCharsets.UTF_8))
+		{
+			CharBuffer chars = CharBuffer.allocate(1024);
+			while (scanner.isDone() == false && reader.read(chars) != -1)
+			{
+				chars.flip();
+				scanner.feed(chars);
+				chars.clear();
+			}
+			scanner.finish();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+
+		return parser.getResult(HttpServletResponse.SC_OK, scanner.getPrefix()).getStatus();
+	}
+
+	/**
+	 * Lets CES post callbacks without a crumb; they are authenticated by their token instead.
+	 */
+	@Extension
+	public static final class CallbackCrumbExclusion extends CrumbExclusion
+	{
+		@Override
+		public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain) throws IOException, ServletException
+		{
+			String pathInfo = req.getPathInfo();
+			if (pathInfo != null && pathInfo.startsWith('/' + URL_NAME + '/'))
+			{
+				chain.doFilter(req, resp);
+				return true;
+			}
+
+			return false;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+import jenkins.model.JenkinsLocationConfiguration;
+import jenkins.security.HMACConfidentialKey;
+
+/**
+ * Keeps track of the callbacks the plugin asks CES to send when a measurement session it waits for changes. Each
+ * measurement request gets its own callback URL under {@link StrobeCallbackReceiver}, and a token derived from the URL
+ * with a key only this Jenkins knows; CES sends the token back in a header. Once CES returned the session request number
+ * the callback is bound to the session, and a callback that arrives then hurries the {@link StrobeSessionPoller} up.
+ * <p>
+ * The registry also remembers which CES instances callbacks were received from lately. Only the sessions of those are
+ * polled less often, as a CES that cannot reach Jenkins would otherwise leave its builds waiting for the next rare poll.
+ * <p>
+ * Callbacks are only kept in memory. After a restart the sessions are found by polling alone.
+ */
+public final class StrobeCallbackRegistry
+{
+	static final String TOKEN_HEADER = "X-Strobe-Callback-Token"; //$NON-NLS-1$
+
+	private static final StrobeCallbackRegistry INSTANCE = new StrobeCallbackRegistry();
+
+	private static final HMACConfidentialKey TOKEN_KEY = new HMACConfidentialKey(StrobeCallbackRegistry.class, "token"); //$NON-NLS-1$
+
+	// a callback that never arrived is forgotten after this long
+	private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(1);
+
+	private final ConcurrentMap<String, Registration> registrations = new ConcurrentHashMap<>();
+
+	// when a callback was last received from each CES instance, by CES URL
+	private final ConcurrentMap<String, Long> lastReceived = new ConcurrentHashMap<>();
+
+	private StrobeCallbackRegistry()
+	{
+	}
+
+	/**
+	 * @return the plugin wide callback registry
+	 */
+	public static StrobeCallbackRegistry get()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Creates the callback for a new measurement request.
+	 *
+	 * @return the <code>Callback</code> to send with the request, or <code>null</code> if callbacks are turned off or the
+	 *         Jenkins URL is not configured
+	 */
+	public Callback register()
+	{
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		String rootUrl = JenkinsLocationConfiguration.get().getUrl();
+		if (config == null || config.isCallbackEnabled() == false || StringUtils.isBlank(rootUrl))
+		{
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		registrations.values().removeIf(registration -> now - registration.created > MAX_AGE_MS);
+
+		String id = UUID.randomUUID().toString();
+		registrations.put(id, new Registration(now));
+
+		String url = StringUtils.removeEnd(rootUrl, "/") + '/' + StrobeCallbackReceiver.URL_NAME + '/' + id; //$NON-NLS-1$
+		return new Callback(id, url, TOKEN_HEADER + ':' + TOKEN_KEY.mac(id));
+	}
+
+	/**
+	 * Binds a callback to the session CES created for its request.
+	 *
+	 * @param id
+	 *            the id of the callback
+	 * @param cesUrl
+	 *            the URL of the CES instance that accepted the request
+	 * @param system
+	 *            the system the measurement runs on
+	 * @param sessionNumber
+	 *            the session request number returned by CES
+	 */
+	public void bind(String id, String cesUrl, String system, int sessionNumber)
+	{
+		Registration registration = registrations.get(id);
+		if (registration != null)
+		{
+			registration.bind(cesUrl, system, sessionNumber);
+		}
+	}
+
+	/**
+	 * Forgets a callback that is no longer expected, because the request failed or nobody waits for the session.
+	 *
+	 * @param id
+	 *            the id of the callback
+	 */
+	public void unregister(String id)
+	{
+		registrations.remove(id);
+	}
+
+	/**
+	 * @param id
+	 *            the id of the callback
+	 * @param token
+	 *            the token sent with the callback
+	 *
+	 * @return <code>true</code> if the token was issued by this Jenkins for the callback
+	 */
+	boolean isAuthentic(String id, String token)
+	{
+		return StringUtils.isNotEmpty(id) && token != null && TOKEN_KEY.checkMac(id, token);
+	}
+
+	/**
+	 * Routes a callback to the builds waiting for its session.
+	 *
+	 * @param id
+	 *            the id of the callback
+	 * @param status
+	 *            the session status sent with the callback, or <code>null</code> if it did not contain one
+	 *
+	 * @return <code>false</code> if the callback is unknown
+	 */
+	boolean deliver(String id, String status)
+	{
+		Registration registration = registrations.get(id);
+		if (registration == null)
+		{
+			return false;
+		}
+
+		// a callback arriving before CES replied to the request cannot be routed yet, the session is polled anyway
+		if (registration.isBound())
+		{
+			lastReceived.put(normalize(registration.cesUrl), System.currentTimeMillis());
+			StrobeSessionPoller.get().onCallback(registration.cesUrl, registration.system, registration.sessionNumber, status);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param cesUrl
+	 *            the URL of a CES instance
+	 *
+	 * @return <code>true</code> if a callback was received from the CES instance within the last day, which shows that
+	 *         it can reach Jenkins
+	 */
+	public boolean isReceivingFrom(String cesUrl)
+	{
+		Long received = lastReceived.get(normalize(cesUrl));
+		return received != null && System.currentTimeMillis() - received <= MAX_AGE_MS;
+	}
+
+	private static String normalize(String cesUrl)
+	{
+		return StringUtils.removeEnd(StringUtils.trimToEmpty(cesUrl), "/"); //$NON-NLS-1$
+	}
+
+	/**
+	 * The callback sent with a measurement request.
+	 */
+	public static final class Callback
+	{
+		private final String id;
+		private final String url;
+		private final String headers;
+
+		Callback(String id, String url, String headers)
+		{
+			this.id = id;
+			this.url = url;
+			this.headers = headers;
+		}
+
+		public String getId()
+		{
+			return id;
+		}
+
+		/**
+		 * @return the URL CES sends the callback to
+		 */
+		public String getUrl()
+		{
+			return url;
+		}
+
+		/**
+		 * @return the headers CES sends with the callback, in the <code>name:value;name:value</code> form of the
+		 *         builder's headers
+		 */
+		public String getHeaders()
+		{
+			return headers;
+		}
+	}
+
+	private static final class Registration
+	{
+		private final long created;
+		private volatile String cesUrl;
+		private volatile String system;
+		private volatile int sessionNumber = -1;
+
+		Registration(long created)
+		{
+			this.created = created;
+		}
+
+		void bind(String cesUrl, String system, int sessionNumber)
+		{
+			this.cesUrl = cesUrl;
+			this.system = system;
+			this.sessionNumber = sessionNumber;
+		}
+
+		boolean isBound()
+		{
+			return sessionNumber > 0;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops measurement submissions to a CES instance that keeps failing, so that builds fail fast, or skip their
+ * measurement, instead of each one waiting out the connect timeout. After the configured number of consecutive failures
+ * the circuit of the instance opens for a while; afterwards a single submission is let through to probe it, and the
+ * circuit closes again once one succeeds.
+ */
+public final class StrobeCircuitBreaker
+{
+	private static final StrobeCircuitBreaker INSTANCE = new StrobeCircuitBreaker();
+
+	private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+	private StrobeCircuitBreaker()
+	{
+	}
+
+	/**
+	 * @return the plugin wide circuit breaker
+	 */
+	public static StrobeCircuitBreaker get()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Checks whether a submission may be sent to a CES instance.
+	 *
+	 * @param cesUrl
+	 *            the URL of the CES instance
+	 *
+	 * @throws StrobeCircuitOpenException
+	 *             if the circuit of the instance is open
+	 */
+	public void checkAllowed(String cesUrl) throws StrobeCircuitOpenException
+	{
+		long retryInMs = circuitOf(cesUrl).allowRequest(System.currentTimeMillis());
+		if (retryInMs > 0)
+		{
+			throw new StrobeCircuitOpenException(cesUrl, TimeUnit.MILLISECONDS.toSeconds(retryInMs) + 1);
+		}
+	}
+
+	/**
+	 * Records that a CES instance answered.
+	 *
+	 * @param cesUrl
+	 *            the URL of the CES instance
+	 */
+	public void succeeded(String cesUrl)
+	{
+		circuitOf(cesUrl).recordSuccess();
+	}
+
+	/**
+	 * Records that a CES instance could not be reached or did not work.
+	 *
+	 * @param cesUrl
+	 *            the URL of the CES instance
+	 */
+	public void failed(String cesUrl)
+	{
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		int threshold = config != null ? config.getCircuitFailureThreshold() : StrobeGlobalConfiguration.DEFAULT_CIRCUIT_FAILURE_THRESHOLD;
+		int openSeconds = config != null ? config.getCircuitOpenDuration() : StrobeGlobalConfiguration.DEFAULT_CIRCUIT_OPEN_DURATION;
+		circuitOf(cesUrl).recordFailure(System.currentTimeMillis(), threshold, TimeUnit.SECONDS.toMillis(openSeconds));
+	}
+
+	/**
+	 * Records that a submission let through to a CES instance was given up before it was answered.
+	 *
+	 * @param cesUrl
+	 *            the URL of the CES instance
+	 */
+	public void abandoned(String cesUrl)
+	{
+		circuitOf(cesUrl).recordAbandoned();
+	}
+
+	private Circuit circuitOf(String cesUrl)
+	{
+		return circuits.computeIfAbsent(cesUrl, url -> new Circuit());
+	}
+
+	private static final class Circuit
+	{
+		private int consecutiveFailures;
+		private long openUntil;
+		private boolean probing;
+
+		// returns 0 if the request may proceed, otherwise the number of milliseconds until the circuit is probed again
+		synchronized long allowRequest(long now)
+		{
+			if (openUntil == 0)
+			{
+				return 0;
+			}
+
+			if (now < openUntil)
+			{
+				return openUntil - now;
+			}
+
+			// half open: a single probe at a time, the others keep failing fast until it is answered
+			if (probing)
+			{
+				return 1;
+			}
+
+			probing = true;
+			return 0;
+		}
+
+		synchronized void recordSuccess()
+		{
+			consecutiveFailures = 0;
+			openUntil = 0;
+			probing = false;
+		}
+
+		// the probe was given up, so let the next request probe instead
+		synchronized void recordAbandoned()
+		{
+			probing = false;
+		}
+
+		synchronized void recordFailure(long now, int threshold, long openMs)
+		{
+			consecutiveFailures++;
+			if (probing || consecutiveFailures >= threshold)
+			{
+				openUntil = now + openMs;
+				probing = false;
+			}
+		}
+	}
+}
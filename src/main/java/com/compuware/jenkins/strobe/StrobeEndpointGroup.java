@@ -0,0 +1,130 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+import com.compuware.jenkins.common.configuration.CpwrGlobalConfiguration;
+import com.compuware.jenkins.common.configuration.HostConnection;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.ListBoxModel.Option;
+import jenkins.model.Jenkins;
+
+/**
+ * Additional CES instances that serve a host connection, configured in the plugin's global configuration. Measurements
+ * submitted through the host connection are spread across its own CES URL and these.
+ */
+public class StrobeEndpointGroup extends AbstractDescribableImpl<StrobeEndpointGroup>
+{
+	private final String connectionId;
+	private final String cesUrls;
+
+	@DataBoundConstructor
+	public StrobeEndpointGroup(String connectionId, String cesUrls)
+	{
+		this.connectionId = StringUtils.trimToEmpty(connectionId);
+		this.cesUrls = StringUtils.trimToEmpty(cesUrls);
+	}
+
+	public String getConnectionId()
+	{
+		return connectionId;
+	}
+
+	/**
+	 * @return the additional CES URLs, one per line
+	 */
+	public String getCesUrls()
+	{
+		return cesUrls;
+	}
+
+	/**
+	 * @return the additional CES URLs, without blank lines and trailing slashes
+	 */
+	public List<String> getCesUrlList()
+	{
+		List<String> urls = new ArrayList<>();
+		for (String url : StringUtils.split(cesUrls, "\r\n")) //$NON-NLS-1$
+		{
+			String trimmed = StringUtils.removeEnd(url.trim(), "/"); //$NON-NLS-1$
+			if (trimmed.isEmpty() == false)
+			{
+				urls.add(trimmed);
+			}
+		}
+
+		return Collections.unmodifiableList(urls);
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<StrobeEndpointGroup>
+	{
+		@Override
+		public String getDisplayName()
+		{
+			return Messages.hostConnection();
+		}
+
+		@POST
+		public ListBoxModel doFillConnectionIdItems(@QueryParameter String connectionId)
+		{
+			Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+
+			ListBoxModel model = new ListBoxModel();
+			model.add(new Option(StringUtils.EMPTY, StringUtils.EMPTY, false));
+
+			for (HostConnection connection : CpwrGlobalConfiguration.get().getHostConnections())
+			{
+				boolean isSelected = connectionId != null && connectionId.equals(connection.getConnectionId());
+				model.add(new Option(connection.getDescription() + " [" + connection.getHostPort() + ']', //$NON-NLS-1$
+						connection.getConnectionId(), isSelected));
+			}
+
+			return model;
+		}
+
+		@POST
+		public FormValidation doCheckCesUrls(@QueryParameter final String value)
+		{
+			Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+
+			for (String url : StringUtils.split(StringUtils.trimToEmpty(value), "\r\n")) //$NON-NLS-1$
+			{
+				if (url.trim().isEmpty() == false && url.trim().startsWith("http") == false) //$NON-NLS-1$
+				{
+					return FormValidation.error(Messages.errorInvalidEndpointUrl());
+				}
+			}
+
+			return FormValidation.ok();
+		}
+	}
+}
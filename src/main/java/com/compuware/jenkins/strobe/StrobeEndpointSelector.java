@@ -0,0 +1,253 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Picks the CES instance a measurement is submitted to. A host connection is served by its own CES URL plus any
+ * additional CES URLs configured for it in {@link StrobeGlobalConfiguration}. Submissions go to the healthy instance
+ * with the fewest requests in flight; an instance that fails is left out for a while, for longer each time it fails
+ * again, and is taken back as soon as a request to it succeeds.
+ * <p>
+ * The endpoint list of each connection is cached against the version of {@link StrobeResolutionCache}, so it is only
+ * rebuilt after the configuration changed.
+ */
+public final class StrobeEndpointSelector
+{
+	private static final StrobeEndpointSelector INSTANCE = new StrobeEndpointSelector();
+
+	private static final long INITIAL_BACKOFF_MS = TimeUnit.SECONDS.toMillis(10);
+	private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(5);
+
+	private final ConcurrentMap<String, EndpointList> endpointLists = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, EndpointHealth> health = new ConcurrentHashMap<>();
+	private final AtomicInteger rotation = new AtomicInteger();
+
+	private StrobeEndpointSelector()
+	{
+	}
+
+	/**
+	 * @return the plugin wide endpoint selector
+	 */
+	public static StrobeEndpointSelector get()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns every CES URL serving a host connection, starting with the connection's own.
+	 *
+	 * @param connectionId
+	 *            the connection id of the host connection
+	 * @param cesUrl
+	 *            the CES URL of the host connection
+	 *
+	 * @return the CES URLs, without trailing slashes
+	 */
+	public List<String> getEndpoints(String connectionId, String cesUrl)
+	{
+		long version = StrobeResolutionCache.get().getVersion();
+		String primary = StringUtils.removeEnd(StringUtils.trimToEmpty(cesUrl), "/"); //$NON-NLS-1$
+
+		EndpointList endpointList = endpointLists.get(connectionId);
+		if (endpointList == null || endpointList.version != version || endpointList.urls.get(0).equals(primary) == false)
+		{
+			endpointList = new EndpointList(version, resolve(connectionId, primary));
+			endpointLists.put(connectionId, endpointList);
+		}
+
+		return endpointList.urls;
+	}
+
+	/**
+	 * Selects the CES URL the next request for a host connection goes to. The caller must report the outcome of the
+	 * request with {@link #succeeded(String)} or {@link #failed(String)}, or give the selection back with
+	 * {@link #release(String)} if the request was never answered.
+	 *
+	 * @param connectionId
+	 *            the connection id of the host connection
+	 * @param cesUrl
+	 *            the CES URL of the host connection
+	 *
+	 * @return the selected CES URL
+	 */
+	public String select(String connectionId, String cesUrl)
+	{
+		List<String> urls = getEndpoints(connectionId, cesUrl);
+		EndpointHealth selected = null;
+
+		if (urls.size() == 1)
+		{
+			selected = healthOf(urls.get(0));
+		}
+		else
+		{
+			long now = System.currentTimeMillis();
+			int start = Math.floorMod(rotation.getAndIncrement(), urls.size());
+			EndpointHealth leastUnhealthy = null;
+
+			// rotate the starting point so that idle instances with equal load take turns
+			for (int i = 0; i < urls.size(); i++)
+			{
+				EndpointHealth candidate = healthOf(urls.get((start + i) % urls.size()));
+				if (candidate.isHealthy(now))
+				{
+					if (selected == null || candidate.inFlight.get() < selected.inFlight.get())
+					{
+						selected = candidate;
+					}
+				}
+				else if (leastUnhealthy == null || candidate.unhealthyUntil < leastUnhealthy.unhealthyUntil)
+				{
+					leastUnhealthy = candidate;
+				}
+			}
+
+			// when every instance is failing, try the one that is due back first rather than none at all
+			if (selected == null)
+			{
+				selected = leastUnhealthy;
+			}
+		}
+
+		selected.inFlight.incrementAndGet();
+		return selected.url;
+	}
+
+	/**
+	 * Records that a request to the given CES URL was answered.
+	 *
+	 * @param url
+	 *            the CES URL returned by {@link #select(String, String)}
+	 */
+	public void succeeded(String url)
+	{
+		EndpointHealth endpoint = healthOf(url);
+		endpoint.inFlight.decrementAndGet();
+		endpoint.recordSuccess();
+	}
+
+	/**
+	 * Records that a request to the given CES URL failed because the instance could not be reached or did not work.
+	 *
+	 * @param url
+	 *            the CES URL returned by {@link #select(String, String)}
+	 */
+	public void failed(String url)
+	{
+		EndpointHealth endpoint = healthOf(url);
+		endpoint.inFlight.decrementAndGet();
+		endpoint.recordFailure(System.currentTimeMillis());
+	}
+
+	/**
+	 * Gives back a selection whose request was not sent or was given up on before CES answered. The health of the
+	 * instance is left as it was, as nothing was learned about it.
+	 *
+	 * @param url
+	 *            the CES URL returned by {@link #select(String, String)}
+	 */
+	public void release(String url)
+	{
+		healthOf(url).inFlight.decrementAndGet();
+	}
+
+	private EndpointHealth healthOf(String url)
+	{
+		return health.computeIfAbsent(url, EndpointHealth::new);
+	}
+
+	private static List<String> resolve(String connectionId, String primary)
+	{
+		List<String> urls = new ArrayList<>();
+		urls.add(primary);
+
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		if (config != null)
+		{
+			for (StrobeEndpointGroup group : config.getEndpointGroups())
+			{
+				if (group.getConnectionId().equals(connectionId))
+				{
+					for (String url : group.getCesUrlList())
+					{
+						if (urls.contains(url) == false)
+						{
+							urls.add(url);
+						}
+					}
+				}
+			}
+		}
+
+		return Collections.unmodifiableList(urls);
+	}
+
+	private static final class EndpointList
+	{
+		private final long version;
+		private final List<String> urls;
+
+		EndpointList(long version, List<String> urls)
+		{
+			this.version = version;
+			this.urls = urls;
+		}
+	}
+
+	private static final class EndpointHealth
+	{
+		private final String url;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private volatile int consecutiveFailures;
+		private volatile long unhealthyUntil;
+
+		EndpointHealth(String url)
+		{
+			this.url = url;
+		}
+
+		boolean isHealthy(long now)
+		{
+			return now >= unhealthyUntil;
+		}
+
+		synchronized void recordSuccess()
+		{
+			consecutiveFailures = 0;
+			unhealthyUntil = 0;
+		}
+
+		synchronized void recordFailure(long now)
+		{
+			consecutiveFailures++;
+			long backoff = INITIAL_BACKOFF_MS << Math.min(consecutiveFailures - 1, 10);
+			unhealthyUntil = now + Math.min(backoff, MAX_BACKOFF_MS);
+		}
+	}
+}
@@ -0,0 +1,468 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.verb.POST;
+
+import hudson.Extension;
+import hudson.util.FormValidation;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+/**
+ * Plugin wide settings for the Strobe measurement task, shown in the 'Manage Jenkins | Configure System' page.
+ */
+@Extension
+@Symbol("strobeMeasurement")
+public class StrobeGlobalConfiguration extends GlobalConfiguration
+{
+	static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+	static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 100;
+	static final int DEFAULT_IDLE_CONNECTION_TIMEOUT = 30;
+	static final int DEFAULT_MAX_SUBMISSIONS_PER_MINUTE = 60;
+	static final int DEFAULT_SUBMISSION_BURST = 10;
+	static final int DEFAULT_MAX_SUBMISSIONS_IN_FLIGHT = 10;
+	static final int DEFAULT_CONNECT_TIMEOUT = 10;
+	static final int DEFAULT_READ_TIMEOUT = 60;
+	static final int DEFAULT_MAX_RETRIES = 3;
+	static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+	static final int DEFAULT_CIRCUIT_OPEN_DURATION = 60;
+	static final int DEFAULT_COALESCING_WINDOW = 10;
+	static final int DEFAULT_HISTORY_MAX_ROWS = 2000;
+	static final int DEFAULT_HISTORY_DOWNSAMPLING = 10;
+	static final String CIRCUIT_OPEN_FAIL = "fail"; //$NON-NLS-1$
+	static final String CIRCUIT_OPEN_SKIP = "skip"; //$NON-NLS-1$
+
+	private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	private int maxConnectionsTotal = DEFAULT_MAX_CONNECTIONS_TOTAL;
+	private int idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+	private int maxSubmissionsPerMinute = DEFAULT_MAX_SUBMISSIONS_PER_MINUTE;
+	private int submissionBurst = DEFAULT_SUBMISSION_BURST;
+	private int maxSubmissionsInFlight = DEFAULT_MAX_SUBMISSIONS_IN_FLIGHT;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private int circuitFailureThreshold = DEFAULT_CIRCUIT_FAILURE_THRESHOLD;
+	private int circuitOpenDuration = DEFAULT_CIRCUIT_OPEN_DURATION;
+	private String circuitOpenAction = CIRCUIT_OPEN_FAIL;
+	private int coalescingWindow = DEFAULT_COALESCING_WINDOW;
+	private boolean callbackEnabled = true;
+	private boolean cancelOnAbort = true;
+	private int historyMaxRows = DEFAULT_HISTORY_MAX_ROWS;
+	private int historyDownsampling = DEFAULT_HISTORY_DOWNSAMPLING;
+	private List<StrobeEndpointGroup> endpointGroups = new ArrayList<>();
+
+	public StrobeGlobalConfiguration()
+	{
+		load();
+	}
+
+	/**
+	 * Returns the plugin's global configuration.
+	 *
+	 * @return the <code>StrobeGlobalConfiguration</code> registered with Jenkins
+	 */
+	public static StrobeGlobalConfiguration get()
+	{
+		return GlobalConfiguration.all().get(StrobeGlobalConfiguration.class);
+	}
+
+	/**
+	 * @return the maximum number of pooled connections to a single CES host
+	 */
+	public int getMaxConnectionsPerRoute()
+	{
+		return maxConnectionsPerRoute;
+	}
+
+	@DataBoundSetter
+	public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute)
+	{
+		this.maxConnectionsPerRoute = Math.max(1, maxConnectionsPerRoute);
+	}
+
+	/**
+	 * @return the maximum number of pooled connections kept for a host connection across all of its routes
+	 */
+	public int getMaxConnectionsTotal()
+	{
+		return maxConnectionsTotal;
+	}
+
+	@DataBoundSetter
+	public void setMaxConnectionsTotal(int maxConnectionsTotal)
+	{
+		this.maxConnectionsTotal = Math.max(1, maxConnectionsTotal);
+	}
+
+	/**
+	 * @return the number of seconds an unused pooled connection is kept open before it is evicted
+	 */
+	public int getIdleConnectionTimeout()
+	{
+		return idleConnectionTimeout;
+	}
+
+	@DataBoundSetter
+	public void setIdleConnectionTimeout(int idleConnectionTimeout)
+	{
+		this.idleConnectionTimeout = Math.max(1, idleConnectionTimeout);
+	}
+
+	/**
+	 * @return the number of measurements that may be submitted per minute through one host connection, or 0 for no limit
+	 */
+	public int getMaxSubmissionsPerMinute()
+	{
+		return maxSubmissionsPerMinute;
+	}
+
+	@DataBoundSetter
+	public void setMaxSubmissionsPerMinute(int maxSubmissionsPerMinute)
+	{
+		this.maxSubmissionsPerMinute = Math.max(0, maxSubmissionsPerMinute);
+	}
+
+	/**
+	 * @return the number of measurements that may be submitted at once through an idle host connection before the rate
+	 *         limit applies
+	 */
+	public int getSubmissionBurst()
+	{
+		return submissionBurst;
+	}
+
+	@DataBoundSetter
+	public void setSubmissionBurst(int submissionBurst)
+	{
+		this.submissionBurst = Math.max(1, submissionBurst);
+	}
+
+	/**
+	 * @return the number of measurement submissions that may wait for a CES reply at the same time per host connection
+	 */
+	public int getMaxSubmissionsInFlight()
+	{
+		return maxSubmissionsInFlight;
+	}
+
+	@DataBoundSetter
+	public void setMaxSubmissionsInFlight(int maxSubmissionsInFlight)
+	{
+		this.maxSubmissionsInFlight = Math.max(1, maxSubmissionsInFlight);
+	}
+
+	/**
+	 * @return the number of seconds to wait for a connection to CES to be established
+	 */
+	public int getConnectTimeout()
+	{
+		return connectTimeout;
+	}
+
+	@DataBoundSetter
+	public void setConnectTimeout(int connectTimeout)
+	{
+		this.connectTimeout = Math.max(1, connectTimeout);
+	}
+
+	/**
+	 * @return the number of seconds to wait for data from CES once connected
+	 */
+	public int getReadTimeout()
+	{
+		return readTimeout;
+	}
+
+	@DataBoundSetter
+	public void setReadTimeout(int readTimeout)
+	{
+		this.readTimeout = Math.max(1, readTimeout);
+	}
+
+	/**
+	 * @return the number of times a submission that did not reach CES is sent again
+	 */
+	public int getMaxRetries()
+	{
+		return maxRetries;
+	}
+
+	@DataBoundSetter
+	public void setMaxRetries(int maxRetries)
+	{
+		this.maxRetries = Math.max(0, maxRetries);
+	}
+
+	/**
+	 * @return the number of consecutive failures after which submissions to a CES instance are stopped
+	 */
+	public int getCircuitFailureThreshold()
+	{
+		return circuitFailureThreshold;
+	}
+
+	@DataBoundSetter
+	public void setCircuitFailureThreshold(int circuitFailureThreshold)
+	{
+		this.circuitFailureThreshold = Math.max(1, circuitFailureThreshold);
+	}
+
+	/**
+	 * @return the number of seconds submissions to a failing CES instance are stopped for
+	 */
+	public int getCircuitOpenDuration()
+	{
+		return circuitOpenDuration;
+	}
+
+	@DataBoundSetter
+	public void setCircuitOpenDuration(int circuitOpenDuration)
+	{
+		this.circuitOpenDuration = Math.max(1, circuitOpenDuration);
+	}
+
+	/**
+	 * @return what a build does when its CES instance is stopped: <code>fail</code> or <code>skip</code> the measurement
+	 */
+	public String getCircuitOpenAction()
+	{
+		return circuitOpenAction != null ? circuitOpenAction : CIRCUIT_OPEN_FAIL;
+	}
+
+	@DataBoundSetter
+	public void setCircuitOpenAction(String circuitOpenAction)
+	{
+		this.circuitOpenAction = CIRCUIT_OPEN_SKIP.equals(circuitOpenAction) ? CIRCUIT_OPEN_SKIP : CIRCUIT_OPEN_FAIL;
+	}
+
+	/**
+	 * @return <code>true</code> if builds skip their measurement, rather than fail, while their CES instance is stopped
+	 */
+	public boolean isSkipWhenCircuitOpen()
+	{
+		return CIRCUIT_OPEN_SKIP.equals(circuitOpenAction);
+	}
+
+	/**
+	 * @return the number of seconds an identical measurement request can join a submission for, 0 to turn coalescing off
+	 */
+	public int getCoalescingWindow()
+	{
+		return coalescingWindow;
+	}
+
+	@DataBoundSetter
+	public void setCoalescingWindow(int coalescingWindow)
+	{
+		this.coalescingWindow = Math.max(0, coalescingWindow);
+	}
+
+	/**
+	 * @return <code>true</code> if CES is asked to notify Jenkins when a measurement a build waits for has ended
+	 */
+	public boolean isCallbackEnabled()
+	{
+		return callbackEnabled;
+	}
+
+	@DataBoundSetter
+	public void setCallbackEnabled(boolean callbackEnabled)
+	{
+		this.callbackEnabled = callbackEnabled;
+	}
+
+	/**
+	 * @return <code>true</code> if the measurement session of a build that is aborted while waiting for it is cancelled
+	 */
+	public boolean isCancelOnAbort()
+	{
+		return cancelOnAbort;
+	}
+
+	@DataBoundSetter
+	public void setCancelOnAbort(boolean cancelOnAbort)
+	{
+		this.cancelOnAbort = cancelOnAbort;
+	}
+
+	/**
+	 * @return the maximum number of builds kept in the measurement history of a job and profile name
+	 */
+	public int getHistoryMaxRows()
+	{
+		return historyMaxRows;
+	}
+
+	@DataBoundSetter
+	public void setHistoryMaxRows(int historyMaxRows)
+	{
+		this.historyMaxRows = Math.max(10, historyMaxRows);
+	}
+
+	/**
+	 * @return the number of old history rows merged into one when the history is full, 1 to drop old rows instead
+	 */
+	public int getHistoryDownsampling()
+	{
+		return historyDownsampling;
+	}
+
+	@DataBoundSetter
+	public void setHistoryDownsampling(int historyDownsampling)
+	{
+		this.historyDownsampling = Math.max(1, historyDownsampling);
+	}
+
+	/**
+	 * @return the additional CES instances configured for host connections
+	 */
+	public List<StrobeEndpointGroup> getEndpointGroups()
+	{
+		return endpointGroups != null ? Collections.unmodifiableList(endpointGroups) : Collections.<StrobeEndpointGroup> emptyList();
+	}
+
+	@DataBoundSetter
+	public void setEndpointGroups(List<StrobeEndpointGroup> endpointGroups)
+	{
+		this.endpointGroups = endpointGroups != null ? new ArrayList<>(endpointGroups) : new ArrayList<StrobeEndpointGroup>();
+	}
+
+	/**
+	 * @return the cache of resolved credentials and host connections, whose hit and miss counters are shown on the
+	 *         configuration page
+	 */
+	public StrobeResolutionCache getResolutionCache()
+	{
+		return StrobeResolutionCache.get();
+	}
+
+	@Override
+	public boolean configure(final StaplerRequest req, final JSONObject json) throws FormException
+	{
+		// a repeatable property with every entry removed is missing from the form data, so it has to be reset first
+		endpointGroups = new ArrayList<>();
+		req.bindJSON(this, json);
+		save();
+		StrobeHttpClientManager.get().applyConfiguration(this);
+		StrobeSubmissionThrottle.get().applyConfiguration(this);
+		return true;
+	}
+
+	@POST
+	public FormValidation doCheckMaxConnectionsPerRoute(@QueryParameter final String value)
+	{
+		return checkPositiveInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckMaxConnectionsTotal(@QueryParameter final String value)
+	{
+		return checkPositiveInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckIdleConnectionTimeout(@QueryParameter final String value)
+	{
+		return checkPositiveInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckMaxSubmissionsPerMinute(@QueryParameter final String value)
+	{
+		Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+		return FormValidation.validateNonNegativeInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckSubmissionBurst(@QueryParameter final String value)
+	{
+		return checkPositiveInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckMaxSubmissionsInFlight(@QueryParameter final String value)
+	{
+		return checkPositiveInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckConnectTimeout(@QueryParameter final String value)
+	{
+		return checkPositiveInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckReadTimeout(@QueryParameter final String value)
+	{
+		return checkPositiveInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckMaxRetries(@QueryParameter final String value)
+	{
+		Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+		return FormValidation.validateNonNegativeInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckCircuitFailureThreshold(@QueryParameter final String value)
+	{
+		return checkPositiveInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckCircuitOpenDuration(@QueryParameter final String value)
+	{
+		return checkPositiveInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckCoalescingWindow(@QueryParameter final String value)
+	{
+		Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+		return FormValidation.validateNonNegativeInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckHistoryMaxRows(@QueryParameter final String value)
+	{
+		return checkPositiveInteger(value);
+	}
+
+	@POST
+	public FormValidation doCheckHistoryDownsampling(@QueryParameter final String value)
+	{
+		return checkPositiveInteger(value);
+	}
+
+	private static FormValidation checkPositiveInteger(String value)
+	{
+		Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+		return FormValidation.validatePositiveInteger(value);
+	}
+}
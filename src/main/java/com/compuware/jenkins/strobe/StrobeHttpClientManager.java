@@ -0,0 +1,358 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.pool.PoolStats;
+
+import hudson.init.Terminator;
+import jenkins.util.Timer;
+
+/**
+ * Keeps one pooled HTTP client per CES host so that measurement submissions reuse kept-alive connections instead of
+ * opening a new connection pool, socket and TLS session for every build. Both a blocking client and a non-blocking
+ * client are available; the non-blocking one lets a build wait for CES without holding a thread.
+ */
+public final class StrobeHttpClientManager
+{
+	private static final Logger LOGGER = Logger.getLogger(StrobeHttpClientManager.class.getName());
+
+	private static final StrobeHttpClientManager INSTANCE = new StrobeHttpClientManager();
+
+	// connections that have been idle this long are re-validated before being handed out again
+	private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+
+	// a couple of I/O dispatch threads per CES host are plenty, the exchanges themselves are small
+	private static final int ASYNC_IO_THREADS = 2;
+
+	private static final long EVICTION_INTERVAL_SECONDS = 5;
+
+	private final ConcurrentMap<String, PooledClient> clients = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, PooledAsyncClient> asyncClients = new ConcurrentHashMap<>();
+
+	private ScheduledFuture<?> asyncEvictionTask;
+
+	private volatile RequestConfig requestConfig;
+
+	private StrobeHttpClientManager()
+	{
+	}
+
+	/**
+	 * @return the plugin wide client manager
+	 */
+	public static StrobeHttpClientManager get()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the shared client for the given CES URL, creating its connection pool on first use. The returned client
+	 * must not be closed by the caller; only the responses it produces are.
+	 *
+	 * @param cesUrl
+	 *            the CES URL of the host connection, as returned by <code>HostConnection.getCesUrl()</code>
+	 *
+	 * @return the pooled <code>CloseableHttpClient</code> for that CES host
+	 */
+	public CloseableHttpClient getClient(String cesUrl)
+	{
+		return clients.computeIfAbsent(normalize(cesUrl), key -> new PooledClient(currentConfiguration())).client;
+	}
+
+	/**
+	 * Returns the shared non-blocking client for the given CES URL, creating and starting its connection pool on first
+	 * use. The returned client must not be closed by the caller.
+	 *
+	 * @param cesUrl
+	 *            the CES URL of the host connection, as returned by <code>HostConnection.getCesUrl()</code>
+	 *
+	 * @return the pooled <code>CloseableHttpAsyncClient</code> for that CES host
+	 *
+	 * @throws IOException
+	 *             if the I/O reactor for a new pool could not be created
+	 */
+	public CloseableHttpAsyncClient getAsyncClient(String cesUrl) throws IOException
+	{
+		String key = normalize(cesUrl);
+		PooledAsyncClient pooledClient = asyncClients.get(key);
+		if (pooledClient == null)
+		{
+			synchronized (this)
+			{
+				pooledClient = asyncClients.get(key);
+				if (pooledClient == null)
+				{
+					pooledClient = new PooledAsyncClient(currentConfiguration());
+					asyncClients.put(key, pooledClient);
+					scheduleAsyncEviction();
+				}
+			}
+		}
+
+		return pooledClient.client;
+	}
+
+	/**
+	 * Returns the timeouts to apply to each request sent to CES. Without them a CES that accepted the connection but
+	 * never answers would hold the request forever.
+	 * 
+	 * @return the <code>RequestConfig</code> built from the global configuration
+	 */
+	public RequestConfig getRequestConfig()
+	{
+		RequestConfig config = requestConfig;
+		if (config == null)
+		{
+			config = requestConfig(currentConfiguration());
+			requestConfig = config;
+		}
+
+		return config;
+	}
+
+	/**
+	 * Adds up the connection counts of all pooled clients, blocking and non-blocking.
+	 * 
+	 * @return the leased, pending and available connections and the maximum of all pools together
+	 */
+	public PoolStats getPoolStats()
+	{
+		int leased = 0;
+		int pending = 0;
+		int available = 0;
+		int max = 0;
+		for (PooledClient pooledClient : clients.values())
+		{
+			PoolStats stats = pooledClient.connectionManager.getTotalStats();
+			leased += stats.getLeased();
+			pending += stats.getPending();
+			available += stats.getAvailable();
+			max += stats.getMax();
+		}
+
+		for (PooledAsyncClient pooledClient : asyncClients.values())
+		{
+			PoolStats stats = pooledClient.connectionManager.getTotalStats();
+			leased += stats.getLeased();
+			pending += stats.getPending();
+			available += stats.getAvailable();
+			max += stats.getMax();
+		}
+
+		return new PoolStats(leased, pending, available, max);
+	}
+
+	/**
+	 * Applies changed pool limits and timeouts to the clients that are already open. Idle timeout changes take effect for pools
+	 * created afterwards.
+	 *
+	 * @param config
+	 *            the updated global configuration
+	 */
+	public void applyConfiguration(StrobeGlobalConfiguration config)
+	{
+		requestConfig = requestConfig(config);
+
+		for (PooledClient pooledClient : clients.values())
+		{
+			pooledClient.applyLimits(config.getMaxConnectionsPerRoute(), config.getMaxConnectionsTotal());
+		}
+
+		for (PooledAsyncClient pooledClient : asyncClients.values())
+		{
+			pooledClient.applyLimits(config.getMaxConnectionsPerRoute(), config.getMaxConnectionsTotal());
+		}
+	}
+
+	/**
+	 * Closes every pooled client and its connections.
+	 */
+	public synchronized void shutdown()
+	{
+		if (asyncEvictionTask != null)
+		{
+			asyncEvictionTask.cancel(false);
+			asyncEvictionTask = null;
+		}
+
+		for (String key : clients.keySet())
+		{
+			PooledClient pooledClient = clients.remove(key);
+			if (pooledClient != null)
+			{
+				closeQuietly(pooledClient.client);
+			}
+		}
+
+		for (String key : asyncClients.keySet())
+		{
+			PooledAsyncClient pooledClient = asyncClients.remove(key);
+			if (pooledClient != null)
+			{
+				closeQuietly(pooledClient.client);
+			}
+		}
+	}
+
+	@Terminator(requires = StrobeSessionCanceller.CANCELLED)
+	public static void shutdownClients()
+	{
+		get().shutdown();
+	}
+
+	// the non-blocking pools have no built-in evictor thread, so one shared task sweeps all of them
+	private void scheduleAsyncEviction()
+	{
+		if (asyncEvictionTask == null)
+		{
+			asyncEvictionTask = Timer.get().scheduleWithFixedDelay(() -> {
+				for (PooledAsyncClient pooledClient : asyncClients.values())
+				{
+					pooledClient.evictIdleConnections();
+				}
+			}, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	private static void closeQuietly(Closeable client)
+	{
+		try
+		{
+			client.close();
+		}
+		catch (IOException e)
+		{
+			LOGGER.log(Level.FINE, "Unable to close the CES connection pool", e); //$NON-NLS-1$
+		}
+	}
+
+	private static ConnectionKeepAliveStrategy keepAliveStrategy(final long idleTimeoutMs)
+	{
+		// honor the Keep-Alive header sent by CES, but never keep a connection longer than the idle timeout
+		return (response, context) -> {
+			long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			return keepAlive > 0 ? Math.min(keepAlive, idleTimeoutMs) : idleTimeoutMs;
+		};
+	}
+
+	private static RequestConfig requestConfig(StrobeGlobalConfiguration config)
+	{
+		int connectTimeoutMs = (int) TimeUnit.SECONDS.toMillis(config.getConnectTimeout());
+		return RequestConfig.custom()
+				.setConnectTimeout(connectTimeoutMs)
+				.setConnectionRequestTimeout(connectTimeoutMs)
+				.setSocketTimeout((int) TimeUnit.SECONDS.toMillis(config.getReadTimeout()))
+				.build();
+	}
+
+	private static String normalize(String cesUrl)
+	{
+		return StringUtils.removeEnd(StringUtils.trimToEmpty(cesUrl), "/").toLowerCase();
+	}
+
+	static StrobeGlobalConfiguration currentConfiguration()
+	{
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		return config != null ? config : new StrobeGlobalConfiguration();
+	}
+
+	private static final class PooledClient
+	{
+		private final PoolingHttpClientConnectionManager connectionManager;
+		private final CloseableHttpClient client;
+
+		PooledClient(StrobeGlobalConfiguration config)
+		{
+			final long idleTimeoutMs = TimeUnit.SECONDS.toMillis(config.getIdleConnectionTimeout());
+
+			connectionManager = new PoolingHttpClientConnectionManager();
+			connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+			applyLimits(config.getMaxConnectionsPerRoute(), config.getMaxConnectionsTotal());
+
+			client = HttpClients.custom()
+					.setConnectionManager(connectionManager)
+					.setDefaultRequestConfig(requestConfig(config))
+					.setKeepAliveStrategy(keepAliveStrategy(idleTimeoutMs))
+					.evictExpiredConnections()
+					.evictIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS)
+					.build();
+		}
+
+		void applyLimits(int maxPerRoute, int maxTotal)
+		{
+			connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+			connectionManager.setMaxTotal(Math.max(maxPerRoute, maxTotal));
+		}
+	}
+
+	private static final class PooledAsyncClient
+	{
+		private final PoolingNHttpClientConnectionManager connectionManager;
+		private final CloseableHttpAsyncClient client;
+		private final long idleTimeoutMs;
+
+		PooledAsyncClient(StrobeGlobalConfiguration config) throws IOException
+		{
+			idleTimeoutMs = TimeUnit.SECONDS.toMillis(config.getIdleConnectionTimeout());
+
+			IOReactorConfig reactorConfig = IOReactorConfig.custom().setIoThreadCount(ASYNC_IO_THREADS).build();
+			connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig));
+			applyLimits(config.getMaxConnectionsPerRoute(), config.getMaxConnectionsTotal());
+
+			client = HttpAsyncClients.custom()
+					.setConnectionManager(connectionManager)
+					.setDefaultRequestConfig(requestConfig(config))
+					.setKeepAliveStrategy(keepAliveStrategy(idleTimeoutMs))
+					.build();
+			client.start();
+		}
+
+		void applyLimits(int maxPerRoute, int maxTotal)
+		{
+			connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+			connectionManager.setMaxTotal(Math.max(maxPerRoute, maxTotal));
+		}
+
+		void evictIdleConnections()
+		{
+			connectionManager.closeExpiredConnections();
+			connectionManager.closeIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+
+/**
+ * An incremental, lenient JSON scanner for CES replies. Characters are pushed into the scanner as they arrive and every
+ * scalar value is reported to a {@link Visitor} together with the name of the member it belongs to; values inside arrays
+ * are reported with the array's name. The scanner stops as soon as the visitor has seen everything it needs, and fails
+ * once more than the allowed number of characters has been pushed into it.
+ */
+final class StrobeJsonScanner
+{
+	/**
+	 * Receives the scalar values of the scanned JSON.
+	 */
+	interface Visitor
+	{
+		/**
+		 * @param name
+		 *            the member name of the value, <code>null</code> at the top level
+		 * @param value
+		 *            the value, without quotes for strings; <code>null</code> for the JSON literal null
+		 *
+		 * @return <code>false</code> to stop scanning
+		 */
+		boolean visit(String name, String value);
+	}
+
+	private static final int MAX_DEPTH = 64;
+	private static final int MAX_TOKEN_LENGTH = 8192;
+	private static final int PREFIX_LENGTH = 512;
+
+	private final Visitor visitor;
+	private final long maxChars;
+	private long count;
+	private boolean done;
+
+	// a bounded copy of the start of the reply, for error messages
+	private final StringBuilder prefix = new StringBuilder();
+
+	private final StringBuilder token = new StringBuilder();
+	private final StringBuilder literal = new StringBuilder();
+	private boolean inString;
+	private boolean stringPending;
+	private int escape;
+	private int unicode;
+
+	private final boolean[] arrays = new boolean[MAX_DEPTH];
+	private final String[] names = new String[MAX_DEPTH];
+	private int depth;
+	private String memberName;
+
+	StrobeJsonScanner(Visitor visitor, long maxChars)
+	{
+		this.visitor = visitor;
+		this.maxChars = maxChars;
+	}
+
+	/**
+	 * @return <code>true</code> once the visitor asked to stop, remaining input can be discarded
+	 */
+	boolean isDone()
+	{
+		return done;
+	}
+
+	/**
+	 * @return the start of the scanned text
+	 */
+	String getPrefix()
+	{
+		return prefix.toString();
+	}
+
+	/**
+	 * Scans the remaining characters of the buffer.
+	 *
+	 * @throws IOException
+	 *             if the reply is larger than allowed or nested too deeply
+	 */
+	void feed(CharBuffer chars) throws IOException
+	{
+		while (chars.hasRemaining() && done == false)
+		{
+			feed(chars.get());
+		}
+	}
+
+	/**
+	 * Scans one character.
+	 *
+	 * @throws IOException
+	 *             if the reply is larger than allowed or nested too deeply
+	 */
+	void feed(char c) throws IOException
+	{
+		if (done)
+		{
+			return;
+		}
+
+		if (++count > maxChars)
+		{
+			throw new IOException("The CES reply is larger than " + maxChars + " characters"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		if (prefix.length() < PREFIX_LENGTH)
+		{
+			prefix.append(c);
+		}
+
+		if (inString)
+		{
+			scanString(c);
+			return;
+		}
+
+		if (Character.isWhitespace(c))
+		{
+			endLiteral();
+			return;
+		}
+
+		if (stringPending && c != ':')
+		{
+			stringPending = false;
+			emit(currentName(), token.toString());
+			if (done)
+			{
+				return;
+			}
+		}
+
+		switch (c)
+		{
+			case ':':
+				if (stringPending)
+				{
+					stringPending = false;
+					memberName = token.toString();
+				}
+				break;
+			case '"':
+				endLiteral();
+				inString = true;
+				token.setLength(0);
+				break;
+			case '{':
+			case '[':
+				endLiteral();
+				push(c == '[');
+				break;
+			case '}':
+			case ']':
+				endLiteral();
+				if (depth > 0)
+				{
+					depth--;
+				}
+				break;
+			case ',':
+				endLiteral();
+				if (depth == 0 || arrays[depth - 1] == false)
+				{
+					memberName = null;
+				}
+				break;
+			default:
+				if (literal.length() < MAX_TOKEN_LENGTH)
+				{
+					literal.append(c);
+				}
+		}
+	}
+
+	/**
+	 * Reports a value still pending at the end of the input.
+	 */
+	void finish()
+	{
+		if (done == false)
+		{
+			if (stringPending)
+			{
+				stringPending = false;
+				emit(currentName(), token.toString());
+			}
+			endLiteral();
+		}
+	}
+
+	private void scanString(char c)
+	{
+		if (escape == 1)
+		{
+			escape = 0;
+			switch (c)
+			{
+				case 'n':
+					append('\n');
+					break;
+				case 'r':
+					append('\r');
+					break;
+				case 't':
+					append('\t');
+					break;
+				case 'b':
+					append('\b');
+					break;
+				case 'f':
+					append('\f');
+					break;
+				case 'u':
+					escape = 2;
+					unicode = 0;
+					break;
+				default:
+					append(c);
+			}
+		}
+		else if (escape > 1)
+		{
+			unicode = (unicode << 4) + Character.digit(c, 16);
+			if (++escape == 6)
+			{
+				escape = 0;
+				append((char) unicode);
+			}
+		}
+		else if (c == '\\')
+		{
+			escape = 1;
+		}
+		else if (c == '"')
+		{
+			inString = false;
+			stringPending = true;
+		}
+		else
+		{
+			append(c);
+		}
+	}
+
+	private void append(char c)
+	{
+		if (token.length() < MAX_TOKEN_LENGTH)
+		{
+			token.append(c);
+		}
+	}
+
+	private void push(boolean array) throws IOException
+	{
+		if (depth == MAX_DEPTH)
+		{
+			throw new IOException("The CES reply is nested too deeply"); //$NON-NLS-1$
+		}
+
+		names[depth] = currentName();
+		arrays[depth] = array;
+		depth++;
+		memberName = null;
+	}
+
+	private String currentName()
+	{
+		return depth > 0 && arrays[depth - 1] ? names[depth - 1] : memberName;
+	}
+
+	private void endLiteral()
+	{
+		if (literal.length() > 0)
+		{
+			String value = literal.toString();
+			literal.setLength(0);
+			emit(currentName(), "null".equals(value) ? null : value); //$NON-NLS-1$
+		}
+	}
+
+	private void emit(String name, String value)
+	{
+		if (done == false && visitor.visit(name, value) == false)
+		{
+			done = true;
+		}
+	}
+}
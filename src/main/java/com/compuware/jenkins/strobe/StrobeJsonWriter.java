@@ -0,0 +1,283 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A minimal JSON writer that encodes straight to UTF-8 bytes. Values are escaped while they are copied into a per-thread
+ * buffer, so writing a request allocates no intermediate Strings; the buffer is flushed to the output stream as it fills.
+ * A writer must only be used by the thread that created it.
+ */
+final class StrobeJsonWriter
+{
+	private static final int BUFFER_SIZE = 4096;
+	private static final int MAX_DEPTH = 8;
+
+	private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int count;
+
+	// whether the object or array at each nesting level already has a member, to know where commas go
+	private final boolean[] hasMember = new boolean[MAX_DEPTH];
+	private int depth;
+	private boolean afterName;
+
+	StrobeJsonWriter(OutputStream out)
+	{
+		this.out = out;
+		this.buffer = BUFFERS.get();
+	}
+
+	StrobeJsonWriter beginObject() throws IOException
+	{
+		beforeValue();
+		writeByte('{');
+		push();
+		return this;
+	}
+
+	StrobeJsonWriter endObject() throws IOException
+	{
+		depth--;
+		writeByte('}');
+		return this;
+	}
+
+	StrobeJsonWriter beginArray() throws IOException
+	{
+		beforeValue();
+		writeByte('[');
+		push();
+		return this;
+	}
+
+	StrobeJsonWriter endArray() throws IOException
+	{
+		depth--;
+		writeByte(']');
+		return this;
+	}
+
+	/**
+	 * Writes the name of the next object member. Names are expected to be plain ASCII constants.
+	 */
+	StrobeJsonWriter name(String name) throws IOException
+	{
+		beforeValue();
+		writeByte('"');
+		for (int i = 0; i < name.length(); i++)
+		{
+			writeByte(name.charAt(i));
+		}
+		writeByte('"');
+		writeByte(':');
+		afterName = true;
+		return this;
+	}
+
+	StrobeJsonWriter value(String value) throws IOException
+	{
+		return value(value, 0, value != null ? value.length() : 0);
+	}
+
+	/**
+	 * Writes part of a String as an escaped JSON string value.
+	 */
+	StrobeJsonWriter value(String value, int start, int end) throws IOException
+	{
+		beforeValue();
+		writeByte('"');
+		for (int i = start; i < end; i++)
+		{
+			char c = value.charAt(i);
+			if (c < 0x80)
+			{
+				writeAscii(c);
+			}
+			else if (c < 0x800)
+			{
+				writeByte(0xc0 | (c >> 6));
+				writeByte(0x80 | (c & 0x3f));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1)))
+			{
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				writeByte(0xf0 | (codePoint >> 18));
+				writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+				writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+				writeByte(0x80 | (codePoint & 0x3f));
+			}
+			else if (Character.isSurrogate(c))
+			{
+				// an unpaired surrogate cannot be encoded, escape it so the JSON stays valid
+				writeUnicodeEscape(c);
+			}
+			else
+			{
+				writeByte(0xe0 | (c >> 12));
+				writeByte(0x80 | ((c >> 6) & 0x3f));
+				writeByte(0x80 | (c & 0x3f));
+			}
+		}
+		writeByte('"');
+		return this;
+	}
+
+	/**
+	 * Writes the String with leading and trailing whitespace removed, like <code>StringUtils.trimToEmpty</code> but
+	 * without creating a new String.
+	 */
+	StrobeJsonWriter trimmedValue(String value) throws IOException
+	{
+		if (value == null)
+		{
+			return value(value, 0, 0);
+		}
+
+		int start = 0;
+		int end = value.length();
+		while (start < end && Character.isWhitespace(value.charAt(start)))
+		{
+			start++;
+		}
+		while (end > start && Character.isWhitespace(value.charAt(end - 1)))
+		{
+			end--;
+		}
+
+		return value(value, start, end);
+	}
+
+	StrobeJsonWriter value(int value) throws IOException
+	{
+		beforeValue();
+		long remaining = value;
+		if (remaining < 0)
+		{
+			writeByte('-');
+			remaining = -remaining;
+		}
+
+		long divisor = 1;
+		while (remaining / divisor >= 10)
+		{
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10)
+		{
+			writeByte('0' + (int) ((remaining / divisor) % 10));
+		}
+		return this;
+	}
+
+	/**
+	 * Writes any buffered bytes to the output stream.
+	 */
+	void flush() throws IOException
+	{
+		if (count > 0)
+		{
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	private void push()
+	{
+		hasMember[++depth] = false;
+	}
+
+	private void beforeValue() throws IOException
+	{
+		if (afterName)
+		{
+			afterName = false;
+			return;
+		}
+
+		if (depth > 0)
+		{
+			if (hasMember[depth])
+			{
+				writeByte(',');
+			}
+			hasMember[depth] = true;
+		}
+	}
+
+	private void writeAscii(char c) throws IOException
+	{
+		switch (c)
+		{
+			case '"':
+				writeByte('\\');
+				writeByte('"');
+				break;
+			case '\\':
+				writeByte('\\');
+				writeByte('\\');
+				break;
+			case '\n':
+				writeByte('\\');
+				writeByte('n');
+				break;
+			case '\r':
+				writeByte('\\');
+				writeByte('r');
+				break;
+			case '\t':
+				writeByte('\\');
+				writeByte('t');
+				break;
+			default:
+				if (c < 0x20)
+				{
+					writeUnicodeEscape(c);
+				}
+				else
+				{
+					writeByte(c);
+				}
+		}
+	}
+
+	private void writeUnicodeEscape(char c) throws IOException
+	{
+		writeByte('\\');
+		writeByte('u');
+		writeByte(HEX[(c >> 12) & 0xf]);
+		writeByte(HEX[(c >> 8) & 0xf]);
+		writeByte(HEX[(c >> 4) & 0xf]);
+		writeByte(HEX[c & 0xf]);
+	}
+
+	private void writeByte(int b) throws IOException
+	{
+		if (count == buffer.length)
+		{
+			flush();
+		}
+		buffer[count++] = (byte) b;
+	}
+}
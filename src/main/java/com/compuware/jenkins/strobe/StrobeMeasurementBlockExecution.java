@@ -0,0 +1,424 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jenkinsci.plugins.workflow.actions.WarningAction;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.steps.BodyExecution;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+import jenkins.util.Timer;
+
+/**
+ * Runs a {@link StrobeMeasurementBlockStep}. Like {@link StrobeMeasurementStepExecution}, no thread is held while CES
+ * replies or while the session is waited for. The body is started once CES has queued the measurement; when it ends the
+ * session is waited for and its outcome is attached to the block's node, so that it shows on the stage holding it.
+ * <p>
+ * A body that is aborted cancels the session instead of waiting for it, as does a session that has not ended within the
+ * wait timeout after the body.
+ */
+public class StrobeMeasurementBlockExecution extends StepExecution
+{
+	private static final long serialVersionUID = 1L;
+
+	private final StrobeMeasurementBlockStep step;
+
+	// set once CES accepted the measurement, so that a resumed step does not submit it again
+	private volatile int sessionNumber = -1;
+	private volatile String cesUrl;
+
+	private BodyExecution body;
+
+	// set once the body started, with or without a measurement, so that a resumed step never starts it a second time
+	private volatile boolean bodyStarted;
+
+	// the outcome of the body, kept so that a step resumed while waiting for the session can still complete with it
+	private volatile boolean bodyEnded;
+	private volatile Object bodyResult;
+	private volatile Throwable bodyFailure;
+
+	private transient volatile CompletableFuture<?> pending;
+	private transient StrobeSessionCanceller.Waiter waiter;
+	private transient ScheduledFuture<?> timeoutTask;
+
+	StrobeMeasurementBlockExecution(StrobeMeasurementBlockStep step, StepContext context)
+	{
+		super(context);
+		this.step = step;
+	}
+
+	@Override
+	public boolean start() throws Exception
+	{
+		submit();
+		return false;
+	}
+
+	/**
+	 * Called after a controller restart. A running body resumes on its own, including one started without a measurement;
+	 * a step that was waiting for CES or for the session after the body goes back to it.
+	 */
+	@Override
+	public void onResume()
+	{
+		try
+		{
+			if (bodyEnded)
+			{
+				finish();
+			}
+			else if (bodyStarted == false && sessionNumber <= 0)
+			{
+				getContext().get(TaskListener.class).getLogger().println(Messages.strobeMeasurementResubmit());
+				submit();
+			}
+			else if (sessionNumber > 0)
+			{
+				waiter(step.toBuilder(), getToken());
+			}
+		}
+		catch (Exception e)
+		{
+			getContext().onFailure(e);
+		}
+	}
+
+	@Override
+	public void stop(Throwable cause) throws Exception
+	{
+		if (body != null && bodyEnded == false)
+		{
+			// the body callback cancels the session once the body has stopped
+			body.cancel(cause);
+			return;
+		}
+
+		CompletableFuture<?> waiting = pending;
+		if (bodyEnded && sessionNumber > 0 && waiting != null && waiting.isDone() == false)
+		{
+			waiter(step.toBuilder(), getToken()).cancel(getContext().get(TaskListener.class));
+		}
+
+		if (waiting == null || waiting.completeExceptionally(cause) == false)
+		{
+			cancelTimeout();
+			getContext().onFailure(cause);
+		}
+	}
+
+	// the credentials lookup, the parameter checks and the first read of the journal may block, so they run on the
+	// remoting pool rather than on the CPS VM thread; stopping the step before the request is handed to the HTTP client
+	// completes the preparation instead
+	private void submit()
+	{
+		final CompletableFuture<Void> preparing = new CompletableFuture<>();
+		preparing.whenComplete((ignored, failure) -> {
+			if (failure != null)
+			{
+				getContext().onFailure(failure);
+			}
+		});
+		pending = preparing;
+
+		Computer.threadPoolForRemoting.submit(() -> {
+			try
+			{
+				submit(preparing);
+			}
+			catch (Exception e)
+			{
+				if (preparing.completeExceptionally(e) == false)
+				{
+					getContext().onFailure(e);
+				}
+			}
+		});
+	}
+
+	private void submit(final CompletableFuture<Void> preparing) throws IOException, InterruptedException
+	{
+		Run<?, ?> run = getContext().get(Run.class);
+		final TaskListener listener = getContext().get(TaskListener.class);
+
+		final StrobeMeasurementBuilder builder = step.toBuilder();
+		final Secret token = getToken();
+		builder.validateParameters(null, listener, run.getParent());
+
+		final String journalKey = StrobeSubmissionJournal.key(run, getContext().get(FlowNode.class).getId(), builder.getJobName(),
+				builder.getProfileName());
+		StrobeSubmissionJournal.Entry submitted = StrobeSubmissionJournal.get().lookup(journalKey);
+		if (submitted != null)
+		{
+			if (preparing.complete(null) == false)
+			{
+				return;
+			}
+
+			listener.getLogger().println(Messages.strobeMeasurementReattached(String.valueOf(submitted.getSessionNumber()), submitted.getCesUrl()));
+			startBody(builder, submitted.getSessionNumber(), submitted.getCesUrl(), token);
+			return;
+		}
+
+		// a step stopped while it prepared the request has already failed
+		if (preparing.isDone())
+		{
+			return;
+		}
+
+		final StrobeMeasurementRunner runner = new StrobeMeasurementRunner(builder);
+		runner.setAgent(builder.agentChannel(getContext().get(FilePath.class), listener));
+		final CompletableFuture<MeasurementSubmitResult> result = runner.submit(listener, token);
+		pending = result;
+		if (preparing.complete(null) == false)
+		{
+			// stopped while the request was handed over, which aborts the exchange
+			result.cancel(false);
+		}
+		timeoutTask = Timer.get().schedule(() -> result.completeExceptionally(new TimeoutException()), step.getTimeout(),
+				TimeUnit.MINUTES);
+
+		result.whenComplete((submitResult, failure) -> {
+			cancelTimeout();
+			if (failure != null && StrobeMeasurementBuilder.skipMeasurement(failure, listener))
+			{
+				// the body still runs, only without its measurement
+				bodyStarted = true;
+				body = getContext().newBodyInvoker().withCallback(BodyExecutionCallback.wrap(getContext())).start();
+			}
+			else if (failure != null)
+			{
+				getContext().onFailure(toAbortException(failure));
+			}
+			else if (submitResult.isAccepted() == false)
+			{
+				getContext().onFailure(new AbortException(Messages.strobeMeasurementFailure()));
+			}
+			else
+			{
+				// the journal is forced to disk, which must not hold up the HTTP client's thread
+				Computer.threadPoolForRemoting.submit(() -> {
+					StrobeSubmissionJournal.get().record(journalKey, runner.getSessionNumber(), runner.getCesUrl());
+					listener.getLogger().println(Messages.strobeMeasurementSuccess());
+					startBody(builder, runner.getSessionNumber(), runner.getCesUrl(), token);
+				});
+			}
+		});
+	}
+
+	private void startBody(StrobeMeasurementBuilder builder, int acceptedSession, String acceptedCesUrl, Secret token)
+	{
+		sessionNumber = acceptedSession;
+		cesUrl = acceptedCesUrl;
+		pending = null;
+		waiter(builder, token);
+		bodyStarted = true;
+		body = getContext().newBodyInvoker().withCallback(new Callback()).start();
+	}
+
+	private void bodyEnded(Object result, Throwable failure)
+	{
+		bodyResult = result;
+		bodyFailure = failure;
+		bodyEnded = true;
+		try
+		{
+			finish();
+		}
+		catch (Exception e)
+		{
+			complete(e);
+		}
+	}
+
+	private void finish() throws IOException, InterruptedException
+	{
+		final TaskListener listener = getContext().get(TaskListener.class);
+		final StrobeMeasurementBuilder builder = step.toBuilder();
+		final Secret token = getToken();
+
+		if (bodyFailure instanceof FlowInterruptedException)
+		{
+			waiter(builder, token).cancel(listener);
+			complete(null);
+			return;
+		}
+
+		final StrobeMeasurementRunner runner = new StrobeMeasurementRunner(builder, sessionNumber, cesUrl);
+		runner.setAgent(builder.agentChannel(getContext().get(FilePath.class), listener));
+		listener.getLogger().println(Messages.strobeBlockEnded(String.valueOf(sessionNumber), builder.getWaitTimeout()));
+
+		final StrobeSessionCanceller.Waiter sessionWaiter = waiter(builder, token);
+		CompletableFuture<MeasurementStatus> status = runner.awaitCompletion(listener, token);
+		pending = status;
+		status.whenComplete((measurementStatus, failure) -> {
+			if (failure != null)
+			{
+				sessionWaiter.release();
+				complete(toAbortException(failure));
+				return;
+			}
+
+			try
+			{
+				if (measurementStatus == MeasurementStatus.TIMED_OUT)
+				{
+					// the job the session was queued for has ended with the body, a session still running has no more to measure
+					sessionWaiter.cancel(listener);
+					getContext().get(FlowNode.class).addOrReplaceAction(new WarningAction(Result.UNSTABLE)
+							.withMessage(Messages.strobeMeasurementWaitTimeout(String.valueOf(sessionNumber), builder.getWaitTimeout())));
+				}
+				sessionWaiter.release();
+
+				StrobeMeasurementBuilder.applyStatus(getContext().get(Run.class), listener, measurementStatus, sessionNumber,
+						runner.getCesUrl(), builder.getWaitTimeout());
+				FilePath workspace = getContext().get(FilePath.class);
+				if (measurementStatus == MeasurementStatus.COMPLETED && workspace != null)
+				{
+					downloadProfile(builder, runner, workspace, listener, token);
+				}
+				else
+				{
+					complete(null);
+				}
+			}
+			catch (Exception e)
+			{
+				complete(e);
+			}
+		});
+	}
+
+	// the download blocks on CES and on the agent, so it runs on the remoting pool rather than on the HTTP client's thread
+	private void downloadProfile(final StrobeMeasurementBuilder builder, final StrobeMeasurementRunner runner, final FilePath workspace,
+			final TaskListener listener, final Secret token)
+	{
+		pending = null;
+		Computer.threadPoolForRemoting.submit(() -> {
+			try
+			{
+				Run<?, ?> run = getContext().get(Run.class);
+				StrobeProfileSummary summary = StrobeProfileDownloader.download(run, workspace, runner.getCesUrl(), builder.getSystem(),
+						sessionNumber, token, listener, builder.isRunOnAgent(), builder.isMapSources());
+				if (summary != null)
+				{
+					// the profile is attached to the block too, so the stage that ran the job carries its own measurement
+					StrobeProfileAction action = run.getAction(StrobeProfileAction.class);
+					if (action != null && action.getSessionNumber() == sessionNumber)
+					{
+						getContext().get(FlowNode.class).addOrReplaceAction(action);
+					}
+					StrobeRegressionGate.check(run, builder, sessionNumber, summary, listener);
+				}
+				complete(null);
+			}
+			catch (Exception e)
+			{
+				complete(e);
+			}
+		});
+	}
+
+	// a failed body fails the step whatever became of the measurement, otherwise the step ends with the body's result
+	private void complete(Throwable measurementFailure)
+	{
+		if (bodyFailure != null)
+		{
+			if (measurementFailure != null && measurementFailure != bodyFailure)
+			{
+				bodyFailure.addSuppressed(measurementFailure);
+			}
+			getContext().onFailure(bodyFailure);
+		}
+		else if (measurementFailure != null)
+		{
+			getContext().onFailure(measurementFailure);
+		}
+		else
+		{
+			getContext().onSuccess(bodyResult);
+		}
+	}
+
+	// the session may be shared with coalesced requests of other builds, which keep it alive while they wait for it
+	private StrobeSessionCanceller.Waiter waiter(StrobeMeasurementBuilder builder, Secret token)
+	{
+		if (waiter == null)
+		{
+			waiter = StrobeSessionCanceller.get().track(cesUrl, builder.getSystem(), sessionNumber, token, false);
+		}
+		return waiter;
+	}
+
+	private Secret getToken() throws IOException, InterruptedException
+	{
+		return StrobeMeasurementBuilder.getSecretToken(getContext().get(Run.class).getParent(), step.getCredentialsId());
+	}
+
+	private Throwable toAbortException(Throwable failure)
+	{
+		Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+		if (cause instanceof TimeoutException)
+		{
+			return new AbortException(Messages.strobeMeasurementTimeout(step.getTimeout()));
+		}
+
+		return cause;
+	}
+
+	private void cancelTimeout()
+	{
+		if (timeoutTask != null)
+		{
+			timeoutTask.cancel(false);
+		}
+	}
+
+	private final class Callback extends BodyExecutionCallback
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void onSuccess(StepContext context, Object result)
+		{
+			bodyEnded(result, null);
+		}
+
+		@Override
+		public void onFailure(StepContext context, Throwable t)
+		{
+			bodyEnded(null, t);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import hudson.Extension;
+
+/**
+ * Pipeline step that measures the job run by its body. A queued measurement request for the job is submitted before the
+ * body runs, so the session starts and ends with the job instead of lasting a duration or sample count guessed up front.
+ * When the body ends, the step waits for the session, downloads its profile and applies its status to the build and to
+ * the stage that holds the block. It accepts the same parameters as {@link StrobeMeasurementStep}, apart from the
+ * request type.
+ */
+public class StrobeMeasurementBlockStep extends StrobeMeasurementStep
+{
+	private static final long serialVersionUID = 1L;
+
+	static final String REQUEST_TYPE = "addQueue"; //$NON-NLS-1$
+
+	@DataBoundConstructor
+	public StrobeMeasurementBlockStep(String connectionId, String credentialsId, String jobName)
+	{
+		super(connectionId, credentialsId, REQUEST_TYPE, jobName);
+	}
+
+	/**
+	 * The block always waits for its session, that is how its result reaches the stage.
+	 */
+	@Override
+	StrobeMeasurementBuilder toBuilder()
+	{
+		StrobeMeasurementBuilder builder = super.toBuilder();
+		builder.setWaitForCompletion(true);
+		return builder;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception
+	{
+		return new StrobeMeasurementBlockExecution(this, context);
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends StrobeMeasurementStep.DescriptorImpl
+	{
+		@Override
+		public String getFunctionName()
+		{
+			return "withStrobeMeasurement"; //$NON-NLS-1$
+		}
+
+		@Override
+		public String getDisplayName()
+		{
+			return Messages.blockDisplayName();
+		}
+
+		@Override
+		public boolean takesImplicitBlockArgument()
+		{
+			return true;
+		}
+	}
+}
@@ -17,12 +17,12 @@
 
 package com.compuware.jenkins.strobe;
 
-import static com.cloudbees.plugins.credentials.CredentialsMatchers.filter;
-import static com.cloudbees.plugins.credentials.CredentialsMatchers.withId;
-import static com.cloudbees.plugins.credentials.CredentialsProvider.lookupCredentials;
-
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
@@ -48,8 +48,10 @@ import hudson.Launcher;
 import hudson.Util;
 import hudson.model.AbstractProject;
 import hudson.model.Item;
+import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
 import hudson.security.ACL;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
@@ -64,6 +66,10 @@ import net.sf.json.JSONObject;
 public class StrobeMeasurementBuilder extends Builder implements SimpleBuildStep
 {
 	private static final String EQUAL = "=";
+	static final int DEFAULT_WAIT_TIMEOUT = 60;
+	static final int DEFAULT_REGRESSION_BASELINE = 5;
+	static final String REGRESSION_UNSTABLE = "unstable"; //$NON-NLS-1$
+	static final String REGRESSION_FAILURE = "failure"; //$NON-NLS-1$
 
 	private String connectionId;
 	private String credentialsId;
@@ -85,6 +91,16 @@ public class StrobeMeasurementBuilder extends Builder implements SimpleBuildStep
 	private String url;
 	private String headers;
 	private String body;
+
+	private boolean waitForCompletion;
+	private int waitTimeout;
+
+	private int regressionThreshold;
+	private int regressionBaseline;
+	private String regressionResult;
+
+	private boolean runOnAgent;
+	private boolean mapSources;
 	
 	@DataBoundConstructor
 	public StrobeMeasurementBuilder(String connectionId, String credentialsId, String requestType, String jobName)
@@ -94,8 +110,7 @@ public class StrobeMeasurementBuilder extends Builder implements SimpleBuildStep
 		this.requestType = StringUtils.trimToEmpty(requestType);
 		this.jobName = StringUtils.trimToEmpty(jobName);
 		
-		CpwrGlobalConfiguration globalConfig = CpwrGlobalConfiguration.get();
-		HostConnection hostConnection = globalConfig.getHostConnection(connectionId);		
+		HostConnection hostConnection = StrobeResolutionCache.get().getHostConnection(connectionId);
 		if (hostConnection != null) {
 			this.cesUrl = StringUtils.trimToEmpty(hostConnection.getCesUrl());
 			this.system = StringUtils.trimToEmpty(hostConnection.getDescription());
@@ -122,12 +137,25 @@ public class StrobeMeasurementBuilder extends Builder implements SimpleBuildStep
 		return jobName;
 	}
 
+	/**
+	 * Returns the CES URL of the selected host connection as it is configured now, so that a moved CES is picked up
+	 * without saving the job again. The URL recorded when the job was saved is used if the connection no longer exists.
+	 * 
+	 * @return the CES URL of the host connection
+	 */
 	public String getCesUrl() {
-		return cesUrl;
+		HostConnection hostConnection = StrobeResolutionCache.get().getHostConnection(connectionId);
+		return StringUtils.trimToEmpty(hostConnection != null ? hostConnection.getCesUrl() : cesUrl);
 	}
 
+	/**
+	 * Returns the description of the selected host connection as it is configured now.
+	 * 
+	 * @return the system the measurement is submitted to
+	 */
 	public String getSystem() {
-		return system;
+		HostConnection hostConnection = StrobeResolutionCache.get().getHostConnection(connectionId);
+		return StringUtils.trimToEmpty(hostConnection != null ? hostConnection.getDescription() : system);
 	}
 	
 	public String getTags() {
@@ -246,41 +274,276 @@ public class StrobeMeasurementBuilder extends Builder implements SimpleBuildStep
 	public void setBody(String body) {
 		this.body = body;
 	}
+
+	public boolean isWaitForCompletion() {
+		return waitForCompletion;
+	}
+
+	@DataBoundSetter
+	public void setWaitForCompletion(boolean waitForCompletion) {
+		this.waitForCompletion = waitForCompletion;
+	}
+
+	public int getWaitTimeout() {
+		return waitTimeout > 0 ? waitTimeout : DEFAULT_WAIT_TIMEOUT;
+	}
+
+	@DataBoundSetter
+	public void setWaitTimeout(int waitTimeout) {
+		this.waitTimeout = waitTimeout;
+	}
+
+	/**
+	 * @return the percentage by which CPU time, EXCPs or elapsed time may exceed the baseline, 0 if the build is not
+	 *         checked for regressions
+	 */
+	public int getRegressionThreshold() {
+		return regressionThreshold;
+	}
+
+	@DataBoundSetter
+	public void setRegressionThreshold(int regressionThreshold) {
+		this.regressionThreshold = Math.max(0, regressionThreshold);
+	}
+
+	/**
+	 * @return the number of previous measurements the baseline is computed from
+	 */
+	public int getRegressionBaseline() {
+		return regressionBaseline > 0 ? regressionBaseline : DEFAULT_REGRESSION_BASELINE;
+	}
+
+	@DataBoundSetter
+	public void setRegressionBaseline(int regressionBaseline) {
+		this.regressionBaseline = regressionBaseline;
+	}
+
+	/**
+	 * @return <code>failure</code> if a regression fails the build, <code>unstable</code> if it marks it unstable
+	 */
+	public String getRegressionResult() {
+		return REGRESSION_FAILURE.equals(regressionResult) ? REGRESSION_FAILURE : REGRESSION_UNSTABLE;
+	}
+
+	@DataBoundSetter
+	public void setRegressionResult(String regressionResult) {
+		this.regressionResult = StringUtils.trimToNull(regressionResult);
+	}
+
+	/**
+	 * @return <code>true</code> if the requests to CES are sent from the build agent rather than from the controller
+	 */
+	public boolean isRunOnAgent() {
+		return runOnAgent;
+	}
+
+	@DataBoundSetter
+	public void setRunOnAgent(boolean runOnAgent) {
+		this.runOnAgent = runOnAgent;
+	}
+
+	public boolean isMapSources() {
+		return mapSources;
+	}
+
+	@DataBoundSetter
+	public void setMapSources(boolean mapSources) {
+		this.mapSources = mapSources;
+	}
 	
     @Override
-    public void perform(final Run<?,?> build, final FilePath workspaceFilePath, final Launcher launcher, final TaskListener listener) throws AbortException
+    public void perform(final Run<?,?> build, final FilePath workspaceFilePath, final Launcher launcher, final TaskListener listener) throws AbortException, InterruptedException
     {    	
 		try
 		{
-			// get the token from the selected credential
-			List<StringCredentials> credentials = filter(lookupCredentials(StringCredentials.class, build.getParent(), ACL.SYSTEM, Collections.<DomainRequirement> emptyList()), withId(StringUtils.trimToEmpty(credentialsId)));
-			Secret token = null;
-			if (credentials != null && credentials.size() > 0) {
-				StringCredentials credential = credentials.get(0);
-				token = credential.getSecret();
-			}
+			Secret token = getSecretToken(build.getParent(), credentialsId);
 
 			validateParameters(launcher, listener, build.getParent());
 			
 			StrobeMeasurementRunner runner = new StrobeMeasurementRunner(this);
+			runner.setAgent(agentChannel(workspaceFilePath, listener));
 			boolean success = runner.run(build, launcher, workspaceFilePath, listener, token);
 			if (success == false)
 			{
 				throw new AbortException(Messages.strobeMeasurementFailure());
 			}
+			listener.getLogger().println(Messages.strobeMeasurementSuccess());
+
+			if (isWaitForCompletion())
+			{
+				waitForCompletion(build, workspaceFilePath, runner, listener, token);
+			}
 			else
 			{
-				listener.getLogger().println(Messages.strobeMeasurementSuccess());
-				listener.getLogger().println("When the measurement is complete, view the generated profile at " + getCesUrl() + "/istrobe/jsp/myStrobe/myStrobe.jsp");
+				listener.getLogger().println("When the measurement is complete, view the generated profile at " + runner.getCesUrl() + "/istrobe/jsp/myStrobe/myStrobe.jsp");
 			}
-					
+		}
+		catch (InterruptedException e)
+		{
+			throw e;
 		}
 		catch (Exception e)
 		{
+			if (skipMeasurement(e, listener))
+			{
+				return;
+			}
+
 			listener.getLogger().println(e.getMessage());
 			throw new AbortException();
 		}
     }
+
+	/**
+	 * Decides whether a failed submission lets the build carry on without its measurement. That is the case when the
+	 * measurement was not sent because its CES instance keeps failing and the global configuration asks to skip the
+	 * measurement in that case.
+	 * 
+	 * @param failure
+	 *            The failure of the submission
+	 * @param listener
+	 *            Build listener told that the measurement was skipped
+	 * 
+	 * @return <code>true</code> if the measurement was skipped
+	 */
+	static boolean skipMeasurement(final Throwable failure, final TaskListener listener)
+	{
+		Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		if (cause instanceof StrobeCircuitOpenException && config != null && config.isSkipWhenCircuitOpen())
+		{
+			listener.getLogger().println(Messages.strobeMeasurementSkipped(cause.getMessage()));
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns the channel of the agent the requests to CES are sent from.
+	 * 
+	 * @param workspace
+	 *            the workspace of the build, <code>null</code> if it has none
+	 * @param listener
+	 *            Build listener
+	 * 
+	 * @return the channel of the agent holding the workspace, or <code>null</code> if the requests are sent from the
+	 *         controller
+	 */
+	VirtualChannel agentChannel(FilePath workspace, TaskListener listener)
+	{
+		if (isRunOnAgent() == false)
+		{
+			return null;
+		}
+
+		if (workspace == null || workspace.isRemote() == false || workspace.getChannel() == null)
+		{
+			listener.getLogger().println(Messages.strobeAgentUnavailable());
+			return null;
+		}
+
+		listener.getLogger().println(Messages.strobeAgentRequests());
+		return workspace.getChannel();
+	}
+
+	private void waitForCompletion(final Run<?,?> build, final FilePath workspaceFilePath, final StrobeMeasurementRunner runner, final TaskListener listener, final Secret token) throws IOException, InterruptedException
+	{
+		listener.getLogger().println(Messages.strobeMeasurementWaiting(String.valueOf(runner.getSessionNumber()), getWaitTimeout()));
+
+		// the session is polled on the shared scheduler, this thread only waits for the final status
+		CompletableFuture<MeasurementStatus> status = runner.awaitCompletion(listener, token);
+		StrobeSessionCanceller.Waiter waiter = StrobeSessionCanceller.get().track(runner.getCesUrl(), getSystem(),
+				runner.getSessionNumber(), token, true);
+		MeasurementStatus finalStatus;
+		try
+		{
+			finalStatus = status.get();
+		}
+		catch (InterruptedException e)
+		{
+			status.cancel(true);
+			waiter.cancel(listener);
+			throw e;
+		}
+		catch (ExecutionException e)
+		{
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+		finally
+		{
+			waiter.release();
+		}
+
+		applyStatus(build, listener, finalStatus, runner.getSessionNumber(), runner.getCesUrl(), getWaitTimeout());
+		if (finalStatus == MeasurementStatus.COMPLETED && workspaceFilePath != null)
+		{
+			StrobeProfileSummary summary = StrobeProfileDownloader.download(build, workspaceFilePath, runner.getCesUrl(), getSystem(), runner.getSessionNumber(), token, listener, isRunOnAgent(), isMapSources());
+			if (summary != null)
+			{
+				StrobeRegressionGate.check(build, this, runner.getSessionNumber(), summary, listener);
+			}
+		}
+	}
+
+	/**
+	 * Passes the final status of a measurement session on to the build result.
+	 * 
+	 * @param build
+	 *            The current running Jenkins build
+	 * @param listener
+	 *            Build listener
+	 * @param status
+	 *            The final status of the session
+	 * @param sessionNumber
+	 *            The session request number
+	 * @param cesUrl
+	 *            The CES URL the measurement was submitted to
+	 * @param waitTimeout
+	 *            The number of minutes the build waited for the session
+	 * 
+	 * @throws AbortException
+	 *             if the session failed
+	 */
+	static void applyStatus(final Run<?,?> build, final TaskListener listener, final MeasurementStatus status, final int sessionNumber, final String cesUrl, final int waitTimeout) throws AbortException
+	{
+		switch (status)
+		{
+			case COMPLETED:
+				listener.getLogger().println(Messages.strobeMeasurementCompleted(String.valueOf(sessionNumber)));
+				listener.getLogger().println("View the generated profile at " + cesUrl + "/istrobe/jsp/myStrobe/myStrobe.jsp");
+				break;
+			case TIMED_OUT:
+				listener.getLogger().println(Messages.strobeMeasurementWaitTimeout(String.valueOf(sessionNumber), waitTimeout));
+				build.setResult(Result.UNSTABLE);
+				break;
+			default:
+				throw new AbortException(Messages.strobeMeasurementSessionFailed(String.valueOf(sessionNumber)));
+		}
+	}
+
+	/**
+	 * Gets the CES secret token from the selected credential.
+	 * 
+	 * @param item
+	 *            The item the credential is looked up for
+	 * @param credentialsId
+	 *            The id of the selected secret text credential
+	 * 
+	 * @return the <code>Secret</code> token, or <code>null</code> if the credential does not exist
+	 */
+	static Secret getSecretToken(final Item item, final String credentialsId)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			return StrobeResolutionCache.get().getSecretToken(item, credentialsId);
+		}
+		finally
+		{
+			StrobeMetrics.get().time(StrobeMetrics.CREDENTIAL_LOOKUP, start);
+		}
+	}
     
 	public void validateParameters(final Launcher launcher, final TaskListener listener, final Item project)
 	{
@@ -314,7 +577,7 @@ public class StrobeMeasurementBuilder extends Builder implements SimpleBuildStep
 		
 		if (getCesUrl().isEmpty() == false)
 		{
-			if(!cesUrl.startsWith("http")) {
+			if(!getCesUrl().startsWith("http")) {
 				throw new IllegalArgumentException(Messages.errorInvalidCesUrl());
 			}
 			
@@ -385,6 +648,15 @@ public class StrobeMeasurementBuilder extends Builder implements SimpleBuildStep
 			listener.getLogger().println(Messages.transactionId() + EQUAL + getTransactionId());
 		}
 
+		if (isWaitForCompletion())
+		{
+			listener.getLogger().println(Messages.waitTimeout() + EQUAL + getWaitTimeout());
+			if (getRegressionThreshold() > 0)
+			{
+				listener.getLogger().println(Messages.regressionThreshold() + EQUAL + getRegressionThreshold());
+			}
+		}
+
 		if (getUrl().isEmpty() == false)
 		{
 			if (getMethod().isEmpty() == false)
@@ -0,0 +1,210 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.Serializable;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+
+/**
+ * The job specific part of a measurement request submitted by a {@link StrobeBatchMeasurementBuilder}. The host connection
+ * and CES secret token are shared by all jobs of the batch. It is serializable so that a <code>StrobeBatchMeasurementStep</code>
+ * can be saved with its Pipeline.
+ */
+public class StrobeMeasurementJob extends AbstractDescribableImpl<StrobeMeasurementJob> implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private final String jobName;
+	private String requestType;
+	private String tags;
+	private String profileName;
+	private String emailto;
+	private String duration;
+	private String samples;
+	private String limit;
+	private String finalAction;
+	private String hlq;
+	private String transactionId;
+
+	@DataBoundConstructor
+	public StrobeMeasurementJob(String jobName)
+	{
+		this.jobName = StringUtils.trimToEmpty(jobName);
+	}
+
+	public String getJobName()
+	{
+		return jobName;
+	}
+
+	public String getRequestType() {
+		return requestType;
+	}
+
+	@DataBoundSetter
+	public void setRequestType(String requestType) {
+		this.requestType = requestType;
+	}
+
+	public String getTags() {
+		return tags;
+	}
+
+	@DataBoundSetter
+	public void setTags(String tags) {
+		this.tags = tags;
+	}
+
+	public String getProfileName() {
+		return profileName;
+	}
+
+	@DataBoundSetter
+	public void setProfileName(String profileName) {
+		this.profileName = profileName;
+	}
+
+	public String getEmailto() {
+		return emailto;
+	}
+
+	@DataBoundSetter
+	public void setEmailto(String emailto) {
+		this.emailto = emailto;
+	}
+
+	public String getDuration() {
+		return duration;
+	}
+
+	@DataBoundSetter
+	public void setDuration(String duration) {
+		this.duration = duration;
+	}
+
+	public String getSamples() {
+		return samples;
+	}
+
+	@DataBoundSetter
+	public void setSamples(String samples) {
+		this.samples = samples;
+	}
+
+	public String getLimit() {
+		return limit;
+	}
+
+	@DataBoundSetter
+	public void setLimit(String limit) {
+		this.limit = limit;
+	}
+
+	public String getFinalAction() {
+		return finalAction;
+	}
+
+	@DataBoundSetter
+	public void setFinalAction(String finalAction) {
+		this.finalAction = finalAction;
+	}
+
+	public String getHlq() {
+		return hlq;
+	}
+
+	@DataBoundSetter
+	public void setHlq(String hlq) {
+		this.hlq = hlq;
+	}
+
+	public String getTransactionId() {
+		return transactionId;
+	}
+
+	@DataBoundSetter
+	public void setTransactionId(String transactionId) {
+		this.transactionId = transactionId;
+	}
+
+	/**
+	 * Creates a builder holding this job's parameters together with the shared host connection and credentials.
+	 *
+	 * @param connectionId
+	 *            the host connection shared by the batch
+	 * @param credentialsId
+	 *            the CES secret token credential shared by the batch
+	 *
+	 * @return a <code>StrobeMeasurementBuilder</code> for this job
+	 */
+	StrobeMeasurementBuilder toBuilder(String connectionId, String credentialsId)
+	{
+		String type = StringUtils.defaultIfEmpty(StringUtils.trimToEmpty(requestType), "addQueue"); //$NON-NLS-1$
+		StrobeMeasurementBuilder builder = new StrobeMeasurementBuilder(connectionId, credentialsId, type, jobName);
+		builder.setTags(StringUtils.trimToEmpty(tags));
+		builder.setProfileName(StringUtils.trimToEmpty(profileName));
+		builder.setEmailto(StringUtils.trimToEmpty(emailto));
+		builder.setDuration(StringUtils.trimToEmpty(duration));
+		builder.setSamples(StringUtils.trimToEmpty(samples));
+		builder.setLimit(StringUtils.trimToEmpty(limit));
+		builder.setFinalAction(StringUtils.trimToEmpty(finalAction));
+		builder.setHlq(StringUtils.trimToEmpty(hlq));
+		builder.setTransactionId(StringUtils.trimToEmpty(transactionId));
+		builder.setMethod(StringUtils.EMPTY);
+		builder.setUrl(StringUtils.EMPTY);
+		builder.setHeaders(StringUtils.EMPTY);
+		builder.setBody(StringUtils.EMPTY);
+		return builder;
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<StrobeMeasurementJob>
+	{
+		@Override
+		public String getDisplayName()
+		{
+			return Messages.jobName();
+		}
+
+		// the job fields are the same as the builder's, so are their help files
+		@Override
+		public String getHelpFile(final String fieldName)
+		{
+			String helpFile = super.getHelpFile(fieldName);
+			return helpFile != null ? helpFile
+					: Jenkins.get().getDescriptorByType(StrobeMeasurementBuilder.DescriptorImpl.class).getHelpFile(fieldName);
+		}
+
+		@POST
+		public FormValidation doCheckJobName(@QueryParameter final String value)
+		{
+			return Jenkins.get().getDescriptorByType(StrobeMeasurementBuilder.DescriptorImpl.class).doCheckJobName(value);
+		}
+	}
+}
@@ -17,25 +17,39 @@
 
 package com.compuware.jenkins.strobe;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
 
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
 import hudson.util.Secret;
+import jenkins.util.Timer;
 
 public class StrobeMeasurementRunner
 {	
 	private final StrobeMeasurementBuilder smBuilder;
+	private volatile int returnCode = -1;
+	private volatile int sessionNumber = -1;
+	private volatile String cesUrl;
+
+	// the callback CES is asked to send when the session ends, so that the wait does not depend on polling
+	private volatile StrobeCallbackRegistry.Callback callback;
+
+	// the agent that sends the requests to CES, null to send them from the controller
+	private volatile VirtualChannel agent;
 	
 	/**
 	 * Constructor
@@ -47,9 +61,76 @@ public class StrobeMeasurementRunner
 	{
 		this.smBuilder = smBuilder;
 	}
+
+	/**
+	 * Constructor for a measurement that has already been submitted
+	 * 
+	 * @param smBuilder
+	 * 			  An instance of <code>StrobeMeasurementBuilder</code> containing the arguments.
+	 * @param sessionNumber
+	 * 			  The session request number CES returned for the measurement.
+	 */
+	public StrobeMeasurementRunner(StrobeMeasurementBuilder smBuilder, int sessionNumber)
+	{
+		this(smBuilder, sessionNumber, null);
+	}
+
+	/**
+	 * Constructor for a measurement that has already been submitted to a known CES instance
+	 * 
+	 * @param smBuilder
+	 * 			  An instance of <code>StrobeMeasurementBuilder</code> containing the arguments.
+	 * @param sessionNumber
+	 * 			  The session request number CES returned for the measurement.
+	 * @param cesUrl
+	 * 			  The URL of the CES instance that accepted the measurement, or <code>null</code> for the host connection's.
+	 */
+	public StrobeMeasurementRunner(StrobeMeasurementBuilder smBuilder, int sessionNumber, String cesUrl)
+	{
+		this.smBuilder = smBuilder;
+		this.sessionNumber = sessionNumber;
+		this.cesUrl = StringUtils.trimToNull(cesUrl);
+	}
 	
 	/**
-	 * Submits the Strobe measurement
+	 * @return the return code CES replied with, or -1 if CES did not return one
+	 */
+	public int getReturnCode()
+	{
+		return returnCode;
+	}
+
+	/**
+	 * @return the session request number CES returned for the submitted measurement, or -1 if it was not submitted
+	 */
+	public int getSessionNumber()
+	{
+		return sessionNumber;
+	}
+
+	/**
+	 * @return the URL of the CES instance the measurement was submitted to, or the host connection's CES URL if it has not
+	 *         been submitted by this runner
+	 */
+	public String getCesUrl()
+	{
+		return cesUrl != null ? cesUrl : smBuilder.getCesUrl();
+	}
+
+	/**
+	 * Sends the requests to CES, the submission and the status polls, from a build agent rather than from the
+	 * controller.
+	 * 
+	 * @param agent
+	 *            the channel of the agent, or <code>null</code> to send the requests from the controller
+	 */
+	public void setAgent(VirtualChannel agent)
+	{
+		this.agent = agent;
+	}
+
+	/**
+	 * Submits the Strobe measurement and waits for CES to reply
 	 * 
 	 * @param build
 	 *			  The current running Jenkins build
@@ -59,134 +140,411 @@ public class StrobeMeasurementRunner
 	 *            a directory to check out the source code.
 	 * @param listener
 	 *            Build listener
+	 * @param token
+	 *            The CES secret token
 	 *            
 	 * @return <code>boolean</code> if the build was successful
 	 * 
 	 * @throws IOException
 	 * 			If an error occurred during the Strobe measurement submit
+	 * @throws InterruptedException
+	 * 			If the build was interrupted while waiting for CES
 	 */
-	public boolean run(final Run<?,?> build, final Launcher launcher, final FilePath workspaceFilePath, final TaskListener listener, Secret token) throws IOException
+	public boolean run(final Run<?,?> build, final Launcher launcher, final FilePath workspaceFilePath, final TaskListener listener, Secret token) throws IOException, InterruptedException
 	{
-		String url = smBuilder.getCesUrl() + "/strobe/measurement";
-        listener.getLogger().println("Posting to URL " + url);
-		HttpPost post = new HttpPost(url);
+		CompletableFuture<MeasurementSubmitResult> result = submit(listener, token);
+		try
+		{
+			return result.get().isAccepted();
+		}
+		catch (InterruptedException e)
+		{
+			result.cancel(true);
+			throw e;
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+			{
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
 
-		// do this so that we will try and send an email since the notification code requires us to attempt to send an email
-		String DEFAULT_EMAIL = "dummy@compuware.com"; 
-		String emailToUse = smBuilder.getEmailto().isEmpty() ? DEFAULT_EMAIL : StringUtils.trimToEmpty(smBuilder.getEmailto());
-				
-        StringBuilder json = new StringBuilder();
-        json.append("{");
-        json.append("\"reqType\":\"" + StringUtils.trimToEmpty(smBuilder.getRequestType()) + "\",");
-        json.append("\"jobName\":\"" + StringUtils.trimToEmpty(smBuilder.getJobName()) + "\",");
-        json.append("\"system\":\"" + StringUtils.trimToEmpty(smBuilder.getSystem()) + "\",");
-        json.append("\"tags\":\"" + StringUtils.trimToEmpty(smBuilder.getTags()) + "\",");
-        json.append("\"profileName\":\"" + StringUtils.trimToEmpty(smBuilder.getProfileName()) + "\",");
-        json.append("\"emailto\":\"" + emailToUse + "\",");
-        json.append("\"duration\":\"" + StringUtils.trimToEmpty(smBuilder.getDuration()) + "\",");
-        json.append("\"samples\":\"" + StringUtils.trimToEmpty(smBuilder.getSamples()) + "\",");
-        json.append("\"limit\":\"" + StringUtils.trimToEmpty(smBuilder.getLimit()) + "\",");
-        json.append("\"finalAction\":\"" + StringUtils.trimToEmpty(smBuilder.getFinalAction()) + "\",");
-        json.append("\"hlq\":\"" + StringUtils.trimToEmpty(smBuilder.getHlq()) + "\",");
-        json.append("\"tranid\":\"" + StringUtils.trimToEmpty(smBuilder.getTransactionId()) + "\",");
-        json.append("\"initBy\":\"CI\",");     
-        
-        // adding api notification json
-        if (smBuilder.getUrl() != null && !smBuilder.getUrl().equals("")) {
-	        json.append("\"apiNotificationData\":{");
-	        json.append("\"method\":\"" + smBuilder.getMethod() + "\",");
-	        json.append("\"returnURL\":\"" + smBuilder.getUrl() + "\",");
-	        json.append("\"httpHeaders\":[" + getFormattedHeaders(smBuilder.getHeaders()) + "],");
-	        json.append("\"body\":\"" + smBuilder.getBody().replaceAll("\"","\\\\\"").replaceAll("\\r|\\n", "") + "\",");
-	        json.append("\"triggerType\":0,");
-	        json.append("\"events\":\"*\",");
-	        json.append("\"productID\":\"STROBE\",");
-	        json.append("\"productInstance\":\"strobe\",");
-	        json.append("\"resource\":\"\"");
-	        json.append("}");
-    	}
-        else
-        {
-			listener.getLogger().println("No callback configured");
-        }
-        json.append("}");
-        
-        post.setEntity(new StringEntity(json.toString()));
-        post.addHeader("Content-Type", "application/json");
-        
-        if (token != null) {
-            post.addHeader("Authorization", token.getPlainText());
-        }
-        
-        int returnCode = 99999;
-        try (CloseableHttpClient httpClient = HttpClients.createDefault();
-                CloseableHttpResponse response = httpClient.execute(post))
-        {
-        	String results = EntityUtils.toString(response.getEntity());
-			returnCode = getReturnCode(results);
-			if ((Integer.valueOf(returnCode)) < 0)
+	/**
+	 * Submits the Strobe measurement without blocking the calling thread. The returned future completes on one of the
+	 * shared HTTP client's I/O threads once CES has replied; cancelling it aborts the request. The reply is parsed as it
+	 * arrives, so it is never held in memory as a whole.
+	 * <p>
+	 * The submission first takes its turn in the <code>StrobeSubmissionThrottle</code> of the host connection, which may
+	 * delay it when many builds submit at once. An identical request submitted by another build moments earlier is
+	 * joined through the <code>StrobeRequestCoalescer</code> instead, sharing its session.
+	 * 
+	 * @param listener
+	 *            Build listener
+	 * @param token
+	 *            The CES secret token
+	 *            
+	 * @return a <code>CompletableFuture</code> that is completed with the parsed reply of CES
+	 */
+	public CompletableFuture<MeasurementSubmitResult> submit(final TaskListener listener, final Secret token)
+	{
+		StrobeRequestCoalescer coalescer = StrobeRequestCoalescer.get();
+		if (coalescer.getWindowMs() <= 0)
+		{
+			return submitNow(listener, token);
+		}
+
+		String key;
+		try
+		{
+			key = StrobeRequestCoalescer.key(smBuilder.getConnectionId(), new StrobeRequestSerializer(smBuilder), token);
+		}
+		catch (IOException e)
+		{
+			CompletableFuture<MeasurementSubmitResult> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+
+		final StrobeRequestCoalescer.Submission submission = coalescer.join(key, this, () -> submitNow(listener, token));
+		final StrobeMeasurementRunner leader = submission.getLeader();
+		if (leader != this)
+		{
+			listener.getLogger().println(Messages.strobeMeasurementCoalesced());
+		}
+
+		// every request gets its own future, so that one giving up does not abort the submission the others share
+		final CompletableFuture<MeasurementSubmitResult> result = new CompletableFuture<>();
+		submission.getResult().whenComplete((submitResult, failure) -> {
+			if (failure != null)
 			{
-				listener.getLogger().println("Invalid results: " + results);
-				return false;
+				result.completeExceptionally(failure);
 			}
-			else {
-				listener.getLogger().println("Return Code=" + returnCode);
-				listener.getLogger().println("Session Request Number=" + getSessionRequestNumber(results));
+			else
+			{
+				if (leader != this)
+				{
+					cesUrl = leader.getCesUrl();
+					callback = leader.callback;
+					processResults(submitResult, listener);
+				}
+				result.complete(submitResult);
+			}
+		});
+		result.whenComplete((submitResult, failure) -> {
+			if (failure != null && submission.getResult().isDone() == false)
+			{
+				submission.leave();
 			}
-        }
-        
-		return returnCode < 5; // got the <5 criteria from the processResponse function in StrobeService.java
+		});
+
+		return result;
 	}
 
-	// instead of importing dependencies and other files to parse this json result into an object, we just process the string
-	private int getReturnCode(String results) {
-		String returnCodeString = "returnCode\":";
-		int returnCodeIndex = results.indexOf(returnCodeString);
-		
-		// the results don't have the return
-		if (returnCodeIndex == -1) {
-			return returnCodeIndex;
-		}
-		
-		int commaIndex = results.indexOf(",", returnCodeIndex);		
-		String returnCode = results.substring(returnCodeIndex + returnCodeString.length(), commaIndex);
-		return Integer.parseInt(returnCode);
+	private CompletableFuture<MeasurementSubmitResult> submitNow(final TaskListener listener, final Secret token)
+	{
+		final CompletableFuture<MeasurementSubmitResult> result = new CompletableFuture<>();
+		final long startedAt = System.nanoTime();
+		StrobeMetrics.get().submissionStarted();
+		result.whenComplete((submitResult, failure) -> {
+			StrobeMetrics.get().submissionEnded();
+			if (submitResult != null)
+			{
+				StrobeMetrics.get().time(StrobeMetrics.END_TO_END, startedAt);
+			}
+		});
+		if (smBuilder.isWaitForCompletion() && StringUtils.isEmpty(smBuilder.getUrl()))
+		{
+			final StrobeCallbackRegistry.Callback registered = StrobeCallbackRegistry.get().register();
+			if (registered != null)
+			{
+				callback = registered;
+				result.whenComplete((submitResult, failure) -> {
+					if (failure == null && submitResult.isAccepted())
+					{
+						StrobeCallbackRegistry.get().bind(registered.getId(), cesUrl, smBuilder.getSystem(), sessionNumber);
+					}
+					else
+					{
+						StrobeCallbackRegistry.get().unregister(registered.getId());
+					}
+				});
+			}
+		}
+
+		final CompletableFuture<StrobeSubmissionThrottle.Permit> permit = StrobeSubmissionThrottle.get()
+				.acquire(smBuilder.getConnectionId(), listener);
+
+		permit.whenComplete((granted, failure) -> {
+			if (failure != null)
+			{
+				result.completeExceptionally(failure);
+				return;
+			}
+
+			// the slot is held until CES has replied, or the caller has given up on the result
+			result.whenComplete((submitResult, resultFailure) -> granted.release());
+			try
+			{
+				send(result, listener, token, 0);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				result.completeExceptionally(e);
+			}
+		});
+
+		// giving up on the result also gives up the place in the queue
+		result.whenComplete((submitResult, failure) -> {
+			if (failure != null)
+			{
+				permit.cancel(false);
+			}
+		});
+
+		return result;
 	}
-	
-	private int getSessionRequestNumber(String results) {
-		String sessionRequestNumberString = "@number\":";
-		int sessionRequestNumberIndex = results.indexOf(sessionRequestNumberString);
-		int commaIndex = results.indexOf(",", sessionRequestNumberIndex);
-		String sessionRequestNumber = results.substring(sessionRequestNumberIndex + sessionRequestNumberString.length(), commaIndex);    
-		
-		// sometimes theres quotes around the number and sometimes not
-		if (sessionRequestNumber.length() == 6) {
-			sessionRequestNumber = sessionRequestNumber.substring(1, sessionRequestNumber.length() - 1);
-		}
-		
-		return Integer.parseInt(sessionRequestNumber);
+
+	/**
+	 * Waits for the submitted measurement's session to end without blocking the calling thread. The session is polled by
+	 * the shared <code>StrobeSessionPoller</code> on a schedule derived from the measurement's duration and samples. When
+	 * CES was asked to call Jenkins back once the session ends and its callbacks are known to arrive, the session is only
+	 * polled now and then.
+	 * 
+	 * @param listener
+	 *            Build listener
+	 * @param token
+	 *            The CES secret token
+	 * 
+	 * @return a <code>CompletableFuture</code> completed with the final <code>MeasurementStatus</code> of the session
+	 */
+	public CompletableFuture<MeasurementStatus> awaitCompletion(final TaskListener listener, Secret token)
+	{
+		final StrobeCallbackRegistry.Callback expected = callback;
+		StrobePollingSchedule schedule = StrobePollingSchedule.forMeasurement(smBuilder.getDuration(), smBuilder.getSamples());
+		if (expected != null)
+		{
+			listener.getLogger().println(Messages.strobeMeasurementCallback());
+			final String sessionCesUrl = getCesUrl();
+			schedule = StrobePollingSchedule.withCallback(schedule, () -> StrobeCallbackRegistry.get().isReceivingFrom(sessionCesUrl));
+		}
+
+		CompletableFuture<MeasurementStatus> status = StrobeSessionPoller.get().await(getCesUrl(), smBuilder.getSystem(),
+				sessionNumber, token, schedule, smBuilder.getWaitTimeout(), TimeUnit.MINUTES, listener, agent);
+		if (expected != null)
+		{
+			// other builds may still wait for a coalesced session that has not ended, the registration then expires instead
+			status.whenComplete((measurementStatus, failure) -> {
+				if (measurementStatus != null && measurementStatus != MeasurementStatus.TIMED_OUT)
+				{
+					StrobeCallbackRegistry.get().unregister(expected.getId());
+				}
+			});
+		}
+
+		return status;
+	}
+
+	private void send(final CompletableFuture<MeasurementSubmitResult> result, final TaskListener listener, final Secret token,
+			final int attempt) throws IOException
+	{
+		if (result.isDone())
+		{
+			return;
+		}
+
+		final StrobeEndpointSelector selector = StrobeEndpointSelector.get();
+		final StrobeCircuitBreaker circuitBreaker = StrobeCircuitBreaker.get();
+		final String endpoint = selector.select(smBuilder.getConnectionId(), smBuilder.getCesUrl());
+		cesUrl = endpoint;
+
+		HttpPost post;
+		CloseableHttpAsyncClient httpClient = null;
+		StrobeAgentTransport.SubmitRequest agentRequest = null;
+		try
+		{
+			circuitBreaker.checkAllowed(endpoint);
+		}
+		catch (StrobeCircuitOpenException e)
+		{
+			// nothing was sent, so the refusal says nothing about whether the instance works again
+			selector.release(endpoint);
+			throw e;
+		}
+
+		try
+		{
+			post = createRequest(endpoint, listener, token);
+			if (agent != null)
+			{
+				ByteArrayOutputStream payload = new ByteArrayOutputStream();
+				post.getEntity().writeTo(payload);
+				agentRequest = new StrobeAgentTransport.SubmitRequest(post.getURI().toString(), payload.toByteArray(), token,
+						StrobeAgentTransport.timeouts());
+			}
+			else
+			{
+				httpClient = StrobeHttpClientManager.get().getAsyncClient(endpoint);
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			selector.failed(endpoint);
+			circuitBreaker.abandoned(endpoint);
+			throw e;
+		}
+
+		final long sentAt = System.nanoTime();
+		final FutureCallback<MeasurementSubmitResult> replyHandler = new FutureCallback<MeasurementSubmitResult>()
+				{
+					@Override
+					public void completed(MeasurementSubmitResult submitResult)
+					{
+						StrobeMetrics.get().time(StrobeMetrics.ROUND_TRIP, sentAt);
+						// a server error means this CES instance is not working, anything else was answered by it
+						if (submitResult.getStatusCode() >= 500)
+						{
+							selector.failed(endpoint);
+							circuitBreaker.failed(endpoint);
+						}
+						else
+						{
+							selector.succeeded(endpoint);
+							circuitBreaker.succeeded(endpoint);
+						}
+
+						if (StrobeRetryPolicy.isRetryable(submitResult.getStatusCode())
+								&& retry(result, listener, token, attempt, "HTTP " + submitResult.getStatusCode())) //$NON-NLS-1$
+						{
+							return;
+						}
+
+						if (submitResult.isValid())
+						{
+							StrobeMetrics.get().returnCode(submitResult.getReturnCode());
+						}
+						else
+						{
+							StrobeMetrics.get().increment(StrobeMetrics.INVALID_REPLIES);
+						}
+
+						processResults(submitResult, listener);
+						result.complete(submitResult);
+					}
+
+					@Override
+					public void failed(Exception e)
+					{
+						StrobeMetrics.get().time(StrobeMetrics.ROUND_TRIP, sentAt);
+						StrobeMetrics.get().increment(StrobeMetrics.FAILURES);
+						selector.failed(endpoint);
+						circuitBreaker.failed(endpoint);
+						if (StrobeRetryPolicy.isRetryable(e) && retry(result, listener, token, attempt, e.toString()))
+						{
+							return;
+						}
+
+						result.completeExceptionally(e instanceof IOException ? e : new IOException(e));
+					}
+
+					@Override
+					public void cancelled()
+					{
+						selector.release(endpoint);
+						circuitBreaker.abandoned(endpoint);
+						result.cancel(false);
+					}
+				};
+
+		final Future<?> request;
+		if (agentRequest != null)
+		{
+			request = StrobeAgentTransport.execute(agent, agentRequest, replyHandler);
+		}
+		else
+		{
+			request = httpClient.execute(HttpAsyncMethods.create(post),
+					new StrobeResponseConsumer<>(new MeasurementSubmitResult.Parser()), null, replyHandler);
+		}
+
+		// abort the HTTP exchange when the caller gives up on the result
+		result.whenComplete((submitResult, failure) -> {
+			if (failure != null)
+			{
+				request.cancel(true);
+			}
+		});
+	}
+
+	// schedules the next attempt on the shared timer, returns false once the retries are used up
+	private boolean retry(final CompletableFuture<MeasurementSubmitResult> result, final TaskListener listener,
+			final Secret token, final int attempt, final String reason)
+	{
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		int maxRetries = config != null ? config.getMaxRetries() : StrobeGlobalConfiguration.DEFAULT_MAX_RETRIES;
+		if (attempt >= maxRetries || result.isDone())
+		{
+			return false;
+		}
+
+		long delay = StrobeRetryPolicy.delay(attempt + 1);
+		StrobeMetrics.get().increment(StrobeMetrics.RETRIES);
+		listener.getLogger().println(Messages.submitRetry(reason, delay, attempt + 1, maxRetries));
+		Timer.get().schedule(() -> {
+			try
+			{
+				send(result, listener, token, attempt + 1);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				result.completeExceptionally(e);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+
+		return true;
 	}
 
-	// need to take the entered headers and format them so the api accepts them
-	private String getFormattedHeaders(String headers) {
-	    StringBuilder headerJson = new StringBuilder("");
-	    
-	    if (!headers.contentEquals("")) {
-		    String[] headersArray = headers.split(";");	    
-		    for (String header : headersArray) {
-		        String[] keyValuePair = header.split(":");
-		        
-		        if (!headerJson.toString().equals("")) {
-		            headerJson.append(",");
-		        }	        
-		        headerJson.append("{");
-		        headerJson.append("\"name\":\"" + keyValuePair[0] + "\"");
-		        headerJson.append(",");
-		        headerJson.append("\"value\":\"" + keyValuePair[1] + "\"");
-		        headerJson.append("}");
-		    }
-	    }
-    
-	    return headerJson.toString();
+	private HttpPost createRequest(final String endpoint, final TaskListener listener, Secret token) throws IOException
+	{
+		String url = endpoint + "/strobe/measurement";
+        listener.getLogger().println("Posting to URL " + url);
+		HttpPost post = new HttpPost(url);
+		post.setConfig(StrobeHttpClientManager.get().getRequestConfig());
+
+		StrobeRequestSerializer serializer = new StrobeRequestSerializer(smBuilder, callback);
+		if (serializer.hasCallback() == false)
+		{
+			listener.getLogger().println("No callback configured");
+		}
+
+		post.setEntity(new StrobeRequestEntity(serializer));
+		post.addHeader("Content-Type", "application/json");
+
+		if (token != null) {
+			post.addHeader("Authorization", token.getPlainText());
+		}
+
+		return post;
+	}
+
+	private void processResults(MeasurementSubmitResult results, final TaskListener listener)
+	{
+		returnCode = results.getReturnCode();
+		if (results.isValid() == false)
+		{
+			listener.getLogger().println("Invalid results (HTTP " + results.getStatusCode() + "): " + results.getResponsePrefix());
+			return;
+		}
+
+		sessionNumber = results.getSessionNumber();
+		listener.getLogger().println("Return Code=" + returnCode);
+		listener.getLogger().println("Session Request Number=" + sessionNumber);
+		for (String message : results.getMessages())
+		{
+			listener.getLogger().println(message);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,415 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+
+/**
+ * Pipeline step that submits a Strobe measurement without holding an executor thread while CES replies. It accepts the
+ * same parameters as {@link StrobeMeasurementBuilder}. Its function name, <code>strobeMeasurementAsync</code>, differs
+ * from the builder's symbol, so a Pipeline only uses the step when it asks for it.
+ */
+public class StrobeMeasurementStep extends Step implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	static final int DEFAULT_TIMEOUT = 5;
+
+	private final String connectionId;
+	private final String credentialsId;
+	private final String requestType;
+	private final String jobName;
+	private String tags;
+	private String profileName;
+	private String emailto;
+	private String duration;
+	private String samples;
+	private String limit;
+	private String finalAction;
+	private String hlq;
+	private String transactionId;
+
+	private String method;
+	private String url;
+	private String headers;
+	private String body;
+
+	private boolean waitForCompletion;
+	private int waitTimeout = StrobeMeasurementBuilder.DEFAULT_WAIT_TIMEOUT;
+
+	private int regressionThreshold;
+	private int regressionBaseline = StrobeMeasurementBuilder.DEFAULT_REGRESSION_BASELINE;
+	private String regressionResult = StrobeMeasurementBuilder.REGRESSION_UNSTABLE;
+
+	private boolean runOnAgent;
+	private boolean mapSources;
+
+	private int timeout = DEFAULT_TIMEOUT;
+
+	@DataBoundConstructor
+	public StrobeMeasurementStep(String connectionId, String credentialsId, String requestType, String jobName)
+	{
+		this.connectionId = StringUtils.trimToEmpty(connectionId);
+		this.credentialsId = StringUtils.trimToEmpty(credentialsId);
+		this.requestType = StringUtils.trimToEmpty(requestType);
+		this.jobName = StringUtils.trimToEmpty(jobName);
+	}
+
+	public String getConnectionId()
+	{
+		return connectionId;
+	}
+
+	public String getCredentialsId()
+	{
+		return credentialsId;
+	}
+
+	public String getRequestType()
+	{
+		return requestType;
+	}
+
+	public String getJobName()
+	{
+		return jobName;
+	}
+
+	public String getTags() {
+		return tags;
+	}
+
+	@DataBoundSetter
+	public void setTags(String tags) {
+		this.tags = tags;
+	}
+
+	public String getProfileName() {
+		return profileName;
+	}
+
+	@DataBoundSetter
+	public void setProfileName(String profileName) {
+		this.profileName = profileName;
+	}
+
+	public String getEmailto() {
+		return emailto;
+	}
+
+	@DataBoundSetter
+	public void setEmailto(String emailto) {
+		this.emailto = emailto;
+	}
+
+	public String getDuration() {
+		return duration;
+	}
+
+	@DataBoundSetter
+	public void setDuration(String duration) {
+		this.duration = duration;
+	}
+
+	public String getSamples() {
+		return samples;
+	}
+
+	@DataBoundSetter
+	public void setSamples(String samples) {
+		this.samples = samples;
+	}
+
+	public String getLimit() {
+		return limit;
+	}
+
+	@DataBoundSetter
+	public void setLimit(String limit) {
+		this.limit = limit;
+	}
+
+	public String getFinalAction() {
+		return finalAction;
+	}
+
+	@DataBoundSetter
+	public void setFinalAction(String finalAction) {
+		this.finalAction = finalAction;
+	}
+
+	public String getHlq() {
+		return hlq;
+	}
+
+	@DataBoundSetter
+	public void setHlq(String hlq) {
+		this.hlq = hlq;
+	}
+
+	public String getTransactionId() {
+		return transactionId;
+	}
+
+	@DataBoundSetter
+	public void setTransactionId(String transactionId) {
+		this.transactionId = transactionId;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	@DataBoundSetter
+	public void setMethod(String method) {
+		this.method = method;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	@DataBoundSetter
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	public String getHeaders() {
+		return headers;
+	}
+
+	@DataBoundSetter
+	public void setHeaders(String headers) {
+		this.headers = headers;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	@DataBoundSetter
+	public void setBody(String body) {
+		this.body = body;
+	}
+
+	public boolean isWaitForCompletion() {
+		return waitForCompletion;
+	}
+
+	@DataBoundSetter
+	public void setWaitForCompletion(boolean waitForCompletion) {
+		this.waitForCompletion = waitForCompletion;
+	}
+
+	public int getWaitTimeout() {
+		return waitTimeout;
+	}
+
+	@DataBoundSetter
+	public void setWaitTimeout(int waitTimeout) {
+		this.waitTimeout = waitTimeout > 0 ? waitTimeout : StrobeMeasurementBuilder.DEFAULT_WAIT_TIMEOUT;
+	}
+
+	public int getRegressionThreshold() {
+		return regressionThreshold;
+	}
+
+	@DataBoundSetter
+	public void setRegressionThreshold(int regressionThreshold) {
+		this.regressionThreshold = Math.max(0, regressionThreshold);
+	}
+
+	public int getRegressionBaseline() {
+		return regressionBaseline;
+	}
+
+	@DataBoundSetter
+	public void setRegressionBaseline(int regressionBaseline) {
+		this.regressionBaseline = regressionBaseline > 0 ? regressionBaseline : StrobeMeasurementBuilder.DEFAULT_REGRESSION_BASELINE;
+	}
+
+	public String getRegressionResult() {
+		return regressionResult;
+	}
+
+	@DataBoundSetter
+	public void setRegressionResult(String regressionResult) {
+		this.regressionResult = StrobeMeasurementBuilder.REGRESSION_FAILURE.equals(regressionResult) ? StrobeMeasurementBuilder.REGRESSION_FAILURE
+				: StrobeMeasurementBuilder.REGRESSION_UNSTABLE;
+	}
+
+	public boolean isRunOnAgent() {
+		return runOnAgent;
+	}
+
+	@DataBoundSetter
+	public void setRunOnAgent(boolean runOnAgent) {
+		this.runOnAgent = runOnAgent;
+	}
+
+	public boolean isMapSources() {
+		return mapSources;
+	}
+
+	@DataBoundSetter
+	public void setMapSources(boolean mapSources) {
+		this.mapSources = mapSources;
+	}
+
+	/**
+	 * @return the number of minutes to wait for CES before the step fails
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	@DataBoundSetter
+	public void setTimeout(int timeout) {
+		this.timeout = timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+	}
+
+	/**
+	 * Creates a builder holding this step's parameters so the step can share the builder's validation and the
+	 * <code>StrobeMeasurementRunner</code>.
+	 *
+	 * @return a <code>StrobeMeasurementBuilder</code> with the same parameters as this step
+	 */
+	StrobeMeasurementBuilder toBuilder()
+	{
+		StrobeMeasurementBuilder builder = new StrobeMeasurementBuilder(connectionId, credentialsId, requestType, jobName);
+		builder.setTags(StringUtils.trimToEmpty(tags));
+		builder.setProfileName(StringUtils.trimToEmpty(profileName));
+		builder.setEmailto(StringUtils.trimToEmpty(emailto));
+		builder.setDuration(StringUtils.trimToEmpty(duration));
+		builder.setSamples(StringUtils.trimToEmpty(samples));
+		builder.setLimit(StringUtils.trimToEmpty(limit));
+		builder.setFinalAction(StringUtils.trimToEmpty(finalAction));
+		builder.setHlq(StringUtils.trimToEmpty(hlq));
+		builder.setTransactionId(StringUtils.trimToEmpty(transactionId));
+		builder.setMethod(StringUtils.trimToEmpty(method));
+		builder.setUrl(StringUtils.trimToEmpty(url));
+		builder.setHeaders(StringUtils.trimToEmpty(headers));
+		builder.setBody(StringUtils.trimToEmpty(body));
+		builder.setWaitForCompletion(waitForCompletion);
+		builder.setWaitTimeout(waitTimeout);
+		builder.setRegressionThreshold(regressionThreshold);
+		builder.setRegressionBaseline(regressionBaseline);
+		builder.setRegressionResult(regressionResult);
+		builder.setRunOnAgent(runOnAgent);
+		builder.setMapSources(mapSources);
+		return builder;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception
+	{
+		return new StrobeMeasurementStepExecution(this, context);
+	}
+
+	@Extension
+	public static class DescriptorImpl extends StepDescriptor
+	{
+		@Override
+		public String getFunctionName()
+		{
+			// strobeMeasurement stays the symbol of the build step, so existing Pipelines keep running it as before
+			return "strobeMeasurementAsync"; //$NON-NLS-1$
+		}
+
+		@Override
+		public String getDisplayName()
+		{
+			return Messages.stepDisplayName();
+		}
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext()
+		{
+			return Collections.unmodifiableSet(new HashSet<Class<?>>(Arrays.<Class<?>> asList(Run.class, TaskListener.class, FlowNode.class)));
+		}
+
+		// the configuration page is shared with the builder, so are the help files of its fields
+		@Override
+		public String getHelpFile(final String fieldName)
+		{
+			String helpFile = super.getHelpFile(fieldName);
+			return helpFile != null ? helpFile : builderDescriptor().getHelpFile(fieldName);
+		}
+
+		@POST
+		public ListBoxModel doFillConnectionIdItems(@AncestorInPath Jenkins context, @QueryParameter String connectionId,
+				@AncestorInPath Item project)
+		{
+			return builderDescriptor().doFillConnectionIdItems(context, connectionId, project);
+		}
+
+		@POST
+		public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Jenkins context, @QueryParameter String credentialsId,
+				@AncestorInPath Item project)
+		{
+			return StrobeMeasurementBuilder.DescriptorImpl.doFillCredentialsIdItems(context, credentialsId, project);
+		}
+
+		@POST
+		public FormValidation doCheckConnectionId(@QueryParameter final String value)
+		{
+			return builderDescriptor().doCheckConnectionId(value);
+		}
+
+		@POST
+		public FormValidation doCheckCredentialsId(@QueryParameter final String value)
+		{
+			return builderDescriptor().doCheckCredentialsId(value);
+		}
+
+		@POST
+		public FormValidation doCheckJobName(@QueryParameter final String value)
+		{
+			return builderDescriptor().doCheckJobName(value);
+		}
+
+		private static StrobeMeasurementBuilder.DescriptorImpl builderDescriptor()
+		{
+			return Jenkins.get().getDescriptorByType(StrobeMeasurementBuilder.DescriptorImpl.class);
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+import jenkins.util.Timer;
+
+/**
+ * Runs a {@link StrobeMeasurementStep}. The submission is handed to the shared non-blocking HTTP client and the step
+ * returns without a thread waiting on it; the step is completed from the client's callback, or by a timer when CES does
+ * not reply in time.
+ */
+public class StrobeMeasurementStepExecution extends StepExecution
+{
+	private static final long serialVersionUID = 1L;
+
+	private final StrobeMeasurementStep step;
+
+	// set once CES accepted the measurement, so that a resumed step waits for the session instead of submitting again
+	private volatile int sessionNumber = -1;
+	private volatile String cesUrl;
+
+	private transient volatile CompletableFuture<?> pending;
+	private transient StrobeSessionCanceller.Waiter waiter;
+	private transient ScheduledFuture<?> timeoutTask;
+
+	StrobeMeasurementStepExecution(StrobeMeasurementStep step, StepContext context)
+	{
+		super(context);
+		this.step = step;
+	}
+
+	@Override
+	public boolean start() throws Exception
+	{
+		submit();
+		return false;
+	}
+
+	/**
+	 * Called after a controller restart. A step that had not saved the CES reply before the restart submits its
+	 * measurement again, unless the <code>StrobeSubmissionJournal</code> shows CES accepted it; a step that was waiting
+	 * for the measurement session goes back to waiting for it.
+	 */
+	@Override
+	public void onResume()
+	{
+		try
+		{
+			if (sessionNumber > 0)
+			{
+				StrobeMeasurementBuilder builder = step.toBuilder();
+				StrobeMeasurementRunner runner = new StrobeMeasurementRunner(builder, sessionNumber, cesUrl);
+				runner.setAgent(builder.agentChannel(getContext().get(FilePath.class), getContext().get(TaskListener.class)));
+				awaitCompletion(builder, runner, getContext().get(TaskListener.class), getToken());
+			}
+			else
+			{
+				getContext().get(TaskListener.class).getLogger().println(Messages.strobeMeasurementResubmit());
+				submit();
+			}
+		}
+		catch (Exception e)
+		{
+			getContext().onFailure(e);
+		}
+	}
+
+	@Override
+	public void stop(Throwable cause) throws Exception
+	{
+		// a step stopped while it waits for the session, by an abort or a timeout, no longer needs the measurement
+		CompletableFuture<?> waiting = pending;
+		StrobeSessionCanceller.Waiter sessionWaiter = waiter;
+		if (sessionWaiter != null && waiting != null && waiting.isDone() == false)
+		{
+			sessionWaiter.cancel(getContext().get(TaskListener.class));
+		}
+
+		// completing the pending future aborts the HTTP exchange or the wait and reports the cause through the usual callback
+		if (pending == null || pending.completeExceptionally(cause) == false)
+		{
+			cancelTimeout();
+			getContext().onFailure(cause);
+		}
+	}
+
+	// the credentials lookup, the parameter checks and the first read of the journal may block, so they run on the
+	// remoting pool rather than on the CPS VM thread; stopping the step before the request is handed to the HTTP client
+	// completes the preparation instead
+	private void submit()
+	{
+		final CompletableFuture<Void> preparing = new CompletableFuture<>();
+		preparing.whenComplete((ignored, failure) -> {
+			if (failure != null)
+			{
+				getContext().onFailure(failure);
+			}
+		});
+		pending = preparing;
+
+		Computer.threadPoolForRemoting.submit(() -> {
+			try
+			{
+				submit(preparing);
+			}
+			catch (Exception e)
+			{
+				if (preparing.completeExceptionally(e) == false)
+				{
+					getContext().onFailure(e);
+				}
+			}
+		});
+	}
+
+	private void submit(final CompletableFuture<Void> preparing) throws IOException, InterruptedException
+	{
+		Run<?, ?> run = getContext().get(Run.class);
+		final TaskListener listener = getContext().get(TaskListener.class);
+
+		final StrobeMeasurementBuilder builder = step.toBuilder();
+		final Secret token = getToken();
+		builder.validateParameters(null, listener, run.getParent());
+
+		// a step resumed after a restart re-attaches to the measurement CES already accepted
+		final String journalKey = StrobeSubmissionJournal.key(run, getContext().get(FlowNode.class).getId(), builder.getJobName(),
+				builder.getProfileName());
+		StrobeSubmissionJournal.Entry submitted = StrobeSubmissionJournal.get().lookup(journalKey);
+		if (submitted != null)
+		{
+			if (preparing.complete(null) == false)
+			{
+				return;
+			}
+
+			listener.getLogger().println(Messages.strobeMeasurementReattached(String.valueOf(submitted.getSessionNumber()), submitted.getCesUrl()));
+			StrobeMeasurementRunner runner = new StrobeMeasurementRunner(builder, submitted.getSessionNumber(), submitted.getCesUrl());
+			runner.setAgent(builder.agentChannel(getContext().get(FilePath.class), listener));
+			accepted(builder, runner, listener, token);
+			return;
+		}
+
+		// a step stopped while it prepared the request has already failed
+		if (preparing.isDone())
+		{
+			return;
+		}
+
+		final StrobeMeasurementRunner runner = new StrobeMeasurementRunner(builder);
+		runner.setAgent(builder.agentChannel(getContext().get(FilePath.class), listener));
+		final CompletableFuture<MeasurementSubmitResult> result = runner.submit(listener, token);
+		pending = result;
+		if (preparing.complete(null) == false)
+		{
+			// stopped while the request was handed over, which aborts the exchange
+			result.cancel(false);
+		}
+		timeoutTask = Timer.get().schedule(() -> result.completeExceptionally(new TimeoutException()), step.getTimeout(),
+				TimeUnit.MINUTES);
+
+		result.whenComplete((submitResult, failure) -> {
+			cancelTimeout();
+			if (failure != null && StrobeMeasurementBuilder.skipMeasurement(failure, listener))
+			{
+				getContext().onSuccess(null);
+			}
+			else if (failure != null)
+			{
+				getContext().onFailure(toAbortException(failure));
+			}
+			else if (submitResult.isAccepted() == false)
+			{
+				getContext().onFailure(new AbortException(Messages.strobeMeasurementFailure()));
+			}
+			else
+			{
+				// the journal is forced to disk, which must not hold up the HTTP client's thread
+				Computer.threadPoolForRemoting.submit(() -> {
+					StrobeSubmissionJournal.get().record(journalKey, runner.getSessionNumber(), runner.getCesUrl());
+					listener.getLogger().println(Messages.strobeMeasurementSuccess());
+					accepted(builder, runner, listener, token);
+				});
+			}
+		});
+	}
+
+	private void accepted(final StrobeMeasurementBuilder builder, final StrobeMeasurementRunner runner, final TaskListener listener, final Secret token)
+	{
+		if (builder.isWaitForCompletion())
+		{
+			sessionNumber = runner.getSessionNumber();
+			cesUrl = runner.getCesUrl();
+			awaitCompletion(builder, runner, listener, token);
+		}
+		else
+		{
+			listener.getLogger().println("When the measurement is complete, view the generated profile at " + runner.getCesUrl() + "/istrobe/jsp/myStrobe/myStrobe.jsp");
+			getContext().onSuccess(null);
+		}
+	}
+
+	private void awaitCompletion(final StrobeMeasurementBuilder builder, final StrobeMeasurementRunner runner, final TaskListener listener, final Secret token)
+	{
+		listener.getLogger().println(Messages.strobeMeasurementWaiting(String.valueOf(runner.getSessionNumber()), builder.getWaitTimeout()));
+
+		final StrobeSessionCanceller.Waiter sessionWaiter = StrobeSessionCanceller.get().track(runner.getCesUrl(), builder.getSystem(),
+				runner.getSessionNumber(), token, false);
+		waiter = sessionWaiter;
+		CompletableFuture<MeasurementStatus> status = runner.awaitCompletion(listener, token);
+		pending = status;
+		status.whenComplete((measurementStatus, failure) -> {
+			sessionWaiter.release();
+			if (failure != null)
+			{
+				getContext().onFailure(toAbortException(failure));
+				return;
+			}
+
+			try
+			{
+				StrobeMeasurementBuilder.applyStatus(getContext().get(Run.class), listener, measurementStatus,
+						runner.getSessionNumber(), runner.getCesUrl(), builder.getWaitTimeout());
+				FilePath workspace = getContext().get(FilePath.class);
+				if (measurementStatus == MeasurementStatus.COMPLETED && workspace != null)
+				{
+					downloadProfile(builder, runner, workspace, listener, token, measurementStatus);
+				}
+				else
+				{
+					getContext().onSuccess(measurementStatus.name());
+				}
+			}
+			catch (Exception e)
+			{
+				getContext().onFailure(e);
+			}
+		});
+	}
+
+	// the download blocks on CES and on the agent, so it runs on the remoting pool rather than on the HTTP client's thread
+	private void downloadProfile(final StrobeMeasurementBuilder builder, final StrobeMeasurementRunner runner, final FilePath workspace,
+			final TaskListener listener, final Secret token, final MeasurementStatus measurementStatus)
+	{
+		pending = null;
+		Computer.threadPoolForRemoting.submit(() -> {
+			try
+			{
+				Run<?, ?> run = getContext().get(Run.class);
+				StrobeProfileSummary summary = StrobeProfileDownloader.download(run, workspace, runner.getCesUrl(), builder.getSystem(),
+						runner.getSessionNumber(), token, listener, builder.isRunOnAgent(), builder.isMapSources());
+				if (summary != null)
+				{
+					StrobeRegressionGate.check(run, builder, runner.getSessionNumber(), summary, listener);
+				}
+				getContext().onSuccess(measurementStatus.name());
+			}
+			catch (Exception e)
+			{
+				getContext().onFailure(e);
+			}
+		});
+	}
+
+	private Secret getToken() throws IOException, InterruptedException
+	{
+		return StrobeMeasurementBuilder.getSecretToken(getContext().get(Run.class).getParent(), step.getCredentialsId());
+	}
+
+	private Throwable toAbortException(Throwable failure)
+	{
+		Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+		if (cause instanceof TimeoutException)
+		{
+			return new AbortException(Messages.strobeMeasurementTimeout(step.getTimeout()));
+		}
+
+		return cause;
+	}
+
+	private void cancelTimeout()
+	{
+		if (timeoutTask != null)
+		{
+			timeoutTask.cancel(false);
+		}
+	}
+}
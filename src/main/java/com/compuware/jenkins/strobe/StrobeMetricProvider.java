@@ -0,0 +1,81 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+import hudson.Extension;
+import jenkins.metrics.api.MetricProvider;
+
+/**
+ * Publishes the {@link StrobeMetrics} through the Metrics plugin, which serves them on its <code>/metrics</code> endpoint
+ * and hands them on to the Prometheus plugin. The extension is optional, so the plugin works without the Metrics plugin.
+ * <p>
+ * Each latency histogram is published as a set of gauges: its count, mean, 50th, 95th and 99th percentile and maximum,
+ * all in milliseconds.
+ */
+@Extension(optional = true)
+public class StrobeMetricProvider extends MetricProvider
+{
+	@Override
+	public MetricSet getMetricSet()
+	{
+		final Map<String, Metric> metrics = new LinkedHashMap<>();
+		StrobeMetrics strobeMetrics = StrobeMetrics.get();
+
+		for (Map.Entry<String, StrobeMetrics.Histogram> entry : strobeMetrics.getHistograms().entrySet())
+		{
+			final StrobeMetrics.Histogram histogram = entry.getValue();
+			String name = entry.getKey();
+			metrics.put(name + ".count", (Gauge<Long>) histogram::getCount); //$NON-NLS-1$
+			metrics.put(name + ".mean", (Gauge<Double>) histogram::getMean); //$NON-NLS-1$
+			metrics.put(name + ".p50", (Gauge<Double>) () -> histogram.getQuantile(0.5)); //$NON-NLS-1$
+			metrics.put(name + ".p95", (Gauge<Double>) () -> histogram.getQuantile(0.95)); //$NON-NLS-1$
+			metrics.put(name + ".p99", (Gauge<Double>) () -> histogram.getQuantile(0.99)); //$NON-NLS-1$
+			metrics.put(name + ".max", (Gauge<Double>) histogram::getMax); //$NON-NLS-1$
+		}
+
+		for (Map.Entry<String, LongAdder> entry : strobeMetrics.getCounters().entrySet())
+		{
+			final LongAdder counter = entry.getValue();
+			metrics.put(entry.getKey(), new Counter()
+			{
+				@Override
+				public long getCount()
+				{
+					return counter.sum();
+				}
+			});
+		}
+
+		for (Map.Entry<String, Supplier<Number>> entry : strobeMetrics.getGauges().entrySet())
+		{
+			metrics.put(entry.getKey(), (Gauge<Number>) entry.getValue()::get);
+		}
+
+		return () -> metrics;
+	}
+}
@@ -0,0 +1,296 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Latencies, counters and gauges of the measurement pipeline, so that a slow or failing CES shows up in monitoring before
+ * builds start failing. The values are kept here without any dependency; {@link StrobeMetricProvider} publishes them
+ * through the Metrics plugin, and from there to its <code>/metrics</code> endpoint and to Prometheus, when that plugin is
+ * installed.
+ * <p>
+ * Recording a value only touches a few atomic counters, so it adds nothing noticeable to a submission.
+ */
+public final class StrobeMetrics
+{
+	/** Time to look up the CES secret token. */
+	public static final String CREDENTIAL_LOOKUP = "strobe.submit.credentialLookup"; //$NON-NLS-1$
+	/** Time to serialize a measurement request. */
+	public static final String SERIALIZATION = "strobe.submit.serialization"; //$NON-NLS-1$
+	/** Time from sending a measurement request to CES until its reply has been read. */
+	public static final String ROUND_TRIP = "strobe.submit.roundTrip"; //$NON-NLS-1$
+	/** Time spent scanning and parsing CES replies. */
+	public static final String RESPONSE_PARSE = "strobe.submit.responseParse"; //$NON-NLS-1$
+	/** Time from the start of a submission, including its throttle wait and retries, until CES accepted or rejected it. */
+	public static final String END_TO_END = "strobe.submit.endToEnd"; //$NON-NLS-1$
+	/** Time submissions were held back by the submission throttle. */
+	public static final String THROTTLE_WAIT = "strobe.submit.throttleWait"; //$NON-NLS-1$
+
+	/** Submissions that were retried. */
+	public static final String RETRIES = "strobe.submit.retries"; //$NON-NLS-1$
+	/** Submissions that had to queue in the submission throttle. */
+	public static final String THROTTLED = "strobe.submit.throttled"; //$NON-NLS-1$
+	/** Submissions that got no reply from CES. */
+	public static final String FAILURES = "strobe.submit.failures"; //$NON-NLS-1$
+	/** Replies of CES that could not be read as a measurement reply. */
+	public static final String INVALID_REPLIES = "strobe.submit.invalidReplies"; //$NON-NLS-1$
+
+	private static final String RETURN_CODE_PREFIX = "strobe.submit.returnCode."; //$NON-NLS-1$
+	private static final int[] RETURN_CODES = { 0, 4, 8, 12, 16 };
+	private static final String OTHER_RETURN_CODE = RETURN_CODE_PREFIX + "other"; //$NON-NLS-1$
+
+	private static final StrobeMetrics INSTANCE = new StrobeMetrics();
+
+	private final Map<String, Histogram> histograms;
+	private final Map<String, LongAdder> counters;
+	private final Map<String, Supplier<Number>> gauges;
+
+	private final AtomicInteger submissionsInFlight = new AtomicInteger();
+
+	private StrobeMetrics()
+	{
+		Map<String, Histogram> histogramMap = new LinkedHashMap<>();
+		for (String name : new String[] { CREDENTIAL_LOOKUP, SERIALIZATION, ROUND_TRIP, RESPONSE_PARSE, END_TO_END, THROTTLE_WAIT })
+		{
+			histogramMap.put(name, new Histogram());
+		}
+		histograms = Collections.unmodifiableMap(histogramMap);
+
+		Map<String, LongAdder> counterMap = new LinkedHashMap<>();
+		for (String name : new String[] { RETRIES, THROTTLED, FAILURES, INVALID_REPLIES })
+		{
+			counterMap.put(name, new LongAdder());
+		}
+		for (int returnCode : RETURN_CODES)
+		{
+			counterMap.put(RETURN_CODE_PREFIX + returnCode, new LongAdder());
+		}
+		counterMap.put(OTHER_RETURN_CODE, new LongAdder());
+		counters = Collections.unmodifiableMap(counterMap);
+
+		Map<String, Supplier<Number>> gaugeMap = new LinkedHashMap<>();
+		gaugeMap.put("strobe.submissions.inFlight", submissionsInFlight::get); //$NON-NLS-1$
+		gaugeMap.put("strobe.sessions.polled", () -> StrobeSessionPoller.get().getSessionCount()); //$NON-NLS-1$
+		gaugeMap.put("strobe.pool.leased", () -> StrobeHttpClientManager.get().getPoolStats().getLeased()); //$NON-NLS-1$
+		gaugeMap.put("strobe.pool.available", () -> StrobeHttpClientManager.get().getPoolStats().getAvailable()); //$NON-NLS-1$
+		gaugeMap.put("strobe.pool.pending", () -> StrobeHttpClientManager.get().getPoolStats().getPending()); //$NON-NLS-1$
+		gaugeMap.put("strobe.credentials.cacheHits", () -> StrobeResolutionCache.get().getCredentialHits()); //$NON-NLS-1$
+		gaugeMap.put("strobe.credentials.cacheMisses", () -> StrobeResolutionCache.get().getCredentialMisses()); //$NON-NLS-1$
+		gauges = Collections.unmodifiableMap(gaugeMap);
+	}
+
+	/**
+	 * @return the plugin wide metrics
+	 */
+	public static StrobeMetrics get()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Records the time elapsed since <code>startNanos</code> in a latency histogram.
+	 * 
+	 * @param name
+	 *            the name of the histogram, one of the constants of this class
+	 * @param startNanos
+	 *            the value of <code>System.nanoTime()</code> when the timed work started
+	 */
+	public void time(String name, long startNanos)
+	{
+		record(name, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Records a duration in a latency histogram.
+	 * 
+	 * @param name
+	 *            the name of the histogram, one of the constants of this class
+	 * @param nanos
+	 *            the duration in nanoseconds
+	 */
+	public void record(String name, long nanos)
+	{
+		Histogram histogram = histograms.get(name);
+		if (histogram != null)
+		{
+			histogram.record(nanos);
+		}
+	}
+
+	/**
+	 * Adds one to a counter.
+	 * 
+	 * @param name
+	 *            the name of the counter, one of the constants of this class
+	 */
+	public void increment(String name)
+	{
+		LongAdder counter = counters.get(name);
+		if (counter != null)
+		{
+			counter.increment();
+		}
+	}
+
+	/**
+	 * Counts a return code of CES. The usual return codes have a counter each, the others share one.
+	 * 
+	 * @param returnCode
+	 *            the return code of a measurement reply
+	 */
+	public void returnCode(int returnCode)
+	{
+		LongAdder counter = counters.get(RETURN_CODE_PREFIX + returnCode);
+		(counter != null ? counter : counters.get(OTHER_RETURN_CODE)).increment();
+	}
+
+	void submissionStarted()
+	{
+		submissionsInFlight.incrementAndGet();
+	}
+
+	void submissionEnded()
+	{
+		submissionsInFlight.decrementAndGet();
+	}
+
+	/**
+	 * @return the latency histograms by name
+	 */
+	public Map<String, Histogram> getHistograms()
+	{
+		return histograms;
+	}
+
+	/**
+	 * @return the counters by name
+	 */
+	public Map<String, LongAdder> getCounters()
+	{
+		return counters;
+	}
+
+	/**
+	 * @return the gauges by name, each read when the metrics are collected
+	 */
+	public Map<String, Supplier<Number>> getGauges()
+	{
+		return gauges;
+	}
+
+	/**
+	 * A latency histogram with fixed buckets from one millisecond to one minute. Quantiles are estimated as the upper
+	 * bound of the bucket they fall in, which is precise enough to alert on and costs no allocation per value.
+	 */
+	public static final class Histogram
+	{
+		private static final long[] BOUNDS_MS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000 };
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MS.length + 1);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+		void record(long nanos)
+		{
+			long value = Math.max(0, nanos);
+			long millis = TimeUnit.NANOSECONDS.toMillis(value);
+			int bucket = 0;
+			while (bucket < BOUNDS_MS.length && millis >= BOUNDS_MS[bucket])
+			{
+				bucket++;
+			}
+
+			buckets.incrementAndGet(bucket);
+			count.increment();
+			totalNanos.add(value);
+			maxNanos.accumulate(value);
+		}
+
+		/**
+		 * @return the number of values recorded
+		 */
+		public long getCount()
+		{
+			return count.sum();
+		}
+
+		/**
+		 * @return the mean of the recorded values in milliseconds, 0 if there are none
+		 */
+		public double getMean()
+		{
+			long n = count.sum();
+			return n > 0 ? totalNanos.sum() / (n * 1e6) : 0;
+		}
+
+		/**
+		 * @return the largest recorded value in milliseconds
+		 */
+		public double getMax()
+		{
+			return maxNanos.get() / 1e6;
+		}
+
+		/**
+		 * Estimates a quantile of the recorded values.
+		 * 
+		 * @param quantile
+		 *            the quantile, between 0 and 1
+		 * 
+		 * @return the upper bound in milliseconds of the bucket holding the quantile, or the largest value for the last
+		 *         bucket; 0 if there are no values
+		 */
+		public double getQuantile(double quantile)
+		{
+			long[] counts = new long[buckets.length()];
+			long total = 0;
+			for (int i = 0; i < counts.length; i++)
+			{
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0)
+			{
+				return 0;
+			}
+
+			long rank = (long) Math.ceil(quantile * total);
+			long seen = 0;
+			for (int i = 0; i < BOUNDS_MS.length; i++)
+			{
+				seen += counts[i];
+				if (seen >= rank)
+				{
+					return Math.min(BOUNDS_MS[i], getMax());
+				}
+			}
+
+			return getMax();
+		}
+	}
+}
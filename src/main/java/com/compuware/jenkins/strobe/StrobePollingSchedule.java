@@ -0,0 +1,130 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * Exponential backoff with jitter for polling a measurement session. The delays are derived from the measurement's
+ * duration and samples: a session cannot end before its duration has elapsed, and the more samples are taken the longer
+ * CES needs to reduce them into a profile.
+ */
+public final class StrobePollingSchedule
+{
+	private static final int DEFAULT_DURATION_MINUTES = 10;
+
+	private static final long MIN_INITIAL_DELAY_MS = TimeUnit.SECONDS.toMillis(15);
+	private static final long MAX_INITIAL_DELAY_MS = TimeUnit.MINUTES.toMillis(2);
+	private static final long MIN_MAX_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+	private static final long MAX_MAX_DELAY_MS = TimeUnit.MINUTES.toMillis(15);
+
+	// every 10,000 samples add half a minute to the longest delay for the profile reduction
+	private static final long DELAY_PER_SAMPLE_MS = TimeUnit.SECONDS.toMillis(30) / 10000;
+
+	private static final double MULTIPLIER = 1.5;
+	private static final double JITTER = 0.2;
+
+	private final long initialDelayMs;
+	private final long maxDelayMs;
+
+	// the schedule used as long as callbacks are not known to arrive, null if there is no callback
+	private final StrobePollingSchedule untilCallback;
+	private final BooleanSupplier callbacksArrive;
+
+	StrobePollingSchedule(long initialDelayMs, long maxDelayMs)
+	{
+		this(initialDelayMs, maxDelayMs, null, null);
+	}
+
+	private StrobePollingSchedule(long initialDelayMs, long maxDelayMs, StrobePollingSchedule untilCallback, BooleanSupplier callbacksArrive)
+	{
+		this.initialDelayMs = initialDelayMs;
+		this.maxDelayMs = Math.max(initialDelayMs, maxDelayMs);
+		this.untilCallback = untilCallback;
+		this.callbacksArrive = callbacksArrive;
+	}
+
+	/**
+	 * Creates the polling schedule for a measurement.
+	 * 
+	 * @param duration
+	 *            the configured duration in minutes, may be empty
+	 * @param samples
+	 *            the configured number of samples, may be empty
+	 * 
+	 * @return the <code>StrobePollingSchedule</code> to use for the measurement's session
+	 */
+	public static StrobePollingSchedule forMeasurement(String duration, String samples)
+	{
+		int durationMinutes = NumberUtils.toInt(duration, DEFAULT_DURATION_MINUTES);
+		long expectedMs = TimeUnit.MINUTES.toMillis(durationMinutes > 0 ? durationMinutes : DEFAULT_DURATION_MINUTES);
+
+		long initialDelayMs = clamp(expectedMs / 10, MIN_INITIAL_DELAY_MS, MAX_INITIAL_DELAY_MS);
+		long maxDelayMs = expectedMs / 4 + Math.max(0, NumberUtils.toInt(samples, 0)) * DELAY_PER_SAMPLE_MS;
+
+		return new StrobePollingSchedule(initialDelayMs, clamp(maxDelayMs, MIN_MAX_DELAY_MS, MAX_MAX_DELAY_MS));
+	}
+
+	/**
+	 * Creates the schedule for a session CES sends a callback for. A callback may never arrive, when a firewall, a proxy
+	 * or a wrong Jenkins URL keeps CES from reaching Jenkins, so the session is polled on its usual schedule until a
+	 * callback from its CES instance has been received; only then is it polled just now and then, in case a callback gets
+	 * lost.
+	 * 
+	 * @param usual
+	 *            the schedule of the measurement without a callback
+	 * @param callbacksArrive
+	 *            tells whether callbacks from the session's CES instance have been received
+	 * 
+	 * @return the <code>StrobePollingSchedule</code> to use for the measurement's session
+	 */
+	public static StrobePollingSchedule withCallback(StrobePollingSchedule usual, BooleanSupplier callbacksArrive)
+	{
+		return new StrobePollingSchedule(MAX_MAX_DELAY_MS, MAX_MAX_DELAY_MS, usual, callbacksArrive);
+	}
+
+	/**
+	 * Returns the delay before the given poll attempt.
+	 * 
+	 * @param attempt
+	 *            the zero based number of the poll attempt
+	 * 
+	 * @return the delay in milliseconds, including a random jitter so that sessions started together do not poll
+	 *         together
+	 */
+	public long nextDelay(int attempt)
+	{
+		if (untilCallback != null && callbacksArrive.getAsBoolean() == false)
+		{
+			return untilCallback.nextDelay(attempt);
+		}
+
+		double delay = Math.min(maxDelayMs, initialDelayMs * Math.pow(MULTIPLIER, Math.min(attempt, 32)));
+		double jitter = 1 + ThreadLocalRandom.current().nextDouble(-JITTER, JITTER);
+		return (long) (delay * jitter);
+	}
+
+	private static long clamp(long value, long min, long max)
+	{
+		return Math.max(min, Math.min(max, value));
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import hudson.model.Action;
+
+/**
+ * Shows the top CPU consumers of a downloaded Strobe profile on the build page, with the location of their source in the
+ * workspace when it was mapped.
+ */
+public class StrobeProfileAction implements Action
+{
+	private final int sessionNumber;
+	private final String profilePath;
+	private final StrobeProfileSummary summary;
+	private final Map<String, String> sources;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param sessionNumber
+	 *            the session request number of the measurement
+	 * @param profilePath
+	 *            the path of the downloaded profile, relative to the workspace
+	 * @param summary
+	 *            the top CPU consumers of the profile
+	 */
+	public StrobeProfileAction(int sessionNumber, String profilePath, StrobeProfileSummary summary)
+	{
+		this(sessionNumber, profilePath, summary, Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param sessionNumber
+	 *            the session request number of the measurement
+	 * @param profilePath
+	 *            the path of the downloaded profile, relative to the workspace
+	 * @param summary
+	 *            the top CPU consumers of the profile
+	 * @param sources
+	 *            the source location of the modules and control sections, by name
+	 */
+	public StrobeProfileAction(int sessionNumber, String profilePath, StrobeProfileSummary summary, Map<String, String> sources)
+	{
+		this.sessionNumber = sessionNumber;
+		this.profilePath = profilePath;
+		this.summary = summary;
+		this.sources = new HashMap<>(sources);
+	}
+
+	public int getSessionNumber()
+	{
+		return sessionNumber;
+	}
+
+	public String getProfilePath()
+	{
+		return profilePath;
+	}
+
+	public StrobeProfileSummary getSummary()
+	{
+		return summary;
+	}
+
+	/**
+	 * @return whether any module or control section was mapped to its source
+	 */
+	public boolean hasSources()
+	{
+		return sources != null && sources.isEmpty() == false;
+	}
+
+	/**
+	 * @param entry
+	 *            a module or control section of the summary
+	 * 
+	 * @return the workspace relative path and line of the control section, or else of the module, empty if neither was
+	 *         found
+	 */
+	public String getSource(StrobeProfileSummary.Entry entry)
+	{
+		if (sources == null)
+		{
+			return ""; //$NON-NLS-1$
+		}
+
+		String source = entry.getSection() != null ? sources.get(entry.getSection()) : null;
+		if (source == null)
+		{
+			source = sources.get(entry.getModule());
+		}
+
+		return source != null ? source : ""; //$NON-NLS-1$
+	}
+
+	@Override
+	public String getIconFileName()
+	{
+		return null;
+	}
+
+	@Override
+	public String getDisplayName()
+	{
+		return Messages.profileDisplayName();
+	}
+
+	@Override
+	public String getUrlName()
+	{
+		return null;
+	}
+}
@@ -0,0 +1,341 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The difference between the profiles of two measurement sessions of a job: for each module and control section
+ * (CSECT), how its share of the CPU time and of the wait time changed. It tells which module or CSECT got slower when a
+ * job regresses, not only that its total CPU time went up.
+ * <p>
+ * Both reports are streamed through {@link StrobeProfileSummary#scan}; neither is ever held in memory. Each module and
+ * control section seen is given a number once, and its percentages in both profiles are added up in arrays indexed by
+ * that number, so memory grows with the number of distinct modules and sections, not with the size of the reports.
+ */
+public class StrobeProfileDiff implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private static final int BASE = 0;
+	private static final int CURRENT = 1;
+
+	private final int baseSessionNumber;
+	private final int sessionNumber;
+	private final List<Delta> modules;
+	private final List<Delta> sections;
+
+	StrobeProfileDiff(int baseSessionNumber, int sessionNumber, List<Delta> modules, List<Delta> sections)
+	{
+		this.baseSessionNumber = baseSessionNumber;
+		this.sessionNumber = sessionNumber;
+		this.modules = modules;
+		this.sections = sections;
+	}
+
+	/**
+	 * @return the session request number of the profile compared against
+	 */
+	public int getBaseSessionNumber()
+	{
+		return baseSessionNumber;
+	}
+
+	/**
+	 * @return the session request number of the profile compared
+	 */
+	public int getSessionNumber()
+	{
+		return sessionNumber;
+	}
+
+	/**
+	 * @return the modules whose CPU or wait share changed most, largest change first
+	 */
+	public List<Delta> getModules()
+	{
+		return Collections.unmodifiableList(modules);
+	}
+
+	/**
+	 * @return the control sections whose CPU or wait share changed most, largest change first
+	 */
+	public List<Delta> getSections()
+	{
+		return Collections.unmodifiableList(sections);
+	}
+
+	/**
+	 * Starts a comparison of two profiles.
+	 * 
+	 * @return an <code>Accumulator</code> to stream the base profile and then the current profile into
+	 */
+	static Accumulator accumulator()
+	{
+		return new Accumulator();
+	}
+
+	/**
+	 * Compares two profile reports.
+	 * 
+	 * @param baseSessionNumber
+	 *            the session request number of the base profile
+	 * @param base
+	 *            the report of the base profile, it is not closed
+	 * @param sessionNumber
+	 *            the session request number of the current profile
+	 * @param current
+	 *            the report of the current profile, it is not closed
+	 * @param top
+	 *            the number of modules and of control sections to keep
+	 * 
+	 * @return the <code>StrobeProfileDiff</code> of the two reports
+	 * 
+	 * @throws IOException
+	 *             if a report could not be read
+	 */
+	static StrobeProfileDiff compare(int baseSessionNumber, Reader base, int sessionNumber, Reader current, int top) throws IOException
+	{
+		Accumulator accumulator = accumulator();
+		accumulator.readBase(base);
+		accumulator.readCurrent(current);
+		return accumulator.toDiff(baseSessionNumber, sessionNumber, top);
+	}
+
+	/**
+	 * Adds up the percentages of both profiles as they are scanned.
+	 */
+	static final class Accumulator
+	{
+		private static final int INITIAL_CAPACITY = 256;
+
+		private final Usage moduleUsage = new Usage();
+		private final Usage sectionUsage = new Usage();
+
+		void readBase(Reader reader) throws IOException
+		{
+			read(reader, BASE);
+		}
+
+		void readCurrent(Reader reader) throws IOException
+		{
+			read(reader, CURRENT);
+		}
+
+		private void read(Reader reader, final int profile) throws IOException
+		{
+			StrobeProfileSummary.scan(reader, new StrobeProfileSummary.UsageVisitor()
+			{
+				@Override
+				public void cpu(String module, String section, double percent)
+				{
+					moduleUsage.add(module, null, profile, 0, percent);
+					sectionUsage.add(module, section, profile, 0, percent);
+				}
+
+				@Override
+				public void waiting(String module, String section, double percent)
+				{
+					moduleUsage.add(module, null, profile, 1, percent);
+					if (section != null)
+					{
+						sectionUsage.add(module, section, profile, 1, percent);
+					}
+				}
+			});
+		}
+
+		StrobeProfileDiff toDiff(int baseSessionNumber, int sessionNumber, int top)
+		{
+			return new StrobeProfileDiff(baseSessionNumber, sessionNumber, moduleUsage.top(top), sectionUsage.top(top));
+		}
+
+		// the percentages of each module or section, four per id: base CPU, base wait, current CPU, current wait
+		private static final class Usage
+		{
+			private final Map<String, Integer> ids = new HashMap<>();
+			private String[] modules = new String[INITIAL_CAPACITY];
+			private String[] sections = new String[INITIAL_CAPACITY];
+			private double[] values = new double[INITIAL_CAPACITY * 4];
+			private int size;
+
+			void add(String module, String section, int profile, int metric, double percent)
+			{
+				String key = section != null ? module + ' ' + section : module;
+				Integer id = ids.get(key);
+				if (id == null)
+				{
+					id = size++;
+					ids.put(key, id);
+					if (id == modules.length)
+					{
+						modules = Arrays.copyOf(modules, id * 2);
+						sections = Arrays.copyOf(sections, id * 2);
+						values = Arrays.copyOf(values, id * 8);
+					}
+					modules[id] = module;
+					sections[id] = section;
+				}
+
+				values[id * 4 + profile * 2 + metric] += percent;
+			}
+
+			List<Delta> top(int top)
+			{
+				PriorityQueue<Delta> largest = new PriorityQueue<>(top + 1, Delta.BY_CHANGE);
+				for (int id = 0; id < size; id++)
+				{
+					int offset = id * 4;
+					Delta delta = new Delta(modules[id], sections[id], values[offset], values[offset + 2], values[offset + 1], values[offset + 3]);
+					if (delta.getChange() == 0)
+					{
+						continue;
+					}
+
+					largest.add(delta);
+					if (largest.size() > top)
+					{
+						largest.poll();
+					}
+				}
+
+				List<Delta> sorted = new ArrayList<>(largest);
+				Collections.sort(sorted, Collections.reverseOrder(Delta.BY_CHANGE));
+				return sorted;
+			}
+		}
+	}
+
+	/**
+	 * The change of the CPU and wait share of a module, or of one of its control sections.
+	 */
+	public static class Delta implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		static final Comparator<Delta> BY_CHANGE = Comparator.comparingDouble(Delta::getChange);
+
+		private final String module;
+		private final String section;
+		private final double baseCpuPercent;
+		private final double cpuPercent;
+		private final double baseWaitPercent;
+		private final double waitPercent;
+
+		Delta(String module, String section, double baseCpuPercent, double cpuPercent, double baseWaitPercent, double waitPercent)
+		{
+			this.module = module;
+			this.section = section;
+			this.baseCpuPercent = baseCpuPercent;
+			this.cpuPercent = cpuPercent;
+			this.baseWaitPercent = baseWaitPercent;
+			this.waitPercent = waitPercent;
+		}
+
+		public String getModule()
+		{
+			return module;
+		}
+
+		/**
+		 * @return the control section, or <code>null</code> for the module as a whole
+		 */
+		public String getSection()
+		{
+			return section;
+		}
+
+		public double getBaseCpuPercent()
+		{
+			return baseCpuPercent;
+		}
+
+		public double getCpuPercent()
+		{
+			return cpuPercent;
+		}
+
+		/**
+		 * @return the change of the CPU share in percentage points, positive if it grew
+		 */
+		public double getCpuDelta()
+		{
+			return cpuPercent - baseCpuPercent;
+		}
+
+		public double getBaseWaitPercent()
+		{
+			return baseWaitPercent;
+		}
+
+		public double getWaitPercent()
+		{
+			return waitPercent;
+		}
+
+		/**
+		 * @return the change of the wait share in percentage points, positive if it grew
+		 */
+		public double getWaitDelta()
+		{
+			return waitPercent - baseWaitPercent;
+		}
+
+		// the entries are ranked by the larger of the two changes, whichever way it went
+		double getChange()
+		{
+			return Math.max(Math.abs(getCpuDelta()), Math.abs(getWaitDelta()));
+		}
+
+		public String getBaseCpuPercentText()
+		{
+			return String.format(Locale.ENGLISH, "%.2f", baseCpuPercent); //$NON-NLS-1$
+		}
+
+		public String getCpuPercentText()
+		{
+			return String.format(Locale.ENGLISH, "%.2f", cpuPercent); //$NON-NLS-1$
+		}
+
+		public String getCpuDeltaText()
+		{
+			return format(getCpuDelta());
+		}
+
+		public String getWaitDeltaText()
+		{
+			return format(getWaitDelta());
+		}
+
+		private static String format(double delta)
+		{
+			return String.format(Locale.ENGLISH, "%+.2f", delta); //$NON-NLS-1$
+		}
+	}
+}
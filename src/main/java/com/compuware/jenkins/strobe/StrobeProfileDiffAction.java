@@ -0,0 +1,63 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import hudson.model.Action;
+
+/**
+ * Shows the modules and control sections whose share of the CPU and wait time changed most between two profiles on the
+ * build page.
+ */
+public class StrobeProfileDiffAction implements Action
+{
+	private final StrobeProfileDiff diff;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param diff
+	 *            the changes between the two profiles
+	 */
+	public StrobeProfileDiffAction(StrobeProfileDiff diff)
+	{
+		this.diff = diff;
+	}
+
+	public StrobeProfileDiff getDiff()
+	{
+		return diff;
+	}
+
+	@Override
+	public String getIconFileName()
+	{
+		return null;
+	}
+
+	@Override
+	public String getDisplayName()
+	{
+		return Messages.profileDiffResultDisplayName();
+	}
+
+	@Override
+	public String getUrlName()
+	{
+		return null;
+	}
+}
@@ -0,0 +1,233 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+import com.compuware.jenkins.common.configuration.HostConnection;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import jenkins.tasks.SimpleBuildStep;
+
+/**
+ * Compares the profiles of two measurement sessions of the same system and shows which modules and control sections
+ * gained or lost CPU and wait time. Both profiles are streamed from CES through the comparison without being stored.
+ */
+public class StrobeProfileDiffBuilder extends Builder implements SimpleBuildStep
+{
+	static final int TOP_COUNT = 10;
+
+	private final String connectionId;
+	private final String credentialsId;
+	private final int baseSessionNumber;
+	private final int sessionNumber;
+
+	@DataBoundConstructor
+	public StrobeProfileDiffBuilder(String connectionId, String credentialsId, int baseSessionNumber, int sessionNumber)
+	{
+		this.connectionId = StringUtils.trimToEmpty(connectionId);
+		this.credentialsId = StringUtils.trimToEmpty(credentialsId);
+		this.baseSessionNumber = baseSessionNumber;
+		this.sessionNumber = sessionNumber;
+	}
+
+	public String getConnectionId()
+	{
+		return connectionId;
+	}
+
+	public String getCredentialsId()
+	{
+		return credentialsId;
+	}
+
+	/**
+	 * @return the session request number of the profile to compare against, usually a known good measurement
+	 */
+	public int getBaseSessionNumber()
+	{
+		return baseSessionNumber;
+	}
+
+	/**
+	 * @return the session request number of the profile to compare
+	 */
+	public int getSessionNumber()
+	{
+		return sessionNumber;
+	}
+
+	@Override
+	public void perform(final Run<?,?> build, final FilePath workspaceFilePath, final Launcher launcher, final TaskListener listener) throws AbortException, InterruptedException
+	{
+		try
+		{
+			HostConnection hostConnection = validateParameters(listener);
+			Secret token = StrobeMeasurementBuilder.getSecretToken(build.getParent(), credentialsId);
+
+			listener.getLogger().println(Messages.strobeProfileComparing(String.valueOf(sessionNumber), String.valueOf(baseSessionNumber)));
+			StrobeProfileDiff diff = StrobeProfileDownloader.compare(StringUtils.trimToEmpty(hostConnection.getCesUrl()),
+					StringUtils.trimToEmpty(hostConnection.getDescription()), baseSessionNumber, sessionNumber, token, TOP_COUNT);
+			build.addAction(new StrobeProfileDiffAction(diff));
+			logChanges(listener, diff);
+		}
+		catch (InterruptedException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			listener.getLogger().println(e.getMessage());
+			throw new AbortException();
+		}
+	}
+
+	/**
+	 * Validates the host connection, the credentials and both session request numbers.
+	 * 
+	 * @param listener
+	 *            Build listener
+	 * 
+	 * @return the selected <code>HostConnection</code>
+	 */
+	HostConnection validateParameters(final TaskListener listener)
+	{
+		if (getConnectionId().isEmpty())
+		{
+			throw new IllegalArgumentException(Messages.errorMissingParameter(Messages.hostConnection()));
+		}
+
+		if (getCredentialsId().isEmpty())
+		{
+			throw new IllegalArgumentException(Messages.errorMissingParameter(Messages.credentials()));
+		}
+
+		if (baseSessionNumber <= 0)
+		{
+			throw new IllegalArgumentException(Messages.errorMissingParameter(Messages.baseSessionNumber()));
+		}
+
+		if (sessionNumber <= 0)
+		{
+			throw new IllegalArgumentException(Messages.errorMissingParameter(Messages.sessionNumber()));
+		}
+
+		return StrobeBatchMeasurementBuilder.validateHostConnection(connectionId, listener);
+	}
+
+	private static void logChanges(final TaskListener listener, final StrobeProfileDiff diff)
+	{
+		if (diff.getModules().isEmpty())
+		{
+			listener.getLogger().println(Messages.strobeProfileUnchanged());
+			return;
+		}
+
+		for (StrobeProfileDiff.Delta delta : diff.getModules())
+		{
+			listener.getLogger().println(Messages.strobeProfileChange(delta.getModule(), delta.getCpuDeltaText(), delta.getWaitDeltaText()));
+		}
+	}
+
+	@Symbol("strobeProfileDiff")
+	@Extension
+	public static final class DescriptorImpl extends BuildStepDescriptor<Builder>
+	{
+		@SuppressWarnings("rawtypes")
+		@Override
+		public boolean isApplicable(Class<? extends AbstractProject> aClass)
+		{
+			return true;
+		}
+
+		@Override
+		public String getDisplayName()
+		{
+			return Messages.profileDiffDisplayName();
+		}
+
+		// the shared fields are the same as the builder's, so are their help files
+		@Override
+		public String getHelpFile(final String fieldName)
+		{
+			String helpFile = super.getHelpFile(fieldName);
+			return helpFile != null ? helpFile : builderDescriptor().getHelpFile(fieldName);
+		}
+
+		@POST
+		public ListBoxModel doFillConnectionIdItems(@AncestorInPath Jenkins context, @QueryParameter String connectionId,
+				@AncestorInPath Item project)
+		{
+			return builderDescriptor().doFillConnectionIdItems(context, connectionId, project);
+		}
+
+		@POST
+		public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Jenkins context, @QueryParameter String credentialsId,
+				@AncestorInPath Item project)
+		{
+			return StrobeMeasurementBuilder.DescriptorImpl.doFillCredentialsIdItems(context, credentialsId, project);
+		}
+
+		@POST
+		public FormValidation doCheckConnectionId(@QueryParameter final String value)
+		{
+			return builderDescriptor().doCheckConnectionId(value);
+		}
+
+		@POST
+		public FormValidation doCheckCredentialsId(@QueryParameter final String value)
+		{
+			return builderDescriptor().doCheckCredentialsId(value);
+		}
+
+		@POST
+		public FormValidation doCheckBaseSessionNumber(@QueryParameter final String value)
+		{
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		@POST
+		public FormValidation doCheckSessionNumber(@QueryParameter final String value)
+		{
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		private static StrobeMeasurementBuilder.DescriptorImpl builderDescriptor()
+		{
+			return Jenkins.get().getDescriptorByType(StrobeMeasurementBuilder.DescriptorImpl.class);
+		}
+	}
+}
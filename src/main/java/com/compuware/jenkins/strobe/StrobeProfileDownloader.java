@@ -0,0 +1,241 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.Secret;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Fetches the profile CES generated for a completed measurement session into the build workspace and attaches a
+ * summary of its top CPU consumers to the build. The profile is streamed from CES into the workspace and summarized
+ * where the workspace is, so it is never held in memory as a whole, neither on the controller nor on the agent. When
+ * the measurement runs on the agent, the agent downloads the profile itself.
+ */
+final class StrobeProfileDownloader
+{
+	// the workspace directory the profiles are stored in
+	static final String PROFILE_DIRECTORY = "strobe-profiles"; //$NON-NLS-1$
+
+	private static final String PROFILE_PATH = "/profile"; //$NON-NLS-1$
+
+	private static final int TOP_COUNT = 10;
+
+	private StrobeProfileDownloader()
+	{
+	}
+
+	/**
+	 * Downloads the profile of a completed session and adds a {@link StrobeProfileAction} to the build. A profile that
+	 * cannot be downloaded is reported in the build log but does not fail the build, the measurement itself succeeded.
+	 * 
+	 * @param build
+	 *            The current running Jenkins build
+	 * @param workspace
+	 *            The workspace the profile is stored in
+	 * @param cesUrl
+	 *            The CES URL the measurement was submitted to
+	 * @param system
+	 *            The system (host connection description) the measurement ran on
+	 * @param sessionNumber
+	 *            The session request number
+	 * @param token
+	 *            The CES secret token
+	 * @param listener
+	 *            Build listener
+	 * @param onAgent
+	 *            Whether the agent of the workspace downloads the profile rather than the controller
+	 * @param mapSources
+	 *            Whether the top CPU consumers are mapped to the sources in the workspace
+	 * 
+	 * @return the <code>StrobeProfileSummary</code> of the profile, or <code>null</code> if it could not be downloaded
+	 * 
+	 * @throws InterruptedException
+	 *             if the build was interrupted during the download
+	 */
+	static StrobeProfileSummary download(final Run<?, ?> build, final FilePath workspace, final String cesUrl, final String system,
+			final int sessionNumber, final Secret token, final TaskListener listener, final boolean onAgent, final boolean mapSources)
+			throws InterruptedException
+	{
+		FilePath profile = workspace.child(PROFILE_DIRECTORY).child("strobe-" + sessionNumber + ".txt"); //$NON-NLS-1$ //$NON-NLS-2$
+		listener.getLogger().println(Messages.strobeProfileDownloading(String.valueOf(sessionNumber), profile.getRemote()));
+		try
+		{
+			String url = StrobeSessionPoller.sessionUrl(cesUrl, system, sessionNumber) + PROFILE_PATH;
+			StrobeProfileSummary summary;
+			if (onAgent && workspace.isRemote())
+			{
+				summary = profile.act(new StrobeAgentTransport.ProfileDownload(url, token, StrobeAgentTransport.timeouts(), TOP_COUNT));
+			}
+			else
+			{
+				fetch(url, cesUrl, token, profile);
+				summary = profile.act(new SummaryCallable(TOP_COUNT));
+			}
+
+			Map<String, String> sources = mapSources ? StrobeSourceIndex.locate(workspace, summary, listener)
+					: Collections.<String, String> emptyMap();
+			build.addOrReplaceAction(new StrobeProfileAction(sessionNumber, PROFILE_DIRECTORY + '/' + profile.getName(), summary, sources));
+			return summary;
+		}
+		catch (IOException e)
+		{
+			listener.getLogger().println(Messages.strobeProfileDownloadFailed(String.valueOf(sessionNumber), e.getMessage()));
+			return null;
+		}
+	}
+
+	/**
+	 * Compares the profiles of two sessions of the same system. Each profile is streamed from CES straight into the
+	 * comparison, one after the other; neither is stored or held in memory.
+	 * 
+	 * @param cesUrl
+	 *            The CES URL the measurements were submitted to
+	 * @param system
+	 *            The system (host connection description) the measurements ran on
+	 * @param baseSessionNumber
+	 *            The session request number of the profile to compare against
+	 * @param sessionNumber
+	 *            The session request number of the profile to compare
+	 * @param token
+	 *            The CES secret token
+	 * @param top
+	 *            the number of modules and of control sections to keep
+	 * 
+	 * @return the <code>StrobeProfileDiff</code> of the two profiles
+	 * 
+	 * @throws IOException
+	 *             if a profile could not be downloaded
+	 * @throws InterruptedException
+	 *             if the build was interrupted during the download
+	 */
+	static StrobeProfileDiff compare(String cesUrl, String system, int baseSessionNumber, int sessionNumber, Secret token, int top)
+			throws IOException, InterruptedException
+	{
+		final StrobeProfileDiff.Accumulator accumulator = StrobeProfileDiff.accumulator();
+		stream(StrobeSessionPoller.sessionUrl(cesUrl, system, baseSessionNumber) + PROFILE_PATH, cesUrl, token, content -> {
+			accumulator.readBase(new InputStreamReader(content, StandardCharsets.UTF_8));
+			return null;
+		});
+		stream(StrobeSessionPoller.sessionUrl(cesUrl, system, sessionNumber) + PROFILE_PATH, cesUrl, token, content -> {
+			accumulator.readCurrent(new InputStreamReader(content, StandardCharsets.UTF_8));
+			return null;
+		});
+		return accumulator.toDiff(baseSessionNumber, sessionNumber, top);
+	}
+
+	private static void fetch(String url, String cesUrl, Secret token, final FilePath profile) throws IOException, InterruptedException
+	{
+		// copyFrom pipes the stream to the agent in chunks as it is read from CES
+		stream(url, cesUrl, token, content -> {
+			profile.getParent().mkdirs();
+			profile.copyFrom(content);
+			return null;
+		});
+	}
+
+	// hands the profile to the consumer as it arrives from CES, the connection goes back to the pool once it is read
+	private static <T> T stream(String url, String cesUrl, Secret token, ProfileConsumer<T> consumer) throws IOException, InterruptedException
+	{
+		HttpGet get = new HttpGet(url);
+		get.setConfig(StrobeHttpClientManager.get().getRequestConfig());
+		if (token != null)
+		{
+			get.addHeader("Authorization", token.getPlainText());
+		}
+
+		try (CloseableHttpResponse response = StrobeHttpClientManager.get().getClient(cesUrl).execute(get))
+		{
+			int statusCode = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			if (statusCode != HttpStatus.SC_OK || entity == null)
+			{
+				throw new IOException(Messages.errorProfileStatus(statusCode));
+			}
+
+			try (InputStream content = entity.getContent())
+			{
+				return consumer.accept(content);
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface ProfileConsumer<T>
+	{
+		T accept(InputStream content) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Summarizes a downloaded profile.
+	 * 
+	 * @param file
+	 *            the profile
+	 * @param top
+	 *            the number of modules and of control sections to keep
+	 * 
+	 * @return the <code>StrobeProfileSummary</code> of the profile
+	 * 
+	 * @throws IOException
+	 *             if the profile could not be read
+	 */
+	static StrobeProfileSummary summarize(File file, int top) throws IOException
+	{
+		try (Reader reader = new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8))
+		{
+			return StrobeProfileSummary.parse(reader, top);
+		}
+	}
+
+	// summarizes the profile next to where it was stored, so it does not travel back to the controller
+	private static final class SummaryCallable extends MasterToSlaveFileCallable<StrobeProfileSummary>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int top;
+
+		SummaryCallable(int top)
+		{
+			this.top = top;
+		}
+
+		@Override
+		public StrobeProfileSummary invoke(File file, VirtualChannel channel) throws IOException
+		{
+			return summarize(file, top);
+		}
+	}
+}
@@ -0,0 +1,840 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.Run;
+
+/**
+ * The measurement results of a Jenkins job for one measured job name and profile name, one row per build. The
+ * histories live in the Jenkins job's directory, one directory per job name and profile name, so reading them never
+ * loads the builds themselves.
+ * <p>
+ * Each value is kept in a column file of its own with fixed size rows, which are only ever appended to; the system and
+ * the tags are stored as numbers into a dictionary of the values seen. The most recent rows of a column are read
+ * straight from the end of its file into a primitive array, so a baseline or a trend only reads the columns and rows it
+ * shows. The build number column is written last and tells how many rows are complete: whatever a crash left beyond it
+ * in the other columns is cut off when the history is opened, and a column added since the history was created is
+ * filled with unknown values.
+ * <p>
+ * A history holds at most the number of rows set in the global configuration. When it is full, the older half of the
+ * rows is merged in groups, or dropped, and the history is rewritten into a new directory that replaces the old one.
+ */
+public final class StrobeProfileHistory
+{
+	// the directory of the Jenkins job that holds the histories
+	static final String DIRECTORY = "strobe-history"; //$NON-NLS-1$
+
+	// the number of top modules kept per build
+	static final int MODULE_COUNT = 5;
+
+	private static final int MODULE_NAME_SIZE = 8;
+
+	private static final String NAMES_FILE = "names"; //$NON-NLS-1$
+	private static final String COMPACT_SUFFIX = ".compact"; //$NON-NLS-1$
+	private static final String OLD_SUFFIX = ".old"; //$NON-NLS-1$
+
+	private static final ConcurrentMap<String, StrobeProfileHistory> HISTORIES = new ConcurrentHashMap<>();
+
+	private static final Column BUILD = new Column("build.col", ByteBuffer.allocate(Integer.BYTES).putInt(0, -1)); //$NON-NLS-1$
+	private static final Column TIME = new Column("time.col", ByteBuffer.allocate(Long.BYTES).putLong(0, -1)); //$NON-NLS-1$
+	private static final Column SESSION = new Column("session.col", ByteBuffer.allocate(Integer.BYTES).putInt(0, -1)); //$NON-NLS-1$
+	private static final Column SYSTEM = new Column("system.col", ByteBuffer.allocate(Integer.BYTES).putInt(0, -1)); //$NON-NLS-1$
+	private static final Column TAGS = new Column("tags.col", ByteBuffer.allocate(Integer.BYTES).putInt(0, -1)); //$NON-NLS-1$
+	private static final Column CPU = new Column("cpu.col", ByteBuffer.allocate(Double.BYTES).putDouble(0, -1)); //$NON-NLS-1$
+	private static final Column EXCP = new Column("excp.col", ByteBuffer.allocate(Long.BYTES).putLong(0, -1)); //$NON-NLS-1$
+	private static final Column WAIT = new Column("wait.col", ByteBuffer.allocate(Double.BYTES).putDouble(0, -1)); //$NON-NLS-1$
+	private static final Column ELAPSED = new Column("elapsed.col", ByteBuffer.allocate(Double.BYTES).putDouble(0, -1)); //$NON-NLS-1$
+	private static final Column MODULES = new Column("modules.col", unknownModules()); //$NON-NLS-1$
+
+	// the build number column is last, it is written once the other columns hold the row
+	private static final List<Column> COLUMNS = Collections.unmodifiableList(
+			Arrays.asList(TIME, SESSION, SYSTEM, TAGS, CPU, EXCP, WAIT, ELAPSED, MODULES, BUILD));
+
+	private final File directory;
+	private final Dictionary systems;
+	private final Dictionary tags;
+	private int rows = -1;
+
+	private StrobeProfileHistory(File directory)
+	{
+		this.directory = directory;
+		this.systems = new Dictionary(directory, "system.dict"); //$NON-NLS-1$
+		this.tags = new Dictionary(directory, "tags.dict"); //$NON-NLS-1$
+	}
+
+	/**
+	 * Gets the history of a measured job.
+	 * 
+	 * @param job
+	 *            the Jenkins job running the measurements
+	 * @param jobName
+	 *            the measured job
+	 * @param profileName
+	 *            the profile name of the measurements
+	 * 
+	 * @return the <code>StrobeProfileHistory</code>, empty if nothing was recorded yet
+	 */
+	public static StrobeProfileHistory of(Job<?, ?> job, String jobName, String profileName)
+	{
+		return of(job, key(jobName, profileName));
+	}
+
+	/**
+	 * Gets a history by the name of its directory.
+	 * 
+	 * @param job
+	 *            the Jenkins job running the measurements
+	 * @param key
+	 *            the name of the history's directory, as returned by {@link #keys(Job)}
+	 * 
+	 * @return the <code>StrobeProfileHistory</code>, or <code>null</code> if the key is not a valid history name
+	 */
+	public static StrobeProfileHistory of(Job<?, ?> job, String key)
+	{
+		if (key == null || key.matches("[A-Z0-9$#@_]*-[0-9a-f]{8}") == false) //$NON-NLS-1$
+		{
+			return null;
+		}
+
+		File directory = new File(new File(job.getRootDir(), DIRECTORY), key);
+		return HISTORIES.computeIfAbsent(directory.getAbsolutePath(), path -> new StrobeProfileHistory(directory));
+	}
+
+	/**
+	 * @param job
+	 *            the Jenkins job running the measurements
+	 * 
+	 * @return the names of the histories the job has, sorted
+	 */
+	public static List<String> keys(Job<?, ?> job)
+	{
+		String[] names = new File(job.getRootDir(), DIRECTORY).list((dir, name) -> name.contains(".") == false); //$NON-NLS-1$
+		if (names == null)
+		{
+			return Collections.emptyList();
+		}
+
+		Arrays.sort(names);
+		return Arrays.asList(names);
+	}
+
+	/**
+	 * @param jobName
+	 *            the measured job
+	 * @param profileName
+	 *            the profile name of the measurements
+	 * 
+	 * @return the name of the directory holding the history of the measured job
+	 */
+	static String key(String jobName, String profileName)
+	{
+		String name = StringUtils.trimToEmpty(jobName).toUpperCase(Locale.ENGLISH).replaceAll("[^A-Z0-9$#@]", "_"); //$NON-NLS-1$ //$NON-NLS-2$
+		return name + '-' + Util.getDigestOf(StringUtils.trimToEmpty(jobName) + '|' + StringUtils.trimToEmpty(profileName)).substring(0, 8);
+	}
+
+	/**
+	 * @return the measured job name and profile name, separated by a slash if there is a profile name
+	 * 
+	 * @throws IOException
+	 *             if the history could not be read
+	 */
+	public synchronized String getDisplayName() throws IOException
+	{
+		open();
+		File names = new File(directory, NAMES_FILE);
+		if (names.exists() == false)
+		{
+			return directory.getName();
+		}
+
+		List<String> lines = Files.readAllLines(names.toPath(), StandardCharsets.UTF_8);
+		String jobName = lines.size() > 0 ? lines.get(0) : StringUtils.EMPTY;
+		String profileName = lines.size() > 1 ? lines.get(1) : StringUtils.EMPTY;
+		return profileName.isEmpty() ? jobName : jobName + '/' + profileName;
+	}
+
+	/**
+	 * @return the number of builds recorded
+	 * 
+	 * @throws IOException
+	 *             if the history could not be read
+	 */
+	public synchronized int size() throws IOException
+	{
+		open();
+		return rows;
+	}
+
+	/**
+	 * Records the results of a build. A build that was already recorded last is not recorded again.
+	 * 
+	 * @param build
+	 *            the build
+	 * @param smBuilder
+	 *            the builder holding the measured job, profile name, system and tags
+	 * @param sessionNumber
+	 *            the session request number of the measurement
+	 * @param summary
+	 *            the summary of the build's profile
+	 * 
+	 * @throws IOException
+	 *             if the history could not be written
+	 */
+	public synchronized void append(Run<?, ?> build, StrobeMeasurementBuilder smBuilder, int sessionNumber,
+			StrobeProfileSummary summary) throws IOException
+	{
+		open();
+		if (rows > 0 && BUILD.read(directory, rows - 1, 1).getInt() == build.getNumber())
+		{
+			return;
+		}
+
+		if (rows == 0)
+		{
+			Files.createDirectories(directory.toPath());
+			Files.write(new File(directory, NAMES_FILE).toPath(),
+					Arrays.asList(StringUtils.trimToEmpty(smBuilder.getJobName()), StringUtils.trimToEmpty(smBuilder.getProfileName())),
+					StandardCharsets.UTF_8);
+		}
+
+		Row row = new Row(build.getNumber(), build.getStartTimeInMillis(), sessionNumber, StringUtils.trimToEmpty(smBuilder.getSystem()),
+				StringUtils.trimToEmpty(smBuilder.getTags()).replaceAll("[\\r\\n]+", " "), summary.getCpuSeconds(), summary.getExcpCount(), //$NON-NLS-1$ //$NON-NLS-2$
+				summary.getWaitSeconds(), summary.getElapsedSeconds(), summary.getModules());
+		for (Column column : COLUMNS)
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(column.width);
+			put(column, buffer, row, systems, tags);
+			column.append(directory, (ByteBuffer) buffer.flip());
+		}
+		rows++;
+
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		int maxRows = config != null ? config.getHistoryMaxRows() : StrobeGlobalConfiguration.DEFAULT_HISTORY_MAX_ROWS;
+		if (rows > maxRows)
+		{
+			compact(maxRows, config != null ? config.getHistoryDownsampling() : StrobeGlobalConfiguration.DEFAULT_HISTORY_DOWNSAMPLING);
+		}
+	}
+
+	/**
+	 * Reads the most recent builds, without their top modules.
+	 * 
+	 * @param count
+	 *            the maximum number of builds to read
+	 * 
+	 * @return the most recent builds, oldest first
+	 * 
+	 * @throws IOException
+	 *             if the history could not be read
+	 */
+	public synchronized List<Row> tail(int count) throws IOException
+	{
+		open();
+		int length = Math.min(count, rows);
+		return length > 0 ? readRows(rows - length, length, false) : Collections.<Row> emptyList();
+	}
+
+	/**
+	 * Reads the values of the most recent builds into primitive arrays, for a trend. Only the columns of the series are
+	 * read.
+	 * 
+	 * @param count
+	 *            the maximum number of builds to read
+	 * @param tag
+	 *            only builds that had this tag are read, <code>null</code> or empty for all builds
+	 * 
+	 * @return the <code>Series</code> of the most recent builds, oldest first
+	 * 
+	 * @throws IOException
+	 *             if the history could not be read
+	 */
+	public synchronized Series series(int count, String tag) throws IOException
+	{
+		open();
+		int first = Math.max(0, rows - count);
+		int length = rows - first;
+
+		// with a tag, the tags column is searched first and only the matching rows are kept
+		int[] selected = null;
+		if (StringUtils.isNotBlank(tag))
+		{
+			first = 0;
+			length = rows;
+			ByteBuffer tagIds = TAGS.read(directory, 0, rows);
+			boolean[] matching = tags.matching(tag.trim());
+			int[] indexes = new int[rows];
+			int found = 0;
+			for (int i = 0; i < rows; i++)
+			{
+				int id = tagIds.getInt();
+				if (id >= 0 && id < matching.length && matching[id])
+				{
+					indexes[found++] = i;
+				}
+			}
+			selected = Arrays.copyOfRange(indexes, Math.max(0, found - count), found);
+		}
+
+		int size = selected != null ? selected.length : length;
+		Series series = new Series(size);
+		if (size == 0)
+		{
+			return series;
+		}
+
+		ByteBuffer builds = BUILD.read(directory, first, length);
+		ByteBuffer sessions = SESSION.read(directory, first, length);
+		ByteBuffer cpu = CPU.read(directory, first, length);
+		ByteBuffer excp = EXCP.read(directory, first, length);
+		ByteBuffer wait = WAIT.read(directory, first, length);
+		ByteBuffer elapsed = ELAPSED.read(directory, first, length);
+		for (int i = 0; i < size; i++)
+		{
+			int row = selected != null ? selected[i] - first : i;
+			series.builds[i] = builds.getInt(row * BUILD.width);
+			series.sessions[i] = sessions.getInt(row * SESSION.width);
+			series.cpuSeconds[i] = cpu.getDouble(row * CPU.width);
+			series.excpCounts[i] = excp.getLong(row * EXCP.width);
+			series.waitSeconds[i] = wait.getDouble(row * WAIT.width);
+			series.elapsedSeconds[i] = elapsed.getDouble(row * ELAPSED.width);
+		}
+
+		return series;
+	}
+
+	private List<Row> readRows(int first, int length, boolean withModules) throws IOException
+	{
+		Map<Column, ByteBuffer> values = new HashMap<>();
+		for (Column column : COLUMNS)
+		{
+			if (column != MODULES || withModules)
+			{
+				values.put(column, column.read(directory, first, length));
+			}
+		}
+
+		List<Row> result = new ArrayList<>(length);
+		for (int i = 0; i < length; i++)
+		{
+			List<StrobeProfileSummary.Entry> topModules = Collections.emptyList();
+			ByteBuffer modules = values.get(MODULES);
+			if (modules != null)
+			{
+				topModules = new ArrayList<>(MODULE_COUNT);
+				for (int j = 0; j < MODULE_COUNT; j++)
+				{
+					byte[] name = new byte[MODULE_NAME_SIZE];
+					modules.get(name);
+					float percent = modules.getFloat();
+					if (percent >= 0)
+					{
+						topModules.add(new StrobeProfileSummary.Entry(new String(name, StandardCharsets.US_ASCII).trim(), null, percent));
+					}
+				}
+			}
+
+			result.add(new Row(values.get(BUILD).getInt(), values.get(TIME).getLong(), values.get(SESSION).getInt(),
+					systems.value(values.get(SYSTEM).getInt()), tags.value(values.get(TAGS).getInt()), values.get(CPU).getDouble(),
+					values.get(EXCP).getLong(), values.get(WAIT).getDouble(), values.get(ELAPSED).getDouble(), topModules));
+		}
+
+		return result;
+	}
+
+	private static void put(Column column, ByteBuffer buffer, Row row, Dictionary systems, Dictionary tags) throws IOException
+	{
+		if (column == BUILD)
+		{
+			buffer.putInt(row.buildNumber);
+		}
+		else if (column == TIME)
+		{
+			buffer.putLong(row.timestamp);
+		}
+		else if (column == SESSION)
+		{
+			buffer.putInt(row.sessionNumber);
+		}
+		else if (column == SYSTEM)
+		{
+			buffer.putInt(systems.id(row.system));
+		}
+		else if (column == TAGS)
+		{
+			buffer.putInt(tags.id(row.tags));
+		}
+		else if (column == CPU)
+		{
+			buffer.putDouble(row.cpuSeconds);
+		}
+		else if (column == EXCP)
+		{
+			buffer.putLong(row.excpCount);
+		}
+		else if (column == WAIT)
+		{
+			buffer.putDouble(row.waitSeconds);
+		}
+		else if (column == ELAPSED)
+		{
+			buffer.putDouble(row.elapsedSeconds);
+		}
+		else
+		{
+			for (int i = 0; i < MODULE_COUNT; i++)
+			{
+				StrobeProfileSummary.Entry entry = i < row.modules.size() ? row.modules.get(i) : null;
+				String name = entry != null ? StringUtils.left(entry.getModule(), MODULE_NAME_SIZE) : StringUtils.EMPTY;
+				buffer.put(StringUtils.rightPad(name, MODULE_NAME_SIZE).getBytes(StandardCharsets.US_ASCII));
+				buffer.putFloat(entry != null ? (float) entry.getCpuPercent() : -1);
+			}
+		}
+	}
+
+	// keeps the newer half of the rows as they are and merges the older half in groups of the downsampling factor
+	private void compact(int maxRows, int downsampling) throws IOException
+	{
+		int keep = maxRows / 2;
+		List<Row> old = readRows(0, rows - keep, true);
+		List<Row> compacted = new ArrayList<>();
+		if (downsampling > 1)
+		{
+			for (int i = 0; i < old.size(); i += downsampling)
+			{
+				compacted.add(Row.merge(old.subList(i, Math.min(old.size(), i + downsampling))));
+			}
+		}
+		compacted.addAll(readRows(rows - keep, keep, true));
+
+		File target = new File(directory.getPath() + COMPACT_SUFFIX);
+		Util.deleteRecursive(target);
+		Files.createDirectories(target.toPath());
+		Files.copy(new File(directory, NAMES_FILE).toPath(), new File(target, NAMES_FILE).toPath());
+		Dictionary targetSystems = new Dictionary(target, systems.file.getName());
+		Dictionary targetTags = new Dictionary(target, tags.file.getName());
+		for (Column column : COLUMNS)
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(compacted.size() * column.width);
+			for (Row row : compacted)
+			{
+				put(column, buffer, row, targetSystems, targetTags);
+			}
+			column.append(target, (ByteBuffer) buffer.flip());
+		}
+
+		// the history directory is swapped in two moves, open() recovers from a crash between them
+		File previous = new File(directory.getPath() + OLD_SUFFIX);
+		Util.deleteRecursive(previous);
+		Files.move(directory.toPath(), previous.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		Files.move(target.toPath(), directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		Util.deleteRecursive(previous);
+
+		systems.reset();
+		tags.reset();
+		rows = compacted.size();
+	}
+
+	private static ByteBuffer unknownModules()
+	{
+		ByteBuffer modules = ByteBuffer.allocate(MODULE_COUNT * (MODULE_NAME_SIZE + Float.BYTES));
+		for (int i = 0; i < MODULE_COUNT; i++)
+		{
+			modules.put(StringUtils.repeat(" ", MODULE_NAME_SIZE).getBytes(StandardCharsets.US_ASCII)).putFloat(-1); //$NON-NLS-1$
+		}
+
+		return modules;
+	}
+
+	private void open() throws IOException
+	{
+		if (rows >= 0)
+		{
+			return;
+		}
+
+		File previous = new File(directory.getPath() + OLD_SUFFIX);
+		if (directory.exists() == false && previous.exists())
+		{
+			Files.move(previous.toPath(), directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		Util.deleteRecursive(previous);
+		Util.deleteRecursive(new File(directory.getPath() + COMPACT_SUFFIX));
+
+		long count = BUILD.file(directory).length() / BUILD.width;
+		for (Column column : COLUMNS)
+		{
+			File file = column.file(directory);
+			long length = count * column.width;
+			if (file.length() > length)
+			{
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+				{
+					channel.truncate(length);
+				}
+			}
+			else if (file.length() < length)
+			{
+				column.fill(directory, (int) (count - file.length() / column.width));
+			}
+		}
+
+		rows = (int) count;
+	}
+
+	/**
+	 * The results recorded for one build, or for several merged old builds.
+	 */
+	public static final class Row
+	{
+		private final int buildNumber;
+		private final long timestamp;
+		private final int sessionNumber;
+		private final String system;
+		private final String tags;
+		private final double cpuSeconds;
+		private final long excpCount;
+		private final double waitSeconds;
+		private final double elapsedSeconds;
+		private final List<StrobeProfileSummary.Entry> modules;
+
+		Row(int buildNumber, long timestamp, int sessionNumber, String system, String tags, double cpuSeconds, long excpCount,
+				double waitSeconds, double elapsedSeconds, List<StrobeProfileSummary.Entry> modules)
+		{
+			this.buildNumber = buildNumber;
+			this.timestamp = timestamp;
+			this.sessionNumber = sessionNumber;
+			this.system = system;
+			this.tags = tags;
+			this.cpuSeconds = cpuSeconds;
+			this.excpCount = excpCount;
+			this.waitSeconds = waitSeconds;
+			this.elapsedSeconds = elapsedSeconds;
+			this.modules = modules;
+		}
+
+		// a merged row is the last of the rows, with the averages of their known totals
+		static Row merge(List<Row> rows)
+		{
+			Row last = rows.get(rows.size() - 1);
+			double[] cpu = new double[rows.size()];
+			double[] excp = new double[rows.size()];
+			double[] wait = new double[rows.size()];
+			double[] elapsed = new double[rows.size()];
+			for (int i = 0; i < rows.size(); i++)
+			{
+				cpu[i] = rows.get(i).cpuSeconds;
+				excp[i] = rows.get(i).excpCount;
+				wait[i] = rows.get(i).waitSeconds;
+				elapsed[i] = rows.get(i).elapsedSeconds;
+			}
+
+			return new Row(last.buildNumber, last.timestamp, last.sessionNumber, last.system, last.tags, average(cpu),
+					Math.round(average(excp)), average(wait), average(elapsed), last.modules);
+		}
+
+		private static double average(double[] values)
+		{
+			return Arrays.stream(values).filter(value -> value >= 0).average().orElse(-1);
+		}
+
+		public int getBuildNumber()
+		{
+			return buildNumber;
+		}
+
+		/**
+		 * @return the start time of the build in milliseconds, or -1 if it was not recorded
+		 */
+		public long getTimestamp()
+		{
+			return timestamp;
+		}
+
+		/**
+		 * @return the session request number, or -1 if it was not recorded
+		 */
+		public int getSessionNumber()
+		{
+			return sessionNumber;
+		}
+
+		public String getSystem()
+		{
+			return system;
+		}
+
+		public String getTags()
+		{
+			return tags;
+		}
+
+		/**
+		 * @return the CPU time in seconds, or -1 if the profile did not report it
+		 */
+		public double getCpuSeconds()
+		{
+			return cpuSeconds;
+		}
+
+		/**
+		 * @return the number of EXCPs, or -1 if the profile did not report it
+		 */
+		public long getExcpCount()
+		{
+			return excpCount;
+		}
+
+		/**
+		 * @return the wait time in seconds, or -1 if the profile did not report it
+		 */
+		public double getWaitSeconds()
+		{
+			return waitSeconds;
+		}
+
+		/**
+		 * @return the elapsed time in seconds, or -1 if the profile did not report it
+		 */
+		public double getElapsedSeconds()
+		{
+			return elapsedSeconds;
+		}
+
+		/**
+		 * @return the top modules by CPU time, empty if they were not read
+		 */
+		public List<StrobeProfileSummary.Entry> getModules()
+		{
+			return Collections.unmodifiableList(modules);
+		}
+	}
+
+	/**
+	 * The values of consecutive builds, one primitive array per value, oldest build first. Unknown values are -1.
+	 */
+	public static final class Series
+	{
+		final int[] builds;
+		final int[] sessions;
+		final double[] cpuSeconds;
+		final long[] excpCounts;
+		final double[] waitSeconds;
+		final double[] elapsedSeconds;
+
+		Series(int size)
+		{
+			builds = new int[size];
+			sessions = new int[size];
+			cpuSeconds = new double[size];
+			excpCounts = new long[size];
+			waitSeconds = new double[size];
+			elapsedSeconds = new double[size];
+		}
+
+		public int size()
+		{
+			return builds.length;
+		}
+
+		public int getBuildNumber(int index)
+		{
+			return builds[index];
+		}
+
+		public int getSessionNumber(int index)
+		{
+			return sessions[index];
+		}
+
+		public double getCpuSeconds(int index)
+		{
+			return cpuSeconds[index];
+		}
+
+		public long getExcpCount(int index)
+		{
+			return excpCounts[index];
+		}
+
+		public double getWaitSeconds(int index)
+		{
+			return waitSeconds[index];
+		}
+
+		public double getElapsedSeconds(int index)
+		{
+			return elapsedSeconds[index];
+		}
+	}
+
+	private static final class Column
+	{
+		private final String fileName;
+		private final int width;
+
+		private final byte[] unknown;
+
+		// the row written for builds recorded before the column existed
+		Column(String fileName, ByteBuffer unknown)
+		{
+			this.fileName = fileName;
+			this.unknown = unknown.array();
+			this.width = this.unknown.length;
+		}
+
+		File file(File directory)
+		{
+			return new File(directory, fileName);
+		}
+
+		void append(File directory, ByteBuffer values) throws IOException
+		{
+			try (FileChannel channel = FileChannel.open(file(directory).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND))
+			{
+				while (values.hasRemaining())
+				{
+					channel.write(values);
+				}
+			}
+		}
+
+		void fill(File directory, int count) throws IOException
+		{
+			ByteBuffer values = ByteBuffer.allocate(count * width);
+			for (int i = 0; i < count; i++)
+			{
+				values.put(unknown);
+			}
+			append(directory, (ByteBuffer) values.flip());
+		}
+
+		ByteBuffer read(File directory, int first, int count) throws IOException
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(count * width);
+			try (FileChannel channel = FileChannel.open(file(directory).toPath(), StandardOpenOption.READ))
+			{
+				long position = (long) first * width;
+				while (buffer.hasRemaining())
+				{
+					int read = channel.read(buffer, position + buffer.position());
+					if (read < 0)
+					{
+						throw new IOException(Messages.errorHistoryTruncated(file(directory).getPath()));
+					}
+				}
+			}
+
+			return (ByteBuffer) buffer.flip();
+		}
+	}
+
+	// the distinct values of a text column, numbered in the order they were first seen
+	private static final class Dictionary
+	{
+		private final File file;
+		private List<String> values;
+		private Map<String, Integer> ids;
+
+		Dictionary(File directory, String fileName)
+		{
+			this.file = new File(directory, fileName);
+		}
+
+		int id(String value) throws IOException
+		{
+			load();
+			Integer id = ids.get(value);
+			if (id == null)
+			{
+				id = values.size();
+				Files.write(file.toPath(), Collections.singletonList(value), StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+						StandardOpenOption.APPEND);
+				values.add(value);
+				ids.put(value, id);
+			}
+
+			return id;
+		}
+
+		String value(int id) throws IOException
+		{
+			load();
+			return id >= 0 && id < values.size() ? values.get(id) : StringUtils.EMPTY;
+		}
+
+		// the tags of a build are a comma separated list, a value matches if one of its tags is the given one
+		boolean[] matching(String tag) throws IOException
+		{
+			load();
+			boolean[] matching = new boolean[values.size()];
+			for (int i = 0; i < matching.length; i++)
+			{
+				for (String value : values.get(i).split(",")) //$NON-NLS-1$
+				{
+					matching[i] |= value.trim().equalsIgnoreCase(tag);
+				}
+			}
+
+			return matching;
+		}
+
+		void reset()
+		{
+			values = null;
+			ids = null;
+		}
+
+		private void load() throws IOException
+		{
+			if (values != null)
+			{
+				return;
+			}
+
+			values = file.exists() ? new ArrayList<>(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) : new ArrayList<String>();
+			ids = new HashMap<>();
+			for (int i = 0; i < values.size(); i++)
+			{
+				ids.put(values.get(i), i);
+			}
+		}
+	}
+}
@@ -0,0 +1,434 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+
+/**
+ * The totals of a Strobe profile, CPU time, EXCP count, wait time and elapsed time of the measured job, along with its
+ * top CPU consumers: the modules and the control sections (CSECTs) with the highest share of the CPU time sampled
+ * during the measurement.
+ */
+public class StrobeProfileSummary implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	// the report section listing the CPU time of each control section
+	private static final String SECTION_USAGE_HEADER = "SECTION USAGE"; //$NON-NLS-1$
+
+	// the report section listing the wait time of each module
+	private static final String WAIT_HEADER = "WAIT TIME BY MODULE"; //$NON-NLS-1$
+
+	private static final Pattern NAME = Pattern.compile("[A-Z$#@][A-Z0-9$#@_.-]{0,7}"); //$NON-NLS-1$
+	private static final Pattern PERCENT = Pattern.compile("\\d{1,3}(\\.\\d+)?"); //$NON-NLS-1$
+	private static final Pattern NUMBER = Pattern.compile("\\d[\\d,]*(\\.\\d+)?"); //$NON-NLS-1$
+	private static final Pattern TIME = Pattern.compile("(\\d+:){1,2}\\d+(\\.\\d+)?"); //$NON-NLS-1$
+
+	private final double cpuSeconds;
+	private final long excpCount;
+	private final double waitSeconds;
+	private final double elapsedSeconds;
+	private final List<Entry> modules;
+	private final List<Entry> sections;
+
+	StrobeProfileSummary(double cpuSeconds, long excpCount, double waitSeconds, double elapsedSeconds, List<Entry> modules,
+			List<Entry> sections)
+	{
+		this.cpuSeconds = cpuSeconds;
+		this.excpCount = excpCount;
+		this.waitSeconds = waitSeconds;
+		this.elapsedSeconds = elapsedSeconds;
+		this.modules = modules;
+		this.sections = sections;
+	}
+
+	/**
+	 * @return the CPU time of the measured job in seconds, or -1 if the profile does not report it
+	 */
+	public double getCpuSeconds()
+	{
+		return cpuSeconds;
+	}
+
+	/**
+	 * @return the number of EXCPs of the measured job, or -1 if the profile does not report it
+	 */
+	public long getExcpCount()
+	{
+		return excpCount;
+	}
+
+	/**
+	 * @return the time the measured job spent waiting in seconds, or -1 if the profile does not report it
+	 */
+	public double getWaitSeconds()
+	{
+		return waitSeconds;
+	}
+
+	/**
+	 * @return the elapsed time of the measurement session in seconds, or -1 if the profile does not report it
+	 */
+	public double getElapsedSeconds()
+	{
+		return elapsedSeconds;
+	}
+
+	/**
+	 * @return the modules using the most CPU time, highest first
+	 */
+	public List<Entry> getModules()
+	{
+		return Collections.unmodifiableList(modules);
+	}
+
+	/**
+	 * @return the control sections using the most CPU time, highest first
+	 */
+	public List<Entry> getSections()
+	{
+		return Collections.unmodifiableList(sections);
+	}
+
+	/**
+	 * @return <code>true</code> if no CPU usage was found in the profile
+	 */
+	public boolean isEmpty()
+	{
+		return modules.isEmpty() && sections.isEmpty();
+	}
+
+	/**
+	 * Reads the session totals and the section usage summary of a Strobe profile report. The report is read line by line
+	 * and only the <code>top</code> entries are kept, so a profile of any size is summarized in constant memory.
+	 * <p>
+	 * The totals are taken from the first line labeled <code>CPU TIME</code>, <code>EXCPS</code>, <code>WAIT TIME</code>
+	 * and <code>SESSION TIME</code> or <code>ELAPSED TIME</code> respectively, followed by a number or a time of the form
+	 * <code>hh:mm:ss.ss</code>.
+	 * <p>
+	 * Within the section usage summary, a line starting with a module name and a control section name and ending with a
+	 * percentage is taken as the CPU time of that control section; the CPU time of a module is the sum of its sections.
+	 * A leading carriage control character is ignored.
+	 * 
+	 * @param reader
+	 *            the profile report, it is not closed
+	 * @param top
+	 *            the number of modules and of control sections to keep
+	 * 
+	 * @return the <code>StrobeProfileSummary</code> of the report
+	 * 
+	 * @throws IOException
+	 *             if the report could not be read
+	 */
+	static StrobeProfileSummary parse(Reader reader, int top) throws IOException
+	{
+		Map<String, Double> moduleTotals = new HashMap<>();
+		PriorityQueue<Entry> topSections = new PriorityQueue<>(top + 1, Entry.BY_CPU);
+
+		double cpuSeconds = -1;
+		long excpCount = -1;
+		double waitSeconds = -1;
+		double elapsedSeconds = -1;
+
+		BufferedReader lines = new BufferedReader(reader);
+		boolean inSectionUsage = false;
+		String line;
+		while ((line = lines.readLine()) != null)
+		{
+			String upper = line.toUpperCase(Locale.ENGLISH);
+			if (cpuSeconds < 0 && upper.contains("CPU TIME")) //$NON-NLS-1$
+			{
+				cpuSeconds = valueAfter(upper, "CPU TIME"); //$NON-NLS-1$
+			}
+			if (excpCount < 0 && upper.contains("EXCPS")) //$NON-NLS-1$
+			{
+				excpCount = (long) valueAfter(upper, "EXCPS"); //$NON-NLS-1$
+			}
+			if (waitSeconds < 0 && upper.contains("WAIT TIME")) //$NON-NLS-1$
+			{
+				waitSeconds = valueAfter(upper, "WAIT TIME"); //$NON-NLS-1$
+			}
+			if (elapsedSeconds < 0 && (upper.contains("SESSION TIME") || upper.contains("ELAPSED TIME"))) //$NON-NLS-1$ //$NON-NLS-2$
+			{
+				elapsedSeconds = valueAfter(upper, upper.contains("SESSION TIME") ? "SESSION TIME" : "ELAPSED TIME"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+
+			if (upper.contains(SECTION_USAGE_HEADER))
+			{
+				inSectionUsage = true;
+				continue;
+			}
+
+			if (inSectionUsage == false)
+			{
+				continue;
+			}
+
+			// the next report starts with a title of its own, such as the CPU usage or the wait time by module
+			if (upper.contains("SUMMARY") || upper.contains(" BY ")) //$NON-NLS-1$ //$NON-NLS-2$
+			{
+				inSectionUsage = false;
+				continue;
+			}
+
+			Entry entry = parseLine(upper);
+			if (entry != null)
+			{
+				moduleTotals.merge(entry.getModule(), entry.getCpuPercent(), Double::sum);
+				topSections.add(entry);
+				if (topSections.size() > top)
+				{
+					topSections.poll();
+				}
+			}
+		}
+
+		PriorityQueue<Entry> topModules = new PriorityQueue<>(top + 1, Entry.BY_CPU);
+		for (Map.Entry<String, Double> module : moduleTotals.entrySet())
+		{
+			topModules.add(new Entry(module.getKey(), null, module.getValue()));
+			if (topModules.size() > top)
+			{
+				topModules.poll();
+			}
+		}
+
+		return new StrobeProfileSummary(cpuSeconds, excpCount, waitSeconds, elapsedSeconds, highestFirst(topModules), highestFirst(topSections));
+	}
+
+	/**
+	 * Reads the CPU time of each control section and the wait time of each module of a Strobe profile report, passing
+	 * them on as they are read. Section usage lines follow the rules of {@link #parse}. Within the wait time by module
+	 * report, a line starting with a module name, optionally followed by a control section name, and ending with a
+	 * percentage is taken as the wait time of that module or section.
+	 * 
+	 * @param reader
+	 *            the profile report, it is not closed
+	 * @param visitor
+	 *            told about each usage line
+	 * 
+	 * @throws IOException
+	 *             if the report could not be read
+	 */
+	static void scan(Reader reader, UsageVisitor visitor) throws IOException
+	{
+		BufferedReader lines = new BufferedReader(reader);
+		boolean inSectionUsage = false;
+		boolean inWait = false;
+		String line;
+		while ((line = lines.readLine()) != null)
+		{
+			String upper = line.toUpperCase(Locale.ENGLISH);
+			if (upper.contains(SECTION_USAGE_HEADER) || upper.contains(WAIT_HEADER))
+			{
+				inSectionUsage = upper.contains(SECTION_USAGE_HEADER);
+				inWait = inSectionUsage == false;
+				continue;
+			}
+
+			if (upper.contains("SUMMARY") || upper.contains("USAGE BY") || upper.contains(" BY ")) //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			{
+				inSectionUsage = false;
+				inWait = false;
+				continue;
+			}
+
+			if (inSectionUsage)
+			{
+				Entry entry = parseLine(upper);
+				if (entry != null)
+				{
+					visitor.cpu(entry.getModule(), entry.getSection(), entry.getCpuPercent());
+				}
+			}
+			else if (inWait)
+			{
+				Entry entry = parseWaitLine(upper);
+				if (entry != null)
+				{
+					visitor.waiting(entry.getModule(), entry.getSection(), entry.getCpuPercent());
+				}
+			}
+		}
+	}
+
+	// the first number or time following the label, in seconds for a time; -1 if there is none
+	private static double valueAfter(String line, String label)
+	{
+		String rest = line.substring(line.indexOf(label) + label.length()).replaceFirst("^[\\s=:.]+", ""); //$NON-NLS-1$ //$NON-NLS-2$
+		String[] tokens = rest.split("\\s+", 4); //$NON-NLS-1$
+		for (int i = 0; i < tokens.length && i < 3; i++)
+		{
+			String token = tokens[i];
+			if (TIME.matcher(token).matches())
+			{
+				double seconds = 0;
+				for (String part : token.split(":")) //$NON-NLS-1$
+				{
+					seconds = seconds * 60 + Double.parseDouble(part);
+				}
+				return seconds;
+			}
+			if (NUMBER.matcher(token).matches())
+			{
+				return Double.parseDouble(token.replace(",", "")); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+
+		return -1;
+	}
+
+	private static Entry parseLine(String line)
+	{
+		String[] tokens = line.trim().split("\\s+"); //$NON-NLS-1$
+		int first = tokens.length > 0 && tokens[0].length() == 1 && "01-+".indexOf(tokens[0].charAt(0)) >= 0 ? 1 : 0; //$NON-NLS-1$
+		if (tokens.length - first < 3)
+		{
+			return null;
+		}
+
+		String module = tokens[first];
+		String section = tokens[first + 1];
+		String percent = tokens[tokens.length - 1];
+		if (NAME.matcher(module).matches() == false || NAME.matcher(section).matches() == false
+				|| PERCENT.matcher(percent).matches() == false)
+		{
+			return null;
+		}
+
+		double cpuPercent = Double.parseDouble(percent);
+		return cpuPercent <= 100 ? new Entry(module, section, cpuPercent) : null;
+	}
+
+	// like a section usage line, except that the control section is optional
+	private static Entry parseWaitLine(String line)
+	{
+		String[] tokens = line.trim().split("\\s+"); //$NON-NLS-1$
+		int first = tokens.length > 0 && tokens[0].length() == 1 && "01-+".indexOf(tokens[0].charAt(0)) >= 0 ? 1 : 0; //$NON-NLS-1$
+		if (tokens.length - first < 2)
+		{
+			return null;
+		}
+
+		String module = tokens[first];
+		String percent = tokens[tokens.length - 1];
+		if (NAME.matcher(module).matches() == false || PERCENT.matcher(percent).matches() == false)
+		{
+			return null;
+		}
+
+		String section = tokens.length - first >= 3 && NAME.matcher(tokens[first + 1]).matches() ? tokens[first + 1] : null;
+		double waitPercent = Double.parseDouble(percent);
+		return waitPercent <= 100 ? new Entry(module, section, waitPercent) : null;
+	}
+
+	private static List<Entry> highestFirst(PriorityQueue<Entry> entries)
+	{
+		List<Entry> sorted = new ArrayList<>(entries);
+		Collections.sort(sorted, Collections.reverseOrder(Entry.BY_CPU));
+		return sorted;
+	}
+
+	/**
+	 * Receives the usage lines of a profile report while it is scanned.
+	 */
+	interface UsageVisitor
+	{
+		/**
+		 * @param module
+		 *            the module
+		 * @param section
+		 *            the control section
+		 * @param percent
+		 *            the percentage of the sampled CPU time used by the control section
+		 */
+		void cpu(String module, String section, double percent);
+
+		/**
+		 * @param module
+		 *            the module
+		 * @param section
+		 *            the control section, or <code>null</code> for the module as a whole
+		 * @param percent
+		 *            the percentage of the sampled time spent waiting in the module or control section
+		 */
+		void waiting(String module, String section, double percent);
+	}
+
+	/**
+	 * The CPU time of a module, or of one of its control sections.
+	 */
+	public static class Entry implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		static final Comparator<Entry> BY_CPU = Comparator.comparingDouble(Entry::getCpuPercent);
+
+		private final String module;
+		private final String section;
+		private final double cpuPercent;
+
+		Entry(String module, String section, double cpuPercent)
+		{
+			this.module = module;
+			this.section = section;
+			this.cpuPercent = cpuPercent;
+		}
+
+		public String getModule()
+		{
+			return module;
+		}
+
+		/**
+		 * @return the control section, or <code>null</code> for the module as a whole
+		 */
+		public String getSection()
+		{
+			return section;
+		}
+
+		/**
+		 * @return the percentage of the sampled CPU time
+		 */
+		public double getCpuPercent()
+		{
+			return cpuPercent;
+		}
+
+		/**
+		 * @return the percentage of the sampled CPU time, formatted for display
+		 */
+		public String getCpuPercentText()
+		{
+			return String.format(Locale.ENGLISH, "%.2f", cpuPercent); //$NON-NLS-1$
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import hudson.AbortException;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * Compares the profile of a measurement with the previous measurements of the same job and profile name. The baseline
+ * of each total, CPU time, EXCPs and elapsed time, is its median over the most recent builds recorded in the
+ * {@link StrobeProfileHistory}; a total exceeding its baseline by more than the threshold percentage is a regression,
+ * which marks the build unstable or fails it.
+ */
+final class StrobeRegressionGate
+{
+	private StrobeRegressionGate()
+	{
+	}
+
+	/**
+	 * Records the profile in the history and, when the builder has a regression threshold, checks it against the
+	 * baseline.
+	 * 
+	 * @param build
+	 *            The current running Jenkins build
+	 * @param smBuilder
+	 *            The builder holding the measured job and the regression settings
+	 * @param sessionNumber
+	 *            The session request number of the measurement
+	 * @param summary
+	 *            The summary of the downloaded profile
+	 * @param listener
+	 *            Build listener
+	 * 
+	 * @throws AbortException
+	 *             if a regression was found and the builder asks to fail the build
+	 */
+	static void check(final Run<?, ?> build, final StrobeMeasurementBuilder smBuilder, final int sessionNumber,
+			final StrobeProfileSummary summary, final TaskListener listener) throws AbortException
+	{
+		StrobeProfileHistory history = StrobeProfileHistory.of(build.getParent(), smBuilder.getJobName(), smBuilder.getProfileName());
+		List<String> regressions = new ArrayList<>();
+		try
+		{
+			if (smBuilder.getRegressionThreshold() > 0)
+			{
+				// the build may already be recorded when it re-attached to its session
+				List<StrobeProfileHistory.Row> baseline = new ArrayList<>();
+				for (StrobeProfileHistory.Row row : history.tail(smBuilder.getRegressionBaseline() + 1))
+				{
+					if (row.getBuildNumber() != build.getNumber())
+					{
+						baseline.add(row);
+					}
+				}
+
+				if (baseline.size() > smBuilder.getRegressionBaseline())
+				{
+					baseline.remove(0);
+				}
+
+				if (baseline.isEmpty())
+				{
+					listener.getLogger().println(Messages.regressionNoBaseline());
+				}
+				else
+				{
+					double[] cpu = new double[baseline.size()];
+					double[] excp = new double[baseline.size()];
+					double[] elapsed = new double[baseline.size()];
+					for (int i = 0; i < baseline.size(); i++)
+					{
+						cpu[i] = baseline.get(i).getCpuSeconds();
+						excp[i] = baseline.get(i).getExcpCount();
+						elapsed[i] = baseline.get(i).getElapsedSeconds();
+					}
+
+					int threshold = smBuilder.getRegressionThreshold();
+					compare(Messages.cpuTime(), summary.getCpuSeconds(), median(cpu), threshold, listener, regressions);
+					compare(Messages.excps(), summary.getExcpCount(), median(excp), threshold, listener, regressions);
+					compare(Messages.elapsedTime(), summary.getElapsedSeconds(), median(elapsed), threshold, listener, regressions);
+				}
+			}
+
+			history.append(build, smBuilder, sessionNumber, summary);
+		}
+		catch (IOException e)
+		{
+			listener.getLogger().println(Messages.errorHistory(e.getMessage()));
+		}
+
+		if (regressions.isEmpty() == false)
+		{
+			String message = Messages.regressionFound(String.join(", ", regressions)); //$NON-NLS-1$
+			if (StrobeMeasurementBuilder.REGRESSION_FAILURE.equals(smBuilder.getRegressionResult()))
+			{
+				throw new AbortException(message);
+			}
+
+			listener.getLogger().println(message);
+			build.setResult(Result.UNSTABLE);
+		}
+	}
+
+	private static void compare(String name, double value, double baseline, int threshold, TaskListener listener, List<String> regressions)
+	{
+		// a total the profile did not report is not compared
+		if (value < 0 || baseline <= 0)
+		{
+			return;
+		}
+
+		double change = (value - baseline) * 100 / baseline;
+		listener.getLogger().println(Messages.regressionComparison(name, format(value), format(baseline), format(change)));
+		if (change > threshold)
+		{
+			regressions.add(name);
+		}
+	}
+
+	// unknown totals, recorded as -1, are left out of the median
+	private static double median(double[] values)
+	{
+		double[] known = Arrays.stream(values).filter(value -> value >= 0).sorted().toArray();
+		if (known.length == 0)
+		{
+			return -1;
+		}
+
+		int middle = known.length / 2;
+		return known.length % 2 == 1 ? known[middle] : (known[middle - 1] + known[middle]) / 2;
+	}
+
+	private static String format(double value)
+	{
+		return String.format(Locale.ENGLISH, "%.2f", value); //$NON-NLS-1$
+	}
+}
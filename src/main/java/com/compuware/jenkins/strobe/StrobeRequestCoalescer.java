@@ -0,0 +1,226 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang.StringUtils;
+
+import hudson.util.Secret;
+import jenkins.util.Timer;
+
+/**
+ * Lets identical measurement requests submitted at about the same time, by the branches of a matrix or parallel build
+ * for instance, share one CES submission and so one Strobe session. Requests are identical when they go through the
+ * same host connection with the same token and their JSON payloads are byte for byte the same. A request can join a
+ * submission for the configured window after that submission started; a submission that failed is not joined.
+ */
+public final class StrobeRequestCoalescer
+{
+	private static final StrobeRequestCoalescer INSTANCE = new StrobeRequestCoalescer();
+
+	private final ConcurrentMap<String, Submission> submissions = new ConcurrentHashMap<>();
+
+	private StrobeRequestCoalescer()
+	{
+	}
+
+	/**
+	 * @return the plugin wide request coalescer
+	 */
+	public static StrobeRequestCoalescer get()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the number of milliseconds a submission can be joined for, 0 when coalescing is turned off
+	 */
+	long getWindowMs()
+	{
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		int window = config != null ? config.getCoalescingWindow() : StrobeGlobalConfiguration.DEFAULT_COALESCING_WINDOW;
+		return TimeUnit.SECONDS.toMillis(window);
+	}
+
+	/**
+	 * Builds the key identifying a measurement request, a digest of everything that is sent to CES.
+	 *
+	 * @param connectionId
+	 *            the connection id of the host connection
+	 * @param serializer
+	 *            the serializer of the request payload
+	 * @param token
+	 *            the CES secret token, or <code>null</code>
+	 *
+	 * @return the key
+	 *
+	 * @throws IOException
+	 *             if the payload could not be serialized
+	 */
+	static String key(String connectionId, StrobeRequestSerializer serializer, Secret token) throws IOException
+	{
+		MessageDigest digest = DigestUtils.getSha256Digest();
+		digest.update(StringUtils.defaultString(connectionId).getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		if (token != null)
+		{
+			digest.update(token.getPlainText().getBytes(StandardCharsets.UTF_8));
+		}
+		digest.update((byte) 0);
+
+		// the payload is streamed into the digest, it is never held in memory
+		serializer.writeTo(new DigestOutputStream(NullOutputStream.NULL_OUTPUT_STREAM, digest));
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	/**
+	 * Joins the submission of an identical request if one can still be joined, otherwise starts a new one.
+	 *
+	 * @param key
+	 *            the key built by {@link #key(String, StrobeRequestSerializer, Secret)}
+	 * @param runner
+	 *            the runner asking to submit
+	 * @param submit
+	 *            starts the submission if the runner leads a new one
+	 *
+	 * @return the submission, led by <code>runner</code> if it was started by this call
+	 */
+	Submission join(String key, StrobeMeasurementRunner runner, Supplier<CompletableFuture<MeasurementSubmitResult>> submit)
+	{
+		final long now = System.currentTimeMillis();
+		final long windowMs = getWindowMs();
+		Submission submission = submissions.compute(key, (k, existing) -> {
+			if (existing != null && existing.join(now, windowMs))
+			{
+				return existing;
+			}
+
+			return new Submission(runner, now);
+		});
+
+		if (submission.leader == runner)
+		{
+			submission.start(submit.get());
+
+			// a successful submission stays joinable for the window, a failed one is dropped at once
+			submission.result.whenComplete((result, failure) -> {
+				long remaining = failure != null ? 0 : submission.created + windowMs - System.currentTimeMillis();
+				Timer.get().schedule(() -> submissions.remove(key, submission), Math.max(0, remaining), TimeUnit.MILLISECONDS);
+			});
+		}
+
+		return submission;
+	}
+
+	/**
+	 * A CES submission shared by identical requests.
+	 */
+	static final class Submission
+	{
+		private final StrobeMeasurementRunner leader;
+		private final long created;
+		private final CompletableFuture<MeasurementSubmitResult> result = new CompletableFuture<>();
+		private CompletableFuture<MeasurementSubmitResult> request;
+		private int waiters = 1;
+
+		Submission(StrobeMeasurementRunner leader, long created)
+		{
+			this.leader = leader;
+			this.created = created;
+		}
+
+		/**
+		 * @return the runner that submitted the request to CES
+		 */
+		StrobeMeasurementRunner getLeader()
+		{
+			return leader;
+		}
+
+		/**
+		 * @return the reply of CES, shared by all requests that joined
+		 */
+		CompletableFuture<MeasurementSubmitResult> getResult()
+		{
+			return result;
+		}
+
+		/**
+		 * Called by a request that gave up before CES replied. The CES request is aborted once every request sharing it gave
+		 * up.
+		 */
+		void leave()
+		{
+			CompletableFuture<MeasurementSubmitResult> toCancel = null;
+			synchronized (this)
+			{
+				if (--waiters == 0)
+				{
+					toCancel = request;
+				}
+			}
+
+			if (toCancel != null)
+			{
+				toCancel.cancel(false);
+			}
+		}
+
+		synchronized boolean join(long now, long windowMs)
+		{
+			if (waiters == 0 || now - created > windowMs || result.isCompletedExceptionally())
+			{
+				return false;
+			}
+
+			waiters++;
+			return true;
+		}
+
+		void start(CompletableFuture<MeasurementSubmitResult> submission)
+		{
+			synchronized (this)
+			{
+				request = submission;
+			}
+
+			submission.whenComplete((submitResult, failure) -> {
+				if (failure != null)
+				{
+					result.completeExceptionally(failure);
+				}
+				else
+				{
+					result.complete(submitResult);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+/**
+ * The HTTP entity of a measurement request. The payload is serialized once, into an array of exactly its size, when its
+ * length is first asked for, so the request is sent with a <code>Content-Length</code> header rather than chunked, which
+ * older CES releases and some reverse proxies refuse. A blocking client that writes the entity without asking for its
+ * length gets the payload streamed straight from the <code>StrobeRequestSerializer</code> instead.
+ */
+final class StrobeRequestEntity extends AbstractHttpEntity implements HttpAsyncContentProducer
+{
+	private static final Logger LOGGER = Logger.getLogger(StrobeRequestEntity.class.getName());
+
+	private final StrobeRequestSerializer serializer;
+
+	private byte[] payload;
+	private ByteBuffer content;
+
+	StrobeRequestEntity(StrobeRequestSerializer serializer)
+	{
+		this.serializer = serializer;
+		setContentType("application/json"); //$NON-NLS-1$
+	}
+
+	@Override
+	public boolean isRepeatable()
+	{
+		return true;
+	}
+
+	@Override
+	public long getContentLength()
+	{
+		try
+		{
+			return payload().length;
+		}
+		catch (IOException e)
+		{
+			// the length is unknown, the request is sent chunked and the error is reported when the payload is written
+			LOGGER.log(Level.FINE, "Unable to serialize the measurement request", e); //$NON-NLS-1$
+			return -1;
+		}
+	}
+
+	@Override
+	public InputStream getContent() throws IOException
+	{
+		return new ByteArrayInputStream(payload());
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException
+	{
+		if (payload != null)
+		{
+			out.write(payload);
+			return;
+		}
+
+		long start = System.nanoTime();
+		serializer.writeTo(out);
+		StrobeMetrics.get().time(StrobeMetrics.SERIALIZATION, start);
+	}
+
+	@Override
+	public boolean isStreaming()
+	{
+		return false;
+	}
+
+	@Override
+	public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException
+	{
+		if (content == null)
+		{
+			content = ByteBuffer.wrap(payload());
+		}
+
+		encoder.write(content);
+		if (content.hasRemaining() == false)
+		{
+			encoder.complete();
+		}
+	}
+
+	// a retried or redirected request starts again from the beginning of the same payload
+	@Override
+	public void close()
+	{
+		content = null;
+	}
+
+	private byte[] payload() throws IOException
+	{
+		if (payload == null)
+		{
+			long start = System.nanoTime();
+			payload = serializer.toByteArray();
+			StrobeMetrics.get().time(StrobeMetrics.SERIALIZATION, start);
+		}
+
+		return payload;
+	}
+}
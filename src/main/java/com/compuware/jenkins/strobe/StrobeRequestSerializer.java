@@ -0,0 +1,181 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the JSON payload of a measurement request straight from the builder's fields to an output stream. Field values
+ * are trimmed and escaped while they are written, and the callback headers are formatted in a single pass over the
+ * configured text.
+ */
+public final class StrobeRequestSerializer
+{
+	// do this so that we will try and send an email since the notification code requires us to attempt to send an email
+	private static final String DEFAULT_EMAIL = "dummy@compuware.com"; //$NON-NLS-1$
+
+	private static final int INITIAL_BYTES_SIZE = 1024;
+
+	// reused to hand complete payloads to the non-blocking client, which needs them as a byte array
+	private static final ThreadLocal<ByteArrayOutputStream> BYTES = ThreadLocal.withInitial(() -> new ByteArrayOutputStream(INITIAL_BYTES_SIZE));
+
+	private final StrobeMeasurementBuilder smBuilder;
+	private final StrobeCallbackRegistry.Callback callback;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param smBuilder
+	 * 			  An instance of <code>StrobeMeasurementBuilder</code> containing the arguments.
+	 */
+	public StrobeRequestSerializer(StrobeMeasurementBuilder smBuilder)
+	{
+		this(smBuilder, null);
+	}
+
+	/**
+	 * Constructor for a request that asks CES to notify Jenkins itself. The callback is only sent when the builder does
+	 * not configure its own.
+	 * 
+	 * @param smBuilder
+	 * 			  An instance of <code>StrobeMeasurementBuilder</code> containing the arguments.
+	 * @param callback
+	 * 			  The callback registered with <code>StrobeCallbackRegistry</code>, or <code>null</code>.
+	 */
+	public StrobeRequestSerializer(StrobeMeasurementBuilder smBuilder, StrobeCallbackRegistry.Callback callback)
+	{
+		this.smBuilder = smBuilder;
+		this.callback = callback;
+	}
+
+	/**
+	 * @return <code>true</code> if the request includes an API notification callback
+	 */
+	public boolean hasCallback()
+	{
+		return hasUserCallback() || callback != null;
+	}
+
+	private boolean hasUserCallback()
+	{
+		return smBuilder.getUrl() != null && !smBuilder.getUrl().isEmpty();
+	}
+
+	/**
+	 * Writes the request payload. The stream is not closed.
+	 * 
+	 * @param out
+	 *            the stream to write the UTF-8 encoded JSON to
+	 * 
+	 * @throws IOException
+	 *             if the stream could not be written
+	 */
+	public void writeTo(OutputStream out) throws IOException
+	{
+		String emailto = smBuilder.getEmailto();
+		boolean noEmail = emailto == null || emailto.trim().isEmpty();
+
+		StrobeJsonWriter json = new StrobeJsonWriter(out);
+		json.beginObject();
+		json.name("reqType").trimmedValue(smBuilder.getRequestType()); //$NON-NLS-1$
+		json.name("jobName").trimmedValue(smBuilder.getJobName()); //$NON-NLS-1$
+		json.name("system").trimmedValue(smBuilder.getSystem()); //$NON-NLS-1$
+		json.name("tags").trimmedValue(smBuilder.getTags()); //$NON-NLS-1$
+		json.name("profileName").trimmedValue(smBuilder.getProfileName()); //$NON-NLS-1$
+		json.name("emailto").trimmedValue(noEmail ? DEFAULT_EMAIL : emailto); //$NON-NLS-1$
+		json.name("duration").trimmedValue(smBuilder.getDuration()); //$NON-NLS-1$
+		json.name("samples").trimmedValue(smBuilder.getSamples()); //$NON-NLS-1$
+		json.name("limit").trimmedValue(smBuilder.getLimit()); //$NON-NLS-1$
+		json.name("finalAction").trimmedValue(smBuilder.getFinalAction()); //$NON-NLS-1$
+		json.name("hlq").trimmedValue(smBuilder.getHlq()); //$NON-NLS-1$
+		json.name("tranid").trimmedValue(smBuilder.getTransactionId()); //$NON-NLS-1$
+		json.name("initBy").value("CI"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		// adding api notification json
+		if (hasCallback())
+		{
+			boolean user = hasUserCallback();
+			json.name("apiNotificationData").beginObject(); //$NON-NLS-1$
+			json.name("method").value(user ? smBuilder.getMethod() : "POST"); //$NON-NLS-1$ //$NON-NLS-2$
+			json.name("returnURL").value(user ? smBuilder.getUrl() : callback.getUrl()); //$NON-NLS-1$
+			json.name("httpHeaders"); //$NON-NLS-1$
+			writeHeaders(json, user ? smBuilder.getHeaders() : callback.getHeaders());
+			json.name("body").value(user ? smBuilder.getBody() : ""); //$NON-NLS-1$ //$NON-NLS-2$
+			json.name("triggerType").value(0); //$NON-NLS-1$
+			json.name("events").value("*"); //$NON-NLS-1$ //$NON-NLS-2$
+			json.name("productID").value("STROBE"); //$NON-NLS-1$ //$NON-NLS-2$
+			json.name("productInstance").value("strobe"); //$NON-NLS-1$ //$NON-NLS-2$
+			json.name("resource").value(""); //$NON-NLS-1$ //$NON-NLS-2$
+			json.endObject();
+		}
+
+		json.endObject();
+		json.flush();
+	}
+
+	/**
+	 * Serializes the request payload into a byte array of exactly its size.
+	 * 
+	 * @return the UTF-8 encoded JSON payload
+	 * 
+	 * @throws IOException
+	 *             if the payload could not be written
+	 */
+	public byte[] toByteArray() throws IOException
+	{
+		ByteArrayOutputStream bytes = BYTES.get();
+		bytes.reset();
+		writeTo(bytes);
+		return bytes.toByteArray();
+	}
+
+	// the entered headers are colon and semicolon separated like k1:v1;k2:v2, the api wants [{"name":k1,"value":v1},...]
+	private static void writeHeaders(StrobeJsonWriter json, String headers) throws IOException
+	{
+		json.beginArray();
+		if (headers != null)
+		{
+			int start = 0;
+			while (start < headers.length())
+			{
+				int end = headers.indexOf(';', start);
+				if (end == -1)
+				{
+					end = headers.length();
+				}
+
+				if (end > start)
+				{
+					int colon = headers.indexOf(':', start);
+					int nameEnd = colon != -1 && colon < end ? colon : end;
+					int valueStart = Math.min(nameEnd + 1, end);
+
+					json.beginObject();
+					json.name("name").value(headers, start, nameEnd); //$NON-NLS-1$
+					json.name("value").value(headers, valueStart, end); //$NON-NLS-1$
+					json.endObject();
+				}
+
+				start = end + 1;
+			}
+		}
+		json.endArray();
+	}
+}
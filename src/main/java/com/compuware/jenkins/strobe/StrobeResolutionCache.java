@@ -0,0 +1,253 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import static com.cloudbees.plugins.credentials.CredentialsMatchers.filter;
+import static com.cloudbees.plugins.credentials.CredentialsMatchers.withId;
+import static com.cloudbees.plugins.credentials.CredentialsProvider.lookupCredentials;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.compuware.jenkins.common.configuration.CpwrGlobalConfiguration;
+import com.compuware.jenkins.common.configuration.HostConnection;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import hudson.util.Secret;
+import jenkins.util.SystemProperties;
+
+/**
+ * Remembers the secret tokens and host connections that measurement steps resolved, so that a busy controller does not
+ * scan every credential visible to a job on each submission. Tokens are keyed on the folder holding the job and the
+ * credential id, since that is what decides which credentials are visible; host connections are keyed on their
+ * connection id.
+ * <p>
+ * Everything is dropped when the system credentials, a folder, or the Compuware or Strobe global configuration is saved, and when
+ * an item is moved or deleted. Entries also expire after a while, for credential providers that are not backed by a
+ * saved Jenkins configuration file.
+ */
+public final class StrobeResolutionCache
+{
+	private static final StrobeResolutionCache INSTANCE = new StrobeResolutionCache();
+
+	private static final long TTL_NANOS = TimeUnit.SECONDS.toNanos(
+			SystemProperties.getInteger(StrobeResolutionCache.class.getName() + ".ttlSeconds", 300)); //$NON-NLS-1$
+
+	private final ConcurrentMap<String, Entry<Secret>> tokens = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Entry<HostConnection>> connections = new ConcurrentHashMap<>();
+
+	private final AtomicLong version = new AtomicLong();
+
+	private final AtomicLong credentialHits = new AtomicLong();
+	private final AtomicLong credentialMisses = new AtomicLong();
+	private final AtomicLong connectionHits = new AtomicLong();
+	private final AtomicLong connectionMisses = new AtomicLong();
+
+	private StrobeResolutionCache()
+	{
+	}
+
+	/**
+	 * @return the plugin wide resolution cache
+	 */
+	public static StrobeResolutionCache get()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the secret token of a secret text credential as seen by the given item.
+	 *
+	 * @param item
+	 *            the item the credential is looked up for, or <code>null</code> for the controller itself
+	 * @param credentialsId
+	 *            the id of the secret text credential
+	 *
+	 * @return the <code>Secret</code> token, or <code>null</code> if the credential does not exist
+	 */
+	public Secret getSecretToken(final Item item, final String credentialsId)
+	{
+		final String id = StringUtils.trimToEmpty(credentialsId);
+		String key = contextOf(item) + '\u0000' + id;
+
+		Entry<Secret> entry = tokens.get(key);
+		if (entry != null && entry.isExpired() == false)
+		{
+			credentialHits.incrementAndGet();
+			return entry.value;
+		}
+
+		credentialMisses.incrementAndGet();
+		List<StringCredentials> credentials = filter(lookupCredentials(StringCredentials.class, item, ACL.SYSTEM, Collections.<DomainRequirement> emptyList()), withId(id));
+		Secret token = null;
+		if (credentials != null && credentials.size() > 0) {
+			token = credentials.get(0).getSecret();
+		}
+
+		tokens.put(key, new Entry<>(token));
+		return token;
+	}
+
+	/**
+	 * Returns the host connection with the given connection id.
+	 *
+	 * @param connectionId
+	 *            the connection id of the host connection
+	 *
+	 * @return the <code>HostConnection</code>, or <code>null</code> if there is no host connection with that id
+	 */
+	public HostConnection getHostConnection(final String connectionId)
+	{
+		final String key = StringUtils.trimToEmpty(connectionId);
+
+		Entry<HostConnection> entry = connections.get(key);
+		if (entry != null && entry.isExpired() == false)
+		{
+			connectionHits.incrementAndGet();
+			return entry.value;
+		}
+
+		connectionMisses.incrementAndGet();
+		CpwrGlobalConfiguration globalConfig = CpwrGlobalConfiguration.get();
+		HostConnection hostConnection = globalConfig != null ? globalConfig.getHostConnection(key) : null;
+		connections.put(key, new Entry<>(hostConnection));
+		return hostConnection;
+	}
+
+	/**
+	 * Drops every cached token and host connection.
+	 */
+	public void invalidateAll()
+	{
+		version.incrementAndGet();
+		tokens.clear();
+		connections.clear();
+	}
+
+	/**
+	 * Returns a number that changes each time the cache is dropped, so that values derived from the configuration can
+	 * be cached against it.
+	 *
+	 * @return the current version of the cache
+	 */
+	public long getVersion()
+	{
+		return version.get();
+	}
+
+	public long getCredentialHits()
+	{
+		return credentialHits.get();
+	}
+
+	public long getCredentialMisses()
+	{
+		return credentialMisses.get();
+	}
+
+	public long getConnectionHits()
+	{
+		return connectionHits.get();
+	}
+
+	public long getConnectionMisses()
+	{
+		return connectionMisses.get();
+	}
+
+	// credentials are visible to a job through the folders holding it, so jobs in the same folder share their entries
+	private static String contextOf(Item item)
+	{
+		if (item == null)
+		{
+			return StringUtils.EMPTY;
+		}
+
+		ItemGroup<?> parent = item.getParent();
+		return parent != null ? parent.getFullName() : StringUtils.EMPTY;
+	}
+
+	private static final class Entry<T>
+	{
+		private final T value;
+		private final long created = System.nanoTime();
+
+		Entry(T value)
+		{
+			this.value = value;
+		}
+
+		boolean isExpired()
+		{
+			return System.nanoTime() - created > TTL_NANOS;
+		}
+	}
+
+	/**
+	 * Drops the cache when the system credentials, a folder's credentials, the host connections, or the CES endpoints are
+	 * saved.
+	 */
+	@Extension
+	public static final class SaveListener extends SaveableListener
+	{
+		@Override
+		public void onChange(Saveable o, XmlFile file)
+		{
+			if (o instanceof SystemCredentialsProvider || o instanceof CpwrGlobalConfiguration || o instanceof StrobeGlobalConfiguration
+					|| o instanceof ItemGroup)
+			{
+				get().invalidateAll();
+			}
+		}
+	}
+
+	/**
+	 * Drops the cache when an item is moved, renamed or deleted, since that changes which credentials it sees.
+	 */
+	@Extension
+	public static final class ItemChangeListener extends ItemListener
+	{
+		@Override
+		public void onLocationChanged(Item item, String oldFullName, String newFullName)
+		{
+			get().invalidateAll();
+		}
+
+		@Override
+		public void onDeleted(Item item)
+		{
+			get().invalidateAll();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import jenkins.util.SystemProperties;
+
+/**
+ * Consumes a CES reply as it arrives on the non-blocking client, decoding it chunk by chunk into a
+ * {@link StrobeJsonScanner}. The reply is never held in memory as a whole: once the parser has what it needs the rest is
+ * discarded, and a reply larger than the size cap, such as an HTML error page, fails the request.
+ *
+ * @param <T>
+ *            the type of the result built from the reply
+ */
+final class StrobeResponseConsumer<T> extends AbstractAsyncResponseConsumer<T>
+{
+	/** The maximum number of characters of a CES reply that are scanned. */
+	static final int MAX_RESPONSE_SIZE = SystemProperties.getInteger(StrobeResponseConsumer.class.getName() + ".maxResponseSize", 64 * 1024); //$NON-NLS-1$
+
+	private static final int BUFFER_SIZE = 2048;
+
+	private final StrobeResponseParser<T> parser;
+	private final StrobeJsonScanner scanner;
+
+	private int statusCode;
+	private long parseNanos;
+	private CharsetDecoder charsetDecoder;
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+	StrobeResponseConsumer(StrobeResponseParser<T> parser)
+	{
+		this.parser = parser;
+		this.scanner = new StrobeJsonScanner(parser, MAX_RESPONSE_SIZE);
+	}
+
+	@Override
+	protected void onResponseReceived(HttpResponse response)
+	{
+		statusCode = response.getStatusLine().getStatusCode();
+	}
+
+	@Override
+	protected void onEntityEnclosed(HttpEntity entity, ContentType contentType)
+	{
+		Charset charset = contentType != null && contentType.getCharset() != null ? contentType.getCharset() : StandardCharsets.UTF_8;
+		charsetDecoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	@Override
+	protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException
+	{
+		while (decoder.read(bytes) > 0)
+		{
+			bytes.flip();
+			if (scanner.isDone())
+			{
+				// the parser has what it needs, drain the rest so the connection can be reused
+				bytes.clear();
+				continue;
+			}
+
+			long start = System.nanoTime();
+			charsetDecoder.decode(bytes, chars, false);
+			chars.flip();
+			scanner.feed(chars);
+			chars.clear();
+			bytes.compact();
+			parseNanos += System.nanoTime() - start;
+		}
+	}
+
+	@Override
+	protected T buildResult(HttpContext context)
+	{
+		long start = System.nanoTime();
+		scanner.finish();
+		T result = parser.getResult(statusCode, scanner.getPrefix());
+		StrobeMetrics.get().record(StrobeMetrics.RESPONSE_PARSE, parseNanos + System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	protected void releaseResources()
+	{
+		// nothing is held beyond the two fixed size buffers
+	}
+}
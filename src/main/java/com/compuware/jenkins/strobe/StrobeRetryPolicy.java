@@ -0,0 +1,81 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Decides which failed measurement submissions are sent again and when. Only failures where CES cannot have created a
+ * measurement are retried: the connection could not be established, or a gateway in front of CES answered that CES was
+ * not available. A read timeout is never retried, since the measurement may have been created.
+ */
+final class StrobeRetryPolicy
+{
+	private static final long INITIAL_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+	private static final long MAX_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+
+	private StrobeRetryPolicy()
+	{
+	}
+
+	/**
+	 * @param e
+	 *            the failure of the HTTP exchange
+	 *
+	 * @return <code>true</code> if the request did not reach CES
+	 */
+	static boolean isRetryable(Throwable e)
+	{
+		return e instanceof ConnectException || e instanceof ConnectTimeoutException || e instanceof NoRouteToHostException
+				|| e instanceof UnknownHostException;
+	}
+
+	/**
+	 * @param statusCode
+	 *            the HTTP status code of the reply
+	 *
+	 * @return <code>true</code> if a gateway answered that CES was not available
+	 */
+	static boolean isRetryable(int statusCode)
+	{
+		return statusCode == HttpStatus.SC_BAD_GATEWAY || statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE
+				|| statusCode == HttpStatus.SC_GATEWAY_TIMEOUT;
+	}
+
+	/**
+	 * Returns the delay before a retry, doubling with each attempt up to a cap. Half of the delay is random so that
+	 * builds that failed together do not retry together.
+	 *
+	 * @param attempt
+	 *            the number of the retry, starting at 1
+	 *
+	 * @return the delay in milliseconds
+	 */
+	static long delay(int attempt)
+	{
+		long delay = Math.min(MAX_DELAY_MS, INITIAL_DELAY_MS << Math.min(attempt - 1, 16));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+}
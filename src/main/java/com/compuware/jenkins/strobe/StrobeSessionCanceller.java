@@ -0,0 +1,386 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+
+import hudson.init.Terminator;
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+import jenkins.util.Timer;
+
+/**
+ * Cancels the Strobe measurement sessions of builds that stopped waiting for them: a build that was aborted, a Pipeline
+ * step stopped by a timeout, and a freestyle build that was still waiting when Jenkins shut down. Otherwise the session
+ * keeps sampling on the mainframe until its duration or sample limit runs out, and leaves a profile nobody reads.
+ * Pipeline steps resume waiting after a restart, so their sessions are left alone at shutdown.
+ * <p>
+ * Builds whose identical requests were coalesced by the <code>StrobeRequestCoalescer</code> share one session. Every
+ * build waiting for a session holds a {@link Waiter}, and the session is only cancelled when the last of them gives
+ * up; a build that stops waiting earlier just leaves the others to it.
+ * <p>
+ * A session is cancelled by deleting it on CES. Cancellations are collected for a moment and then sent together, so
+ * that a mass abort is one burst of requests over the pooled connections, and a session cancelled twice is only
+ * deleted once.
+ */
+final class StrobeSessionCanceller
+{
+	private static final Logger LOGGER = Logger.getLogger(StrobeSessionCanceller.class.getName());
+
+	private static final StrobeSessionCanceller INSTANCE = new StrobeSessionCanceller();
+
+	// how long cancellations are collected before they are sent
+	private static final long BATCH_DELAY_MS = 500;
+
+	// how long Jenkins shutdown waits for the cancellations to be sent
+	private static final long SHUTDOWN_WAIT_SECONDS = 10;
+
+	static final String CANCELLED = "strobe-sessions-cancelled"; //$NON-NLS-1$
+
+	// sessions builds wait for, by session URL; guarded by itself
+	private final Map<String, Session> active = new HashMap<>();
+
+	// guarded by this
+	private Map<String, Session> queued = new LinkedHashMap<>();
+	private boolean drainScheduled;
+
+	private StrobeSessionCanceller()
+	{
+	}
+
+	/**
+	 * @return the plugin wide session canceller
+	 */
+	static StrobeSessionCanceller get()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Registers a build waiting for a session. The build gives up the session with {@link Waiter#cancel} or, once it no
+	 * longer needs it, with {@link Waiter#release}.
+	 * 
+	 * @param cesUrl
+	 *            the CES URL the measurement was submitted to
+	 * @param system
+	 *            the system (host connection description) the measurement runs on
+	 * @param sessionNumber
+	 *            the session request number returned by CES
+	 * @param token
+	 *            the CES secret token
+	 * @param cancelAtShutdown
+	 *            <code>true</code> if the build cannot resume waiting after a restart, so that the session is cancelled
+	 *            if Jenkins shuts down first
+	 * 
+	 * @return the handle of the waiting build
+	 */
+	Waiter track(String cesUrl, String system, int sessionNumber, Secret token, boolean cancelAtShutdown)
+	{
+		String url = StrobeSessionPoller.sessionUrl(cesUrl, system, sessionNumber);
+		synchronized (active)
+		{
+			Session session = active.get(url);
+			if (session == null)
+			{
+				session = new Session(cesUrl, system, sessionNumber, token);
+				active.put(url, session);
+			}
+
+			session.waiters++;
+			if (cancelAtShutdown)
+			{
+				session.shutdownWaiters++;
+			}
+			return new Waiter(session, cancelAtShutdown);
+		}
+	}
+
+	/**
+	 * Removes a waiting build from its session.
+	 * 
+	 * @return <code>true</code> if it was the last build waiting for the session
+	 */
+	private boolean leave(Waiter waiter)
+	{
+		Session session = waiter.session;
+		synchronized (active)
+		{
+			session.waiters--;
+			if (waiter.cancelAtShutdown)
+			{
+				session.shutdownWaiters--;
+			}
+
+			if (session.waiters > 0)
+			{
+				return false;
+			}
+
+			active.remove(session.url, session);
+			return true;
+		}
+	}
+
+	/**
+	 * Cancels the sessions of the builds that were still waiting when Jenkins shuts down. Runs before the CES connection
+	 * pools are closed.
+	 */
+	@Terminator(attains = CANCELLED)
+	public static void cancelActiveSessions()
+	{
+		get().cancelActive();
+	}
+
+	private void cancelActive()
+	{
+		if (isEnabled() == false)
+		{
+			return;
+		}
+
+		// a session a Pipeline step also waits for is left to the step, which resumes after the restart
+		List<Session> sessions = new ArrayList<>();
+		synchronized (active)
+		{
+			for (Session session : active.values())
+			{
+				if (session.shutdownWaiters == session.waiters)
+				{
+					sessions.add(session);
+				}
+			}
+			active.values().removeAll(sessions);
+		}
+
+		if (sessions.isEmpty())
+		{
+			return;
+		}
+
+		List<CompletableFuture<Void>> done = new ArrayList<>();
+		for (Session session : sessions)
+		{
+			done.add(session.done);
+			send(session);
+		}
+
+		try
+		{
+			CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[0])).get(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException | TimeoutException e)
+		{
+			LOGGER.log(Level.WARNING, "Not all Strobe measurement sessions could be cancelled before shutdown", e); //$NON-NLS-1$
+		}
+	}
+
+	private void enqueue(Session session)
+	{
+		synchronized (this)
+		{
+			if (queued.putIfAbsent(session.url, session) != null || drainScheduled)
+			{
+				return;
+			}
+
+			drainScheduled = true;
+		}
+
+		Timer.get().schedule(this::drain, BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private void drain()
+	{
+		Map<String, Session> batch;
+		synchronized (this)
+		{
+			batch = queued;
+			queued = new LinkedHashMap<>();
+			drainScheduled = false;
+		}
+
+		for (Session session : batch.values())
+		{
+			send(session);
+		}
+	}
+
+	private void send(final Session session)
+	{
+		HttpDelete delete = new HttpDelete(session.url);
+		delete.setConfig(StrobeHttpClientManager.get().getRequestConfig());
+		if (session.token != null)
+		{
+			delete.addHeader("Authorization", session.token.getPlainText());
+		}
+
+		try
+		{
+			StrobeHttpClientManager.get().getAsyncClient(session.cesUrl).execute(HttpAsyncMethods.create(delete),
+					new StrobeResponseConsumer<>(new StatusCodeParser()), null, new FutureCallback<Integer>()
+			{
+				@Override
+				public void completed(Integer statusCode)
+				{
+					// a session that has ended in the meantime is no longer there to cancel
+					if (statusCode >= 300 && statusCode != 404)
+					{
+						LOGGER.log(Level.WARNING, "CES answered HTTP {0} to the cancellation of Strobe measurement session {1}", //$NON-NLS-1$
+								new Object[] { statusCode, String.valueOf(session.sessionNumber) });
+					}
+					session.done.complete(null);
+				}
+
+				@Override
+				public void failed(Exception e)
+				{
+					LOGGER.log(Level.WARNING, "Unable to cancel Strobe measurement session " + session.sessionNumber, e); //$NON-NLS-1$
+					session.done.complete(null);
+				}
+
+				@Override
+				public void cancelled()
+				{
+					session.done.complete(null);
+				}
+			});
+		}
+		catch (IOException | RuntimeException e)
+		{
+			LOGGER.log(Level.WARNING, "Unable to cancel Strobe measurement session " + session.sessionNumber, e); //$NON-NLS-1$
+			session.done.complete(null);
+		}
+	}
+
+	private static boolean isEnabled()
+	{
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		return config == null || config.isCancelOnAbort();
+	}
+
+	/**
+	 * A build waiting for a session.
+	 */
+	final class Waiter
+	{
+		private final Session session;
+		private final boolean cancelAtShutdown;
+		private final AtomicBoolean left = new AtomicBoolean();
+
+		private Waiter(Session session, boolean cancelAtShutdown)
+		{
+			this.session = session;
+			this.cancelAtShutdown = cancelAtShutdown;
+		}
+
+		/**
+		 * Gives up the session because the build stopped waiting for it. The session is cancelled if no other build waits
+		 * for it; the cancellation is sent with the next batch, the caller does not wait for it.
+		 * 
+		 * @param listener
+		 *            Build listener
+		 */
+		void cancel(TaskListener listener)
+		{
+			if (left.compareAndSet(false, true) == false)
+			{
+				return;
+			}
+
+			String sessionNumber = String.valueOf(session.sessionNumber);
+			if (leave(this) == false)
+			{
+				listener.getLogger().println(Messages.strobeSessionShared(sessionNumber));
+			}
+			else if (isEnabled() && session.sessionNumber > 0)
+			{
+				listener.getLogger().println(Messages.strobeSessionCancelling(sessionNumber));
+				enqueue(session);
+			}
+		}
+
+		/**
+		 * Stops waiting for the session without cancelling it, once the build no longer needs it. Does nothing after
+		 * {@link #cancel}.
+		 */
+		void release()
+		{
+			if (left.compareAndSet(false, true))
+			{
+				leave(this);
+			}
+		}
+	}
+
+	private static final class Session
+	{
+		private final String cesUrl;
+		private final String url;
+		private final int sessionNumber;
+		private final Secret token;
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		// guarded by the map of active sessions
+		private int waiters;
+		private int shutdownWaiters;
+
+		Session(String cesUrl, String system, int sessionNumber, Secret token)
+		{
+			this.cesUrl = cesUrl;
+			this.url = StrobeSessionPoller.sessionUrl(cesUrl, system, sessionNumber);
+			this.sessionNumber = sessionNumber;
+			this.token = token;
+		}
+	}
+
+	// only the status code of the reply matters
+	private static final class StatusCodeParser implements StrobeResponseParser<Integer>
+	{
+		@Override
+		public boolean visit(String name, String value)
+		{
+			return false;
+		}
+
+		@Override
+		public Integer getResult(int statusCode, String responsePrefix)
+		{
+			return statusCode;
+		}
+	}
+}
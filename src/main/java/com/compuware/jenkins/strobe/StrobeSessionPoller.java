@@ -0,0 +1,552 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+
+import hudson.AbortException;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.Secret;
+import jenkins.util.Timer;
+
+/**
+ * Tracks Strobe measurement sessions until they end. All sessions are polled from the shared Jenkins timer using the
+ * non-blocking HTTP client, so no thread sleeps on behalf of a build. Builds waiting for the same session share its
+ * polls, and the number of status requests in flight against one CES host is capped so that many builds waiting
+ * together do not flood CES.
+ * <p>
+ * A reply that shows the session cannot be read, because the token is refused or CES does not know the session, ends
+ * the wait with a failure at once. Server errors and replies without a status are treated like an unreachable CES: the
+ * session is polled again, and the wait fails once too many polls in a row went unanswered.
+ */
+public final class StrobeSessionPoller
+{
+	private static final Logger LOGGER = Logger.getLogger(StrobeSessionPoller.class.getName());
+
+	private static final StrobeSessionPoller INSTANCE = new StrobeSessionPoller();
+
+	// GET {cesUrl}/strobe/measurement/{system}/{session request number}
+	private static final String STATUS_PATH = "/strobe/measurement/"; //$NON-NLS-1$
+
+	private static final int MAX_CONCURRENT_POLLS_PER_HOST = 4;
+	private static final long BUSY_HOST_DELAY_MS = 1000;
+
+	// the number of polls in a row that may fail before the wait for the session fails
+	static final int MAX_FAILED_POLLS = 10;
+
+	private final Map<String, PolledSession> sessions = new LinkedHashMap<>();
+	private final ConcurrentMap<String, AtomicInteger> hostPolls = new ConcurrentHashMap<>();
+
+	private StrobeSessionPoller()
+	{
+	}
+
+	/**
+	 * @return the plugin wide session poller
+	 */
+	public static StrobeSessionPoller get()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Waits for a measurement session to end without blocking the calling thread.
+	 * 
+	 * @param cesUrl
+	 *            the CES URL the measurement was submitted to
+	 * @param system
+	 *            the system (host connection description) the measurement runs on
+	 * @param sessionNumber
+	 *            the session request number returned by CES
+	 * @param token
+	 *            the CES secret token
+	 * @param schedule
+	 *            the polling schedule for the session
+	 * @param timeout
+	 *            how long to wait for the session to end
+	 * @param unit
+	 *            the unit of <code>timeout</code>
+	 * @param listener
+	 *            Build listener that is told about status changes
+	 * @param agent
+	 *            the channel of the build agent that sends the status requests, or <code>null</code> to send them from
+	 *            the controller; a session that is already being polled keeps the channel it was first polled with
+	 * 
+	 * @return a <code>CompletableFuture</code> completed with the final <code>MeasurementStatus</code>, or
+	 *         {@link MeasurementStatus#TIMED_OUT} when the timeout expires first; completing it early stops waiting
+	 */
+	public CompletableFuture<MeasurementStatus> await(String cesUrl, String system, int sessionNumber, Secret token,
+			StrobePollingSchedule schedule, long timeout, TimeUnit unit, TaskListener listener, VirtualChannel agent)
+	{
+		final String key = sessionKey(cesUrl, system, sessionNumber);
+		final CompletableFuture<MeasurementStatus> waiter = new CompletableFuture<>();
+
+		final PolledSession session;
+		synchronized (sessions)
+		{
+			PolledSession existing = sessions.get(key);
+			if (existing == null)
+			{
+				session = new PolledSession(key, cesUrl, system, sessionNumber, token, schedule, agent);
+				sessions.put(key, session);
+				session.waiters.put(waiter, listener);
+				session.scheduleNext();
+			}
+			else
+			{
+				session = existing;
+				session.waiters.put(waiter, listener);
+			}
+		}
+
+		final ScheduledFuture<?> timeoutTask = Timer.get().schedule(() -> waiter.complete(MeasurementStatus.TIMED_OUT), timeout, unit);
+		waiter.whenComplete((status, failure) -> {
+			timeoutTask.cancel(false);
+			session.removeWaiter(waiter);
+		});
+
+		return waiter;
+	}
+
+	/**
+	 * @return the number of measurement sessions being waited for
+	 */
+	public int getSessionCount()
+	{
+		synchronized (sessions)
+		{
+			return sessions.size();
+		}
+	}
+
+	/**
+	 * Called when CES sent a callback for a session. A final status ends the wait right away; otherwise the session is
+	 * polled now instead of at its next scheduled poll.
+	 * 
+	 * @param cesUrl
+	 *            the CES URL the measurement was submitted to
+	 * @param system
+	 *            the system (host connection description) the measurement runs on
+	 * @param sessionNumber
+	 *            the session request number returned by CES
+	 * @param status
+	 *            the status sent with the callback, or <code>null</code>
+	 */
+	public void onCallback(String cesUrl, String system, int sessionNumber, String status)
+	{
+		PolledSession session;
+		synchronized (sessions)
+		{
+			session = sessions.get(sessionKey(cesUrl, system, sessionNumber));
+		}
+
+		if (session == null)
+		{
+			return;
+		}
+
+		if (status != null && MeasurementStatus.fromCesStatus(status).isFinal())
+		{
+			session.onStatus(status);
+		}
+		else
+		{
+			session.pollNow();
+		}
+	}
+
+	/**
+	 * @param cesUrl
+	 *            the CES URL the measurement was submitted to
+	 * @param system
+	 *            the system (host connection description) the measurement runs on
+	 * @param sessionNumber
+	 *            the session request number returned by CES
+	 * 
+	 * @return the URL CES serves the session under
+	 */
+	static String sessionUrl(String cesUrl, String system, int sessionNumber)
+	{
+		return StringUtils.removeEnd(cesUrl, "/") + STATUS_PATH + encode(system) + '/' + sessionNumber;
+	}
+
+	private static String sessionKey(String cesUrl, String system, int sessionNumber)
+	{
+		return StringUtils.removeEnd(StringUtils.trimToEmpty(cesUrl), "/") + '|' + system + '|' + sessionNumber;
+	}
+
+	private AtomicInteger hostPolls(String cesUrl)
+	{
+		return hostPolls.computeIfAbsent(cesUrl, url -> new AtomicInteger());
+	}
+
+	/**
+	 * The reply of CES to a status request: its HTTP status code and the status of the session, if it had one.
+	 */
+	static final class StatusReply implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int statusCode;
+		private final String status;
+
+		StatusReply(int statusCode, String status)
+		{
+			this.statusCode = statusCode;
+			this.status = status;
+		}
+
+		int getStatusCode()
+		{
+			return statusCode;
+		}
+
+		String getStatus()
+		{
+			return status;
+		}
+
+		/**
+		 * @return whether CES refused the request or does not know the session, so that polling again will not help
+		 */
+		boolean isRejected()
+		{
+			return statusCode == HttpStatus.SC_UNAUTHORIZED || statusCode == HttpStatus.SC_FORBIDDEN || statusCode == HttpStatus.SC_NOT_FOUND;
+		}
+
+		/**
+		 * @return whether the reply carries the status of the session
+		 */
+		boolean isValid()
+		{
+			return statusCode >= 200 && statusCode < 300 && status != null;
+		}
+	}
+
+	// only the first status in the reply is of interest, so scanning stops as soon as it has been seen
+	static final class StatusParser implements StrobeResponseParser<StatusReply>
+	{
+		private String status;
+
+		@Override
+		public boolean visit(String name, String value)
+		{
+			if ("status".equals(name) && value != null) //$NON-NLS-1$
+			{
+				status = value;
+				return false;
+			}
+
+			return true;
+		}
+
+		@Override
+		public StatusReply getResult(int statusCode, String responsePrefix)
+		{
+			return new StatusReply(statusCode, status);
+		}
+	}
+
+	private final class PolledSession
+	{
+		private final String key;
+		private final String cesUrl;
+		private final String statusUrl;
+		private final int sessionNumber;
+		private final Secret token;
+		private final StrobePollingSchedule schedule;
+		private final VirtualChannel agent;
+
+		// guarded by the sessions lock
+		private final Map<CompletableFuture<MeasurementStatus>, TaskListener> waiters = new LinkedHashMap<>();
+		private int attempt;
+		private int failedPolls;
+		private String lastStatus;
+		private ScheduledFuture<?> nextPoll;
+		private boolean finished;
+
+		PolledSession(String key, String cesUrl, String system, int sessionNumber, Secret token, StrobePollingSchedule schedule,
+				VirtualChannel agent)
+		{
+			this.key = key;
+			this.cesUrl = cesUrl;
+			this.statusUrl = sessionUrl(cesUrl, system, sessionNumber);
+			this.sessionNumber = sessionNumber;
+			this.token = token;
+			this.schedule = schedule;
+			this.agent = agent;
+		}
+
+		void scheduleNext()
+		{
+			scheduleIn(schedule.nextDelay(attempt++));
+		}
+
+		void scheduleIn(long delayMs)
+		{
+			synchronized (sessions)
+			{
+				if (finished == false)
+				{
+					nextPoll = Timer.get().schedule(this::poll, delayMs, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+
+		// a poll that is already running is not doubled, its reply is about to arrive anyway
+		void pollNow()
+		{
+			synchronized (sessions)
+			{
+				if (finished == false && nextPoll != null && nextPoll.cancel(false))
+				{
+					nextPoll = Timer.get().schedule(this::poll, 0, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+
+		void poll()
+		{
+			final AtomicInteger inFlight = hostPolls(cesUrl);
+			if (inFlight.incrementAndGet() > MAX_CONCURRENT_POLLS_PER_HOST)
+			{
+				inFlight.decrementAndGet();
+				scheduleIn(BUSY_HOST_DELAY_MS + ThreadLocalRandom.current().nextLong(BUSY_HOST_DELAY_MS));
+				return;
+			}
+
+			try
+			{
+				FutureCallback<StatusReply> callback = new FutureCallback<StatusReply>()
+				{
+					@Override
+					public void completed(StatusReply reply)
+					{
+						inFlight.decrementAndGet();
+						try
+						{
+							onReply(reply);
+						}
+						catch (RuntimeException e)
+						{
+							retry(e);
+						}
+					}
+
+					@Override
+					public void failed(Exception e)
+					{
+						inFlight.decrementAndGet();
+						retry(e);
+					}
+
+					@Override
+					public void cancelled()
+					{
+						inFlight.decrementAndGet();
+						scheduleNext();
+					}
+				};
+
+				if (agent != null)
+				{
+					StrobeAgentTransport.execute(agent, new StrobeAgentTransport.StatusRequest(statusUrl, token, StrobeAgentTransport.timeouts()),
+							callback);
+					return;
+				}
+
+				HttpGet get = new HttpGet(statusUrl);
+				get.setConfig(StrobeHttpClientManager.get().getRequestConfig());
+				if (token != null)
+				{
+					get.addHeader("Authorization", token.getPlainText());
+				}
+
+				StrobeHttpClientManager.get().getAsyncClient(cesUrl).execute(HttpAsyncMethods.create(get),
+						new StrobeResponseConsumer<>(new StatusParser()), null, callback);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				inFlight.decrementAndGet();
+				retry(e);
+			}
+		}
+
+		void onReply(StatusReply reply)
+		{
+			if (reply.isRejected())
+			{
+				fail(new AbortException(Messages.errorSessionStatus(reply.getStatusCode(), String.valueOf(sessionNumber))));
+			}
+			else if (reply.isValid() == false)
+			{
+				retry(new IOException(Messages.errorProfileStatus(reply.getStatusCode())));
+			}
+			else
+			{
+				synchronized (sessions)
+				{
+					failedPolls = 0;
+				}
+				onStatus(reply.getStatus());
+			}
+		}
+
+		// a failed poll is not fatal, the session is polled again unless too many polls in a row have failed
+		void retry(Exception e)
+		{
+			LOGGER.log(Level.FINE, "Unable to get the status of measurement session " + sessionNumber, e); //$NON-NLS-1$
+			boolean givenUp;
+			synchronized (sessions)
+			{
+				givenUp = ++failedPolls >= MAX_FAILED_POLLS;
+			}
+
+			if (givenUp)
+			{
+				fail(new AbortException(Messages.errorSessionUnreachable(String.valueOf(sessionNumber), MAX_FAILED_POLLS, e.getMessage())));
+			}
+			else
+			{
+				scheduleNext();
+			}
+		}
+
+		void onStatus(String status)
+		{
+			MeasurementStatus measurementStatus = MeasurementStatus.fromCesStatus(status);
+
+			List<TaskListener> listeners = new ArrayList<>();
+			synchronized (sessions)
+			{
+				if (status != null && status.equals(lastStatus) == false)
+				{
+					lastStatus = status;
+					listeners.addAll(waiters.values());
+				}
+			}
+
+			for (TaskListener listener : listeners)
+			{
+				listener.getLogger().println("Session Request Number " + sessionNumber + " status=" + status);
+			}
+
+			if (measurementStatus.isFinal())
+			{
+				finish(measurementStatus);
+			}
+			else
+			{
+				scheduleNext();
+			}
+		}
+
+		void finish(MeasurementStatus status)
+		{
+			List<CompletableFuture<MeasurementStatus>> toComplete;
+			synchronized (sessions)
+			{
+				finished = true;
+				sessions.remove(key, this);
+				toComplete = new ArrayList<>(waiters.keySet());
+				if (nextPoll != null)
+				{
+					nextPoll.cancel(false);
+				}
+			}
+
+			for (CompletableFuture<MeasurementStatus> waiter : toComplete)
+			{
+				waiter.complete(status);
+			}
+		}
+
+		void fail(Exception e)
+		{
+			List<CompletableFuture<MeasurementStatus>> toFail;
+			synchronized (sessions)
+			{
+				finished = true;
+				sessions.remove(key, this);
+				toFail = new ArrayList<>(waiters.keySet());
+				if (nextPoll != null)
+				{
+					nextPoll.cancel(false);
+				}
+			}
+
+			for (CompletableFuture<MeasurementStatus> waiter : toFail)
+			{
+				waiter.completeExceptionally(e);
+			}
+		}
+
+		// stop polling once nobody is waiting for the session anymore
+		void removeWaiter(CompletableFuture<MeasurementStatus> waiter)
+		{
+			synchronized (sessions)
+			{
+				waiters.remove(waiter);
+				if (waiters.isEmpty() && finished == false)
+				{
+					finished = true;
+					sessions.remove(key, this);
+					if (nextPoll != null)
+					{
+						nextPoll.cancel(false);
+					}
+				}
+			}
+		}
+	}
+
+	private static String encode(String value)
+	{
+		try
+		{
+			return URLEncoder.encode(StringUtils.trimToEmpty(value), "UTF-8").replace("+", "%20"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,479 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Maps the programs of a profile to the COBOL sources and compile listings checked out into the build workspace, so
+ * the top CPU consumers on the build page point at the source that runs. The control section of a COBOL program is
+ * named after its <code>PROGRAM-ID</code>, and each program is located at its <code>PROCEDURE DIVISION</code>.
+ * <p>
+ * The index is kept in the workspace next to the downloaded profiles, one entry per source file with its modification
+ * time and size and the programs found in it. When the profile of the next build is mapped, the workspace is walked
+ * again, but only the files that are new or changed since are read, so a workspace with thousands of members is
+ * scanned once and then merely listed. The index is built and read where the workspace is.
+ */
+final class StrobeSourceIndex
+{
+	// the file the index is kept in, in the profile directory of the workspace
+	static final String INDEX_FILE = "source-index.txt"; //$NON-NLS-1$
+
+	private static final String HEADER = "# Strobe source index 1"; //$NON-NLS-1$
+	private static final String FILE_RECORD = "F"; //$NON-NLS-1$
+	private static final String PROGRAM_RECORD = "P"; //$NON-NLS-1$
+	private static final char TAB = '\t';
+
+	private static final Set<String> SOURCE_EXTENSIONS = new HashSet<>(Arrays.asList("cbl", "cob", "cobol")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	private static final Set<String> LISTING_EXTENSIONS = new HashSet<>(Arrays.asList("lst", "list", "listing")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+	// the external name of a program is at most eight characters long
+	private static final int NAME_SIZE = 8;
+
+	private final Map<String, Member> members;
+	private int rescanned;
+	private boolean changed;
+
+	private StrobeSourceIndex(Map<String, Member> members)
+	{
+		this.members = members;
+	}
+
+	/**
+	 * Maps the modules and control sections of a profile to their sources in the workspace. A workspace that cannot be
+	 * indexed is reported in the build log and leaves the profile without sources, it does not fail the build.
+	 * 
+	 * @param workspace
+	 *            the workspace the sources are checked out into
+	 * @param summary
+	 *            the summary of the profile
+	 * @param listener
+	 *            Build listener
+	 * 
+	 * @return the source location, as the workspace relative path and line, of each module or control section found
+	 * 
+	 * @throws InterruptedException
+	 *             if the build was interrupted while the workspace was indexed
+	 */
+	static Map<String, String> locate(FilePath workspace, StrobeProfileSummary summary, TaskListener listener) throws InterruptedException
+	{
+		Set<String> names = new HashSet<>();
+		for (StrobeProfileSummary.Entry entry : summary.getSections())
+		{
+			names.add(entry.getSection());
+			names.add(entry.getModule());
+		}
+		for (StrobeProfileSummary.Entry entry : summary.getModules())
+		{
+			names.add(entry.getModule());
+		}
+
+		try
+		{
+			Lookup lookup = workspace.act(new LocateCallable(names));
+			listener.getLogger().println(Messages.sourceIndexUpdated(lookup.indexed, lookup.rescanned, lookup.locations.size()));
+			return lookup.locations;
+		}
+		catch (IOException e)
+		{
+			listener.getLogger().println(Messages.sourceIndexFailed(e.getMessage()));
+			return Collections.emptyMap();
+		}
+	}
+
+	/**
+	 * Brings the index of a workspace up to date with its sources, saving it if anything changed.
+	 * 
+	 * @param root
+	 *            the workspace
+	 * 
+	 * @return the <code>StrobeSourceIndex</code> of the workspace
+	 * 
+	 * @throws IOException
+	 *             if the workspace could not be walked or the index could not be saved
+	 */
+	static StrobeSourceIndex update(File root) throws IOException
+	{
+		File indexFile = new File(new File(root, StrobeProfileDownloader.PROFILE_DIRECTORY), INDEX_FILE);
+		final Map<String, Member> previous = load(indexFile);
+		final StrobeSourceIndex index = new StrobeSourceIndex(new TreeMap<String, Member>());
+		final Path rootPath = root.toPath();
+
+		Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+			{
+				String name = dir.getFileName() != null ? dir.getFileName().toString() : ""; //$NON-NLS-1$
+				boolean skipped = dir.equals(rootPath) == false
+						&& (name.startsWith(".") || dir.equals(rootPath.resolve(StrobeProfileDownloader.PROFILE_DIRECTORY))); //$NON-NLS-1$
+				return skipped ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				Boolean listing = kind(file.getFileName().toString());
+				if (listing == null || attrs.isRegularFile() == false)
+				{
+					return FileVisitResult.CONTINUE;
+				}
+
+				String path = rootPath.relativize(file).toString().replace('\\', '/');
+				long lastModified = attrs.lastModifiedTime().toMillis();
+				Member member = previous.get(path);
+				if (member == null || member.lastModified != lastModified || member.size != attrs.size())
+				{
+					member = new Member(lastModified, attrs.size(), scan(file, listing));
+					index.rescanned++;
+					index.changed = true;
+				}
+				index.members.put(path, member);
+				return FileVisitResult.CONTINUE;
+			}
+
+			// a member that disappears or cannot be read while the workspace is walked is left out of the index
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc)
+			{
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		if (index.changed || index.members.keySet().equals(previous.keySet()) == false)
+		{
+			index.save(indexFile);
+		}
+
+		return index;
+	}
+
+	/**
+	 * @return the number of source files in the index
+	 */
+	int size()
+	{
+		return members.size();
+	}
+
+	/**
+	 * @return the number of source files read by the last update, because they were new or changed
+	 */
+	int getRescanned()
+	{
+		return rescanned;
+	}
+
+	/**
+	 * Finds the programs with the given names. When several files hold a program of the same name, a source is
+	 * preferred to a compile listing, and otherwise the first file by path is taken.
+	 * 
+	 * @param names
+	 *            the module and control section names
+	 * 
+	 * @return the workspace relative path and line of each program found, by name
+	 */
+	Map<String, String> find(Set<String> names)
+	{
+		Map<String, String> locations = new HashMap<>();
+		Set<String> fromListing = new HashSet<>();
+		for (Map.Entry<String, Member> member : members.entrySet())
+		{
+			for (Program program : member.getValue().programs)
+			{
+				if (names.contains(program.name) && (locations.containsKey(program.name) == false
+						|| (fromListing.contains(program.name) && program.listing == false)))
+				{
+					locations.put(program.name, member.getKey() + ':' + program.line);
+					if (program.listing)
+					{
+						fromListing.add(program.name);
+					}
+					else
+					{
+						fromListing.remove(program.name);
+					}
+				}
+			}
+		}
+
+		return locations;
+	}
+
+	// TRUE for a compile listing, FALSE for a source, null for a file that is neither
+	private static Boolean kind(String fileName)
+	{
+		int dot = fileName.lastIndexOf('.');
+		String extension = dot >= 0 ? fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH) : ""; //$NON-NLS-1$
+		if (SOURCE_EXTENSIONS.contains(extension))
+		{
+			return Boolean.FALSE;
+		}
+
+		return LISTING_EXTENSIONS.contains(extension) ? Boolean.TRUE : null;
+	}
+
+	/**
+	 * Reads the programs of a source or compile listing. Each <code>PROGRAM-ID</code> starts a program, which is located
+	 * at the <code>PROCEDURE DIVISION</code> that follows it, or at the <code>PROGRAM-ID</code> itself if there is none.
+	 * The member name is indexed too, at the first program, as load modules are usually named after their member.
+	 */
+	private static List<Program> scan(Path file, boolean listing) throws IOException
+	{
+		List<Program> programs = new ArrayList<>();
+		String pendingName = null;
+		int pendingLine = 0;
+
+		// the sources are checked out from the mainframe, so they are read byte by byte rather than failing on an odd character
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1))
+		{
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				if (listing == false && line.length() > 6 && (line.charAt(6) == '*' || line.charAt(6) == '/'))
+				{
+					continue;
+				}
+
+				String upper = line.toUpperCase(Locale.ENGLISH);
+				int programId = upper.indexOf("PROGRAM-ID"); //$NON-NLS-1$
+				if (programId >= 0)
+				{
+					String name = programName(upper.substring(programId + "PROGRAM-ID".length())); //$NON-NLS-1$
+					if (name != null)
+					{
+						if (pendingName != null)
+						{
+							programs.add(new Program(pendingName, pendingLine, listing));
+						}
+						pendingName = name;
+						pendingLine = lineNumber;
+					}
+				}
+				else if (pendingName != null && upper.contains("PROCEDURE DIVISION")) //$NON-NLS-1$
+				{
+					programs.add(new Program(pendingName, lineNumber, listing));
+					pendingName = null;
+				}
+			}
+		}
+		catch (NoSuchFileException e)
+		{
+			return Collections.emptyList();
+		}
+
+		if (pendingName != null)
+		{
+			programs.add(new Program(pendingName, pendingLine, listing));
+		}
+
+		String fileName = file.getFileName().toString();
+		String member = externalName(fileName.substring(0, fileName.lastIndexOf('.')).toUpperCase(Locale.ENGLISH));
+		if (programs.isEmpty() == false && member != null && member.equals(programs.get(0).name) == false)
+		{
+			programs.add(new Program(member, programs.get(0).line, listing));
+		}
+
+		return programs;
+	}
+
+	// the name following PROGRAM-ID, quoted or not, as the external name of the program
+	private static String programName(String rest)
+	{
+		String[] tokens = rest.replaceFirst("^[\\s.]+", "").split("[\\s.]+", 2); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		return tokens.length > 0 ? externalName(tokens[0].replace("'", "").replace("\"", "")) : null; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+
+	// a program name becomes a control section name of at most eight characters, with its hyphens turned into zeros
+	private static String externalName(String name)
+	{
+		if (name.matches("[A-Z0-9$#@-]+") == false) //$NON-NLS-1$
+		{
+			return null;
+		}
+
+		String external = name.replace('-', '0');
+		return external.length() > NAME_SIZE ? external.substring(0, NAME_SIZE) : external;
+	}
+
+	// an index that is missing or not readable is built again from scratch
+	private static Map<String, Member> load(File indexFile) throws IOException
+	{
+		Map<String, Member> members = new HashMap<>();
+		if (indexFile.isFile() == false)
+		{
+			return members;
+		}
+
+		try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8))
+		{
+			if (HEADER.equals(reader.readLine()) == false)
+			{
+				return members;
+			}
+
+			String line;
+			List<Program> programs = null;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] fields = line.split("\t"); //$NON-NLS-1$
+				if (FILE_RECORD.equals(fields[0]) && fields.length == 4)
+				{
+					programs = new ArrayList<>();
+					members.put(fields[1], new Member(Long.parseLong(fields[2]), Long.parseLong(fields[3]), programs));
+				}
+				else if (PROGRAM_RECORD.equals(fields[0]) && fields.length == 4 && programs != null)
+				{
+					programs.add(new Program(fields[1], Integer.parseInt(fields[2]), Boolean.parseBoolean(fields[3])));
+				}
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			members.clear();
+		}
+
+		return members;
+	}
+
+	// written to a temporary file first, so a build reading the index never sees it half written
+	private void save(File indexFile) throws IOException
+	{
+		Files.createDirectories(indexFile.getParentFile().toPath());
+		Path temporary = Files.createTempFile(indexFile.getParentFile().toPath(), INDEX_FILE, ".tmp"); //$NON-NLS-1$
+		try
+		{
+			try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8))
+			{
+				writer.write(HEADER);
+				writer.newLine();
+				for (Map.Entry<String, Member> entry : members.entrySet())
+				{
+					Member member = entry.getValue();
+					writer.write(FILE_RECORD + TAB + entry.getKey() + TAB + member.lastModified + TAB + member.size);
+					writer.newLine();
+					for (Program program : member.programs)
+					{
+						writer.write(PROGRAM_RECORD + TAB + program.name + TAB + program.line + TAB + program.listing);
+						writer.newLine();
+					}
+				}
+			}
+
+			Files.move(temporary, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	private static final class Member
+	{
+		private final long lastModified;
+		private final long size;
+		private final List<Program> programs;
+
+		Member(long lastModified, long size, List<Program> programs)
+		{
+			this.lastModified = lastModified;
+			this.size = size;
+			this.programs = programs;
+		}
+	}
+
+	private static final class Program
+	{
+		private final String name;
+		private final int line;
+		private final boolean listing;
+
+		Program(String name, int line, boolean listing)
+		{
+			this.name = name;
+			this.line = line;
+			this.listing = listing;
+		}
+	}
+
+	// what the lookup found, sent back from where the workspace is
+	private static final class Lookup implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int indexed;
+		private final int rescanned;
+		private final HashMap<String, String> locations;
+
+		Lookup(int indexed, int rescanned, Map<String, String> locations)
+		{
+			this.indexed = indexed;
+			this.rescanned = rescanned;
+			this.locations = new HashMap<>(locations);
+		}
+	}
+
+	// updates the index and looks the names up next to the sources, so neither travels to the controller
+	private static final class LocateCallable extends MasterToSlaveFileCallable<Lookup>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final HashSet<String> names;
+
+		LocateCallable(Set<String> names)
+		{
+			this.names = new HashSet<>(names);
+		}
+
+		@Override
+		public Lookup invoke(File workspace, VirtualChannel channel) throws IOException
+		{
+			StrobeSourceIndex index = update(workspace);
+			return new Lookup(index.size(), index.getRescanned(), index.find(names));
+		}
+	}
+}
@@ -0,0 +1,414 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Remembers which measurement requests CES accepted, so that a non-blocking Pipeline step resumed after a controller
+ * restart re-attaches to the session it already created instead of queuing a second measurement on the mainframe.
+ * Entries are keyed on the build, the flow node of the step, the job name and the profile name. A step run again by
+ * <code>retry</code> is a new flow node, and submits a new measurement.
+ * <p>
+ * The journal is a text file in the Jenkins home directory that is only ever appended to, one line per accepted
+ * request, and forced to disk after each line. A line cut short by a crash is ignored when the journal is read back.
+ * <p>
+ * An entry is only needed while its build runs: it is dropped when the build completes, or once it is older than the
+ * retention period for a build that completed while the controller was down. The file is rewritten with the live
+ * entries once it has grown to twice their number.
+ */
+public final class StrobeSubmissionJournal
+{
+	private static final Logger LOGGER = Logger.getLogger(StrobeSubmissionJournal.class.getName());
+
+	private static final StrobeSubmissionJournal INSTANCE = new StrobeSubmissionJournal();
+
+	private static final String FILE_NAME = "strobe-submissions.journal"; //$NON-NLS-1$
+	private static final String VERSION = "v1"; //$NON-NLS-1$
+
+	private static final long RETENTION_MS = TimeUnit.DAYS.toMillis(
+			SystemProperties.getInteger(StrobeSubmissionJournal.class.getName() + ".retentionDays", 30)); //$NON-NLS-1$
+
+	// the journal is not compacted before it has this many lines, small journals are not worth rewriting
+	private static final int MIN_COMPACTION_LINES = 1000;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+	private final File location;
+	private File file;
+	private int lines;
+	private boolean compactionScheduled;
+
+	private StrobeSubmissionJournal()
+	{
+		this(null);
+	}
+
+	/**
+	 * Opens a journal kept in the given file, which is read on first use.
+	 *
+	 * @param location
+	 *            the journal file, or <code>null</code> for the file in the Jenkins home directory
+	 */
+	StrobeSubmissionJournal(File location)
+	{
+		this.location = location;
+	}
+
+	/**
+	 * @return the plugin wide submission journal
+	 */
+	public static StrobeSubmissionJournal get()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Builds the key of a measurement request.
+	 *
+	 * @param build
+	 *            the build submitting the measurement
+	 * @param stepId
+	 *            identifies the step within the build, its flow node id
+	 * @param jobName
+	 *            the measured job
+	 * @param profileName
+	 *            the profile name of the measurement
+	 *
+	 * @return the key
+	 */
+	public static String key(Run<?, ?> build, String stepId, String jobName, String profileName)
+	{
+		return build.getExternalizableId() + '|' + StringUtils.defaultString(stepId) + '|' + StringUtils.defaultString(jobName)
+				+ '|' + StringUtils.defaultString(profileName);
+	}
+
+	/**
+	 * Looks up a measurement request CES already accepted.
+	 *
+	 * @param key
+	 *            the key built by {@link #key(Run, String, String, String)}
+	 *
+	 * @return the journal entry, or <code>null</code> if the request has not been accepted
+	 */
+	public synchronized Entry lookup(String key)
+	{
+		load();
+		Entry entry = entries.get(key);
+		return entry != null && entry.isExpired(System.currentTimeMillis()) == false ? entry : null;
+	}
+
+	/**
+	 * Records that CES accepted a measurement request. The entry is on disk when this method returns.
+	 *
+	 * @param key
+	 *            the key built by {@link #key(Run, String, String, String)}
+	 * @param sessionNumber
+	 *            the session request number CES returned
+	 * @param cesUrl
+	 *            the URL of the CES instance that accepted the request
+	 */
+	public synchronized void record(String key, int sessionNumber, String cesUrl)
+	{
+		load();
+		long now = System.currentTimeMillis();
+		dropExpired(now);
+		Entry entry = new Entry(sessionNumber, StringUtils.defaultString(cesUrl), now);
+		entries.remove(key);
+		entries.put(key, entry);
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND))
+		{
+			channel.write(ByteBuffer.wrap(format(key, entry).getBytes(StandardCharsets.UTF_8)));
+			channel.force(false);
+			lines++;
+		}
+		catch (IOException e)
+		{
+			// the journal only prevents duplicates, a build must not fail because it could not be written
+			LOGGER.log(Level.WARNING, "Unable to write the Strobe submission journal " + file, e); //$NON-NLS-1$
+		}
+
+		scheduleCompaction();
+	}
+
+	/**
+	 * Forgets the requests of a build that has completed, as no step of it can run again.
+	 *
+	 * @param build
+	 *            the completed build
+	 */
+	public synchronized void completed(Run<?, ?> build)
+	{
+		// a journal that was never read holds nothing of a build that ran since the controller started
+		if (file == null)
+		{
+			return;
+		}
+
+		String prefix = build.getExternalizableId() + '|';
+		if (entries.keySet().removeIf(key -> key.startsWith(prefix)))
+		{
+			scheduleCompaction();
+		}
+	}
+
+	/**
+	 * @return the number of live entries
+	 */
+	synchronized int size()
+	{
+		load();
+		return entries.size();
+	}
+
+	// the entries are kept in the order they were recorded, so the expired ones are at the start; must hold the lock
+	private void dropExpired(long now)
+	{
+		Iterator<Entry> oldest = entries.values().iterator();
+		while (oldest.hasNext() && oldest.next().isExpired(now))
+		{
+			oldest.remove();
+		}
+	}
+
+	// must be called while holding the lock
+	private void load()
+	{
+		if (file != null)
+		{
+			return;
+		}
+
+		file = location != null ? location : new File(Jenkins.get().getRootDir(), FILE_NAME);
+		if (file.exists() == false)
+		{
+			return;
+		}
+
+		try
+		{
+			byte[] content = Files.readAllBytes(file.toPath());
+
+			// anything after the last line break was cut short by a crash, drop it so that new lines start cleanly
+			int end = content.length;
+			while (end > 0 && content[end - 1] != '\n')
+			{
+				end--;
+			}
+			if (end < content.length)
+			{
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+				{
+					channel.truncate(end);
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			for (String line : new String(content, 0, end, StandardCharsets.UTF_8).split("\n")) //$NON-NLS-1$
+			{
+				if (line.isEmpty())
+				{
+					continue;
+				}
+
+				lines++;
+				parse(line, now);
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			LOGGER.log(Level.WARNING, "Unable to read the Strobe submission journal " + file, e); //$NON-NLS-1$
+		}
+
+		scheduleCompaction();
+	}
+
+	private void parse(String line, long now)
+	{
+		String[] fields = line.split(" "); //$NON-NLS-1$
+		if (fields.length != 5 || VERSION.equals(fields[0]) == false)
+		{
+			return;
+		}
+
+		try
+		{
+			Entry entry = new Entry(Integer.parseInt(fields[2]), decode(fields[3]), Long.parseLong(fields[1]));
+			if (entry.isExpired(now) == false)
+			{
+				String key = decode(fields[4]);
+				entries.remove(key);
+				entries.put(key, entry);
+			}
+		}
+		catch (NumberFormatException | UnsupportedEncodingException e)
+		{
+			LOGGER.log(Level.FINE, "Ignoring an invalid Strobe submission journal entry: " + line, e); //$NON-NLS-1$
+		}
+	}
+
+	// compacts once most lines of the file belong to entries that are gone; must be called while holding the lock
+	private void scheduleCompaction()
+	{
+		if (compactionScheduled == false && lines >= MIN_COMPACTION_LINES && lines >= 2 * entries.size())
+		{
+			compactionScheduled = true;
+			Timer.get().submit(this::compact);
+		}
+	}
+
+	/**
+	 * Rewrites the journal with only the entries that have not expired, replacing the old file in a single rename so
+	 * that a crash leaves either the old or the new journal.
+	 */
+	synchronized void compact()
+	{
+		compactionScheduled = false;
+
+		dropExpired(System.currentTimeMillis());
+
+		File compacted = new File(file.getParentFile(), file.getName() + ".tmp"); //$NON-NLS-1$
+		try (FileChannel channel = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			StringBuilder content = new StringBuilder();
+			for (Map.Entry<String, Entry> entry : entries.entrySet())
+			{
+				content.append(format(entry.getKey(), entry.getValue()));
+			}
+
+			channel.write(ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8)));
+			channel.force(true);
+		}
+		catch (IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Unable to compact the Strobe submission journal " + file, e); //$NON-NLS-1$
+			return;
+		}
+
+		try
+		{
+			Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			lines = entries.size();
+		}
+		catch (IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Unable to replace the Strobe submission journal " + file, e); //$NON-NLS-1$
+		}
+	}
+
+	private static String format(String key, Entry entry)
+	{
+		try
+		{
+			return VERSION + ' ' + entry.timestamp + ' ' + entry.sessionNumber + ' ' + encode(entry.cesUrl) + ' ' + encode(key) + '\n';
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String encode(String value) throws UnsupportedEncodingException
+	{
+		return URLEncoder.encode(value, "UTF-8"); //$NON-NLS-1$
+	}
+
+	private static String decode(String value) throws UnsupportedEncodingException
+	{
+		return URLDecoder.decode(value, "UTF-8"); //$NON-NLS-1$
+	}
+
+	/**
+	 * Drops the entries of each build as it completes.
+	 */
+	@Extension
+	public static final class CompletedBuildListener extends RunListener<Run<?, ?>>
+	{
+		@Override
+		public void onCompleted(Run<?, ?> build, TaskListener listener)
+		{
+			get().completed(build);
+		}
+	}
+
+	/**
+	 * A measurement request CES accepted.
+	 */
+	public static final class Entry
+	{
+		private final int sessionNumber;
+		private final String cesUrl;
+		private final long timestamp;
+
+		Entry(int sessionNumber, String cesUrl, long timestamp)
+		{
+			this.sessionNumber = sessionNumber;
+			this.cesUrl = cesUrl;
+			this.timestamp = timestamp;
+		}
+
+		/**
+		 * @return the session request number CES returned
+		 */
+		public int getSessionNumber()
+		{
+			return sessionNumber;
+		}
+
+		/**
+		 * @return the URL of the CES instance that accepted the request
+		 */
+		public String getCesUrl()
+		{
+			return cesUrl;
+		}
+
+		boolean isExpired(long now)
+		{
+			return now - timestamp > RETENTION_MS;
+		}
+	}
+}
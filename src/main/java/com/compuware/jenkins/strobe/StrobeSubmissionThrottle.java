@@ -0,0 +1,290 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang.StringUtils;
+
+import hudson.model.TaskListener;
+import jenkins.util.Timer;
+
+/**
+ * Limits the rate and the number of concurrent measurement submissions per host connection, so that a burst of builds
+ * does not overrun CES and the Strobe started task. Each host connection has a token bucket refilled at the configured
+ * rate and a cap on submissions in flight. Builds that cannot submit right away queue in arrival order; the wait is a
+ * future completed from the shared Jenkins timer, so no thread is held while waiting.
+ */
+public final class StrobeSubmissionThrottle
+{
+	private static final StrobeSubmissionThrottle INSTANCE = new StrobeSubmissionThrottle();
+
+	private final ConcurrentMap<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+	private StrobeSubmissionThrottle()
+	{
+	}
+
+	/**
+	 * @return the plugin wide submission throttle
+	 */
+	public static StrobeSubmissionThrottle get()
+	{
+		return INSTANCE;
+	}
+
+	/**
+	 * Asks for permission to submit a measurement through a host connection. The returned future is completed once the
+	 * submission may proceed; the permit must then be released when CES has replied. Cancelling the future gives up the
+	 * place in the queue.
+	 *
+	 * @param connectionId
+	 *            the connection id of the host connection
+	 * @param listener
+	 *            Build listener told about the queue depth and the time waited
+	 *
+	 * @return a <code>CompletableFuture</code> completed with the <code>Permit</code>
+	 */
+	public CompletableFuture<Permit> acquire(String connectionId, TaskListener listener)
+	{
+		Limiter limiter = limiters.computeIfAbsent(StringUtils.trimToEmpty(connectionId), key -> new Limiter(currentConfiguration()));
+		return limiter.acquire(listener);
+	}
+
+	/**
+	 * Applies changed limits to the host connections that already have a limiter.
+	 *
+	 * @param config
+	 *            the updated global configuration
+	 */
+	public void applyConfiguration(StrobeGlobalConfiguration config)
+	{
+		for (Limiter limiter : limiters.values())
+		{
+			limiter.applyLimits(config);
+		}
+	}
+
+	private static StrobeGlobalConfiguration currentConfiguration()
+	{
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		return config != null ? config : new StrobeGlobalConfiguration();
+	}
+
+	/**
+	 * The permission to have one submission in flight.
+	 */
+	public static final class Permit
+	{
+		private final Limiter limiter;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		Permit(Limiter limiter)
+		{
+			this.limiter = limiter;
+		}
+
+		/**
+		 * Gives the slot back so the next queued submission can proceed. Releasing more than once has no effect.
+		 */
+		public void release()
+		{
+			if (released.compareAndSet(false, true))
+			{
+				limiter.release();
+			}
+		}
+	}
+
+	private static final class Waiter
+	{
+		private final CompletableFuture<Permit> future = new CompletableFuture<>();
+		private final TaskListener listener;
+		private final long queuedAt = System.nanoTime();
+		private boolean queued;
+
+		Waiter(TaskListener listener)
+		{
+			this.listener = listener;
+		}
+	}
+
+	private static final class Limiter
+	{
+		private final Deque<Waiter> queue = new ArrayDeque<>();
+
+		// a rate of zero turns the token bucket off, leaving only the in-flight limit
+		private double tokensPerNano;
+		private double burst;
+		private int maxInFlight;
+
+		private double tokens;
+		private long lastRefill = System.nanoTime();
+		private int inFlight;
+		private boolean drainScheduled;
+
+		Limiter(StrobeGlobalConfiguration config)
+		{
+			setLimits(config);
+			tokens = burst;
+		}
+
+		void applyLimits(StrobeGlobalConfiguration config)
+		{
+			List<Waiter> granted;
+			synchronized (this)
+			{
+				refill(System.nanoTime());
+				setLimits(config);
+				tokens = Math.min(tokens, burst);
+				granted = drain();
+			}
+			grant(granted);
+		}
+
+		CompletableFuture<Permit> acquire(TaskListener listener)
+		{
+			Waiter waiter = new Waiter(listener);
+			int ahead;
+			List<Waiter> granted;
+			synchronized (this)
+			{
+				ahead = queue.size();
+				queue.addLast(waiter);
+				granted = drain();
+				waiter.queued = granted.contains(waiter) == false;
+			}
+
+			if (waiter.queued)
+			{
+				StrobeMetrics.get().increment(StrobeMetrics.THROTTLED);
+				listener.getLogger().println(Messages.submissionQueued(ahead));
+			}
+			grant(granted);
+
+			// a waiter that gave up is dropped from the queue right away instead of when its turn comes
+			waiter.future.whenComplete((permit, failure) -> {
+				if (failure != null)
+				{
+					synchronized (this)
+					{
+						queue.remove(waiter);
+					}
+				}
+			});
+
+			return waiter.future;
+		}
+
+		void release()
+		{
+			List<Waiter> granted;
+			synchronized (this)
+			{
+				inFlight--;
+				granted = drain();
+			}
+			grant(granted);
+		}
+
+		private void setLimits(StrobeGlobalConfiguration config)
+		{
+			tokensPerNano = config.getMaxSubmissionsPerMinute() / (double) TimeUnit.MINUTES.toNanos(1);
+			burst = Math.max(1, config.getSubmissionBurst());
+			maxInFlight = config.getMaxSubmissionsInFlight();
+		}
+
+		// takes the waiters that may proceed off the queue; must be called while holding the lock
+		private List<Waiter> drain()
+		{
+			refill(System.nanoTime());
+
+			List<Waiter> granted = new ArrayList<>();
+			while (queue.isEmpty() == false && inFlight < maxInFlight && hasToken())
+			{
+				granted.add(queue.removeFirst());
+				inFlight++;
+				if (tokensPerNano > 0)
+				{
+					tokens -= 1;
+				}
+			}
+
+			// when only the rate holds the queue back, nothing else will drain it, so wake up when the next token is due
+			if (queue.isEmpty() == false && inFlight < maxInFlight && hasToken() == false && drainScheduled == false)
+			{
+				long delay = (long) Math.ceil((1 - tokens) / tokensPerNano);
+				drainScheduled = true;
+				Timer.get().schedule(() -> {
+					List<Waiter> next;
+					synchronized (this)
+					{
+						drainScheduled = false;
+						next = drain();
+					}
+					grant(next);
+				}, delay, TimeUnit.NANOSECONDS);
+			}
+
+			return granted;
+		}
+
+		// completes the futures outside the lock, as their callbacks start the submissions
+		private void grant(List<Waiter> granted)
+		{
+			long now = System.nanoTime();
+			for (Waiter waiter : granted)
+			{
+				if (waiter.queued)
+				{
+					waiter.listener.getLogger().println(Messages.submissionWaited(TimeUnit.NANOSECONDS.toMillis(now - waiter.queuedAt)));
+					StrobeMetrics.get().record(StrobeMetrics.THROTTLE_WAIT, now - waiter.queuedAt);
+				}
+
+				Permit permit = new Permit(this);
+				if (waiter.future.complete(permit) == false)
+				{
+					// the waiter gave up in the meantime, hand its slot to the next one
+					permit.release();
+				}
+			}
+		}
+
+		private boolean hasToken()
+		{
+			return tokensPerNano <= 0 || tokens >= 1;
+		}
+
+		private void refill(long now)
+		{
+			if (tokensPerNano > 0)
+			{
+				tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+			}
+			lastRefill = now;
+		}
+	}
+}
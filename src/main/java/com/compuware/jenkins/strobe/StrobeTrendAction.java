@@ -0,0 +1,301 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.category.DefaultCategoryDataset;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.util.Graph;
+import jenkins.model.TransientActionFactory;
+
+/**
+ * Shows the trend of the measurement histories of a job, one chart per measured value and measured job. The charts are
+ * drawn from the {@link StrobeProfileHistory} columns alone, without loading any build.
+ */
+public class StrobeTrendAction implements Action
+{
+	private static final Logger LOGGER = Logger.getLogger(StrobeTrendAction.class.getName());
+
+	static final String URL_NAME = "strobeTrend"; //$NON-NLS-1$
+
+	private static final int DEFAULT_BUILDS = 100;
+
+	private static final List<String> METRICS = Collections.unmodifiableList(Arrays.asList("cpu", "excp", "wait", "elapsed")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+	private final Job<?, ?> job;
+
+	StrobeTrendAction(Job<?, ?> job)
+	{
+		this.job = job;
+	}
+
+	public Job<?, ?> getJob()
+	{
+		return job;
+	}
+
+	@Override
+	public String getIconFileName()
+	{
+		return "graph.png"; //$NON-NLS-1$
+	}
+
+	@Override
+	public String getDisplayName()
+	{
+		return Messages.trendDisplayName();
+	}
+
+	@Override
+	public String getUrlName()
+	{
+		return URL_NAME;
+	}
+
+	/**
+	 * @return the values charted for each history
+	 */
+	public List<String> getMetrics()
+	{
+		return METRICS;
+	}
+
+	/**
+	 * @return the measurement histories of the job
+	 */
+	public List<HistoryInfo> getHistories()
+	{
+		List<HistoryInfo> histories = new ArrayList<>();
+		for (String key : StrobeProfileHistory.keys(job))
+		{
+			try
+			{
+				StrobeProfileHistory history = StrobeProfileHistory.of(job, key);
+				if (history != null && history.size() > 0)
+				{
+					histories.add(new HistoryInfo(key, history.getDisplayName(), history.size()));
+				}
+			}
+			catch (IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Unable to read the measurement history " + key, e); //$NON-NLS-1$
+			}
+		}
+
+		return histories;
+	}
+
+	/**
+	 * Builds the URL of a chart.
+	 * 
+	 * @param key
+	 *            the history
+	 * @param metric
+	 *            the charted value
+	 * @param tag
+	 *            the tag the builds are filtered on, may be <code>null</code>
+	 * 
+	 * @return the URL of the chart, relative to this page
+	 */
+	public String getGraphUrl(String key, String metric, String tag)
+	{
+		return "graph?history=" + encode(key) + "&metric=" + encode(metric) + "&tag=" + encode(StringUtils.trimToEmpty(tag)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	/**
+	 * Draws the chart of one value of a history as a PNG image. The request parameters are <code>history</code>,
+	 * <code>metric</code>, and optionally <code>tag</code> and <code>builds</code>, the number of builds charted.
+	 * 
+	 * @param req
+	 *            the chart request
+	 * @param rsp
+	 *            the response receiving the image
+	 * 
+	 * @throws IOException
+	 *             if the history could not be read or the image not written
+	 */
+	public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException
+	{
+		job.checkPermission(Item.READ);
+
+		StrobeProfileHistory history = StrobeProfileHistory.of(job, req.getParameter("history")); //$NON-NLS-1$
+		final String metric = req.getParameter("metric"); //$NON-NLS-1$
+		if (history == null || METRICS.contains(metric) == false)
+		{
+			rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		int builds = DEFAULT_BUILDS;
+		try
+		{
+			builds = Math.max(1, Integer.parseInt(StringUtils.defaultIfEmpty(req.getParameter("builds"), String.valueOf(DEFAULT_BUILDS)))); //$NON-NLS-1$
+		}
+		catch (NumberFormatException e)
+		{
+			rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
+		final StrobeProfileHistory.Series series = history.series(builds, req.getParameter("tag")); //$NON-NLS-1$
+		new Graph(System.currentTimeMillis(), 500, 200)
+		{
+			@Override
+			protected JFreeChart createGraph()
+			{
+				DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+				for (int i = 0; i < series.size(); i++)
+				{
+					double value = value(series, metric, i);
+					dataset.addValue(value >= 0 ? Double.valueOf(value) : null, metric, Integer.valueOf(series.getBuildNumber(i)));
+				}
+
+				return ChartFactory.createLineChart(null, Messages.trendBuild(), label(metric), dataset, PlotOrientation.VERTICAL,
+						false, true, false);
+			}
+		}.doPng(req, rsp);
+	}
+
+	private static double value(StrobeProfileHistory.Series series, String metric, int index)
+	{
+		switch (metric)
+		{
+			case "cpu": //$NON-NLS-1$
+				return series.getCpuSeconds(index);
+			case "excp": //$NON-NLS-1$
+				return series.getExcpCount(index);
+			case "wait": //$NON-NLS-1$
+				return series.getWaitSeconds(index);
+			default:
+				return series.getElapsedSeconds(index);
+		}
+	}
+
+	/**
+	 * @param metric
+	 *            a charted value
+	 * 
+	 * @return the label of the value
+	 */
+	public static String label(String metric)
+	{
+		switch (metric)
+		{
+			case "cpu": //$NON-NLS-1$
+				return Messages.cpuTime();
+			case "excp": //$NON-NLS-1$
+				return Messages.excps();
+			case "wait": //$NON-NLS-1$
+				return Messages.waitTime();
+			default:
+				return Messages.elapsedTime();
+		}
+	}
+
+	private static String encode(String value)
+	{
+		try
+		{
+			return URLEncoder.encode(value, "UTF-8"); //$NON-NLS-1$
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A measurement history listed on the trend page.
+	 */
+	public static final class HistoryInfo
+	{
+		private final String key;
+		private final String displayName;
+		private final int size;
+
+		HistoryInfo(String key, String displayName, int size)
+		{
+			this.key = key;
+			this.displayName = displayName;
+			this.size = size;
+		}
+
+		public String getKey()
+		{
+			return key;
+		}
+
+		public String getDisplayName()
+		{
+			return displayName;
+		}
+
+		public int getSize()
+		{
+			return size;
+		}
+	}
+
+	/**
+	 * Adds the trend page to the jobs that have a measurement history.
+	 */
+	@Extension
+	@SuppressWarnings("rawtypes")
+	public static final class Factory extends TransientActionFactory<Job>
+	{
+		@Override
+		public Class<Job> type()
+		{
+			return Job.class;
+		}
+
+		@Override
+		public Collection<? extends Action> createFor(Job target)
+		{
+			if (new File(target.getRootDir(), StrobeProfileHistory.DIRECTORY).isDirectory())
+			{
+				return Collections.singleton(new StrobeTrendAction(target));
+			}
+
+			return Collections.emptyList();
+		}
+	}
+}
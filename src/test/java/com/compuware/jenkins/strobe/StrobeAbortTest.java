@@ -0,0 +1,85 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.Result;
+
+/**
+ * Checks that aborting a build cancels its Strobe session, and that a session shared by coalesced builds is only
+ * cancelled once the last of them is aborted.
+ */
+public class StrobeAbortTest
+{
+	private static final String SCRIPT = "strobeMeasurementAsync connectionId: 'stub', credentialsId: 'stub-token', " //$NON-NLS-1$
+			+ "requestType: 'addActive', jobName: 'ABORT', waitForCompletion: true, waitTimeout: 5"; //$NON-NLS-1$
+
+	private static final long DELETE_TIMEOUT_MS = 10000;
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Rule
+	public StubCes ces = new StubCes();
+
+	@Test
+	public void sharedSessionIsCancelledByTheLastBuild() throws Exception
+	{
+		// identical requests from two jobs share one session
+		WorkflowJob first = j.createProject(WorkflowJob.class, "first"); //$NON-NLS-1$
+		first.setDefinition(new CpsFlowDefinition(SCRIPT, true));
+		WorkflowJob second = j.createProject(WorkflowJob.class, "second"); //$NON-NLS-1$
+		second.setDefinition(new CpsFlowDefinition(SCRIPT, true));
+		ces.connect("stub", "stub-token"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		WorkflowRun firstRun = first.scheduleBuild2(0).waitForStart();
+		j.waitForMessage("Waiting for Strobe Measurement session", firstRun); //$NON-NLS-1$
+		WorkflowRun secondRun = second.scheduleBuild2(0).waitForStart();
+		j.waitForMessage("Waiting for Strobe Measurement session", secondRun); //$NON-NLS-1$
+		j.assertLogContains("sharing its Strobe session", secondRun); //$NON-NLS-1$
+		assertEquals(1, ces.getSubmissions());
+
+		firstRun.doStop();
+		j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(firstRun));
+		j.assertLogContains("other builds still wait for it", firstRun); //$NON-NLS-1$
+		assertTrue(ces.getDeleted().isEmpty());
+
+		secondRun.doStop();
+		j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(secondRun));
+		j.assertLogContains("Cancelling Strobe Measurement session", secondRun); //$NON-NLS-1$
+
+		// the session is deleted in the background
+		long deadline = System.currentTimeMillis() + DELETE_TIMEOUT_MS;
+		while (ces.getDeleted().isEmpty() && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(100);
+		}
+		assertEquals(Collections.singletonList(StubCes.FIRST_SESSION), ces.getDeleted());
+	}
+}
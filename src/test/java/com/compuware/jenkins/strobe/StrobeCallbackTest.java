@@ -0,0 +1,70 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.Result;
+
+/**
+ * Checks that a build waiting for its session is woken by the callback CES sends when the session ends, long before
+ * the first status poll is due.
+ */
+public class StrobeCallbackTest
+{
+	private static final long SESSION_MS = 2000;
+
+	// the first poll of a session is at least 15 seconds out, less up to a fifth for jitter
+	private static final long FIRST_POLL_MS = 12000;
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Rule
+	public StubCes ces = new StubCes();
+
+	@Test
+	public void callbackEndsTheWait() throws Exception
+	{
+		ces.setSessionDuration(SESSION_MS);
+
+		WorkflowJob job = j.createProject(WorkflowJob.class, "callback"); //$NON-NLS-1$
+		job.setDefinition(new CpsFlowDefinition("strobeMeasurementAsync connectionId: 'stub', credentialsId: 'stub-token', " //$NON-NLS-1$
+				+ "requestType: 'addActive', jobName: 'CALLBACK', waitForCompletion: true, waitTimeout: 5", true)); //$NON-NLS-1$
+		ces.connect("stub", "stub-token"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertFalse(StrobeCallbackRegistry.get().isReceivingFrom(ces.getUrl()));
+
+		WorkflowRun run = j.assertBuildStatus(Result.SUCCESS, job.scheduleBuild2(0).get());
+
+		assertEquals(1, ces.getCallbacks());
+		assertEquals(0, ces.getStatusRequests());
+		assertThat(run.getDuration(), lessThan(FIRST_POLL_MS));
+		assertTrue(StrobeCallbackRegistry.get().isReceivingFrom(ces.getUrl()));
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Checks that the breaker opens after consecutive failures of a CES instance and lets a single probe through once it
+ * has been open long enough.
+ */
+public class StrobeCircuitBreakerTest
+{
+	private static final int THRESHOLD = 3;
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Rule
+	public TestName name = new TestName();
+
+	private final StrobeCircuitBreaker breaker = StrobeCircuitBreaker.get();
+
+	// the breaker is shared by the whole controller, so every test has a CES instance of its own
+	private String cesUrl;
+
+	@Before
+	public void setUp()
+	{
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		config.setCircuitFailureThreshold(THRESHOLD);
+		config.setCircuitOpenDuration(1);
+		cesUrl = "http://" + name.getMethodName() + ".example.com:48226"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private void failTimes(int times)
+	{
+		for (int i = 0; i < times; i++)
+		{
+			breaker.failed(cesUrl);
+		}
+	}
+
+	private void assertOpen(String url)
+	{
+		try
+		{
+			breaker.checkAllowed(url);
+			fail("the circuit of " + url + " is closed"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		catch (StrobeCircuitOpenException expected)
+		{
+			// the submission is stopped
+		}
+	}
+
+	// lets the open circuit become half open
+	private static void waitOpenDuration() throws InterruptedException
+	{
+		Thread.sleep(1100);
+	}
+
+	@Test
+	public void staysClosedBelowTheThreshold() throws StrobeCircuitOpenException
+	{
+		failTimes(THRESHOLD - 1);
+		breaker.checkAllowed(cesUrl);
+
+		// a success starts the count again
+		breaker.succeeded(cesUrl);
+		failTimes(THRESHOLD - 1);
+		breaker.checkAllowed(cesUrl);
+	}
+
+	@Test
+	public void opensAtTheThreshold() throws StrobeCircuitOpenException
+	{
+		failTimes(THRESHOLD);
+
+		assertOpen(cesUrl);
+		breaker.checkAllowed(cesUrl + "/other"); //$NON-NLS-1$
+	}
+
+	@Test
+	public void letsOneProbeThroughOnceTheOpenDurationIsOver() throws Exception
+	{
+		failTimes(THRESHOLD);
+		waitOpenDuration();
+
+		breaker.checkAllowed(cesUrl);
+		assertOpen(cesUrl);
+
+		breaker.succeeded(cesUrl);
+		breaker.checkAllowed(cesUrl);
+		breaker.checkAllowed(cesUrl);
+	}
+
+	@Test
+	public void reopensWhenTheProbeFails() throws Exception
+	{
+		failTimes(THRESHOLD);
+		waitOpenDuration();
+
+		breaker.checkAllowed(cesUrl);
+		breaker.failed(cesUrl);
+		assertOpen(cesUrl);
+	}
+
+	@Test
+	public void abandonedProbeLetsTheNextRequestProbe() throws Exception
+	{
+		failTimes(THRESHOLD);
+		waitOpenDuration();
+
+		breaker.checkAllowed(cesUrl);
+		breaker.abandoned(cesUrl);
+		breaker.checkAllowed(cesUrl);
+		assertOpen(cesUrl);
+	}
+}
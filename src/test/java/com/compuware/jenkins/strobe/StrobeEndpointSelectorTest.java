@@ -0,0 +1,167 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Checks which CES instances the selector offers for a host connection, spreading requests by load and avoiding the
+ * instances that fail.
+ */
+public class StrobeEndpointSelectorTest
+{
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Rule
+	public TestName name = new TestName();
+
+	private final StrobeEndpointSelector selector = StrobeEndpointSelector.get();
+
+	// the selector is shared by the whole controller, so every test has connections and CES instances of its own
+	private String connectionId;
+	private String primary;
+	private String secondary;
+	private String tertiary;
+
+	@Before
+	public void setUp()
+	{
+		connectionId = name.getMethodName();
+		primary = url("a"); //$NON-NLS-1$
+		secondary = url("b"); //$NON-NLS-1$
+		tertiary = url("c"); //$NON-NLS-1$
+	}
+
+	private String url(String instance)
+	{
+		return "http://" + instance + '.' + name.getMethodName() + ".example.com:48226"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private static void setGroups(StrobeEndpointGroup... groups)
+	{
+		StrobeGlobalConfiguration.get().setEndpointGroups(Arrays.asList(groups));
+		StrobeResolutionCache.get().invalidateAll();
+	}
+
+	private void useAllInstances()
+	{
+		setGroups(new StrobeEndpointGroup(connectionId, secondary + '\n' + tertiary));
+	}
+
+	@Test
+	public void endpointsStartWithThePrimaryWithoutDuplicates()
+	{
+		setGroups(new StrobeEndpointGroup(connectionId, secondary + "/\n\n" + primary + '\n' + tertiary), //$NON-NLS-1$
+				new StrobeEndpointGroup("other", url("d")), //$NON-NLS-1$ //$NON-NLS-2$
+				new StrobeEndpointGroup(connectionId, tertiary));
+
+		List<String> endpoints = selector.getEndpoints(connectionId, primary + '/');
+		assertEquals(Arrays.asList(primary, secondary, tertiary), endpoints);
+	}
+
+	@Test
+	public void endpointsFollowConfigurationChanges()
+	{
+		setGroups();
+		assertEquals(Collections.singletonList(primary), selector.getEndpoints(connectionId, primary));
+
+		// the groups are read again only once the configuration was saved
+		StrobeGlobalConfiguration.get().setEndpointGroups(Collections.singletonList(new StrobeEndpointGroup(connectionId, secondary)));
+		assertEquals(Collections.singletonList(primary), selector.getEndpoints(connectionId, primary));
+
+		StrobeResolutionCache.get().invalidateAll();
+		assertEquals(Arrays.asList(primary, secondary), selector.getEndpoints(connectionId, primary));
+
+		// so is a changed host connection
+		assertEquals(Arrays.asList(tertiary, secondary), selector.getEndpoints(connectionId, tertiary));
+	}
+
+	@Test
+	public void selectSpreadsRequestsByLoad()
+	{
+		useAllInstances();
+
+		String first = selector.select(connectionId, primary);
+		String second = selector.select(connectionId, primary);
+		String third = selector.select(connectionId, primary);
+		assertEquals(3, new HashSet<>(Arrays.asList(first, second, third)).size());
+
+		// the instance that answered is the only one without a request in flight
+		selector.succeeded(second);
+		assertEquals(second, selector.select(connectionId, primary));
+
+		// as is one whose request was given up on
+		selector.release(third);
+		assertEquals(third, selector.select(connectionId, primary));
+	}
+
+	@Test
+	public void selectSkipsFailingInstances()
+	{
+		useAllInstances();
+
+		selector.failed(selector.select(connectionId, primary));
+		for (int i = 0; i < 6; i++)
+		{
+			String selected = selector.select(connectionId, primary);
+			assertNotEquals(primary, selected);
+			selector.succeeded(selected);
+		}
+	}
+
+	@Test
+	public void selectFallsBackToTheInstanceDueBackFirst() throws InterruptedException
+	{
+		useAllInstances();
+
+		// one request in flight to each instance, all of which fail in turn
+		for (int i = 0; i < 3; i++)
+		{
+			selector.select(connectionId, primary);
+		}
+		for (String url : Arrays.asList(secondary, primary, tertiary))
+		{
+			selector.failed(url);
+			Thread.sleep(5);
+		}
+
+		assertEquals(secondary, selector.select(connectionId, primary));
+	}
+
+	@Test
+	public void singleInstanceIsAlwaysSelected()
+	{
+		setGroups();
+
+		selector.failed(selector.select(connectionId, primary));
+		assertEquals(primary, selector.select(connectionId, primary));
+	}
+}
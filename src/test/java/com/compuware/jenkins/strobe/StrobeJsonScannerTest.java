@@ -0,0 +1,141 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+/**
+ * Checks that the scanner reports the values of a reply however its content is split, stops when asked to and rejects
+ * replies that are too large or too deeply nested.
+ */
+public class StrobeJsonScannerTest
+{
+	private final List<String> values = new ArrayList<>();
+
+	// records every value as name=value, stopping after the given number of values
+	private StrobeJsonScanner scanner(int stopAfter, long maxChars)
+	{
+		return new StrobeJsonScanner((name, value) -> {
+			values.add(name + '=' + value);
+			return values.size() < stopAfter;
+		}, maxChars);
+	}
+
+	private List<String> scan(String json) throws IOException
+	{
+		StrobeJsonScanner scanner = scanner(Integer.MAX_VALUE, Long.MAX_VALUE);
+		scanner.feed(CharBuffer.wrap(json));
+		scanner.finish();
+		return values;
+	}
+
+	@Test
+	public void reportsMembersWithTheirNames() throws IOException
+	{
+		assertEquals(Arrays.asList("returnCode=0", "@number=1234", "done=true", "message=null"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+				scan("{ \"returnCode\" : 0, \"@number\":\"1234\",\"done\":true,\n\"message\":null}")); //$NON-NLS-1$
+	}
+
+	@Test
+	public void reportsArrayValuesWithTheArrayName() throws IOException
+	{
+		assertEquals(Arrays.asList("messages=first", "messages=second", "name=x", "value=1", "status=COMPLETED"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+				scan("{\"messages\":[\"first\",\"second\",{\"name\":\"x\",\"value\":1}],\"status\":\"COMPLETED\"}")); //$NON-NLS-1$
+	}
+
+	@Test
+	public void decodesEscapes() throws IOException
+	{
+		assertEquals(Arrays.asList("text=a\"b\\c/d\ne\u00e9"), //$NON-NLS-1$
+				scan("{\"text\":\"a\\\"b\\\\c\\/d\\ne\\u00e9\"}")); //$NON-NLS-1$
+	}
+
+	@Test
+	public void reportsTopLevelValuesWithoutName() throws IOException
+	{
+		assertEquals(Arrays.asList("null=42"), scan("42")); //$NON-NLS-1$ //$NON-NLS-2$
+		values.clear();
+		assertEquals(Arrays.asList("null=text"), scan("\"text\"")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test
+	public void sameValuesWhateverTheChunks() throws IOException
+	{
+		String json = "{\"messages\":[\"a\\u0041\\n\"],\"returnCode\":12,\"@number\":\"7\"}"; //$NON-NLS-1$
+		List<String> whole = new ArrayList<>(scan(json));
+		for (int size = 1; size < json.length(); size++)
+		{
+			values.clear();
+			StrobeJsonScanner scanner = scanner(Integer.MAX_VALUE, Long.MAX_VALUE);
+			for (int start = 0; start < json.length(); start += size)
+			{
+				scanner.feed(CharBuffer.wrap(json, start, Math.min(json.length(), start + size)));
+			}
+			scanner.finish();
+			assertEquals("chunks of " + size, whole, values); //$NON-NLS-1$
+		}
+	}
+
+	@Test
+	public void stopsWhenTheVisitorHasEnough() throws IOException
+	{
+		StrobeJsonScanner scanner = scanner(2, Long.MAX_VALUE);
+		CharBuffer chars = CharBuffer.wrap("{\"a\":1,\"b\":2,\"c\":3}"); //$NON-NLS-1$
+		scanner.feed(chars);
+		scanner.finish();
+
+		assertTrue(scanner.isDone());
+		assertTrue(chars.hasRemaining());
+		assertEquals(Arrays.asList("a=1", "b=2"), values); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test(expected = IOException.class)
+	public void failsOnTooLargeReply() throws IOException
+	{
+		scanner(Integer.MAX_VALUE, 10).feed(CharBuffer.wrap("{\"returnCode\":0}")); //$NON-NLS-1$
+	}
+
+	@Test(expected = IOException.class)
+	public void failsOnTooDeepNesting() throws IOException
+	{
+		scanner(Integer.MAX_VALUE, Long.MAX_VALUE).feed(CharBuffer.wrap(StringUtils.repeat("[", 100))); //$NON-NLS-1$
+	}
+
+	@Test
+	public void keepsTheStartOfTheReply() throws IOException
+	{
+		String html = "<html><body>" + StringUtils.repeat("Service Unavailable ", 100) + "</body></html>"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		StrobeJsonScanner scanner = scanner(Integer.MAX_VALUE, Long.MAX_VALUE);
+		scanner.feed(CharBuffer.wrap(html));
+		scanner.finish();
+
+		assertEquals(html.substring(0, 512), scanner.getPrefix());
+		assertFalse(scanner.isDone());
+	}
+}
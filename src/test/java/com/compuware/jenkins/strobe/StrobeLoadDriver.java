@@ -0,0 +1,206 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.queue.QueueTaskFuture;
+
+/**
+ * Starts many freestyle measurement builds at once against a slow and sometimes failing stub CES, and reports how the
+ * controller copes: its thread count and heap, the use of the CES connection pool, and the latency of the submissions
+ * and of the builds. It is a load driver rather than a test, so it is not part of the regular test run; run it on its
+ * own, as the latency histograms are shared by the whole JVM:
+ *
+ * <pre>
+ * mvn test -Dtest=StrobeLoadDriver -Dstrobe.load.builds=500 -Dstrobe.load.latency=500 -Dstrobe.load.errorRate=0.05
+ * </pre>
+ *
+ * The load is set with these system properties:
+ * <ul>
+ * <li><code>strobe.load.builds</code>, the number of builds started at once, 500 by default</li>
+ * <li><code>strobe.load.latency</code>, how long the stub CES holds every request, in milliseconds, 500 by default</li>
+ * <li><code>strobe.load.errorRate</code>, the share of submissions answered with an error, 0.05 by default</li>
+ * <li><code>strobe.load.errorStatus</code>, the HTTP status of those errors, 503 by default; 200 refuses the request
+ * with a CES return code instead</li>
+ * <li><code>strobe.load.errorReturnCode</code>, that return code, 12 by default</li>
+ * <li><code>strobe.load.returnCode</code>, the return code of accepted requests, 0 by default, or 4 for a warning</li>
+ * </ul>
+ */
+public class StrobeLoadDriver
+{
+	private static final String PROPERTY_PREFIX = "strobe.load."; //$NON-NLS-1$
+
+	private static final int BUILDS = Integer.getInteger(PROPERTY_PREFIX + "builds", 500); //$NON-NLS-1$
+	private static final long LATENCY_MS = Long.getLong(PROPERTY_PREFIX + "latency", 500); //$NON-NLS-1$
+	private static final double ERROR_RATE = Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "errorRate", "0.05")); //$NON-NLS-1$ //$NON-NLS-2$
+	private static final int ERROR_STATUS = Integer.getInteger(PROPERTY_PREFIX + "errorStatus", 503); //$NON-NLS-1$
+	private static final int ERROR_RETURN_CODE = Integer.getInteger(PROPERTY_PREFIX + "errorReturnCode", 12); //$NON-NLS-1$
+	private static final int RETURN_CODE = Integer.getInteger(PROPERTY_PREFIX + "returnCode", 0); //$NON-NLS-1$
+
+	private static final long SAMPLE_INTERVAL_MS = 250;
+	private static final long BUILD_TIMEOUT_MINUTES = 30;
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Rule
+	public StubCes ces = new StubCes();
+
+	@Test
+	public void drive() throws Exception
+	{
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		config.setMaxSubmissionsPerMinute(60 * BUILDS);
+		config.setSubmissionBurst(BUILDS);
+		config.setMaxSubmissionsInFlight(BUILDS);
+		config.setMaxConnectionsPerRoute(BUILDS);
+		config.setMaxConnectionsTotal(BUILDS);
+		// the errors must not open the circuit, however they happen to line up
+		config.setCircuitFailureThreshold(BUILDS);
+		config.save();
+		StrobeHttpClientManager.get().applyConfiguration(config);
+		StrobeSubmissionThrottle.get().applyConfiguration(config);
+
+		ces.setLatency(LATENCY_MS);
+		ces.setErrorRate(ERROR_RATE);
+		ces.setErrorStatus(ERROR_STATUS);
+		ces.setErrorReturnCode(ERROR_RETURN_CODE);
+		ces.setReturnCode(RETURN_CODE);
+
+		j.jenkins.setNumExecutors(BUILDS);
+		List<FreeStyleProject> projects = new ArrayList<>();
+		for (int i = 0; i < BUILDS; i++)
+		{
+			// distinct job names, identical requests would be coalesced into one submission
+			FreeStyleProject project = j.createFreeStyleProject("load" + i); //$NON-NLS-1$
+			project.getBuildersList().add(new StrobeMeasurementBuilder("stub", "stub-token", "addActive", "LOAD" + i)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			projects.add(project);
+		}
+		ces.connect("stub", "stub-token"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		Sampler sampler = new Sampler();
+		long start = System.nanoTime();
+		List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<>();
+		for (FreeStyleProject project : projects)
+		{
+			futures.add(project.scheduleBuild2(0));
+		}
+
+		Map<String, Integer> results = new TreeMap<>();
+		List<Long> durations = new ArrayList<>();
+		for (QueueTaskFuture<FreeStyleBuild> future : futures)
+		{
+			FreeStyleBuild build = future.get(BUILD_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+			results.merge(String.valueOf(build.getResult()), 1, Integer::sum);
+			durations.add(build.getDuration());
+		}
+		long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		sampler.stop();
+
+		StrobeMetrics.Histogram endToEnd = StrobeMetrics.get().getHistograms().get(StrobeMetrics.END_TO_END);
+		Collections.sort(durations);
+		System.out.println(String.format("Strobe load: %d builds, %d ms CES latency, error rate %.2f (status %d, return code %d)", //$NON-NLS-1$
+				BUILDS, LATENCY_MS, ERROR_RATE, ERROR_STATUS, ERROR_RETURN_CODE));
+		System.out.println(String.format("  all builds done in %d ms, results %s", elapsedMs, results)); //$NON-NLS-1$
+		System.out.println(String.format("  CES: %d submissions, %d errors", ces.getSubmissions(), ces.getFailures())); //$NON-NLS-1$
+		System.out.println(String.format("  submission end to end, ms: p50 %.0f, p90 %.0f, p99 %.0f, max %.0f", //$NON-NLS-1$
+				endToEnd.getQuantile(0.5), endToEnd.getQuantile(0.9), endToEnd.getQuantile(0.99), endToEnd.getMax()));
+		System.out.println(String.format("  build duration, ms: p50 %d, p90 %d, p99 %d, max %d", //$NON-NLS-1$
+				percentile(durations, 0.5), percentile(durations, 0.9), percentile(durations, 0.99), durations.get(durations.size() - 1)));
+		System.out.println(sampler);
+
+		// every build ended, and every build that succeeded got exactly one session
+		assertEquals(BUILDS, durations.size());
+		assertEquals(results.getOrDefault(Result.SUCCESS.toString(), 0).intValue(), ces.getSubmissions() - ces.getFailures());
+	}
+
+	private static long percentile(List<Long> sorted, double quantile)
+	{
+		return sorted.get(Math.max(0, (int) Math.ceil(quantile * sorted.size()) - 1));
+	}
+
+	/**
+	 * Samples the controller while the builds run and keeps the peak of every value.
+	 */
+	private static final class Sampler
+	{
+		private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private final Map<String, Supplier<Number>> gauges = StrobeMetrics.get().getGauges();
+		private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+		private final int threadsBefore = threads.getThreadCount();
+		private final long heapBefore = memory.getHeapMemoryUsage().getUsed();
+		private volatile long peakHeap;
+		private volatile long peakLeased;
+		private volatile long peakPending;
+		private volatile long peakInFlight;
+
+		Sampler()
+		{
+			threads.resetPeakThreadCount();
+			timer.scheduleAtFixedRate(this::sample, 0, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
+
+		private void sample()
+		{
+			peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+			peakLeased = Math.max(peakLeased, gauges.get("strobe.pool.leased").get().longValue()); //$NON-NLS-1$
+			peakPending = Math.max(peakPending, gauges.get("strobe.pool.pending").get().longValue()); //$NON-NLS-1$
+			peakInFlight = Math.max(peakInFlight, gauges.get("strobe.submissions.inFlight").get().longValue()); //$NON-NLS-1$
+		}
+
+		void stop() throws InterruptedException
+		{
+			timer.shutdown();
+			timer.awaitTermination(1, TimeUnit.SECONDS);
+			sample();
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("  threads: %d before, %d at peak%n  heap, MB: %d before, %d at peak%n" //$NON-NLS-1$
+					+ "  CES connection pool: %d leased and %d pending at peak, %d available after%n" //$NON-NLS-1$
+					+ "  submissions in flight: %d at peak", //$NON-NLS-1$
+					threadsBefore, threads.getPeakThreadCount(), heapBefore >> 20, peakHeap >> 20, peakLeased, peakPending,
+					gauges.get("strobe.pool.available").get().longValue(), peakInFlight); //$NON-NLS-1$
+		}
+	}
+}
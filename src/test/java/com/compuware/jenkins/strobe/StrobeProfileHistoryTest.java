@@ -0,0 +1,209 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Run;
+
+/**
+ * Checks that the measurement history records each build once, recovers from a crash on open, and compacts its older half.
+ */
+public class StrobeProfileHistoryTest
+{
+	private static final String KEY = StrobeProfileHistory.key("PAYROLL1", "NIGHTLY"); //$NON-NLS-1$ //$NON-NLS-2$
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private FreeStyleProject job;
+	private StrobeMeasurementBuilder smBuilder;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		job = j.createFreeStyleProject();
+		smBuilder = mock(StrobeMeasurementBuilder.class);
+		when(smBuilder.getJobName()).thenReturn("PAYROLL1"); //$NON-NLS-1$
+		when(smBuilder.getProfileName()).thenReturn("NIGHTLY"); //$NON-NLS-1$
+		when(smBuilder.getSystem()).thenReturn("CW01"); //$NON-NLS-1$
+		when(smBuilder.getTags()).thenReturn("nightly"); //$NON-NLS-1$
+	}
+
+	// records builds 1 to count, build n used n CPU seconds and 10 * n EXCPs
+	private StrobeProfileHistory record(int count) throws IOException
+	{
+		StrobeProfileHistory history = StrobeProfileHistory.of(job, KEY);
+		for (int number = 1; number <= count; number++)
+		{
+			Run<?, ?> build = mock(Run.class);
+			when(build.getNumber()).thenReturn(number);
+			when(build.getStartTimeInMillis()).thenReturn(1000L * number);
+			history.append(build, smBuilder, 100 + number, new StrobeProfileSummary(number, 10 * number, -1, 60,
+					Collections.singletonList(new StrobeProfileSummary.Entry("PAYROLL", null, 50)), Collections.emptyList())); //$NON-NLS-1$
+		}
+		return history;
+	}
+
+	// a copy of the job's histories in another job, whose history is read afresh as after a restart
+	private File copyHistories() throws IOException
+	{
+		FreeStyleProject copy = j.createFreeStyleProject();
+		File histories = new File(copy.getRootDir(), StrobeProfileHistory.DIRECTORY);
+		FileUtils.copyDirectory(new File(job.getRootDir(), StrobeProfileHistory.DIRECTORY), histories);
+		job = copy;
+		return histories;
+	}
+
+	private static void appendBytes(File file, int count) throws IOException
+	{
+		Files.write(file.toPath(), new byte[count], StandardOpenOption.APPEND);
+	}
+
+	private static List<Integer> buildNumbers(List<StrobeProfileHistory.Row> rows)
+	{
+		List<Integer> numbers = new ArrayList<>();
+		for (StrobeProfileHistory.Row row : rows)
+		{
+			numbers.add(row.getBuildNumber());
+		}
+		return numbers;
+	}
+
+	@Test
+	public void recordsEachBuildOnce() throws IOException
+	{
+		StrobeProfileHistory history = record(3);
+		Run<?, ?> last = mock(Run.class);
+		when(last.getNumber()).thenReturn(3);
+		history.append(last, smBuilder, 103, new StrobeProfileSummary(3, 30, -1, 60, Collections.emptyList(), Collections.emptyList()));
+
+		assertEquals(3, history.size());
+		assertEquals("PAYROLL1/NIGHTLY", history.getDisplayName()); //$NON-NLS-1$
+		StrobeProfileHistory.Row row = history.tail(1).get(0);
+		assertEquals(3, row.getBuildNumber());
+		assertEquals(103, row.getSessionNumber());
+		assertEquals("CW01", row.getSystem()); //$NON-NLS-1$
+		assertEquals("nightly", row.getTags()); //$NON-NLS-1$
+		assertEquals(3.0, row.getCpuSeconds(), 0);
+		assertEquals(30, row.getExcpCount());
+		assertEquals(-1, row.getWaitSeconds(), 0);
+	}
+
+	@Test
+	public void openCutsOffRowsLeftIncompleteByACrash() throws IOException
+	{
+		record(3);
+		File directory = new File(copyHistories(), KEY);
+
+		// a crash while appending the fourth row, before its build number was written
+		appendBytes(new File(directory, "cpu.col"), Double.BYTES); //$NON-NLS-1$
+		appendBytes(new File(directory, "session.col"), Integer.BYTES); //$NON-NLS-1$
+		appendBytes(new File(directory, "build.col"), 2); //$NON-NLS-1$
+		// a column added by a later release
+		Files.delete(new File(directory, "modules.col").toPath()); //$NON-NLS-1$
+
+		StrobeProfileHistory history = StrobeProfileHistory.of(job, KEY);
+		assertEquals(3, history.size());
+		assertEquals(3 * Double.BYTES, new File(directory, "cpu.col").length()); //$NON-NLS-1$
+		assertEquals(3 * Integer.BYTES, new File(directory, "session.col").length()); //$NON-NLS-1$
+		assertEquals(3 * Integer.BYTES, new File(directory, "build.col").length()); //$NON-NLS-1$
+		// each module is an 8 character name and its percentage
+		assertEquals(3 * StrobeProfileHistory.MODULE_COUNT * (8 + Float.BYTES), new File(directory, "modules.col").length()); //$NON-NLS-1$
+		assertEquals(Arrays.asList(1, 2, 3), buildNumbers(history.tail(10)));
+	}
+
+	@Test
+	public void openFinishesAnInterruptedCompaction() throws IOException
+	{
+		record(3);
+		File histories = copyHistories();
+
+		// a crash after the history was moved aside, before the compacted one took its place
+		File directory = new File(histories, KEY);
+		File old = new File(histories, KEY + ".old"); //$NON-NLS-1$
+		File compacted = new File(histories, KEY + ".compact"); //$NON-NLS-1$
+		Files.move(directory.toPath(), old.toPath());
+		Files.createDirectories(compacted.toPath());
+
+		StrobeProfileHistory history = StrobeProfileHistory.of(job, KEY);
+		assertEquals(3, history.size());
+		assertFalse(old.exists());
+		assertFalse(compacted.exists());
+		assertEquals(Collections.singletonList(KEY), StrobeProfileHistory.keys(job));
+	}
+
+	@Test
+	public void compactMergesTheOlderHalf() throws IOException
+	{
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		config.setHistoryMaxRows(10);
+		config.setHistoryDownsampling(2);
+
+		StrobeProfileHistory history = record(11);
+
+		// the newest 5 rows are kept, the older 6 merged in pairs into the last of each pair
+		assertEquals(8, history.size());
+		List<StrobeProfileHistory.Row> rows = history.tail(8);
+		assertEquals(Arrays.asList(2, 4, 6, 7, 8, 9, 10, 11), buildNumbers(rows));
+		assertEquals(1.5, rows.get(0).getCpuSeconds(), 0);
+		assertEquals(15, rows.get(0).getExcpCount());
+		assertEquals(-1, rows.get(0).getWaitSeconds(), 0);
+		assertEquals(60, rows.get(0).getElapsedSeconds(), 0);
+		assertEquals("CW01", rows.get(0).getSystem()); //$NON-NLS-1$
+		assertEquals(7.0, rows.get(3).getCpuSeconds(), 0);
+		assertEquals(Collections.singletonList(KEY), StrobeProfileHistory.keys(job));
+
+		copyHistories();
+		StrobeProfileHistory reopened = StrobeProfileHistory.of(job, KEY);
+		assertEquals(8, reopened.size());
+		assertEquals("PAYROLL1/NIGHTLY", reopened.getDisplayName()); //$NON-NLS-1$
+		assertEquals(buildNumbers(rows), buildNumbers(reopened.tail(8)));
+	}
+
+	@Test
+	public void compactDropsTheOlderHalfWithoutDownsampling() throws IOException
+	{
+		StrobeGlobalConfiguration config = StrobeGlobalConfiguration.get();
+		config.setHistoryMaxRows(10);
+		config.setHistoryDownsampling(1);
+
+		StrobeProfileHistory history = record(11);
+
+		assertEquals(Arrays.asList(7, 8, 9, 10, 11), buildNumbers(history.tail(20)));
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the totals and the top sections and modules read from a performance profile report.
+ */
+public class StrobeProfileSummaryTest
+{
+	private static final String REPORT = String.join("\n", //$NON-NLS-1$
+			"1                         STROBE PERFORMANCE PROFILE", //$NON-NLS-1$
+			"0 JOB NAME  PAYROLL1        SESSION TIME 00:02:30.50", //$NON-NLS-1$
+			"  CPU TIME   12.34 SEC", //$NON-NLS-1$
+			"  WAIT TIME  1:05.00", //$NON-NLS-1$
+			"  EXCPS      1,234", //$NON-NLS-1$
+			"1                         PROGRAM SECTION USAGE SUMMARY", //$NON-NLS-1$
+			"  MODULE   SECTION   FUNCTION            PERCENT", //$NON-NLS-1$
+			"0 PAYROLL  CALCTAX   TAX CALCULATION       40.00", //$NON-NLS-1$
+			"  PAYROLL  READREC   READ RECORDS          10.50", //$NON-NLS-1$
+			"  IGZCPAC  IGZCPAC   COBOL RUNTIME         20.25", //$NON-NLS-1$
+			"  DFSMODU  DFSFOO                           5.00", //$NON-NLS-1$
+			"  .SYSTEM  SVC       SUPERVISOR             3.00", //$NON-NLS-1$
+			"1                         WAIT TIME BY MODULE", //$NON-NLS-1$
+			"0 PAYROLL  READREC   READ RECORDS          30.00", //$NON-NLS-1$
+			"  IGZCPAC                                  12.00"); //$NON-NLS-1$
+
+	@Test
+	public void readsTheTotals() throws IOException
+	{
+		StrobeProfileSummary summary = StrobeProfileSummary.parse(new StringReader(REPORT), 5);
+
+		assertEquals(12.34, summary.getCpuSeconds(), 0.001);
+		assertEquals(65.0, summary.getWaitSeconds(), 0.001);
+		assertEquals(150.5, summary.getElapsedSeconds(), 0.001);
+		assertEquals(1234, summary.getExcpCount());
+	}
+
+	@Test
+	public void keepsTheTopSectionsAndModules() throws IOException
+	{
+		StrobeProfileSummary summary = StrobeProfileSummary.parse(new StringReader(REPORT), 2);
+
+		assertEquals(Arrays.asList("PAYROLL/CALCTAX=40.0", "IGZCPAC/IGZCPAC=20.25"), toStrings(summary.getSections())); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(Arrays.asList("PAYROLL/null=50.5", "IGZCPAC/null=20.25"), toStrings(summary.getModules())); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test
+	public void unknownTotalsOfAnEmptyReport() throws IOException
+	{
+		StrobeProfileSummary summary = StrobeProfileSummary.parse(new StringReader("1 NOTHING MEASURED"), 5); //$NON-NLS-1$
+
+		assertTrue(summary.isEmpty());
+		assertEquals(-1, summary.getCpuSeconds(), 0);
+		assertEquals(-1, summary.getExcpCount());
+		assertEquals(-1, summary.getWaitSeconds(), 0);
+		assertEquals(-1, summary.getElapsedSeconds(), 0);
+	}
+
+	@Test
+	public void scansCpuAndWaitLines() throws IOException
+	{
+		List<String> cpu = new ArrayList<>();
+		List<String> waiting = new ArrayList<>();
+		StrobeProfileSummary.scan(new StringReader(REPORT), new StrobeProfileSummary.UsageVisitor()
+		{
+			@Override
+			public void cpu(String module, String section, double percent)
+			{
+				cpu.add(module + '/' + section + '=' + percent);
+			}
+
+			@Override
+			public void waiting(String module, String section, double percent)
+			{
+				waiting.add(module + '/' + section + '=' + percent);
+			}
+		});
+
+		assertEquals(Arrays.asList("PAYROLL/CALCTAX=40.0", "PAYROLL/READREC=10.5", "IGZCPAC/IGZCPAC=20.25", "DFSMODU/DFSFOO=5.0"), cpu); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		assertEquals(Arrays.asList("PAYROLL/READREC=30.0", "IGZCPAC/null=12.0"), waiting); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test
+	public void ignoresPercentagesAboveHundred() throws IOException
+	{
+		StrobeProfileSummary summary = StrobeProfileSummary.parse(
+				new StringReader("SECTION USAGE\n  PAYROLL  CALCTAX  TAX  140.00\n  PAYROLL  READREC  READ  1.00"), 5); //$NON-NLS-1$
+
+		assertEquals(Arrays.asList("PAYROLL/READREC=1.0"), toStrings(summary.getSections())); //$NON-NLS-1$
+		assertNull(summary.getModules().get(0).getSection());
+	}
+
+	private static List<String> toStrings(List<StrobeProfileSummary.Entry> entries)
+	{
+		List<String> strings = new ArrayList<>();
+		for (StrobeProfileSummary.Entry entry : entries)
+		{
+			strings.add(entry.getModule() + '/' + entry.getSection() + '=' + entry.getCpuPercent());
+		}
+		return strings;
+	}
+}
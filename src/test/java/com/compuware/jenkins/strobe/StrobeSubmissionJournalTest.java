@@ -0,0 +1,167 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.model.Run;
+
+/**
+ * Checks that the journal reads back the live entries it recorded, as a restarted controller would, and that it forgets
+ * the requests of completed builds.
+ */
+public class StrobeSubmissionJournalTest
+{
+	private static final String CES_URL = "http://ces.example.com:48226"; //$NON-NLS-1$
+	private static final String OTHER_CES_URL = "http://ces2.example.com:48226"; //$NON-NLS-1$
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private StrobeSubmissionJournal journal;
+
+	@Before
+	public void setUp()
+	{
+		file = new File(folder.getRoot(), "strobe-submissions.journal"); //$NON-NLS-1$
+		journal = new StrobeSubmissionJournal(file);
+	}
+
+	// reads the journal back from its file, as after a restart
+	private StrobeSubmissionJournal reopen()
+	{
+		return new StrobeSubmissionJournal(file);
+	}
+
+	private static Run<?, ?> build(String externalizableId)
+	{
+		Run<?, ?> build = mock(Run.class);
+		when(build.getExternalizableId()).thenReturn(externalizableId);
+		return build;
+	}
+
+	private static String line(long timestamp, int sessionNumber, String cesUrl, String key) throws IOException
+	{
+		return "v1 " + timestamp + ' ' + sessionNumber + ' ' + URLEncoder.encode(cesUrl, "UTF-8") + ' ' //$NON-NLS-1$ //$NON-NLS-2$
+				+ URLEncoder.encode(key, "UTF-8") + '\n'; //$NON-NLS-1$
+	}
+
+	private static void assertEntry(StrobeSubmissionJournal.Entry entry, int sessionNumber, String cesUrl)
+	{
+		assertEquals(sessionNumber, entry.getSessionNumber());
+		assertEquals(cesUrl, entry.getCesUrl());
+	}
+
+	@Test
+	public void replaysTheLiveEntries() throws IOException
+	{
+		long now = System.currentTimeMillis();
+		String complete = line(now, 1, CES_URL, "job#1|3|PAYROLL1|NIGHTLY") //$NON-NLS-1$
+				+ line(now, 2, CES_URL, "job#1|4|PAYROLL2|NIGHTLY") //$NON-NLS-1$
+				+ line(now - TimeUnit.DAYS.toMillis(31), 3, CES_URL, "job#1|5|PAYROLL3|NIGHTLY") //$NON-NLS-1$
+				+ line(now, 4, CES_URL, "job#1|6|PAYROLL4|NIGHTLY").replace("v1", "v2") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ "v1 not a number\n" //$NON-NLS-1$
+				+ line(now, 5, OTHER_CES_URL, "job#1|3|PAYROLL1|NIGHTLY"); //$NON-NLS-1$
+		String partial = line(now, 6, CES_URL, "job#1|7|PAYROLL5|NIGHTLY"); //$NON-NLS-1$
+		Files.write(file.toPath(), (complete + partial.substring(0, partial.length() / 2)).getBytes(StandardCharsets.UTF_8));
+
+		// the later line of a request replaces the earlier one
+		assertEntry(journal.lookup("job#1|3|PAYROLL1|NIGHTLY"), 5, OTHER_CES_URL); //$NON-NLS-1$
+		assertEntry(journal.lookup("job#1|4|PAYROLL2|NIGHTLY"), 2, CES_URL); //$NON-NLS-1$
+		assertNull(journal.lookup("job#1|5|PAYROLL3|NIGHTLY")); //$NON-NLS-1$
+		assertNull(journal.lookup("job#1|6|PAYROLL4|NIGHTLY")); //$NON-NLS-1$
+		assertNull(journal.lookup("job#1|7|PAYROLL5|NIGHTLY")); //$NON-NLS-1$
+		assertEquals(2, journal.size());
+
+		// the line cut short is gone, so the next one starts cleanly
+		assertEquals(complete, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void recordSurvivesARestart()
+	{
+		String key = StrobeSubmissionJournal.key(build("job#1"), "3", "PAYROLL1", "NIGHTLY"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		assertNull(journal.lookup(key));
+
+		journal.record(key, 1234, CES_URL);
+		journal.record(key, 1235, OTHER_CES_URL);
+
+		StrobeSubmissionJournal restarted = reopen();
+		assertEntry(restarted.lookup(key), 1235, OTHER_CES_URL);
+		assertEquals(1, restarted.size());
+	}
+
+	@Test
+	public void completedBuildsAreForgotten() throws IOException
+	{
+		Run<?, ?> completed = build("job#1"); //$NON-NLS-1$
+		Run<?, ?> running = build("job#11"); //$NON-NLS-1$
+		String completedKey = StrobeSubmissionJournal.key(completed, "3", "PAYROLL1", "NIGHTLY"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		String runningKey = StrobeSubmissionJournal.key(running, "3", "PAYROLL1", "NIGHTLY"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		journal.record(completedKey, 1, CES_URL);
+		journal.record(StrobeSubmissionJournal.key(completed, "4", "PAYROLL2", "NIGHTLY"), 2, CES_URL); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		journal.record(runningKey, 3, CES_URL);
+
+		journal.completed(completed);
+		assertNull(journal.lookup(completedKey));
+		assertEntry(journal.lookup(runningKey), 3, CES_URL);
+		assertEquals(1, journal.size());
+
+		// compacting leaves only the running build's line
+		journal.compact();
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		assertEquals(1, lines.size());
+
+		StrobeSubmissionJournal restarted = reopen();
+		assertNull(restarted.lookup(completedKey));
+		assertEntry(restarted.lookup(runningKey), 3, CES_URL);
+	}
+
+	@Test
+	public void compactDropsReplacedAndExpiredLines() throws IOException
+	{
+		long now = System.currentTimeMillis();
+		Files.write(file.toPath(), (line(now - TimeUnit.DAYS.toMillis(31), 1, CES_URL, "job#1|3|PAYROLL1|NIGHTLY") //$NON-NLS-1$
+				+ line(now, 2, CES_URL, "job#2|3|PAYROLL1|NIGHTLY") //$NON-NLS-1$
+				+ line(now, 3, CES_URL, "job#2|3|PAYROLL1|NIGHTLY")).getBytes(StandardCharsets.UTF_8)); //$NON-NLS-1$
+		assertEquals(1, journal.size());
+
+		journal.compact();
+
+		assertEquals(line(now, 3, CES_URL, "job#2|3|PAYROLL1|NIGHTLY"), //$NON-NLS-1$
+				new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		assertEntry(reopen().lookup("job#2|3|PAYROLL1|NIGHTLY"), 3, CES_URL); //$NON-NLS-1$
+	}
+}
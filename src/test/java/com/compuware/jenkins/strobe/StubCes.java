@@ -0,0 +1,415 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 - 2019 Compuware Corporation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions: The above copyright notice and this permission notice
+ * shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.compuware.jenkins.strobe;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.rules.ExternalResource;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.compuware.jenkins.common.configuration.CpwrGlobalConfiguration;
+import com.compuware.jenkins.common.configuration.HostConnection;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import hudson.util.Secret;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * A stand-in for CES: an embedded HTTP server that accepts measurement requests, reports the status of the sessions it
+ * started and deletes them when asked to. Each request can be delayed, and a share of the submissions answered with an
+ * error, either an HTTP status such as <code>503</code> or a reply whose CES return code refuses the request. Sessions
+ * complete after a set time, and a session whose request asked for a callback sends it when it completes.
+ */
+public class StubCes extends ExternalResource
+{
+	static final String SYSTEM = "STUB"; //$NON-NLS-1$
+	static final String TOKEN = "stub-ces-token"; //$NON-NLS-1$
+	static final int FIRST_SESSION = 1000;
+
+	private static final String MEASUREMENT_PATH = "/strobe/measurement"; //$NON-NLS-1$
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private ScheduledExecutorService timer;
+
+	private volatile long latency;
+	private volatile double errorRate;
+	private volatile int errorStatus = HttpURLConnection.HTTP_UNAVAILABLE;
+	private volatile int errorReturnCode = 12;
+	private volatile int returnCode;
+	private volatile long sessionDuration = -1;
+
+	private final AtomicInteger nextSession = new AtomicInteger(FIRST_SESSION);
+	private final AtomicInteger submissions = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicInteger statusRequests = new AtomicInteger();
+	private final AtomicInteger callbacks = new AtomicInteger();
+	private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+	private final List<Integer> deleted = new CopyOnWriteArrayList<>();
+
+	@Override
+	protected void before() throws IOException
+	{
+		executor = Executors.newCachedThreadPool();
+		timer = Executors.newSingleThreadScheduledExecutor();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.setExecutor(executor);
+		server.createContext(MEASUREMENT_PATH, this::handle);
+		server.start();
+	}
+
+	@Override
+	protected void after()
+	{
+		server.stop(0);
+		timer.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the CES URL of the stub
+	 */
+	public String getUrl()
+	{
+		InetSocketAddress address = server.getAddress();
+		return "http://" + address.getHostString() + ':' + address.getPort(); //$NON-NLS-1$
+	}
+
+	/**
+	 * Adds a host connection for this stub to the Compuware global configuration, and a secret text credential holding
+	 * the token the stub expects.
+	 *
+	 * @param connectionId
+	 *            the connection id the builds use
+	 * @param credentialsId
+	 *            the id of the secret text credential the builds use
+	 *
+	 * @throws IOException
+	 *             if the credentials could not be saved
+	 */
+	public void connect(String connectionId, String credentialsId) throws IOException
+	{
+		SystemCredentialsProvider credentials = SystemCredentialsProvider.getInstance();
+		credentials.getCredentials().add(new StringCredentialsImpl(CredentialsScope.GLOBAL, credentialsId, null, Secret.fromString(TOKEN)));
+		credentials.save();
+
+		HostConnection hostConnection = mock(HostConnection.class);
+		when(hostConnection.getConnectionId()).thenReturn(connectionId);
+		when(hostConnection.getCesUrl()).thenReturn(getUrl());
+		when(hostConnection.getDescription()).thenReturn(SYSTEM);
+		CpwrGlobalConfiguration.get().addHostConnection(hostConnection);
+
+		// a build that already looked the connection id up must not keep the miss
+		StrobeResolutionCache.get().invalidateAll();
+	}
+
+	/**
+	 * @param latency
+	 *            how long every request is held before it is answered, in milliseconds
+	 */
+	public void setLatency(long latency)
+	{
+		this.latency = latency;
+	}
+
+	/**
+	 * @param errorRate
+	 *            the share of submissions answered with an error, from <code>0</code> for none to <code>1</code> for all;
+	 *            the errors are spread evenly, so that <code>0.2</code> fails every fifth submission
+	 */
+	public void setErrorRate(double errorRate)
+	{
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * @param errorStatus
+	 *            the HTTP status of an error, <code>503</code> by default; with <code>200</code> the error is a reply
+	 *            refusing the request with the return code set by {@link #setErrorReturnCode(int)}
+	 */
+	public void setErrorStatus(int errorStatus)
+	{
+		this.errorStatus = errorStatus;
+	}
+
+	/**
+	 * @param errorReturnCode
+	 *            the CES return code of an error answered with status <code>200</code>, <code>12</code> by default
+	 */
+	public void setErrorReturnCode(int errorReturnCode)
+	{
+		this.errorReturnCode = errorReturnCode;
+	}
+
+	/**
+	 * @param returnCode
+	 *            the CES return code of an accepted submission, <code>0</code> by default, or <code>4</code> for a
+	 *            request accepted with a warning
+	 */
+	public void setReturnCode(int returnCode)
+	{
+		this.returnCode = returnCode;
+	}
+
+	/**
+	 * @param sessionDuration
+	 *            how long a session runs before it completes, in milliseconds, or a negative number for sessions that
+	 *            only end when they are deleted
+	 */
+	public void setSessionDuration(long sessionDuration)
+	{
+		this.sessionDuration = sessionDuration;
+	}
+
+	/**
+	 * @return the number of submissions received, including the failed ones
+	 */
+	public int getSubmissions()
+	{
+		return submissions.get();
+	}
+
+	/**
+	 * @return the number of submissions answered with an error
+	 */
+	public int getFailures()
+	{
+		return failures.get();
+	}
+
+	/**
+	 * @return the number of status requests received
+	 */
+	public int getStatusRequests()
+	{
+		return statusRequests.get();
+	}
+
+	/**
+	 * @return the number of callbacks Jenkins accepted
+	 */
+	public int getCallbacks()
+	{
+		return callbacks.get();
+	}
+
+	/**
+	 * @return the numbers of the sessions that were deleted, in the order the deletes arrived
+	 */
+	public List<Integer> getDeleted()
+	{
+		return deleted;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			pause(latency);
+
+			String path = exchange.getRequestURI().getPath();
+			String method = exchange.getRequestMethod();
+			if (TOKEN.equals(exchange.getRequestHeaders().getFirst("Authorization")) == false) //$NON-NLS-1$
+			{
+				reply(exchange, HttpURLConnection.HTTP_UNAUTHORIZED, "{}"); //$NON-NLS-1$
+			}
+			else if (path.equals(MEASUREMENT_PATH) && "POST".equals(method)) //$NON-NLS-1$
+			{
+				submit(exchange);
+			}
+			else
+			{
+				// {system}/{session}[/profile]
+				String[] parts = path.substring(MEASUREMENT_PATH.length() + 1).split("/"); //$NON-NLS-1$
+				Session session = parts.length == 2 ? sessions.get(Integer.valueOf(parts[1])) : null;
+				if (session == null)
+				{
+					reply(exchange, HttpURLConnection.HTTP_NOT_FOUND, "{}"); //$NON-NLS-1$
+				}
+				else if ("DELETE".equals(method)) //$NON-NLS-1$
+				{
+					session.cancelled = true;
+					deleted.add(session.number);
+					reply(exchange, HttpURLConnection.HTTP_OK, "{}"); //$NON-NLS-1$
+				}
+				else
+				{
+					statusRequests.incrementAndGet();
+					reply(exchange, HttpURLConnection.HTTP_OK, new JSONObject().element("status", session.getStatus()).toString()); //$NON-NLS-1$
+				}
+			}
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	private void submit(HttpExchange exchange) throws IOException
+	{
+		JSONObject request = JSONObject.fromObject(read(exchange.getRequestBody()));
+		int count = submissions.incrementAndGet();
+		if (Math.floor(count * errorRate) > Math.floor((count - 1) * errorRate))
+		{
+			failures.incrementAndGet();
+			if (errorStatus == HttpURLConnection.HTTP_OK)
+			{
+				JSONObject reply = new JSONObject();
+				reply.element("messages", new JSONArray().element("Request refused")); //$NON-NLS-1$ //$NON-NLS-2$
+				reply.element("returnCode", String.valueOf(errorReturnCode)); //$NON-NLS-1$
+				reply(exchange, HttpURLConnection.HTTP_OK, reply.toString());
+			}
+			else
+			{
+				reply(exchange, errorStatus, "{}"); //$NON-NLS-1$
+			}
+			return;
+		}
+
+		Session session = new Session(nextSession.getAndIncrement(), request.optJSONObject("apiNotificationData")); //$NON-NLS-1$
+		sessions.put(session.number, session);
+		if (sessionDuration >= 0)
+		{
+			timer.schedule(() -> complete(session), sessionDuration, TimeUnit.MILLISECONDS);
+		}
+
+		JSONObject reply = new JSONObject();
+		reply.element("messages", new JSONArray().element("Request " + session.number + " accepted")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		reply.element("returnCode", String.valueOf(returnCode)); //$NON-NLS-1$
+		reply.element("@number", String.valueOf(session.number)); //$NON-NLS-1$
+		reply(exchange, HttpURLConnection.HTTP_OK, reply.toString());
+	}
+
+	private void complete(Session session)
+	{
+		session.completed = true;
+		if (session.cancelled || session.notification == null)
+		{
+			return;
+		}
+
+		executor.execute(() -> {
+			try
+			{
+				HttpURLConnection connection = (HttpURLConnection) new URL(session.notification.getString("returnURL")).openConnection(); //$NON-NLS-1$
+				connection.setRequestMethod(session.notification.optString("method", "POST")); //$NON-NLS-1$ //$NON-NLS-2$
+				connection.setRequestProperty("Content-Type", "application/json"); //$NON-NLS-1$ //$NON-NLS-2$
+				JSONArray headers = session.notification.optJSONArray("httpHeaders"); //$NON-NLS-1$
+				for (int i = 0; headers != null && i < headers.size(); i++)
+				{
+					JSONObject header = headers.getJSONObject(i);
+					connection.setRequestProperty(header.getString("name"), header.getString("value")); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				connection.setDoOutput(true);
+				try (OutputStream out = connection.getOutputStream())
+				{
+					out.write(new JSONObject().element("status", session.getStatus()).toString().getBytes(StandardCharsets.UTF_8)); //$NON-NLS-1$
+				}
+				if (connection.getResponseCode() == HttpURLConnection.HTTP_OK)
+				{
+					callbacks.incrementAndGet();
+				}
+				connection.disconnect();
+			}
+			catch (IOException e)
+			{
+				// like CES, a callback that cannot be delivered is dropped, polling still finds the session ended
+			}
+		});
+	}
+
+	private static void pause(long millis)
+	{
+		if (millis > 0)
+		{
+			try
+			{
+				Thread.sleep(millis);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static String read(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int n; (n = in.read(buffer)) != -1;)
+		{
+			bytes.write(buffer, 0, n);
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void reply(HttpExchange exchange, int status, String body) throws IOException
+	{
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody())
+		{
+			out.write(bytes);
+		}
+	}
+
+	private static final class Session
+	{
+		private final int number;
+		private final JSONObject notification;
+		private volatile boolean completed;
+		private volatile boolean cancelled;
+
+		Session(int number, JSONObject notification)
+		{
+			this.number = number;
+			this.notification = notification != null && notification.isNullObject() == false ? notification : null;
+		}
+
+		String getStatus()
+		{
+			return cancelled ? "CANCELLED" : completed ? "COMPLETED" : "ACTIVE"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+}